@@ -6,6 +6,14 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import ocsf.common.*;
 
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
@@ -19,6 +27,13 @@ import java.net.*;
  * Several public service methods are provided to application that use this
  * framework.
  * <p>
+ * By default the client sends every message in a frame of its own, encoded
+ * by a codec agreed on with the server when the connection opens; the binary
+ * codec turns a <code>String</code> into little more than its UTF-8 bytes.
+ * Framing also lets a server running in NIO mode serve the client without a
+ * dedicated thread. After <code>setFramed(false)</code> the client sends a
+ * Java object stream, as earlier versions did.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -41,15 +56,103 @@ public abstract class AbstractClient implements Runnable {
 	private Socket				clientSocket;
 
 	/**
-	 * The stream to handle data going to the server.
+	 * The stream that serializes the messages going to the server when the
+	 * framed protocol is not used. It writes to <code>serialBuffer</code>,
+	 * whose content is queued after every message.
+	 */
+	private ResettingObjectOutputStream	output;
+
+	/**
+	 * Receives what <code>output</code> writes.
 	 */
-	private ObjectOutputStream	output;
+	private ByteArrayOutputStream	serialBuffer;
 
 	/**
 	 * The stream to handle data from the server.
 	 */
 	private ObjectInputStream	input;
 
+	/**
+	 * A buffer over the socket's own output stream.
+	 */
+	private OutputStream		socketOutput;
+
+	/**
+	 * The queue of the messages going to the server and its writer.
+	 */
+	private volatile Sender		sender;
+
+	/**
+	 * The most messages waiting to be written to the server.
+	 */
+	private int					outboundQueueCapacity	= 4096;
+
+	/**
+	 * Runs the writers of the clients that use platform threads. Threads
+	 * are only kept while some client has messages waiting.
+	 */
+	private static ExecutorService	writerThreads;
+
+	/**
+	 * The stream to handle frames from the server, when the framed protocol
+	 * is used.
+	 */
+	private DataInputStream		frameInput;
+
+	/**
+	 * Indicates if the next connection uses the framed protocol.
+	 */
+	private boolean				framed		= true;
+
+	/**
+	 * The codecs offered to the server, preferred first.
+	 */
+	private final Codec[]		codecs;
+
+	/**
+	 * The codec agreed on with the server for the current framed
+	 * connection.
+	 */
+	private Codec				codec;
+
+	/**
+	 * Indicates if the next reader thread is a virtual thread.
+	 */
+	private boolean				virtualThread	= false;
+
+	/**
+	 * Indicates if every message is flushed to the socket as soon as it is
+	 * sent.
+	 */
+	private volatile boolean	autoFlush	= true;
+
+	/**
+	 * The TCP options of the next connection.
+	 */
+	private final SocketSettings	socketSettings	= new SocketSettings();
+
+	/**
+	 * When the object stream of the next connection is reset.
+	 */
+	private volatile ResetPolicy	resetPolicy	= ResetPolicy.EVERY_MESSAGE;
+
+	/**
+	 * When a connection that dropped is opened again.
+	 */
+	private volatile ReconnectPolicy	reconnectPolicy	= ReconnectPolicy.NEVER;
+
+	/**
+	 * Indicates if the reader thread is waiting to open the connection
+	 * again after it dropped.
+	 */
+	private volatile boolean	reconnecting	= false;
+
+	/**
+	 * The size of the buffer messages are gathered in before they are
+	 * written to the socket.
+	 */
+	private static final int	WRITE_BUFFER_SIZE	= 8192;
+
 	/**
 	 * The thread created to read data from the server.
 	 */
@@ -59,7 +162,28 @@ public abstract class AbstractClient implements Runnable {
 	 * Indicates if the thread is ready to stop. Needed so that the loop in the
 	 * run method knows when to stop waiting for incoming messages.
 	 */
-	private boolean				readyToStop	= false;
+	private volatile boolean	readyToStop	= false;
+
+	/**
+	 * The multiplexer whose connection carries this client's messages as a
+	 * logical stream, or null if the client has a connection of its own.
+	 */
+	private final Multiplexer	multiplexer;
+
+	/**
+	 * The id of this client's stream over the multiplexer's connection.
+	 */
+	private int					streamId;
+
+	/**
+	 * The counters and send latency histogram of the client.
+	 */
+	private final ClientMetrics	metrics		= new ClientMetrics(this);
+
+	/**
+	 * The answer to a heartbeat of the server.
+	 */
+	private static final byte[]	PONG		= Frames.frame(Frames.TYPE_PONG, new byte[0]);
 
 	/**
 	 * The server's host name.
@@ -82,43 +206,75 @@ public abstract class AbstractClient implements Runnable {
 	 *            the port number.
 	 */
 	public AbstractClient(String host, int port) {
+		this(host, port, Frames.defaultCodecs());
+	}
+
+	/**
+	 * Constructs a client that offers the given codecs to the server when it
+	 * uses the framed protocol.
+	 * 
+	 * @param host
+	 *            the server's host name.
+	 * @param port
+	 *            the port number.
+	 * @param codecs
+	 *            the codecs supported, preferred first; at least one.
+	 */
+	public AbstractClient(String host, int port, Codec... codecs) {
+		if (codecs.length == 0)
+			throw new IllegalArgumentException("no codec");
+
 		// Initialize variables
 		this.host = host;
 		this.port = port;
+		this.codecs = codecs.clone();
+		this.multiplexer = null;
+	}
+
+	/**
+	 * Constructs a client whose connection is a logical stream over the
+	 * connection of a multiplexer, shared with other clients. The server
+	 * sees the stream as a client of its own. The client has no socket or
+	 * thread: its messages are queued and written with the other streams',
+	 * and the messages from the server are handled by the multiplexer's
+	 * reader thread.
+	 * 
+	 * @param multiplexer
+	 *            the multiplexer; it must be open when
+	 *            <code>openConnection</code> is called.
+	 */
+	public AbstractClient(Multiplexer multiplexer) {
+		this.host = multiplexer.getHost();
+		this.port = multiplexer.getPort();
+		this.codecs = new Codec[0];
+		this.multiplexer = multiplexer;
 	}
 
 	// INSTANCE METHODS *************************************************
 
 	/**
 	 * Opens the connection with the server. If the connection is already
-	 * opened, this call has no effect.
+	 * opened, or is being opened again after it dropped, this call has no
+	 * effect.
 	 * 
 	 * @exception IOException
 	 *                if an I/O error occurs when opening.
 	 */
 	final public void openConnection() throws IOException {
 		// Do not do anything if the connection is already open
-		if (isConnected())
+		if (isConnected() || reconnecting)
 			return;
 
-		// Create the sockets and the data streams
-		try {
-			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-			input = new ObjectInputStream(clientSocket.getInputStream());
-		} catch (IOException ex)
-		// All three of the above must be closed when there is a failure
-		// to create any of them
-		{
-			try {
-				closeAll();
-			} catch (Exception exc) {
-			}
-
-			throw ex; // Rethrow the exception.
+		if (multiplexer != null) {
+			openStream();
+			connectionEstablished();
+			return;
 		}
 
-		clientReader = new Thread(this); // Create the data reader thread
+		connect();
+
+		// Create the data reader thread
+		clientReader = virtualThread ? VirtualThreads.factory("AbstractClient ").newThread(this) : new Thread(this);
 		readyToStop = false;
 		clientReader.start(); // Start the thread
 	}
@@ -126,6 +282,11 @@ public abstract class AbstractClient implements Runnable {
 	/**
 	 * Sends an object to the server. This is the only way that methods should
 	 * communicate with the server.
+	 * <p>
+	 * The message goes through the same queue as the ones sent with
+	 * <code>sendAsync</code>, and the method returns once it has been
+	 * written; if no writer is running, the calling thread writes it. While
+	 * the queue is full, the method waits for room.
 	 * 
 	 * @param msg
 	 *            The message to be sent.
@@ -133,10 +294,59 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when sending
 	 */
 	final public void sendToServer(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
+		Sender current = getSender();
+		CompletableFuture<Void> future = enqueue(current, msg, true);
+		current.schedule(true);
+		await(future);
+	}
+
+	/**
+	 * Sends an object to the server without waiting for it to be written.
+	 * The message is encoded on the calling thread and queued; a writer
+	 * thread writes the queued messages, several at a time.
+	 * <p>
+	 * The future completes when the message has been written to the socket
+	 * (or into the client's buffer when auto flush is off), and completes
+	 * exceptionally if it cannot be. If the outbound queue is full, the
+	 * message is not queued and the future fails with a
+	 * <code>QueueFullException</code> at once. Senders that want to slow down
+	 * before that happens can watch <code>isWritable</code> or override
+	 * <code>writabilityChanged</code>.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @return the future of the message.
+	 */
+	final public CompletableFuture<Void> sendAsync(Object msg) {
+		try {
+			Sender current = getSender();
+			CompletableFuture<Void> future = enqueue(current, msg, false);
+			current.schedule(false);
+			return future;
+		} catch (IOException ex) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(ex);
+			return failed;
+		}
+	}
 
-		output.writeObject(msg);
+	/**
+	 * Writes the messages sent so far to the socket, and returns once they
+	 * are written. Only needed when auto flush is off; otherwise every
+	 * message is written as soon as the writer gets to it.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs when writing.
+	 */
+	final public void flush() throws IOException {
+		Sender current = getSender();
+		CompletableFuture<Void> future;
+		synchronized (current) {
+			current.reserve(true);
+			future = current.add(null);
+		}
+		current.schedule(true);
+		await(future);
 	}
 
 	/**
@@ -145,7 +355,22 @@ public abstract class AbstractClient implements Runnable {
     * in some circumstances when Java refuses to send data that it thinks has been sent.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+		// Frames are encoded independently of each other; there is
+		// nothing to reset.
+		Sender current = sender;
+		if (current == null || output == null)
+			return;
+		CompletableFuture<Void> future;
+		synchronized (current) {
+			if (output.isClean())
+				return;
+			current.reserve(true);
+			output.reset();
+			output.flush();
+			future = current.add(takeSerialized());
+		}
+		current.schedule(true);
+		await(future);
 	}
 
 	/**
@@ -158,6 +383,11 @@ public abstract class AbstractClient implements Runnable {
 		// Prevent the thread from looping any more
 		readyToStop = true;
 
+		// Stop waiting to reconnect
+		Thread reader = clientReader;
+		if (reconnecting && reader != null)
+			reader.interrupt();
+
 		try {
 			closeAll();
 		} finally {
@@ -172,7 +402,19 @@ public abstract class AbstractClient implements Runnable {
 	 * @return true if the client is connnected.
 	 */
 	final public boolean isConnected() {
-		return clientReader != null && clientReader.isAlive();
+		if (multiplexer != null)
+			return sender != null;
+
+		Thread reader = clientReader;
+		return reader != null && reader.isAlive() && !reconnecting;
+	}
+
+	/**
+	 * @return true if the connection dropped and the client is waiting to
+	 *         open it again.
+	 */
+	final public boolean isReconnecting() {
+		return reconnecting;
 	}
 
 	/**
@@ -193,6 +435,186 @@ public abstract class AbstractClient implements Runnable {
 		this.port = port;
 	}
 
+	/**
+	 * @return the codec agreed on with the server, or null if the client
+	 *         is not connected or sends a Java object stream.
+	 */
+	final public Codec getCodec() {
+		return isConnected() && (multiplexer != null || output == null) ? codec : null;
+	}
+
+	/**
+	 * @return true if the next connection uses the framed protocol.
+	 */
+	final public boolean isFramed() {
+		return framed;
+	}
+
+	/**
+	 * Sets whether messages are sent in frames rather than as a Java object
+	 * stream. Framed is the default; a client that must talk to a server of
+	 * an earlier version can turn it off. The change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param framed
+	 *            true to use the framed protocol.
+	 */
+	final public void setFramed(boolean framed) {
+		this.framed = framed;
+	}
+
+	/**
+	 * @return true if every message is written to the socket as it is sent.
+	 */
+	final public boolean isAutoFlush() {
+		return autoFlush;
+	}
+
+	/**
+	 * Sets whether every message is written to the socket as soon as it is
+	 * sent, which is the default. A client that sends bursts of small
+	 * messages can turn it off and call <code>flush</code> after each burst:
+	 * the messages are then gathered and written with far fewer system
+	 * calls and packets. Messages are also written whenever the buffer
+	 * fills up.
+	 * 
+	 * @param autoFlush
+	 *            false to gather messages until <code>flush</code> is called.
+	 */
+	final public void setAutoFlush(boolean autoFlush) {
+		this.autoFlush = autoFlush;
+	}
+
+	/**
+	 * Returns the TCP options of the connection, such as
+	 * <code>TCP_NODELAY</code> (on by default) and the socket buffer sizes.
+	 * Changes take effect at the next call to openConnection().
+	 * 
+	 * @return the socket options.
+	 */
+	final public SocketSettings getSocketSettings() {
+		return socketSettings;
+	}
+
+	/**
+	 * Returns the number of messages waiting to be written to the server.
+	 * 
+	 * @return the depth of the outbound queue.
+	 */
+	final public int getOutboundQueueDepth() {
+		Sender current = sender;
+		return current == null ? 0 : current.size();
+	}
+
+	/**
+	 * @return the most messages that can wait to be written to the server.
+	 */
+	final public int getOutboundQueueCapacity() {
+		return outboundQueueCapacity;
+	}
+
+	/**
+	 * Sets the most messages that can wait to be written to the server. The
+	 * default is 4096. The change only takes effect at the time of the next
+	 * call to openConnection().
+	 * 
+	 * @param outboundQueueCapacity
+	 *            the capacity of the outbound queue.
+	 */
+	final public void setOutboundQueueCapacity(int outboundQueueCapacity) {
+		if (outboundQueueCapacity < 1)
+			throw new IllegalArgumentException("capacity must be positive: " + outboundQueueCapacity);
+		this.outboundQueueCapacity = outboundQueueCapacity;
+	}
+
+	/**
+	 * Tells whether the outbound queue has room to spare. It stops being
+	 * writable when it is half full, and becomes writable again when it is
+	 * down to a quarter.
+	 * 
+	 * @return false if the sender should slow down.
+	 */
+	final public boolean isWritable() {
+		Sender current = sender;
+		return current == null || current.isWritable();
+	}
+
+	/**
+	 * @return when the object stream is reset.
+	 */
+	final public ResetPolicy getResetPolicy() {
+		return resetPolicy;
+	}
+
+	/**
+	 * Sets when the object stream to the server is reset, if the framed
+	 * protocol is turned off. Between two resets the stream keeps every
+	 * object written reachable and sends an object written again as it was
+	 * the first time, even if it has changed since. The default is to reset
+	 * after every message. The change only takes effect at the time of the
+	 * next call to openConnection().
+	 * 
+	 * @param resetPolicy
+	 *            the reset policy.
+	 */
+	final public void setResetPolicy(ResetPolicy resetPolicy) {
+		this.resetPolicy = resetPolicy;
+	}
+
+	/**
+	 * @return when a connection that dropped is opened again.
+	 */
+	final public ReconnectPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+
+	/**
+	 * Sets when a connection that dropped is opened again. The reader thread
+	 * waits as the policy says and tries again until it succeeds, the policy
+	 * gives up or <code>closeConnection</code> is called. Messages sent
+	 * meanwhile fail as if the client were not connected. The default is to
+	 * never reconnect.
+	 * 
+	 * @param reconnectPolicy
+	 *            the reconnect policy.
+	 * @see #connectionReestablished()
+	 */
+	final public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		this.reconnectPolicy = reconnectPolicy;
+	}
+
+	/**
+	 * Returns the number of objects the stream to the server keeps
+	 * reachable because they were written since its last reset. Always 0
+	 * with the framed protocol, whose messages never refer to one another.
+	 * 
+	 * @return the number of retained objects.
+	 */
+	final public int getRetainedObjectCount() {
+		ResettingObjectOutputStream stream = output;
+		return stream == null ? 0 : stream.getRetainedCount();
+	}
+
+	/**
+	 * @return true if the next connection is read by a virtual thread.
+	 */
+	final public boolean isVirtualThread() {
+		return virtualThread;
+	}
+
+	/**
+	 * Sets whether the thread reading messages from the server is a virtual
+	 * thread rather than a platform thread. Virtual threads require Java 21
+	 * or later. The change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param virtualThread
+	 *            true to read on a virtual thread.
+	 */
+	final public void setVirtualThread(boolean virtualThread) {
+		this.virtualThread = virtualThread;
+	}
+
 	/**
 	 * @return the host name.
 	 */
@@ -217,14 +639,36 @@ public abstract class AbstractClient implements Runnable {
 	 * @return the client's Inet address.
 	 */
 	final public InetAddress getInetAddress() {
+		if (multiplexer != null)
+			return multiplexer.getInetAddress();
 		return clientSocket.getInetAddress();
 	}
 
+	/**
+	 * Returns the counters and send latency histogram of the client, kept
+	 * across its connections. They are published over JMX once
+	 * <code>register</code> is called on them.
+	 * 
+	 * @return the metrics.
+	 */
+	final public ClientMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the multiplexer this client is a stream of, or null if it has
+	 *         a connection of its own.
+	 */
+	final public Multiplexer getMultiplexer() {
+		return multiplexer;
+	}
+
 	// RUN METHOD -------------------------------------------------------
 
 	/**
 	 * Waits for messages from the server. When each arrives, a call is made to
-	 * <code>handleMessageFromServer()</code>. Not to be explicitly called.
+	 * <code>handleMessageFromServer()</code>. If the connection drops, opens
+	 * it again as the reconnect policy says. Not to be explicitly called.
 	 */
 	final public void run() {
 		connectionEstablished();
@@ -236,25 +680,47 @@ public abstract class AbstractClient implements Runnable {
 
 		try {
 			while (!readyToStop) {
-				// Get data from Server and send it to the handler
-				// The thread waits indefinitely at the following
-				// statement until something is received from the server
-				msg = input.readObject();
-
-				// Concrete subclasses do what they want with the
-				// msg by implementing the following method
-				handleMessageFromServer(msg);
-			}
-		} catch (Exception exception) {
-			if (!readyToStop) {
 				try {
-					closeAll();
-				} catch (Exception ex) {
-				}
+					// Get data from Server and send it to the handler
+					// The thread waits indefinitely at the following
+					// statement until something is received from the server
+					if (frameInput != null) {
+						byte[] frame = Frames.readAnyFrame(frameInput);
+						if (frame[0] == Frames.TYPE_PING) {
+							answerHeartbeat();
+							continue;
+						}
+						if (frame[0] != Frames.TYPE_MESSAGE) {
+							handleFrame(frame);
+							continue;
+						}
+						msg = codec.decode(frame, 1, frame.length - 1);
+					} else
+						msg = input.readObject();
+
+					// Concrete subclasses do what they want with the
+					// msg by implementing the following method
+					metrics.messageIn();
+					handleMessageFromServer(msg);
+				} catch (Exception exception) {
+					if (readyToStop)
+						break;
+
+					// Messages sent from now on fail as reconnecting ones
+					reconnecting = reconnectPolicy.isEnabled();
+					try {
+						closeAll();
+					} catch (Exception ex) {
+					}
 
-				connectionException(exception);
+					connectionException(exception);
+					if (!reconnect())
+						break;
+					connectionReestablished();
+				}
 			}
 		} finally {
+			reconnecting = false;
 			clientReader = null;
 		}
 	}
@@ -281,6 +747,32 @@ public abstract class AbstractClient implements Runnable {
 	protected void connectionException(Exception exception) {
 	}
 
+	/**
+	 * Hook method called when the outbound queue stops or starts being
+	 * writable, that is when it fills up past half its capacity, and when
+	 * it is back down to a quarter. It is called by the thread that caused
+	 * the change, while the queue is locked, so it should only take note.
+	 * The default implementation does nothing.
+	 * 
+	 * @param writable
+	 *            the new writability.
+	 * @see #isWritable()
+	 */
+	protected void writabilityChanged(boolean writable) {
+	}
+
+	/**
+	 * Hook method called by the reader thread after it has opened the
+	 * connection again, following a call to <code>connectionException</code>
+	 * , and before it reads anything from the new connection. A subclass
+	 * typically sends what the server needs to resume the session here. The
+	 * default implementation does nothing.
+	 * 
+	 * @see #setReconnectPolicy(ReconnectPolicy)
+	 */
+	protected void connectionReestablished() {
+	}
+
 	/**
 	 * Hook method called after a connection has been established. The default
 	 * implementation does nothing. It may be overridden by subclasses to do
@@ -300,6 +792,309 @@ public abstract class AbstractClient implements Runnable {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Handles a frame from the server that is not a message of this
+	 * client. Overridden by the connection of a multiplexer, which routes
+	 * the frames of its streams; other clients ignore them.
+	 * 
+	 * @param frame
+	 *            the frame type followed by the payload.
+	 * @exception Exception
+	 *                if the frame is invalid.
+	 */
+	void handleFrame(byte[] frame) throws Exception {
+	}
+
+	/**
+	 * Decodes a message the server sent on this client's stream and
+	 * handles it. Called by the multiplexer's reader thread.
+	 * 
+	 * @param buf
+	 *            the buffer containing the message.
+	 * @param off
+	 *            the offset of the message in the buffer.
+	 * @param len
+	 *            the length of the message.
+	 * @exception Exception
+	 *                if the message cannot be decoded or handled.
+	 */
+	final void receiveOnStream(byte[] buf, int off, int len) throws Exception {
+		metrics.messageIn();
+		metrics.bytesIn(len);
+		handleMessageFromServer(codec.decode(buf, off, len));
+	}
+
+	/**
+	 * @return the id of this client's stream over the multiplexer's
+	 *         connection.
+	 */
+	final int getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * Closes this client's stream because the server closed it, the
+	 * multiplexer's connection dropped, or a message could not be handled,
+	 * and calls <code>connectionException</code>. Called by the
+	 * multiplexer's reader thread.
+	 * 
+	 * @param exception
+	 *            the cause.
+	 */
+	final void loseStream(Exception exception) {
+		if (sender == null)
+			return;
+		try {
+			closeAll();
+		} catch (IOException ex) {
+		}
+		connectionException(exception);
+	}
+
+	/**
+	 * Opens this client's stream over the multiplexer's connection.
+	 * 
+	 * @exception IOException
+	 *                if the multiplexer is not open.
+	 */
+	private void openStream() throws IOException {
+		AbstractClient carrier = multiplexer.getCarrier();
+		Sender current = carrier.getSender();
+		codec = carrier.codec;
+		streamId = multiplexer.register(this);
+		sender = current;
+		queueFrame(current, Frames.control(Frames.TYPE_OPEN, streamId));
+	}
+
+	/**
+	 * Answers a heartbeat of the server, unless the outbound queue is full:
+	 * the messages waiting in it will show the server the client is there.
+	 */
+	private void answerHeartbeat() {
+		Sender current = sender;
+		if (current == null)
+			return;
+		try {
+			synchronized (current) {
+				current.reserve(false);
+				current.add(PONG);
+			}
+			current.schedule(false);
+		} catch (IOException ex) {
+		}
+	}
+
+	/**
+	 * Queues a frame that is not a message without waiting for it.
+	 */
+	private static void queueFrame(Sender current, byte[] frame) throws IOException {
+		synchronized (current) {
+			current.reserve(true);
+			current.add(frame);
+		}
+		current.schedule(false);
+	}
+
+	/**
+	 * Returns the sender of the current connection.
+	 * 
+	 * @exception SocketException
+	 *                if there is no connection.
+	 */
+	private Sender getSender() throws SocketException {
+		Sender current = sender;
+		if (current == null)
+			throw new SocketException("socket does not exist");
+		return current;
+	}
+
+	/**
+	 * Encodes a message and queues it.
+	 * <p>
+	 * If a message cannot be serialized into the object stream, the stream
+	 * is reset so that both sides forget what the server never saw.
+	 * 
+	 * @param block
+	 *            true to wait while the queue is full.
+	 */
+	private CompletableFuture<Void> enqueue(Sender current, Object msg, boolean block) throws IOException {
+		synchronized (current) {
+			current.reserve(block);
+			if (multiplexer != null)
+				return current.add(Frames.encode(msg, codec, streamId), metrics);
+			if (output == null)
+				return current.add(Frames.encode(msg, codec), metrics);
+
+			try {
+				output.writeMessage(msg);
+				output.flush();
+			} catch (IOException exception) {
+				boolean clean = output.isClean();
+				output.flush();
+				serialBuffer.reset();
+				output.reset();
+				output.flush();
+				if (clean)
+					serialBuffer.reset();
+				else
+					current.add(takeSerialized());
+				throw exception;
+			}
+			return current.add(takeSerialized(), metrics);
+		}
+	}
+
+	/**
+	 * Takes what the object stream has written so far.
+	 */
+	private byte[] takeSerialized() {
+		byte[] bytes = serialBuffer.toByteArray();
+		serialBuffer.reset();
+		return bytes;
+	}
+
+	/**
+	 * Waits for a message to be written.
+	 */
+	private static void await(CompletableFuture<Void> future) throws IOException {
+		try {
+			future.get();
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Returns what runs the writer of the next connection: a virtual thread
+	 * per burst when the client reads with virtual threads, a pool of
+	 * platform threads shared by all clients otherwise.
+	 */
+	private Executor getWriterExecutor() {
+		if (virtualThread && VirtualThreads.isSupported()) {
+			final ThreadFactory factory = VirtualThreads.factory("AbstractClient writer ");
+			return task -> factory.newThread(task).start();
+		}
+		synchronized (AbstractClient.class) {
+			if (writerThreads == null) {
+				writerThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+					private int	count	= 0;
+
+					public synchronized Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "OCSF client writer " + count++);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			return writerThreads;
+		}
+	}
+
+	/**
+	 * Creates the socket, the streams and the sender of a new connection.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs when opening.
+	 */
+	private void connect() throws IOException {
+		// Create the sockets and the data streams
+		try {
+			// The options go on before connecting, so that a large receive
+			// buffer can be negotiated
+			clientSocket = new Socket();
+			socketSettings.apply(clientSocket);
+			clientSocket.connect(new InetSocketAddress(host, port));
+
+			socketOutput = new BufferedOutputStream(clientSocket.getOutputStream(), WRITE_BUFFER_SIZE);
+			if (framed) {
+				Frames.writePreamble(socketOutput);
+				socketOutput.write(Frames.hello(codecs));
+				socketOutput.flush();
+				frameInput = new DataInputStream(new BufferedInputStream(
+						new CountingInputStream(clientSocket.getInputStream(), metrics.getBytesInCounter())));
+
+				// The server answers with the codec it picked
+				byte[] reply = Frames.readFrame(frameInput, Frames.TYPE_HELLO);
+				codec = reply.length == 1 ? Frames.find(reply[0], codecs) : null;
+				if (codec == null)
+					throw new StreamCorruptedException("no codec in common with the server");
+			} else {
+				serialBuffer = new ByteArrayOutputStream();
+				output = new ResettingObjectOutputStream(serialBuffer, resetPolicy);
+				output.flush();
+				serialBuffer.writeTo(socketOutput); // the stream header
+				serialBuffer.reset();
+				socketOutput.flush();
+				input = new ObjectInputStream(
+						new CountingInputStream(clientSocket.getInputStream(), metrics.getBytesInCounter()));
+			}
+		} catch (IOException ex)
+		// All three of the above must be closed when there is a failure
+		// to create any of them
+		{
+			try {
+				closeAll();
+			} catch (Exception exc) {
+			}
+
+			throw ex; // Rethrow the exception.
+		}
+
+		sender = new Sender(this, clientSocket, socketOutput, getWriterExecutor(), outboundQueueCapacity);
+	}
+
+	/**
+	 * Opens the connection again after it dropped, waiting before every
+	 * attempt as the reconnect policy says. Calls
+	 * <code>connectionClosed</code> if the policy gives up.
+	 * 
+	 * @return true if the connection is open again, false if the client is
+	 *         to stop reading.
+	 */
+	private boolean reconnect() {
+		ReconnectPolicy policy = reconnectPolicy;
+		if (!policy.isEnabled())
+			return false;
+
+		try {
+			for (int attempt = 0; !readyToStop; attempt++) {
+				long delay = policy.getDelay(attempt);
+				if (delay < 0) {
+					connectionClosed();
+					return false;
+				}
+				Thread.sleep(delay);
+				if (readyToStop)
+					break;
+
+				try {
+					connect();
+				} catch (IOException ex) {
+					continue;
+				}
+
+				// The connection may have been closed while it was opening
+				if (!readyToStop)
+					return true;
+				try {
+					closeAll();
+				} catch (IOException ex) {
+				}
+			}
+		} catch (InterruptedException ex) {
+			// closeConnection was called
+		} finally {
+			reconnecting = false;
+		}
+		return false;
+	}
+
 	/**
 	 * Closes all aspects of the connection to the server.
 	 * 
@@ -307,7 +1102,22 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when closing.
 	 */
 	private void closeAll() throws IOException {
+		if (multiplexer != null) {
+			// The multiplexer's connection stays open for the other streams
+			Sender current = sender;
+			sender = null;
+			if (current != null && multiplexer.unregister(streamId, this))
+				queueFrame(current, Frames.control(Frames.TYPE_CLOSE, streamId));
+			return;
+		}
+
 		try {
+			// Messages still waiting will not be written
+			Sender current = sender;
+			sender = null;
+			if (current != null)
+				current.fail(new SocketException("connection closed"));
+
 			// Close the socket
 			if (clientSocket != null)
 				clientSocket.close();
@@ -319,13 +1129,20 @@ public abstract class AbstractClient implements Runnable {
 			// Close the input stream
 			if (input != null)
 				input.close();
+
+			// Close the frame streams
+			if (frameInput != null)
+				frameInput.close();
 		} finally {
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
 			// of these objects to reclaim system resources if and
 			// when they are garbage collected.
 			output = null;
+			serialBuffer = null;
+			socketOutput = null;
 			input = null;
+			frameInput = null;
 			clientSocket = null;
 		}
 	}
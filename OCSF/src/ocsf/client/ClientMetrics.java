@@ -0,0 +1,159 @@
+package ocsf.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import ocsf.common.*;
+
+/**
+ * The counters and send latency histogram of a client, kept across its
+ * connections. A client has many more instances than a server, so its
+ * metrics are only published over JMX when <code>register</code> is
+ * called.
+ * <p>
+ * As on the server, everything is recorded on the threads that do the
+ * work, without locks or allocation. The send latency is the time from
+ * <code>sendToServer</code> or <code>sendAsync</code> until the writer has
+ * written the message to the socket: the time its future takes to
+ * complete. The messages of a client that is a stream of a multiplexer
+ * are counted by the stream, and the bytes read by the multiplexer's
+ * connection only.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.AbstractClient#getMetrics()
+ */
+public final class ClientMetrics implements ClientMetricsMXBean {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final AbstractClient	client;
+
+	private final LongAdder			messagesIn	= new LongAdder();
+	private final LongAdder			messagesOut	= new LongAdder();
+	private final LongAdder			bytesIn		= new LongAdder();
+	private final LongAdder			bytesOut	= new LongAdder();
+
+	private final LatencyHistogram	sendLatency	= new LatencyHistogram();
+
+	/**
+	 * The name the metrics are published under, or null.
+	 */
+	private String					name;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param client
+	 *            the client measured.
+	 */
+	ClientMetrics(AbstractClient client) {
+		this.client = client;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Publishes the metrics over JMX, under
+	 * <code>ocsf:type=Client,name=</code><i>name</i>, until
+	 * <code>unregister</code> is called.
+	 *
+	 * @param name
+	 *            a name that tells this client apart from the others of the
+	 *            process, such as its login id.
+	 * @return true if the metrics are published.
+	 */
+	public synchronized boolean register(String name) {
+		unregister();
+		String objectName = MBeans.DOMAIN + ":type=Client,name=" + ObjectName.quote(name);
+		if (!MBeans.register(this, objectName))
+			return false;
+		this.name = objectName;
+		return true;
+	}
+
+	/**
+	 * Stops publishing the metrics, if they are published.
+	 */
+	public synchronized void unregister() {
+		if (name != null) {
+			MBeans.unregister(name);
+			name = null;
+		}
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	public boolean isConnected() {
+		return client.isConnected();
+	}
+
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public int getOutboundQueueDepth() {
+		return client.getOutboundQueueDepth();
+	}
+
+	public LatencySnapshot getSendLatency() {
+		return sendLatency.snapshot();
+	}
+
+	public void resetLatencies() {
+		sendLatency.reset();
+	}
+
+	/**
+	 * @return the histogram of the time messages take to be written.
+	 */
+	public LatencyHistogram getSendHistogram() {
+		return sendLatency;
+	}
+
+	/**
+	 * Returns the metrics on several lines.
+	 */
+	public String toString() {
+		return "messages in=" + getMessagesIn() + " out=" + getMessagesOut() + "\nbytes in=" + getBytesIn()
+				+ " out=" + getBytesOut() + "\nsend: " + sendLatency;
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	void messageIn() {
+		messagesIn.increment();
+	}
+
+	void bytesIn(long count) {
+		bytesIn.add(count);
+	}
+
+	/**
+	 * @return the counter of the bytes read, for streams that count as
+	 *         they read.
+	 */
+	LongAdder getBytesInCounter() {
+		return bytesIn;
+	}
+
+	void messageOut(int bytes, long latencyNanos) {
+		messagesOut.increment();
+		bytesOut.add(bytes);
+		sendLatency.record(latencyNanos);
+	}
+}
+// End of ClientMetrics class
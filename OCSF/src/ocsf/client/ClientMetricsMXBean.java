@@ -0,0 +1,57 @@
+package ocsf.client;
+
+import ocsf.common.LatencySnapshot;
+
+/**
+ * What a client publishes over JMX once registered: counters since it was
+ * created, and the latency of its sends summarized in microseconds.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.ClientMetrics
+ */
+public interface ClientMetricsMXBean {
+
+	/**
+	 * @return true if the client is connected now.
+	 */
+	boolean isConnected();
+
+	/**
+	 * @return the number of messages received from the server.
+	 */
+	long getMessagesIn();
+
+	/**
+	 * @return the number of messages written to the server.
+	 */
+	long getMessagesOut();
+
+	/**
+	 * @return the number of bytes read from the server.
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return the number of bytes of the messages written to the server.
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return the number of messages waiting to be written now.
+	 */
+	int getOutboundQueueDepth();
+
+	/**
+	 * @return how long a message takes from being sent until it is written
+	 *         to the socket.
+	 */
+	LatencySnapshot getSendLatency();
+
+	/**
+	 * Forgets the latencies recorded so far; the counters keep counting.
+	 */
+	void resetLatencies();
+}
+// End of ClientMetricsMXBean interface
@@ -0,0 +1,285 @@
+package ocsf.client;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ocsf.common.*;
+
+/**
+ * One connection to a server that many clients share, each as a logical
+ * stream of its own. A process that would otherwise open hundreds of
+ * connections to the same server, such as a bot or a gateway, opens one
+ * multiplexer and constructs its clients with it.
+ * <p>
+ * Every client keeps its own hooks and state, and the server sees every
+ * stream as a separate client. What the streams share is the socket, the
+ * outbound queue with its writer, and the one thread that reads from the
+ * server and calls the <code>handleMessageFromServer</code> of the stream
+ * each message is for. A client that takes long to handle a message
+ * therefore holds up the other streams, and the writability of the queue
+ * is that of the whole connection.
+ * <p>
+ * When the connection drops, every stream is closed and its
+ * <code>connectionException</code> called. The multiplexer reconnects as
+ * its reconnect policy says, but the streams are not opened again: their
+ * clients open them again once <code>isOpen</code> is true, as they would
+ * open a connection of their own.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.AbstractClient#AbstractClient(Multiplexer)
+ */
+public class Multiplexer {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The connection the streams share.
+	 */
+	private final Carrier								carrier;
+
+	/**
+	 * The clients of the open streams, by stream id.
+	 */
+	private final ConcurrentHashMap<Integer, AbstractClient>	streams	= new ConcurrentHashMap<Integer, AbstractClient>();
+
+	/**
+	 * The id of the last stream opened.
+	 */
+	private final AtomicInteger							lastId	= new AtomicInteger();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a multiplexer, with the default codecs.
+	 *
+	 * @param host
+	 *            the server's host name.
+	 * @param port
+	 *            the port number.
+	 */
+	public Multiplexer(String host, int port) {
+		this(host, port, Frames.defaultCodecs());
+	}
+
+	/**
+	 * Constructs a multiplexer.
+	 *
+	 * @param host
+	 *            the server's host name.
+	 * @param port
+	 *            the port number.
+	 * @param codecs
+	 *            the codecs the connection supports, in order of preference.
+	 */
+	public Multiplexer(String host, int port, Codec... codecs) {
+		carrier = new Carrier(host, port, codecs);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Opens the connection to the server. Does nothing if it is already
+	 * open.
+	 *
+	 * @exception IOException
+	 *                if an I/O error occurs when opening.
+	 */
+	public void open() throws IOException {
+		carrier.openConnection();
+	}
+
+	/**
+	 * Closes every stream, waits for what they sent to be written, and
+	 * closes the connection.
+	 *
+	 * @exception IOException
+	 *                if an I/O error occurs when closing.
+	 */
+	public void close() throws IOException {
+		for (AbstractClient client : streams.values()) {
+			try {
+				client.closeConnection();
+			} catch (IOException ex) {
+			}
+		}
+		try {
+			if (carrier.isConnected())
+				carrier.flush();
+		} finally {
+			carrier.closeConnection();
+		}
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return true if the connection is open.
+	 */
+	public boolean isOpen() {
+		return carrier.isConnected();
+	}
+
+	/**
+	 * @return the number of open streams.
+	 */
+	public int getStreamCount() {
+		return streams.size();
+	}
+
+	/**
+	 * @return the server's host name.
+	 */
+	public String getHost() {
+		return carrier.getHost();
+	}
+
+	/**
+	 * @return the port number.
+	 */
+	public int getPort() {
+		return carrier.getPort();
+	}
+
+	/**
+	 * @return the address of the server, or null if the connection is not
+	 *         open.
+	 */
+	public InetAddress getInetAddress() {
+		return isOpen() ? carrier.getInetAddress() : null;
+	}
+
+	/**
+	 * @return the settings applied to the socket when the connection is
+	 *         opened.
+	 */
+	public SocketSettings getSocketSettings() {
+		return carrier.getSocketSettings();
+	}
+
+	/**
+	 * @return the reconnect policy of the connection.
+	 */
+	public ReconnectPolicy getReconnectPolicy() {
+		return carrier.getReconnectPolicy();
+	}
+
+	/**
+	 * Sets the reconnect policy of the connection. The streams are not
+	 * opened again when it reconnects.
+	 *
+	 * @param reconnectPolicy
+	 *            the policy.
+	 */
+	public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		carrier.setReconnectPolicy(reconnectPolicy);
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * @return the connection the streams share.
+	 */
+	AbstractClient getCarrier() {
+		return carrier;
+	}
+
+	/**
+	 * Gives a client the id of a new stream.
+	 *
+	 * @param client
+	 *            the client.
+	 * @return the stream id.
+	 */
+	int register(AbstractClient client) {
+		int id;
+		do {
+			id = lastId.incrementAndGet();
+		} while (id == 0 || streams.putIfAbsent(id, client) != null);
+		return id;
+	}
+
+	/**
+	 * Forgets the stream of a client.
+	 *
+	 * @param id
+	 *            the stream id.
+	 * @param client
+	 *            the client.
+	 * @return true if the stream was open, false if the server or the
+	 *         connection closed it already.
+	 */
+	boolean unregister(int id, AbstractClient client) {
+		return streams.remove(id, client);
+	}
+
+	/**
+	 * Hands a frame from the server to the client of its stream.
+	 */
+	private void route(byte[] frame) throws IOException {
+		int length = frame.length - 1;
+		int id = Frames.readStreamId(frame, 1, length);
+		AbstractClient client = streams.get(id);
+
+		switch (frame[0]) {
+		case Frames.TYPE_STREAM:
+			// The stream may have been closed while the message was on its
+			// way
+			if (client == null)
+				return;
+			try {
+				client.receiveOnStream(frame, 1 + Frames.STREAM_ID_LENGTH, length - Frames.STREAM_ID_LENGTH);
+			} catch (Exception ex) {
+				client.loseStream(ex);
+			}
+			break;
+
+		case Frames.TYPE_CLOSE:
+			if (client != null && streams.remove(id, client))
+				client.loseStream(new EOFException("stream closed by the server"));
+			break;
+
+		default:
+			throw new StreamCorruptedException("unexpected frame type " + frame[0]);
+		}
+	}
+
+	/**
+	 * Closes every stream after the connection dropped.
+	 */
+	private void loseAll(Exception exception) {
+		for (AbstractClient client : streams.values()) {
+			if (streams.remove(client.getStreamId(), client))
+				client.loseStream(exception);
+		}
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * The connection the streams share. It has no messages of its own.
+	 */
+	private final class Carrier extends AbstractClient {
+		Carrier(String host, int port, Codec[] codecs) {
+			super(host, port, codecs);
+			setFramed(true);
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+		}
+
+		@Override
+		void handleFrame(byte[] frame) throws Exception {
+			route(frame);
+		}
+
+		@Override
+		protected void connectionException(Exception exception) {
+			loseAll(exception);
+		}
+	}
+}
+// End of Multiplexer class
@@ -0,0 +1,28 @@
+package ocsf.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown, or used to complete the future of <code>sendAsync</code>, when a
+ * message cannot be sent because the client's outbound queue is full: the
+ * server is not reading as fast as the client is sending.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.AbstractClient#sendAsync(Object)
+ */
+public class QueueFullException extends IOException {
+	private static final long	serialVersionUID	= 1L;
+
+	/**
+	 * Constructs the exception.
+	 *
+	 * @param capacity
+	 *            the capacity of the queue.
+	 */
+	public QueueFullException(int capacity) {
+		super("outbound queue full (" + capacity + " messages)");
+	}
+}
+// End of QueueFullException class
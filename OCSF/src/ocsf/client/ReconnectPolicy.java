@@ -0,0 +1,101 @@
+package ocsf.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When a client whose connection dropped tries to open it again. The wait
+ * before each attempt grows exponentially from an initial delay up to a
+ * maximum, and is jittered: the actual wait is drawn uniformly between zero
+ * and that bound. When a server restarts, its clients all lose their
+ * connection at the same moment; without jitter they would all come back
+ * at the same moments too, and keep colliding at every retry.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.AbstractClient#setReconnectPolicy(ReconnectPolicy)
+ */
+public final class ReconnectPolicy {
+	// CONSTANTS ********************************************************
+
+	/**
+	 * Never reconnects: a dropped connection stays closed, as OCSF clients
+	 * did originally. The default.
+	 */
+	public static final ReconnectPolicy	NEVER	= new ReconnectPolicy(0, 0, -1);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final long					initialDelayMillis;
+	private final long					maxDelayMillis;
+	private final int					maxAttempts;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a policy.
+	 *
+	 * @param initialDelayMillis
+	 *            the bound of the wait before the first attempt; it doubles
+	 *            at every attempt.
+	 * @param maxDelayMillis
+	 *            the largest bound of the wait.
+	 * @param maxAttempts
+	 *            the number of attempts before giving up, or zero to keep
+	 *            trying until the connection is closed.
+	 */
+	public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, int maxAttempts) {
+		if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis)
+			throw new IllegalArgumentException("invalid delays");
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.maxAttempts = maxAttempts;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @param initialDelayMillis
+	 *            the bound of the wait before the first attempt.
+	 * @param maxDelayMillis
+	 *            the largest bound of the wait.
+	 * @return a policy that keeps trying with a jittered wait that doubles
+	 *         up to the maximum.
+	 */
+	public static ReconnectPolicy exponential(long initialDelayMillis, long maxDelayMillis) {
+		return new ReconnectPolicy(initialDelayMillis, maxDelayMillis, 0);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Returns how long to wait before an attempt.
+	 *
+	 * @param attempt
+	 *            the number of attempts already made since the connection
+	 *            dropped.
+	 * @return the wait in milliseconds, or -1 to give up.
+	 */
+	public long getDelay(int attempt) {
+		if (maxAttempts < 0 || (maxAttempts > 0 && attempt >= maxAttempts))
+			return -1;
+
+		long bound = maxDelayMillis;
+		if (attempt < 62 && initialDelayMillis <= maxDelayMillis >> attempt)
+			bound = initialDelayMillis << attempt;
+		return ThreadLocalRandom.current().nextLong(bound + 1);
+	}
+
+	/**
+	 * @return true if this policy ever reconnects.
+	 */
+	public boolean isEnabled() {
+		return maxAttempts >= 0;
+	}
+
+	public String toString() {
+		return "ReconnectPolicy[initialDelayMillis=" + initialDelayMillis + ", maxDelayMillis=" + maxDelayMillis
+				+ ", maxAttempts=" + maxAttempts + "]";
+	}
+}
+// End of ReconnectPolicy class
@@ -0,0 +1,295 @@
+package ocsf.client;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * The outbound side of one connection of a client: a bounded queue of
+ * encoded messages and the writer that empties it into the socket.
+ * <p>
+ * The writer runs only while there is something to write. It takes as many
+ * messages as are waiting, writes them into the buffered socket stream one
+ * after the other and flushes once the queue is empty, so messages sent in
+ * a burst leave in few system calls. A message's future completes when the
+ * message has been flushed to the socket, or written into the buffer when
+ * auto flush is off.
+ * <p>
+ * Encoding and queuing are done under the monitor of the sender, so that
+ * messages are queued in the order they were encoded; a Java object stream
+ * depends on it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+final class Sender implements Runnable {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The most messages written between two looks at the queue.
+	 */
+	private static final int							BATCH	= 64;
+
+	/**
+	 * A message waiting to be written, or a request to flush when it has no
+	 * bytes. The metrics of the client that sent a message, if any, are
+	 * told when it is written.
+	 */
+	private static final class Entry {
+		final byte[]					bytes;
+		final ClientMetrics				metrics;
+		final long						queuedAt;
+		final CompletableFuture<Void>	future	= new CompletableFuture<Void>();
+
+		Entry(byte[] bytes, ClientMetrics metrics) {
+			this.bytes = bytes;
+			this.metrics = metrics;
+			this.queuedAt = metrics == null ? 0 : System.nanoTime();
+		}
+	}
+
+	private final AbstractClient						client;
+	private final Socket								socket;
+	private final OutputStream							output;
+	private final Executor								executor;
+
+	private final ArrayDeque<Entry>						queue	= new ArrayDeque<Entry>();
+	private final int									capacity;
+
+	/**
+	 * The depth at which the client stops being writable, and the depth at
+	 * which it becomes writable again.
+	 */
+	private final int									highWater;
+	private final int									lowWater;
+
+	/**
+	 * Indicates if a writer is running or about to.
+	 */
+	private boolean										scheduled;
+	private boolean										writable	= true;
+
+	/**
+	 * Why the connection cannot be written to any more, or null.
+	 */
+	private IOException									failure;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param client
+	 *            the client.
+	 * @param socket
+	 *            the socket, closed if a write fails.
+	 * @param output
+	 *            the buffered stream of the socket.
+	 * @param executor
+	 *            runs the writer.
+	 * @param capacity
+	 *            the most messages that can wait.
+	 */
+	Sender(AbstractClient client, Socket socket, OutputStream output, Executor executor, int capacity) {
+		this.client = client;
+		this.socket = socket;
+		this.output = output;
+		this.executor = executor;
+		this.capacity = capacity;
+		this.highWater = Math.max(1, capacity / 2);
+		this.lowWater = capacity / 4;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Makes sure a message can be queued, waiting for room if asked to.
+	 * Called with the monitor held, before the message is encoded.
+	 *
+	 * @param block
+	 *            true to wait while the queue is full.
+	 * @exception IOException
+	 *                if the connection failed, or the queue is full and the
+	 *                caller does not wait.
+	 */
+	void reserve(boolean block) throws IOException {
+		while (true) {
+			if (failure != null)
+				throw failure;
+			if (queue.size() < capacity)
+				return;
+			if (!block)
+				throw new QueueFullException(capacity);
+			try {
+				wait();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	/**
+	 * Queues encoded bytes that are not a message, or a flush. Called with
+	 * the monitor held, after <code>reserve</code>.
+	 *
+	 * @param bytes
+	 *            the bytes, or null to ask for a flush.
+	 * @return the future of the bytes.
+	 */
+	CompletableFuture<Void> add(byte[] bytes) {
+		return add(bytes, null);
+	}
+
+	/**
+	 * Queues an encoded message. Called with the monitor held, after
+	 * <code>reserve</code>.
+	 *
+	 * @param bytes
+	 *            the message.
+	 * @param metrics
+	 *            the metrics that count it once written, or null.
+	 * @return the future of the message.
+	 */
+	CompletableFuture<Void> add(byte[] bytes, ClientMetrics metrics) {
+		Entry entry = new Entry(bytes, metrics);
+		queue.add(entry);
+		if (writable && queue.size() >= highWater) {
+			writable = false;
+			client.writabilityChanged(false);
+		}
+		return entry.future;
+	}
+
+	/**
+	 * Starts a writer unless one is running.
+	 *
+	 * @param inline
+	 *            true to run it on the calling thread.
+	 */
+	void schedule(boolean inline) {
+		synchronized (this) {
+			if (scheduled)
+				return;
+			scheduled = true;
+		}
+		if (inline)
+			run();
+		else
+			executor.execute(this);
+	}
+
+	/**
+	 * @return the number of messages waiting.
+	 */
+	synchronized int size() {
+		return queue.size();
+	}
+
+	/**
+	 * @return false while the queue is above its high-water mark.
+	 */
+	synchronized boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * @return the most messages that can wait.
+	 */
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Fails every waiting message and refuses new ones.
+	 *
+	 * @param exception
+	 *            why.
+	 */
+	void fail(IOException exception) {
+		ArrayList<Entry> failed;
+		synchronized (this) {
+			if (failure == null)
+				failure = exception;
+			failed = new ArrayList<Entry>(queue);
+			queue.clear();
+			notifyAll();
+		}
+		for (Entry entry : failed)
+			entry.future.completeExceptionally(exception);
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	/**
+	 * Writes the waiting messages. Not to be called.
+	 */
+	public void run() {
+		ArrayList<Entry> batch = new ArrayList<Entry>(BATCH);
+		ArrayList<Entry> written = new ArrayList<Entry>();
+		try {
+			while (true) {
+				boolean becameWritable = false;
+				synchronized (this) {
+					for (int i = 0; i < BATCH && !queue.isEmpty(); i++)
+						batch.add(queue.poll());
+					if (batch.isEmpty()) {
+						scheduled = false;
+						return;
+					}
+					notifyAll(); // room for blocked senders
+					if (!writable && queue.size() <= lowWater) {
+						writable = true;
+						becameWritable = true;
+					}
+				}
+				if (becameWritable)
+					client.writabilityChanged(true);
+
+				boolean flush = false;
+				for (Entry entry : batch) {
+					if (entry.bytes != null)
+						output.write(entry.bytes);
+					else
+						flush = true;
+				}
+				written.addAll(batch);
+				batch.clear();
+
+				if (!client.isAutoFlush() && !flush) {
+					complete(written);
+				} else if (flush || size() == 0) {
+					output.flush();
+					complete(written);
+				}
+			}
+		} catch (IOException ex) {
+			synchronized (this) {
+				scheduled = false;
+			}
+			fail(ex);
+			for (Entry entry : batch)
+				entry.future.completeExceptionally(ex);
+			for (Entry entry : written)
+				entry.future.completeExceptionally(ex);
+			try {
+				socket.close(); // the reader reports the failure
+			} catch (IOException exc) {
+			}
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	private static void complete(ArrayList<Entry> written) {
+		long now = System.nanoTime();
+		for (Entry entry : written) {
+			if (entry.metrics != null)
+				entry.metrics.messageOut(entry.bytes.length, now - entry.queuedAt);
+			entry.future.complete(null);
+		}
+		written.clear();
+	}
+}
+// End of Sender class
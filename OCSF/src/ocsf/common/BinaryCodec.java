@@ -0,0 +1,138 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The default codec. A payload is a one byte tag followed by the value:
+ * strings as UTF-8, numbers big-endian, byte arrays as they are. The frame
+ * already carries the length, so nothing else is needed and a chat line costs
+ * one byte more than its text.
+ * <p>
+ * Any other object is written with Java serialization after a tag of its own,
+ * so a server or client using this codec can still exchange arbitrary
+ * <code>Serializable</code> messages.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class BinaryCodec implements Codec {
+
+	/**
+	 * The id of this codec on the wire.
+	 */
+	public static final byte	ID			= 2;
+
+	// TAGS *************************************************************
+
+	private static final byte	NULL		= 0;
+	private static final byte	STRING		= 1;
+	private static final byte	INTEGER		= 2;
+	private static final byte	LONG		= 3;
+	private static final byte	DOUBLE		= 4;
+	private static final byte	FLOAT		= 5;
+	private static final byte	SHORT		= 6;
+	private static final byte	BYTE		= 7;
+	private static final byte	BOOLEAN		= 8;
+	private static final byte	CHARACTER	= 9;
+	private static final byte	BYTES		= 10;
+	private static final byte	SERIALIZED	= 127;
+
+	// INSTANCE METHODS *************************************************
+
+	public byte getId() {
+		return ID;
+	}
+
+	public void encode(Object msg, OutputStream output) throws IOException {
+		if (msg instanceof String) {
+			output.write(STRING);
+			output.write(((String) msg).getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		if (msg == null) {
+			output.write(NULL);
+			return;
+		}
+		if (msg instanceof byte[]) {
+			output.write(BYTES);
+			output.write((byte[]) msg);
+			return;
+		}
+
+		DataOutputStream data = new DataOutputStream(output);
+		if (msg instanceof Integer) {
+			data.writeByte(INTEGER);
+			data.writeInt((Integer) msg);
+		} else if (msg instanceof Long) {
+			data.writeByte(LONG);
+			data.writeLong((Long) msg);
+		} else if (msg instanceof Double) {
+			data.writeByte(DOUBLE);
+			data.writeDouble((Double) msg);
+		} else if (msg instanceof Float) {
+			data.writeByte(FLOAT);
+			data.writeFloat((Float) msg);
+		} else if (msg instanceof Short) {
+			data.writeByte(SHORT);
+			data.writeShort((Short) msg);
+		} else if (msg instanceof Byte) {
+			data.writeByte(BYTE);
+			data.writeByte((Byte) msg);
+		} else if (msg instanceof Boolean) {
+			data.writeByte(BOOLEAN);
+			data.writeBoolean((Boolean) msg);
+		} else if (msg instanceof Character) {
+			data.writeByte(CHARACTER);
+			data.writeChar((Character) msg);
+		} else {
+			data.writeByte(SERIALIZED);
+			ObjectOutputStream objects = new ObjectOutputStream(data);
+			objects.writeObject(msg);
+			objects.flush();
+		}
+		data.flush();
+	}
+
+	public Object decode(byte[] buf, int off, int len) throws IOException, ClassNotFoundException {
+		if (len < 1)
+			throw new StreamCorruptedException("empty payload");
+
+		byte tag = buf[off];
+		switch (tag) {
+		case STRING:
+			return new String(buf, off + 1, len - 1, StandardCharsets.UTF_8);
+		case NULL:
+			return null;
+		case BYTES:
+			byte[] bytes = new byte[len - 1];
+			System.arraycopy(buf, off + 1, bytes, 0, bytes.length);
+			return bytes;
+		case SERIALIZED:
+			return new ObjectInputStream(new ByteArrayInputStream(buf, off + 1, len - 1)).readObject();
+		}
+
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(buf, off + 1, len - 1));
+		switch (tag) {
+		case INTEGER:
+			return data.readInt();
+		case LONG:
+			return data.readLong();
+		case DOUBLE:
+			return data.readDouble();
+		case FLOAT:
+			return data.readFloat();
+		case SHORT:
+			return data.readShort();
+		case BYTE:
+			return data.readByte();
+		case BOOLEAN:
+			return data.readBoolean();
+		case CHARACTER:
+			return data.readChar();
+		default:
+			throw new StreamCorruptedException("unknown payload tag " + tag);
+		}
+	}
+}
+// End of BinaryCodec class
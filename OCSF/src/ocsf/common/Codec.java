@@ -0,0 +1,64 @@
+package ocsf.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A <code> Codec </code> turns messages into the payload of a frame and back.
+ * Clients and servers are constructed with the codecs they support; when a
+ * client connects, the two ends agree on the first codec of the client's list
+ * that the server also supports, and every frame of that connection is then
+ * encoded with it.
+ * <p>
+ * Codecs are identified on the wire by a one byte id, so two codecs with the
+ * same id must be able to decode each other's payloads. One instance is
+ * shared by every connection, and used by several threads at once, so
+ * implementations must be thread-safe and keep nothing of one connection
+ * or one message for the next; shared statistics and caches of reusable
+ * resources are fine.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.BinaryCodec
+ * @see ocsf.common.SerializationCodec
+ */
+public interface Codec {
+
+	/**
+	 * Returns the id that identifies the codec during the handshake.
+	 *
+	 * @return the id of the codec.
+	 */
+	byte getId();
+
+	/**
+	 * Writes the payload encoding a message.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param output
+	 *            the stream receiving the payload.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	void encode(Object msg, OutputStream output) throws IOException;
+
+	/**
+	 * Decodes the payload of a frame.
+	 *
+	 * @param buf
+	 *            the buffer containing the payload.
+	 * @param off
+	 *            the offset of the payload in the buffer.
+	 * @param len
+	 *            the length of the payload.
+	 * @return the message.
+	 * @exception IOException
+	 *                if the payload is not valid.
+	 * @exception ClassNotFoundException
+	 *                if the payload names a class that cannot be found.
+	 */
+	Object decode(byte[] buf, int off, int len) throws IOException, ClassNotFoundException;
+}
+// End of Codec interface
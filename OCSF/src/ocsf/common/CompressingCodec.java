@@ -0,0 +1,438 @@
+package ocsf.common;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.*;
+
+/**
+ * A codec that deflates the payloads of another codec. A client that lists
+ * it first in its hello gets compressed frames from servers that support it
+ * too, and uncompressed frames from the others.
+ * <p>
+ * Payloads shorter than a threshold are sent as they are, behind a one byte
+ * marker, since deflating a chat line costs more time than it saves bytes.
+ * Longer payloads are deflated, and sent as they are anyway if that does not
+ * make them smaller. A preset dictionary of strings the messages often
+ * contain lets even short messages compress; both ends must use the same
+ * one, which the zlib stream checks. <code>train</code> builds one from
+ * sample messages.
+ * <p>
+ * A server encodes a broadcast once per codec, so a message sent to every
+ * client is deflated once, not once per client.
+ * <p>
+ * The codec keeps counts of the bytes it compressed and the CPU time it
+ * spent doing so, shared by every connection that uses the instance. They
+ * are the only state it keeps besides a few idle deflaters and inflaters,
+ * which are taken by one payload at a time and hold native memory: a
+ * pool of them is kept, and those that do not fit in it are ended.
+ * Nothing in the codec belongs to a connection.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.EncodedMessage
+ */
+public class CompressingCodec implements Codec {
+	// CONSTANTS ********************************************************
+
+	/**
+	 * The default threshold, below which payloads are not deflated.
+	 */
+	public static final int				DEFAULT_THRESHOLD	= 256;
+
+	/**
+	 * The largest dictionary deflate can use.
+	 */
+	public static final int				MAX_DICTIONARY		= 32 * 1024;
+
+	/**
+	 * The flag added to the id of the codec that is compressed.
+	 */
+	public static final byte			FLAG				= 0x40;
+
+	/**
+	 * The marker of a payload sent as it is.
+	 */
+	private static final byte			STORED				= 0;
+
+	/**
+	 * The marker of a deflated payload, which is followed by the length of
+	 * the payload before compression.
+	 */
+	private static final byte			DEFLATED			= 1;
+
+	/**
+	 * The length of the strings counted when training a dictionary.
+	 */
+	private static final int			SAMPLE_LENGTH		= 8;
+
+	/**
+	 * Where the CPU time of the compressing threads is read from.
+	 */
+	private static final ThreadMXBean	THREADS				= ManagementFactory.getThreadMXBean();
+
+	/**
+	 * The most idle deflaters, and inflaters, kept for reuse.
+	 */
+	private static final int			POOL_SIZE			= Math.max(2, Runtime.getRuntime()
+																	.availableProcessors());
+
+	/**
+	 * The smallest buffer a payload is inflated into at first; it grows as
+	 * the payload inflates, up to the length announced.
+	 */
+	private static final int			INFLATE_BUFFER		= 1024;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final Codec					codec;
+	private final byte[]				dictionary;
+	private final int					threshold;
+
+	/**
+	 * The checksum by which a zlib stream names its dictionary.
+	 */
+	private final long					dictionaryId;
+
+	/**
+	 * The idle deflaters and inflaters, reset between payloads.
+	 */
+	private final ArrayBlockingQueue<Deflater>	deflaters	= new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+	private final ArrayBlockingQueue<Inflater>	inflaters	= new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+
+	private final LongAdder				encoded				= new LongAdder();
+	private final LongAdder				compressed			= new LongAdder();
+	private final LongAdder				bytesIn				= new LongAdder();
+	private final LongAdder				bytesOut			= new LongAdder();
+	private final LongAdder				compressNanos		= new LongAdder();
+	private final LongAdder				decompressNanos		= new LongAdder();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a codec that deflates the payloads of another one from the
+	 * default threshold, without dictionary.
+	 *
+	 * @param codec
+	 *            the codec whose payloads are deflated.
+	 */
+	public CompressingCodec(Codec codec) {
+		this(codec, null, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Constructs a codec that deflates the payloads of another one.
+	 *
+	 * @param codec
+	 *            the codec whose payloads are deflated.
+	 * @param dictionary
+	 *            the preset dictionary, or null; at most
+	 *            <code>MAX_DICTIONARY</code> bytes, the most common strings
+	 *            last.
+	 * @param threshold
+	 *            the length of the shortest payload deflated.
+	 */
+	public CompressingCodec(Codec codec, byte[] dictionary, int threshold) {
+		if ((codec.getId() & FLAG) != 0)
+			throw new IllegalArgumentException("codec " + codec.getId() + " is compressed already");
+		if (dictionary != null && dictionary.length > MAX_DICTIONARY)
+			throw new IllegalArgumentException("dictionary longer than " + MAX_DICTIONARY + " bytes");
+		this.codec = codec;
+		this.dictionary = dictionary == null ? null : dictionary.clone();
+		Adler32 adler = new Adler32();
+		if (dictionary != null)
+			adler.update(dictionary);
+		this.dictionaryId = adler.getValue();
+		this.threshold = threshold;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Builds a dictionary from sample messages: the strings that occur in
+	 * the most samples, as the other codec encodes them, most common last.
+	 *
+	 * @param codec
+	 *            the codec whose payloads are to be deflated.
+	 * @param samples
+	 *            messages like the ones to be sent.
+	 * @param size
+	 *            the largest size of the dictionary.
+	 * @return the dictionary.
+	 * @exception IOException
+	 *                if a sample cannot be encoded.
+	 */
+	public static byte[] train(Codec codec, Iterable<?> samples, int size) throws IOException {
+		size = Math.min(size, MAX_DICTIONARY);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		for (Object sample : samples) {
+			payload.reset();
+			codec.encode(sample, payload);
+			// Latin-1 maps every byte to one char, so strings are byte strings
+			String bytes = new String(payload.toByteArray(), StandardCharsets.ISO_8859_1);
+			Set<String> seen = new HashSet<String>();
+			for (int i = 0; i + SAMPLE_LENGTH <= bytes.length(); i++)
+				seen.add(bytes.substring(i, i + SAMPLE_LENGTH));
+			for (String string : seen)
+				counts.merge(string, 1, Integer::sum);
+		}
+
+		List<Map.Entry<String, Integer>> common = new ArrayList<Map.Entry<String, Integer>>();
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			if (entry.getValue() > 1)
+				common.add(entry);
+		}
+		common.sort((a, b) -> b.getValue() - a.getValue());
+
+		// Overlapping strings are merged, so a common phrase is kept once
+		StringBuilder dictionary = new StringBuilder();
+		for (Map.Entry<String, Integer> entry : common) {
+			String string = entry.getKey();
+			if (dictionary.indexOf(string) >= 0)
+				continue;
+			if (dictionary.length() + SAMPLE_LENGTH > size)
+				break;
+			dictionary.insert(0, string);
+		}
+		return dictionary.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Returns the id of the other codec with <code>FLAG</code> set. Peers
+	 * using this id must use the same dictionary.
+	 */
+	public byte getId() {
+		return (byte) (codec.getId() | FLAG);
+	}
+
+	public void encode(Object msg, OutputStream output) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		codec.encode(msg, payload);
+		byte[] bytes = payload.toByteArray();
+		encoded.increment();
+		bytesIn.add(bytes.length);
+
+		if (bytes.length >= threshold) {
+			long start = cpuTime();
+			byte[] deflated = deflate(bytes);
+			compressNanos.add(cpuTime() - start);
+			if (deflated != null) {
+				compressed.increment();
+				bytesOut.add(deflated.length + 5);
+				DataOutputStream data = new DataOutputStream(output);
+				data.writeByte(DEFLATED);
+				data.writeInt(bytes.length);
+				data.write(deflated);
+				data.flush();
+				return;
+			}
+		}
+
+		bytesOut.add(bytes.length + 1);
+		output.write(STORED);
+		output.write(bytes);
+	}
+
+	public Object decode(byte[] buf, int off, int len) throws IOException, ClassNotFoundException {
+		if (len < 1)
+			throw new StreamCorruptedException("empty payload");
+
+		switch (buf[off]) {
+		case STORED:
+			return codec.decode(buf, off + 1, len - 1);
+		case DEFLATED:
+			if (len < 5)
+				throw new StreamCorruptedException("deflated payload without length");
+			int length = new DataInputStream(new ByteArrayInputStream(buf, off + 1, 4)).readInt();
+			Frames.checkLength(length);
+			long start = cpuTime();
+			byte[] bytes = inflate(buf, off + 5, len - 5, length);
+			decompressNanos.add(cpuTime() - start);
+			return codec.decode(bytes, 0, bytes.length);
+		default:
+			throw new StreamCorruptedException("unknown compression " + buf[off]);
+		}
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the codec whose payloads are deflated.
+	 */
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return the length of the shortest payload deflated.
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return true if the codec has a preset dictionary.
+	 */
+	public boolean hasDictionary() {
+		return dictionary != null;
+	}
+
+	/**
+	 * @return the number of messages encoded.
+	 */
+	public long getEncodedCount() {
+		return encoded.sum();
+	}
+
+	/**
+	 * @return the number of messages sent deflated.
+	 */
+	public long getCompressedCount() {
+		return compressed.sum();
+	}
+
+	/**
+	 * @return the bytes of the payloads encoded, before compression.
+	 */
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	/**
+	 * @return the bytes of the payloads encoded, after compression.
+	 */
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	/**
+	 * @return the bytes after compression per byte before, over every
+	 *         message encoded, or 1 if none was.
+	 */
+	public double getCompressionRatio() {
+		long in = bytesIn.sum();
+		return in == 0 ? 1 : (double) bytesOut.sum() / in;
+	}
+
+	/**
+	 * @return the CPU time spent deflating, in nanoseconds, on whatever
+	 *         threads encoded the messages; elapsed time where the JVM
+	 *         cannot measure the CPU time of a thread.
+	 */
+	public long getCompressNanos() {
+		return compressNanos.sum();
+	}
+
+	/**
+	 * @return the CPU time spent inflating, in nanoseconds.
+	 */
+	public long getDecompressNanos() {
+		return decompressNanos.sum();
+	}
+
+	public String toString() {
+		return String.format("CompressingCodec[%s, threshold=%d, dictionary=%s, messages=%d, deflated=%d, ratio=%.3f, "
+				+ "deflate=%.1fms, inflate=%.1fms]", codec.getClass().getSimpleName(), threshold, dictionary == null ? 0
+				: dictionary.length, getEncodedCount(), getCompressedCount(), getCompressionRatio(),
+				getCompressNanos() / 1e6, getDecompressNanos() / 1e6);
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	/**
+	 * Returns the CPU time of the current thread, or the elapsed time if
+	 * the JVM cannot tell.
+	 */
+	private static long cpuTime() {
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	/**
+	 * Deflates a payload.
+	 *
+	 * @return the deflated bytes, or null if they would not be shorter.
+	 */
+	private byte[] deflate(byte[] bytes) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null)
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			if (dictionary != null)
+				deflater.setDictionary(dictionary);
+			deflater.setInput(bytes);
+			deflater.finish();
+
+			byte[] out = new byte[bytes.length];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == out.length)
+					return null;
+				length += deflater.deflate(out, length, out.length - length);
+			}
+			return length + 4 < bytes.length ? Arrays.copyOf(out, length) : null;
+		} finally {
+			deflater.reset();
+			if (!deflaters.offer(deflater))
+				deflater.end();
+		}
+	}
+
+	/**
+	 * Inflates a payload. The buffer grows with what is inflated rather
+	 * than being as long as the sender says at once, so a short frame
+	 * announcing a huge payload costs no more memory than it inflates to.
+	 */
+	private byte[] inflate(byte[] buf, int off, int len, int length) throws IOException {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null)
+			inflater = new Inflater();
+		try {
+			return inflate(inflater, buf, off, len, length);
+		} finally {
+			inflater.reset();
+			if (!inflaters.offer(inflater))
+				inflater.end();
+		}
+	}
+
+	/**
+	 * Inflates a payload with the inflater given.
+	 */
+	private byte[] inflate(Inflater inflater, byte[] buf, int off, int len, int length) throws IOException {
+		inflater.setInput(buf, off, len);
+
+		byte[] bytes = new byte[(int) Math.min(length, Math.max(INFLATE_BUFFER, 4L * len))];
+		int count = 0;
+		try {
+			while (count < length) {
+				if (count == bytes.length)
+					bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+				int read = inflater.inflate(bytes, count, bytes.length - count);
+				if (read == 0) {
+					if (inflater.needsDictionary()) {
+						// Some JDKs sign-extend the checksum
+						if (dictionary == null || (inflater.getAdler() & 0xFFFFFFFFL) != dictionaryId)
+							throw new StreamCorruptedException("payload deflated with another dictionary");
+						inflater.setDictionary(dictionary);
+					} else if (inflater.finished() || inflater.needsInput())
+						break;
+				}
+				count += read;
+			}
+		} catch (DataFormatException ex) {
+			throw new StreamCorruptedException("invalid deflated payload: " + ex.getMessage());
+		}
+		if (count != length)
+			throw new StreamCorruptedException("deflated payload of the wrong length");
+		return bytes;
+	}
+}
+// End of CompressingCodec class
@@ -0,0 +1,58 @@
+package ocsf.common;
+
+import java.io.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An input stream that adds the number of bytes read through it to a
+ * counter. Placed under the buffer of a socket's stream, it counts once per
+ * read from the socket rather than once per message.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class CountingInputStream extends FilterInputStream {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final LongAdder	counter;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param in
+	 *            the stream read from.
+	 * @param counter
+	 *            the counter the bytes read are added to.
+	 */
+	public CountingInputStream(InputStream in, LongAdder counter) {
+		super(in);
+		this.counter = counter;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0)
+			counter.increment();
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = in.read(b, off, len);
+		if (n > 0)
+			counter.add(n);
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(n);
+		counter.add(skipped);
+		return skipped;
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+}
+// End of CountingInputStream class
@@ -0,0 +1,462 @@
+package ocsf.common;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * The <code> Frames </code> class describes the framed wire protocol that
+ * clients and servers may use instead of a continuous Java object stream.
+ * <p>
+ * A framed connection starts with a preamble (the four bytes
+ * <code>OCSF</code> followed by a version byte). After that, everything
+ * travels in frames: a four byte big-endian length, a one byte frame type and
+ * <code>length - 1</code> bytes of payload. Because every frame says how long
+ * it is, a selector-driven server can tell when a whole message has arrived
+ * without dedicating a blocked thread to the connection.
+ * <p>
+ * The first frame each way is a hello frame. The client's lists the ids of
+ * the codecs it supports, preferred first; the server answers with the id of
+ * the first one it supports too, or closes the connection. Every message
+ * frame of the connection is then encoded with that codec.
+ * <p>
+ * A client may also open logical streams over its connection, each of which
+ * the server treats as a client of its own. A stream is opened and closed
+ * with frames that carry its id, and its messages travel in stream frames:
+ * the four byte id of the stream, then the payload of a message frame.
+ * Servers that do not know these frame types ignore them.
+ * <p>
+ * A connection whose first two bytes are the Java serialization magic number
+ * is a legacy object stream connection, so servers can accept both kinds of
+ * client on the same port.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Frames {
+
+	// CONSTANTS ********************************************************
+
+	/**
+	 * The first four bytes sent by a client using framed messages.
+	 */
+	public static final int		MAGIC				= 0x4F435346;	// "OCSF"
+
+	/**
+	 * The version of the framed protocol, sent after the magic number.
+	 */
+	public static final byte	VERSION				= 2;
+
+	/**
+	 * The length of the preamble, and also the length of a frame header.
+	 */
+	public static final int		HEADER_LENGTH		= 5;
+
+	/**
+	 * The frame type of a frame that carries an application message.
+	 */
+	public static final byte	TYPE_MESSAGE		= 0;
+
+	/**
+	 * The frame type of the frames that negotiate the codec.
+	 */
+	public static final byte	TYPE_HELLO			= 1;
+
+	/**
+	 * The frame type of a frame that opens a logical stream; the payload is
+	 * the id of the stream.
+	 */
+	public static final byte	TYPE_OPEN			= 2;
+
+	/**
+	 * The frame type of a frame that carries a message of a logical stream;
+	 * the payload is the id of the stream followed by the message.
+	 */
+	public static final byte	TYPE_STREAM			= 3;
+
+	/**
+	 * The frame type of a frame that closes a logical stream; the payload is
+	 * the id of the stream.
+	 */
+	public static final byte	TYPE_CLOSE			= 4;
+
+	/**
+	 * The frame type of a heartbeat, which asks the other end to show it is
+	 * still there; the payload is empty.
+	 */
+	public static final byte	TYPE_PING			= 5;
+
+	/**
+	 * The frame type of the answer to a heartbeat; the payload is empty.
+	 */
+	public static final byte	TYPE_PONG			= 6;
+
+	/**
+	 * The length of the stream id at the start of the payload of the stream
+	 * frames.
+	 */
+	public static final int		STREAM_ID_LENGTH	= 4;
+
+	/**
+	 * The largest frame accepted from the wire, header excluded. Anything
+	 * bigger is treated as a corrupted stream.
+	 */
+	public static final int		MAX_FRAME_LENGTH	= 16 * 1024 * 1024;
+
+	// CONSTRUCTORS *****************************************************
+
+	private Frames() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the codecs used when none are given: the binary codec, then
+	 * Java serialization for peers that only support that.
+	 *
+	 * @return a new array of the default codecs.
+	 */
+	public static Codec[] defaultCodecs() {
+		return new Codec[] { new BinaryCodec(), new SerializationCodec() };
+	}
+
+	/**
+	 * Encodes a message into a complete frame, header included.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param codec
+	 *            the codec of the connection.
+	 * @return the frame, ready to be written to a socket.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	public static byte[] encode(Object msg, Codec codec) throws IOException {
+		FrameOutput frame = new FrameOutput(HEADER_LENGTH);
+		codec.encode(msg, frame);
+		return frame.finish(TYPE_MESSAGE);
+	}
+
+	/**
+	 * Encodes a message of a logical stream into a complete frame.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param codec
+	 *            the codec of the connection.
+	 * @param stream
+	 *            the id of the stream.
+	 * @return the frame, ready to be written to a socket.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	public static byte[] encode(Object msg, Codec codec, int stream) throws IOException {
+		FrameOutput frame = new FrameOutput(HEADER_LENGTH + STREAM_ID_LENGTH);
+		writeInt(frame.buffer(), HEADER_LENGTH, stream);
+		codec.encode(msg, frame);
+		return frame.finish(TYPE_STREAM);
+	}
+
+	/**
+	 * Copies a message frame into a stream frame, so that a message encoded
+	 * once can be sent on any number of streams.
+	 *
+	 * @param frame
+	 *            the message frame, which is not modified.
+	 * @param stream
+	 *            the id of the stream.
+	 * @return the stream frame.
+	 */
+	public static byte[] toStream(byte[] frame, int stream) {
+		byte[] result = new byte[frame.length + STREAM_ID_LENGTH];
+		writeHeader(result, frame.length - HEADER_LENGTH + STREAM_ID_LENGTH + 1, TYPE_STREAM);
+		writeInt(result, HEADER_LENGTH, stream);
+		System.arraycopy(frame, HEADER_LENGTH, result, HEADER_LENGTH + STREAM_ID_LENGTH, frame.length - HEADER_LENGTH);
+		return result;
+	}
+
+	/**
+	 * Builds a frame that opens or closes a logical stream.
+	 *
+	 * @param type
+	 *            <code>TYPE_OPEN</code> or <code>TYPE_CLOSE</code>.
+	 * @param stream
+	 *            the id of the stream.
+	 * @return the frame.
+	 */
+	public static byte[] control(byte type, int stream) {
+		byte[] id = new byte[STREAM_ID_LENGTH];
+		writeInt(id, 0, stream);
+		return frame(type, id);
+	}
+
+	/**
+	 * Reads the stream id at the start of the payload of a stream frame.
+	 *
+	 * @param buf
+	 *            the buffer containing the payload.
+	 * @param off
+	 *            the offset of the payload in the buffer.
+	 * @param len
+	 *            the length of the payload.
+	 * @return the id of the stream.
+	 * @exception StreamCorruptedException
+	 *                if the payload is too short.
+	 */
+	public static int readStreamId(byte[] buf, int off, int len) throws StreamCorruptedException {
+		if (len < STREAM_ID_LENGTH)
+			throw new StreamCorruptedException("stream frame without stream id");
+		return readInt(buf, off);
+	}
+
+	/**
+	 * Builds a frame around a payload.
+	 *
+	 * @param type
+	 *            the frame type.
+	 * @param payload
+	 *            the payload.
+	 * @return the frame, ready to be written to a socket.
+	 */
+	public static byte[] frame(byte type, byte[] payload) {
+		byte[] frame = new byte[HEADER_LENGTH + payload.length];
+		writeHeader(frame, payload.length + 1, type);
+		System.arraycopy(payload, 0, frame, HEADER_LENGTH, payload.length);
+		return frame;
+	}
+
+	/**
+	 * Builds the hello frame a client sends after the preamble.
+	 *
+	 * @param codecs
+	 *            the codecs of the client, preferred first.
+	 * @return the frame.
+	 */
+	public static byte[] hello(Codec[] codecs) {
+		byte[] ids = new byte[codecs.length];
+		for (int i = 0; i < codecs.length; i++)
+			ids[i] = codecs[i].getId();
+		return frame(TYPE_HELLO, ids);
+	}
+
+	/**
+	 * Picks the codec of a connection from the payload of the client's hello
+	 * frame: the first codec of the client that the server supports.
+	 *
+	 * @param buf
+	 *            the buffer containing the payload.
+	 * @param off
+	 *            the offset of the payload in the buffer.
+	 * @param len
+	 *            the length of the payload.
+	 * @param supported
+	 *            the codecs of the server.
+	 * @return the codec, or null if there is none in common.
+	 */
+	public static Codec choose(byte[] buf, int off, int len, Codec[] supported) {
+		for (int i = off; i < off + len; i++) {
+			Codec codec = find(buf[i], supported);
+			if (codec != null)
+				return codec;
+		}
+		return null;
+	}
+
+	/**
+	 * Looks a codec up by id.
+	 *
+	 * @param id
+	 *            the id of the codec.
+	 * @param codecs
+	 *            the codecs to look in.
+	 * @return the codec, or null if none has that id.
+	 */
+	public static Codec find(byte id, Codec[] codecs) {
+		for (Codec codec : codecs) {
+			if (codec.getId() == id)
+				return codec;
+		}
+		return null;
+	}
+
+	/**
+	 * Blocks until the next frame has been read and returns its payload.
+	 *
+	 * @param input
+	 *            the stream to read from.
+	 * @param type
+	 *            the expected frame type.
+	 * @return the payload.
+	 * @exception IOException
+	 *                if an I/O error occurs, the stream is corrupted or the
+	 *                frame is not of the expected type.
+	 */
+	public static byte[] readFrame(DataInputStream input, byte type) throws IOException {
+		int length = input.readInt();
+		checkLength(length);
+		byte actual = input.readByte();
+
+		byte[] payload = new byte[length - 1];
+		input.readFully(payload);
+
+		if (actual != type)
+			throw new StreamCorruptedException("unexpected frame type " + actual);
+		return payload;
+	}
+
+	/**
+	 * Blocks until the next frame has been read, whatever its type.
+	 *
+	 * @param input
+	 *            the stream to read from.
+	 * @return the frame type, followed by the payload.
+	 * @exception IOException
+	 *                if an I/O error occurs or the stream is corrupted.
+	 */
+	public static byte[] readAnyFrame(DataInputStream input) throws IOException {
+		int length = input.readInt();
+		checkLength(length);
+
+		byte[] frame = new byte[length];
+		input.readFully(frame);
+		return frame;
+	}
+
+	/**
+	 * Writes the preamble that opens a framed connection.
+	 *
+	 * @param output
+	 *            the stream to write to.
+	 * @exception IOException
+	 *                if an I/O error occurs.
+	 */
+	public static void writePreamble(OutputStream output) throws IOException {
+		byte[] preamble = new byte[HEADER_LENGTH];
+		writeHeader(preamble, MAGIC, VERSION);
+		output.write(preamble);
+		output.flush();
+	}
+
+	/**
+	 * Reads and checks the preamble that opens a framed connection.
+	 *
+	 * @param input
+	 *            the stream to read from.
+	 * @exception IOException
+	 *                if an I/O error occurs or the preamble is not valid.
+	 */
+	public static void readPreamble(InputStream input) throws IOException {
+		byte[] preamble = new byte[HEADER_LENGTH];
+		new DataInputStream(input).readFully(preamble);
+		checkPreamble(readInt(preamble, 0), preamble[4]);
+	}
+
+	/**
+	 * Checks a preamble that has already been read.
+	 *
+	 * @param magic
+	 *            the first four bytes of the preamble.
+	 * @param version
+	 *            the fifth byte of the preamble.
+	 * @exception StreamCorruptedException
+	 *                if the preamble is not valid.
+	 */
+	public static void checkPreamble(int magic, byte version) throws StreamCorruptedException {
+		if (magic != MAGIC)
+			throw new StreamCorruptedException("not an OCSF framed stream");
+		if (version != VERSION)
+			throw new StreamCorruptedException("unsupported OCSF protocol version " + version);
+	}
+
+	/**
+	 * Checks the length read from a frame header.
+	 *
+	 * @param length
+	 *            the length of the type byte plus the payload.
+	 * @exception StreamCorruptedException
+	 *                if the length is out of range.
+	 */
+	public static void checkLength(int length) throws StreamCorruptedException {
+		if (length < 1 || length > MAX_FRAME_LENGTH)
+			throw new StreamCorruptedException("invalid frame length " + length);
+	}
+
+	/**
+	 * Tells whether a stream is a Java object stream rather than a framed
+	 * stream, without consuming anything from it.
+	 *
+	 * @param input
+	 *            a stream that supports mark and reset.
+	 * @return true if the stream starts with the Java serialization magic
+	 *         number.
+	 * @exception IOException
+	 *                if an I/O error occurs or the stream is too short.
+	 */
+	public static boolean isObjectStream(InputStream input) throws IOException {
+		input.mark(2);
+		int first = input.read();
+		int second = input.read();
+		input.reset();
+
+		if (second < 0)
+			throw new EOFException();
+		return isObjectStream((byte) first, (byte) second);
+	}
+
+	/**
+	 * Tells whether the first two bytes of a connection are the Java
+	 * serialization magic number.
+	 *
+	 * @param first
+	 *            the first byte received.
+	 * @param second
+	 *            the second byte received.
+	 * @return true if the connection is a Java object stream.
+	 */
+	public static boolean isObjectStream(byte first, byte second) {
+		return first == (byte) 0xAC && second == (byte) 0xED;
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	private static void writeHeader(byte[] buf, int value, byte type) {
+		buf[0] = (byte) (value >>> 24);
+		buf[1] = (byte) (value >>> 16);
+		buf[2] = (byte) (value >>> 8);
+		buf[3] = (byte) value;
+		buf[4] = type;
+	}
+
+	/**
+	 * A byte array stream that leaves room for the frame header and hands its
+	 * buffer out as the frame when it is exactly full.
+	 */
+	private static final class FrameOutput extends ByteArrayOutputStream {
+		FrameOutput(int start) {
+			super(64);
+			count = start;
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+
+		byte[] finish(byte type) {
+			byte[] frame = count == buf.length ? buf : Arrays.copyOf(buf, count);
+			writeHeader(frame, count - HEADER_LENGTH + 1, type);
+			return frame;
+		}
+	}
+
+	private static void writeInt(byte[] buf, int off, int value) {
+		buf[off] = (byte) (value >>> 24);
+		buf[off + 1] = (byte) (value >>> 16);
+		buf[off + 2] = (byte) (value >>> 8);
+		buf[off + 3] = (byte) value;
+	}
+
+	private static int readInt(byte[] buf, int off) {
+		return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16) | ((buf[off + 2] & 0xFF) << 8)
+				| (buf[off + 3] & 0xFF);
+	}
+}
+// End of Frames class
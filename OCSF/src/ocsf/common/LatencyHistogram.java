@@ -0,0 +1,180 @@
+package ocsf.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, as HDR histograms keep them:
+ * every power of two is split into the same number of linear buckets, so
+ * any value is counted with a relative error under 1/32 whatever its
+ * magnitude, from nanoseconds to minutes, in a fixed array.
+ * <p>
+ * Recording a value takes a few arithmetic operations and atomic
+ * increments, allocates nothing and takes no lock, so it can be done on
+ * every message. Percentiles are computed from the counts when asked for,
+ * and reflect every value recorded since the histogram was created or
+ * last reset.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.LatencySnapshot
+ */
+public final class LatencyHistogram {
+	// CONSTANTS ********************************************************
+
+	/**
+	 * The number of bits of a value kept exactly: each power of two has
+	 * <code>2^SUB_BITS</code> buckets.
+	 */
+	private static final int	SUB_BITS	= 5;
+
+	private static final int	SUB_COUNT	= 1 << SUB_BITS;
+
+	/**
+	 * The largest power of two kept apart; larger values, over 18 minutes,
+	 * are counted in the last bucket.
+	 */
+	private static final int	MAX_EXPONENT	= 40;
+
+	private static final int	BUCKETS		= SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final AtomicLongArray	counts	= new AtomicLongArray(BUCKETS);
+	private final LongAdder			count	= new LongAdder();
+	private final LongAdder			total	= new LongAdder();
+	private final LongAccumulator	max		= new LongAccumulator(Math::max, 0);
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos
+	 *            the duration in nanoseconds; negative values count as zero.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(index(nanos));
+		count.increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Records the time elapsed since an instant.
+	 *
+	 * @param startNanos
+	 *            the instant, as returned by <code>System.nanoTime</code>.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return the number of values recorded.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the mean of the values recorded, in nanoseconds, or 0.
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) total.sum() / n;
+	}
+
+	/**
+	 * @return the largest value recorded, in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the value under which a given fraction of the values fall, to
+	 * within the precision of the buckets.
+	 *
+	 * @param quantile
+	 *            the fraction, between 0 and 1.
+	 * @return the value in nanoseconds, or 0 if none was recorded.
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highest(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * @return the count, mean, usual percentiles and maximum, read now.
+	 */
+	public LatencySnapshot snapshot() {
+		return new LatencySnapshot(getCount(), getMean(), getValueAtQuantile(0.5), getValueAtQuantile(0.99),
+				getValueAtQuantile(0.999), getMax());
+	}
+
+	/**
+	 * Forgets every value recorded. Values recorded while it runs may be
+	 * partly forgotten.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.reset();
+		total.reset();
+		max.reset();
+	}
+
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	/**
+	 * Returns the bucket of a value: the value itself below
+	 * <code>SUB_COUNT</code>, otherwise its power of two and the
+	 * <code>SUB_BITS</code> bits that follow the leading one.
+	 */
+	private static int index(long value) {
+		if (value < SUB_COUNT)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+	}
+
+	/**
+	 * Returns the largest value counted in a bucket.
+	 */
+	private static long highest(int index) {
+		if (index < SUB_COUNT)
+			return index;
+		int exponent = (index - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+		long sub = (index - SUB_COUNT) % SUB_COUNT;
+		long lowest = (SUB_COUNT + sub) << (exponent - SUB_BITS);
+		return lowest + (1L << (exponent - SUB_BITS)) - 1;
+	}
+}
+// End of LatencyHistogram class
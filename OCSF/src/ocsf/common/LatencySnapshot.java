@@ -0,0 +1,99 @@
+package ocsf.common;
+
+/**
+ * The summary of a latency histogram at one moment, in microseconds. It is
+ * what JMX clients see of a histogram: an MXBean attribute of this type is
+ * shown as a composite of its properties.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.LatencyHistogram#snapshot()
+ */
+public final class LatencySnapshot {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final long		count;
+	private final double	mean;
+	private final long		p50;
+	private final long		p99;
+	private final long		p999;
+	private final long		max;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a snapshot from values in nanoseconds.
+	 *
+	 * @param count
+	 *            the number of values.
+	 * @param mean
+	 *            their mean.
+	 * @param p50
+	 *            their median.
+	 * @param p99
+	 *            their 99th percentile.
+	 * @param p999
+	 *            their 99.9th percentile.
+	 * @param max
+	 *            their maximum.
+	 */
+	public LatencySnapshot(long count, double mean, long p50, long p99, long p999, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the number of values.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the mean, in microseconds.
+	 */
+	public double getMeanMicros() {
+		return mean / 1e3;
+	}
+
+	/**
+	 * @return the median, in microseconds.
+	 */
+	public double getP50Micros() {
+		return p50 / 1e3;
+	}
+
+	/**
+	 * @return the 99th percentile, in microseconds.
+	 */
+	public double getP99Micros() {
+		return p99 / 1e3;
+	}
+
+	/**
+	 * @return the 99.9th percentile, in microseconds.
+	 */
+	public double getP999Micros() {
+		return p999 / 1e3;
+	}
+
+	/**
+	 * @return the maximum, in microseconds.
+	 */
+	public double getMaxMicros() {
+		return max / 1e3;
+	}
+
+	public String toString() {
+		return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", count,
+				getMeanMicros(), getP50Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+	}
+}
+// End of LatencySnapshot class
@@ -0,0 +1,72 @@
+package ocsf.common;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.*;
+
+/**
+ * Registers the metrics of clients and servers with the platform MBean
+ * server, where JConsole, VisualVM and JMX exporters find them.
+ * Registration never fails the caller: metrics that cannot be published
+ * are still readable from the object that keeps them.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class MBeans {
+	// CONSTANTS ********************************************************
+
+	/**
+	 * The domain of the names of the OCSF MBeans.
+	 */
+	public static final String	DOMAIN	= "ocsf";
+
+	// CONSTRUCTORS *****************************************************
+
+	private MBeans() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Registers an MBean, replacing any registered under the same name.
+	 *
+	 * @param bean
+	 *            the MBean.
+	 * @param name
+	 *            its name, such as <code>ocsf:type=Server,port=5555</code>.
+	 * @return true if it is registered.
+	 */
+	public static boolean register(Object bean, String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(bean, objectName);
+			return true;
+		} catch (JMException ex) {
+			return false;
+		} catch (SecurityException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Unregisters an MBean if it is registered.
+	 *
+	 * @param name
+	 *            its name.
+	 */
+	public static void unregister(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+		} catch (JMException ex) {
+		} catch (SecurityException ex) {
+		}
+	}
+}
+// End of MBeans class
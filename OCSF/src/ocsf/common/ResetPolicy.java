@@ -0,0 +1,122 @@
+package ocsf.common;
+
+/**
+ * When a Java object stream is reset. An <code>ObjectOutputStream</code>
+ * keeps a reference to every object it writes, so that writing the same
+ * object again only sends a back-reference. Over a long session that table
+ * grows without bound, and an object changed after it was sent is sent
+ * again as it was the first time. A reset empties the table on both sides.
+ * <p>
+ * A policy resets after a number of messages, after a number of bytes, or
+ * before the first message that follows a quiet period, whichever comes
+ * first; a limit of zero is not used. The table stops growing while a
+ * stream is quiet, so resetting when it wakes up is enough to keep memory
+ * flat.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.ResettingObjectOutputStream
+ */
+public final class ResetPolicy {
+	// CONSTANTS ********************************************************
+
+	/**
+	 * Resets after every message, so that every message is sent exactly as
+	 * it is when it is sent. The default.
+	 */
+	public static final ResetPolicy	EVERY_MESSAGE	= new ResetPolicy(1, 0, 0);
+
+	/**
+	 * Never resets, as OCSF streams did originally.
+	 */
+	public static final ResetPolicy	NEVER			= new ResetPolicy(0, 0, 0);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final int				messages;
+	private final long				bytes;
+	private final long				idleMillis;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a policy. A limit of zero is not used.
+	 *
+	 * @param messages
+	 *            the number of messages after which the stream is reset.
+	 * @param bytes
+	 *            the number of bytes after which the stream is reset.
+	 * @param idleMillis
+	 *            how long the stream must have been quiet for it to be
+	 *            reset before the next message.
+	 */
+	public ResetPolicy(int messages, long bytes, long idleMillis) {
+		if (messages < 0 || bytes < 0 || idleMillis < 0)
+			throw new IllegalArgumentException("negative limit");
+		this.messages = messages;
+		this.bytes = bytes;
+		this.idleMillis = idleMillis;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @param messages
+	 *            the number of messages.
+	 * @return a policy that resets every that many messages.
+	 */
+	public static ResetPolicy everyMessages(int messages) {
+		return new ResetPolicy(messages, 0, 0);
+	}
+
+	/**
+	 * @param bytes
+	 *            the number of bytes.
+	 * @return a policy that resets once that many bytes have been written.
+	 */
+	public static ResetPolicy everyBytes(long bytes) {
+		return new ResetPolicy(0, bytes, 0);
+	}
+
+	/**
+	 * @param idleMillis
+	 *            the quiet period in milliseconds.
+	 * @return a policy that resets before the first message after a quiet
+	 *         period.
+	 */
+	public static ResetPolicy onIdle(long idleMillis) {
+		return new ResetPolicy(0, 0, idleMillis);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Tells whether the stream is due for a reset after a message.
+	 *
+	 * @param messagesWritten
+	 *            the messages written since the last reset.
+	 * @param bytesWritten
+	 *            the bytes written since the last reset.
+	 * @return true to reset now.
+	 */
+	public boolean isDue(int messagesWritten, long bytesWritten) {
+		return (messages > 0 && messagesWritten >= messages) || (bytes > 0 && bytesWritten >= bytes);
+	}
+
+	/**
+	 * Tells whether the stream is to be reset before a message.
+	 *
+	 * @param quietMillis
+	 *            how long the stream has been quiet.
+	 * @return true to reset first.
+	 */
+	public boolean isIdle(long quietMillis) {
+		return idleMillis > 0 && quietMillis >= idleMillis;
+	}
+
+	public String toString() {
+		return "ResetPolicy[messages=" + messages + ", bytes=" + bytes + ", idleMillis=" + idleMillis + "]";
+	}
+}
+// End of ResetPolicy class
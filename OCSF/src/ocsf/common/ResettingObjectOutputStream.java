@@ -0,0 +1,166 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * An object output stream that resets itself according to a
+ * <code>ResetPolicy</code>, and counts the objects it is holding on to
+ * between two resets.
+ * <p>
+ * Messages are written with <code>writeMessage</code>; the count covers
+ * every object written since the last reset, not counting class
+ * descriptors, and is what the stream's handle table keeps reachable.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class ResettingObjectOutputStream extends ObjectOutputStream {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final ByteCounter	counter;
+	private final ResetPolicy	policy;
+
+	/**
+	 * Objects written since the last reset.
+	 */
+	private volatile int		retained;
+
+	/**
+	 * Messages written since the last reset.
+	 */
+	private int					messages;
+
+	/**
+	 * The byte count at the last reset.
+	 */
+	private long				bytesAtReset;
+
+	/**
+	 * When the last message was written, from <code>System.nanoTime</code>.
+	 */
+	private long				lastWrite	= System.nanoTime();
+
+	private volatile long		resets;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a stream and writes the serialization stream header.
+	 *
+	 * @param out
+	 *            the stream to write to.
+	 * @param policy
+	 *            when to reset.
+	 * @exception IOException
+	 *                if the header cannot be written.
+	 */
+	public ResettingObjectOutputStream(OutputStream out, ResetPolicy policy) throws IOException {
+		this(new ByteCounter(out), policy);
+	}
+
+	private ResettingObjectOutputStream(ByteCounter counter, ResetPolicy policy) throws IOException {
+		super(counter);
+		this.counter = counter;
+		this.policy = policy;
+		enableReplaceObject(true);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Writes a message, resetting the stream before it if the stream has
+	 * been quiet for long enough and after it if the policy says so.
+	 *
+	 * @param msg
+	 *            the message.
+	 * @exception IOException
+	 *                if the message cannot be written.
+	 */
+	public void writeMessage(Object msg) throws IOException {
+		long now = System.nanoTime();
+		if (messages > 0 && policy.isIdle((now - lastWrite) / 1000000))
+			reset();
+		lastWrite = now;
+
+		writeObject(msg);
+		messages++;
+		if (policy.isDue(messages, counter.count - bytesAtReset)) {
+			reset();
+		}
+	}
+
+	/**
+	 * Resets the stream, forgetting every object written so far.
+	 */
+	@Override
+	public void reset() throws IOException {
+		super.reset();
+		retained = 0;
+		messages = 0;
+		bytesAtReset = counter.count;
+		resets++;
+	}
+
+	/**
+	 * Tells whether nothing has been written since the last reset, that is
+	 * whether the reader's handle table is empty.
+	 *
+	 * @return true if the stream is clean.
+	 */
+	public boolean isClean() {
+		return messages == 0;
+	}
+
+	/**
+	 * Returns the number of objects written since the last reset, which
+	 * the stream keeps reachable.
+	 *
+	 * @return the number of retained objects.
+	 */
+	public int getRetainedCount() {
+		return retained;
+	}
+
+	/**
+	 * Returns the number of times the stream has been reset.
+	 *
+	 * @return the number of resets.
+	 */
+	public long getResetCount() {
+		return resets;
+	}
+
+	/**
+	 * Counts the objects entering the handle table. Called by the
+	 * serialization machinery once per object not already in the table.
+	 */
+	@Override
+	protected Object replaceObject(Object obj) throws IOException {
+		retained++;
+		return obj;
+	}
+
+	/**
+	 * Counts the bytes that reach the underlying stream.
+	 */
+	private static final class ByteCounter extends FilterOutputStream {
+		long	count;
+
+		ByteCounter(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
+// End of ResettingObjectOutputStream class
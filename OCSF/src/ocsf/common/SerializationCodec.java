@@ -0,0 +1,36 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * The compatibility codec: every message is written with Java serialization,
+ * in an object stream of its own. It accepts any <code>Serializable</code>
+ * message, at the price of a stream header and class descriptors in every
+ * frame.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class SerializationCodec implements Codec {
+
+	/**
+	 * The id of this codec on the wire.
+	 */
+	public static final byte	ID	= 1;
+
+	public byte getId() {
+		return ID;
+	}
+
+	public void encode(Object msg, OutputStream output) throws IOException {
+		ObjectOutputStream objects = new ObjectOutputStream(output);
+		objects.writeObject(msg);
+		objects.flush();
+	}
+
+	public Object decode(byte[] buf, int off, int len) throws IOException, ClassNotFoundException {
+		ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(buf, off, len));
+		return input.readObject();
+	}
+}
+// End of SerializationCodec class
@@ -0,0 +1,117 @@
+package ocsf.common;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * The TCP options applied to the sockets of a client or of a server's
+ * connections. An option that has not been set is left to the system
+ * default, except <code>TCP_NODELAY</code>, which is on: OCSF gathers
+ * messages itself before writing them, so delaying small packets as well
+ * would only add latency.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class SocketSettings {
+	// INSTANCE VARIABLES ***********************************************
+
+	private volatile boolean	tcpNoDelay			= true;
+	private volatile Boolean	keepAlive;
+	private volatile int		sendBufferSize;
+	private volatile int		receiveBufferSize;
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Applies the options to a socket.
+	 *
+	 * @param socket
+	 *            the socket.
+	 * @exception SocketException
+	 *                if an option cannot be set.
+	 */
+	public void apply(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		if (keepAlive != null)
+			socket.setKeepAlive(keepAlive);
+		if (sendBufferSize > 0)
+			socket.setSendBufferSize(sendBufferSize);
+		if (receiveBufferSize > 0)
+			socket.setReceiveBufferSize(receiveBufferSize);
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return true if small packets are sent without delay.
+	 */
+	public boolean getTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Sets <code>TCP_NODELAY</code>. On by default.
+	 *
+	 * @param tcpNoDelay
+	 *            true to disable Nagle's algorithm.
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * @return the <code>SO_KEEPALIVE</code> setting, or null for the system
+	 *         default.
+	 */
+	public Boolean getKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Sets <code>SO_KEEPALIVE</code>.
+	 *
+	 * @param keepAlive
+	 *            true to have the system probe idle connections.
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * @return the <code>SO_SNDBUF</code> size, or 0 for the system default.
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Sets <code>SO_SNDBUF</code>.
+	 *
+	 * @param sendBufferSize
+	 *            the size in bytes, or 0 for the system default.
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * @return the <code>SO_RCVBUF</code> size, or 0 for the system default.
+	 */
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * Sets <code>SO_RCVBUF</code>. A size above 64 KB only takes effect if
+	 * it is set before the connection is established, which the server and
+	 * the client both take care of.
+	 *
+	 * @param receiveBufferSize
+	 *            the size in bytes, or 0 for the system default.
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+}
+// End of SocketSettings class
@@ -0,0 +1,267 @@
+package ocsf.common;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel: a ring of buckets, each holding the timeouts that
+ * fall on it as a doubly linked list, turned by one thread one bucket per
+ * tick. Scheduling and cancelling a timeout take constant time whatever the
+ * number of timeouts, which is what tracking every connection of a large
+ * server needs; a timer queue takes logarithmic time and a timer per
+ * connection takes a thread or a task each.
+ * <p>
+ * A timeout is created once and scheduled again as often as needed without
+ * allocating. Its task runs on the thread of the wheel, at most one tick
+ * late, and must be short: timeouts due meanwhile wait for it. Timeouts
+ * further away than a turn of the wheel stay in their bucket for as many
+ * turns as it takes.
+ * <p>
+ * The thread runs only while timeouts are scheduled.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class TimingWheel {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final String				name;
+	private final long					tickNanos;
+
+	/**
+	 * The sentinels of the bucket lists.
+	 */
+	private final Timeout[]				buckets;
+	private final int					mask;
+
+	/**
+	 * When the wheel was created, and the last tick processed.
+	 */
+	private final long					start	= System.nanoTime();
+	private long						tick;
+
+	/**
+	 * The number of timeouts scheduled.
+	 */
+	private int							size;
+
+	/**
+	 * The thread that turns the wheel, or null when none is scheduled.
+	 */
+	private Thread						worker;
+
+	/**
+	 * The timeouts of the current tick, reused from tick to tick.
+	 */
+	private final ArrayList<Timeout>	expired	= new ArrayList<Timeout>();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a wheel.
+	 *
+	 * @param name
+	 *            the name of its thread.
+	 * @param tickMillis
+	 *            the time a bucket covers, which is the precision of the
+	 *            timeouts.
+	 * @param bucketCount
+	 *            the number of buckets, rounded up to a power of two.
+	 */
+	public TimingWheel(String name, long tickMillis, int bucketCount) {
+		if (tickMillis <= 0 || bucketCount <= 0)
+			throw new IllegalArgumentException("tick and bucket count must be positive");
+		this.name = name;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		int count = Integer.highestOneBit(bucketCount);
+		if (count < bucketCount)
+			count <<= 1;
+		buckets = new Timeout[count];
+		for (int i = 0; i < count; i++) {
+			Timeout sentinel = new Timeout(this, null);
+			sentinel.previous = sentinel;
+			sentinel.next = sentinel;
+			buckets[i] = sentinel;
+		}
+		mask = count - 1;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Creates a timeout, not scheduled yet.
+	 *
+	 * @param task
+	 *            what to run when it expires.
+	 * @return the timeout.
+	 */
+	public Timeout newTimeout(Runnable task) {
+		return new Timeout(this, task);
+	}
+
+	/**
+	 * @return the number of timeouts scheduled.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return the time a bucket covers, in milliseconds.
+	 */
+	public long getTickMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+	}
+
+	/**
+	 * @return the number of buckets.
+	 */
+	public int getBucketCount() {
+		return buckets.length;
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	private synchronized void add(Timeout timeout, long delayNanos) {
+		if (timeout.next != null)
+			unlink(timeout);
+		else
+			size++;
+
+		if (worker == null) {
+			// The wheel stood still; catch up with the clock
+			tick = (System.nanoTime() - start) / tickNanos;
+			worker = new Thread(this::turn, name);
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		long ticks = Math.max(1, (delayNanos + tickNanos - 1) / tickNanos);
+		timeout.deadline = tick + ticks;
+		Timeout sentinel = buckets[(int) (timeout.deadline & mask)];
+		timeout.previous = sentinel.previous;
+		timeout.next = sentinel;
+		sentinel.previous.next = timeout;
+		sentinel.previous = timeout;
+	}
+
+	private synchronized boolean remove(Timeout timeout) {
+		if (timeout.next == null)
+			return false;
+		unlink(timeout);
+		size--;
+		return true;
+	}
+
+	private void unlink(Timeout timeout) {
+		timeout.previous.next = timeout.next;
+		timeout.next.previous = timeout.previous;
+		timeout.previous = null;
+		timeout.next = null;
+	}
+
+	/**
+	 * Runs the expired timeouts of each tick as it comes, until none is
+	 * scheduled.
+	 */
+	private void turn() {
+		while (true) {
+			synchronized (this) {
+				if (size == 0) {
+					worker = null;
+					return;
+				}
+			}
+
+			long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+
+			synchronized (this) {
+				tick++;
+				Timeout sentinel = buckets[(int) (tick & mask)];
+				for (Timeout timeout = sentinel.next; timeout != sentinel;) {
+					Timeout next = timeout.next;
+					if (timeout.deadline <= tick) {
+						unlink(timeout);
+						size--;
+						expired.add(timeout);
+					}
+					timeout = next;
+				}
+			}
+
+			for (int i = 0; i < expired.size(); i++) {
+				try {
+					expired.get(i).task.run();
+				} catch (RuntimeException ex) {
+					Thread.UncaughtExceptionHandler handler = Thread.currentThread().getUncaughtExceptionHandler();
+					handler.uncaughtException(Thread.currentThread(), ex);
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A task to run once a delay has passed. It can be scheduled again,
+	 * before or after it expires.
+	 */
+	public static final class Timeout {
+		private final TimingWheel	wheel;
+		private final Runnable		task;
+
+		/**
+		 * The neighbours in the bucket while scheduled, null otherwise.
+		 */
+		private Timeout				previous;
+		private Timeout				next;
+
+		/**
+		 * The tick at which it expires.
+		 */
+		private long				deadline;
+
+		private Timeout(TimingWheel wheel, Runnable task) {
+			this.wheel = wheel;
+			this.task = task;
+		}
+
+		/**
+		 * Schedules the task, replacing the previous schedule if there
+		 * is one.
+		 *
+		 * @param delay
+		 *            how long from now.
+		 * @param unit
+		 *            the unit of the delay.
+		 */
+		public void schedule(long delay, TimeUnit unit) {
+			wheel.add(this, unit.toNanos(delay));
+		}
+
+		/**
+		 * Cancels the task if it is scheduled.
+		 *
+		 * @return true if it was scheduled.
+		 */
+		public boolean cancel() {
+			return wheel.remove(this);
+		}
+
+		/**
+		 * @return true if the task is scheduled and has not run yet.
+		 */
+		public boolean isScheduled() {
+			synchronized (wheel) {
+				return next != null;
+			}
+		}
+	}
+}
+// End of TimingWheel class
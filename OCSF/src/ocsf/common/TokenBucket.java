@@ -0,0 +1,149 @@
+package ocsf.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that limits how often something happens: it holds up to
+ * <code>burst</code> tokens, gains <code>rate</code> tokens a second, and
+ * each event takes one. Several threads can take tokens at once; the
+ * bucket is a single atomic number, updated without locking.
+ * <p>
+ * Rather than a count of tokens, the bucket keeps the time at which it
+ * would be full again if nothing else took from it. Taking a token moves
+ * that time one interval later; a token is there as long as the time is
+ * no further than <code>burst</code> intervals ahead. Refilling then costs
+ * nothing, and a bucket nobody takes from is never touched.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class TokenBucket {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final double		rate;
+	private final int			burst;
+
+	/**
+	 * The time between two tokens, and the time it takes to fill the empty
+	 * bucket, in nanoseconds.
+	 */
+	private final long			interval;
+	private final long			capacity;
+
+	/**
+	 * When the bucket will be full again, as given by
+	 * <code>System.nanoTime</code>.
+	 */
+	private final AtomicLong	full	= new AtomicLong(System.nanoTime());
+
+	/**
+	 * The number of events that found the bucket empty.
+	 */
+	private final AtomicLong	refused	= new AtomicLong();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a full bucket.
+	 *
+	 * @param rate
+	 *            the tokens gained a second.
+	 * @param burst
+	 *            the most tokens the bucket holds, which is how many events
+	 *            can happen at once after a quiet time.
+	 */
+	public TokenBucket(double rate, int burst) {
+		if (!(rate > 0) || burst <= 0)
+			throw new IllegalArgumentException("rate and burst must be positive");
+		this.rate = rate;
+		this.burst = burst;
+		this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+		this.capacity = interval * burst;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Takes a token if there is one.
+	 *
+	 * @return false if the bucket is empty; nothing is taken then.
+	 */
+	public boolean tryTake() {
+		while (true) {
+			long now = System.nanoTime();
+			long current = full.get();
+			long next = Math.max(current, now) + interval;
+			if (next - now > capacity) {
+				refused.incrementAndGet();
+				return false;
+			}
+			if (full.compareAndSet(current, next))
+				return true;
+		}
+	}
+
+	/**
+	 * Takes a token whether there is one or not. An empty bucket goes into
+	 * debt, which the tokens it gains pay back first.
+	 *
+	 * @return 0 if there was a token, or how long until the token taken
+	 *         would have been there, in nanoseconds: how long to wait to
+	 *         keep to the rate.
+	 */
+	public long take() {
+		while (true) {
+			long now = System.nanoTime();
+			long current = full.get();
+			long next = Math.max(current, now) + interval;
+			if (full.compareAndSet(current, next)) {
+				long wait = next - now - capacity;
+				if (wait <= 0)
+					return 0;
+				refused.incrementAndGet();
+				return wait;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of tokens there are now.
+	 */
+	public int available() {
+		long ahead = full.get() - System.nanoTime();
+		if (ahead <= 0)
+			return burst;
+		return (int) Math.max(0, (capacity - ahead) / interval);
+	}
+
+	/**
+	 * @return the number of times the bucket was found empty.
+	 */
+	public long getRefusedCount() {
+		return refused.get();
+	}
+
+	/**
+	 * @return the tokens gained a second.
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return the most tokens the bucket holds.
+	 */
+	public int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * Returns a string representation of the bucket.
+	 *
+	 * @return its rate, burst and tokens available.
+	 */
+	public String toString() {
+		return "TokenBucket[rate=" + rate + "/s, burst=" + burst + ", available=" + available() + "]";
+	}
+}
+// End of TokenBucket class
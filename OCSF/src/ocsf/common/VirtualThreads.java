@@ -0,0 +1,63 @@
+package ocsf.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The <code> VirtualThreads </code> class creates virtual threads when the
+ * Java runtime offers them (Java 21 and later). It looks the API up at run
+ * time so that the framework still compiles and runs on older runtimes, where
+ * asking for a virtual thread factory fails with an
+ * <code>UnsupportedOperationException</code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class VirtualThreads {
+
+	// CONSTRUCTORS *****************************************************
+
+	private VirtualThreads() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Tells whether the running Java runtime supports virtual threads.
+	 *
+	 * @return true if virtual threads can be created.
+	 */
+	public static boolean isSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a factory of virtual threads named <code>prefix0</code>,
+	 * <code>prefix1</code> and so on.
+	 *
+	 * @param prefix
+	 *            the prefix of the thread names.
+	 * @return the thread factory.
+	 * @exception UnsupportedOperationException
+	 *                if the Java runtime does not support virtual threads.
+	 */
+	public static ThreadFactory factory(String prefix) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, prefix, 0L);
+
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException ex) {
+			throw new UnsupportedOperationException("virtual threads require Java 21 or later", ex);
+		}
+	}
+}
+// End of VirtualThreads class
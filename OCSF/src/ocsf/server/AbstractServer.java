@@ -5,9 +5,19 @@
 package ocsf.server;
 
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
 import java.io.*;
 
+import ocsf.common.*;
+
 /**
 * The <code> AbstractServer </code> class maintains a thread that waits
 * for connection attempts from clients. When a connection attempt occurs
@@ -23,6 +33,28 @@ import java.io.*;
 * Several public service methods are provided to applications that use
 * this framework, and several hook methods are also available<p>
 *
+* By default every client is served by a platform thread of its own.
+* Calling <code>setConnectionMode</code> before the server starts
+* listening makes virtual threads, or a small pool of selector threads,
+* serve the clients instead; the hook methods are called the same way.<p>
+*
+* By default messages are handled one at a time, under the lock of the
+* server. After <code>setConcurrentDispatch(true)</code> messages from
+* different clients are handled in parallel by a pool of threads, while
+* the messages and hook calls of any one client still run one after the
+* other, in order.<p>
+*
+* A client that goes away without closing its connection, because its
+* machine crashed or a NAT forgot it, leaves a connection that nothing
+* is read from. With <code>setIdleTimeout</code> the server sends silent
+* clients heartbeats, which framed clients answer, and with
+* <code>setReadTimeout</code> it closes connections that stay silent.<p>
+*
+* With <code>setRateLimit</code> every client may only send so many
+* messages a second, so that one client cannot flood the server; the
+* messages over the limit are dropped, delayed or cost the client its
+* connection, as <code>setThrottlePolicy</code> says.<p>
+*
 * Project Name: OCSF (Object Client-Server Framework)<p>
 *
 * @author Dr Robert Lagani&egrave;re
@@ -34,17 +66,57 @@ import java.io.*;
 */
 public abstract class AbstractServer implements Runnable
 {
+  // CONSTANTS *******************************************************
+
+  /**
+   * The precision of the idle and read timeouts, in milliseconds.
+   */
+  final public static long IDLE_TICK = 50;
+
+  /**
+   * The number of buckets of the timing wheel of the idle and read
+   * timeouts; a turn of the wheel takes 51.2 seconds.
+   */
+  final static int IDLE_BUCKETS = 1024;
+
   // INSTANCE VARIABLES *********************************************
 
   /**
-   * The server socket: listens for clients who want to connect.
+   * The server sockets: listen for clients who want to connect.
+   * There is one, or one per acceptor when they use
+   * <code>SO_REUSEPORT</code>.
+   */
+  private ServerSocketChannel[] serverChannels = null;
+
+  /**
+   * The threads accepting connections, or null when the server is not
+   * listening. Each call to <code>listen</code> starts a new group
+   * with selectors of its own, so that an acceptor that is being
+   * stopped never picks up work meant for the next group.
+   */
+  private volatile Acceptor[] acceptors;
+
+  /**
+   * The number of threads accepting connections.
+   * Set to 1 by default.
+   */
+  private int acceptorCount = 1;
+
+  /**
+   * Indicates if each acceptor binds a socket of its own to the port
+   * with <code>SO_REUSEPORT</code>, where the system supports it.
+   * Set to true by default; it only matters with several acceptors.
    */
-  private ServerSocket serverSocket = null;
+  private boolean reusePort = true;
 
   /**
-   * The connection listener thread.
+   * Read-locked while an accepted connection is handed over, and
+   * write-locked to stop listening, so that a connection accepted just
+   * as the server stops listening is either handed over before
+   * <code>stopListening</code> returns, or closed. Acceptors do not
+   * wait for each other.
    */
-  private Thread connectionListener;
+  private final ReadWriteLock acceptLock = new ReentrantReadWriteLock();
 
   /**
    * The port number
@@ -52,13 +124,9 @@ public abstract class AbstractServer implements Runnable
   private int port;
 
   /**
-   * The server timeout while for accepting connections.
-   * After timing out, the server will check to see if a command to
-   * stop the server has been issued; it not it will resume accepting
-   * connections.
-   * Set to half a second by default.
+   * The codecs framed clients may choose from, preferred first.
    */
-  private int timeout = 500;
+  private final Codec[] codecs;
 
   /**
    * The maximum queue length; i.e. the maximum number of clients that
@@ -67,29 +135,169 @@ public abstract class AbstractServer implements Runnable
    */
   private int backlog = 10;
 
+  /**
+   * The TCP options of the client connections.
+   */
+  private final SocketSettings socketSettings = new SocketSettings();
+
   /**
    * The thread group associated with client threads. Each member of the
-   * thread group is a <code> ConnectionToClient </code>.
+   * thread group is a <code> ConnectionToClient </code> running on a
+   * platform thread.
    */
   private ThreadGroup clientThreadGroup;
 
   /**
-   * Indicates if the listening thread is ready to stop.  Set to
-   * false by default.
+   * The connections with the clients, whatever thread serves them.
+   * Virtual threads and event loop connections do not show up in the
+   * thread group, so the group cannot be used to list the clients.
+   */
+  private final ClientRegistry clients = new ClientRegistry();
+
+  /**
+   * Creates the threads of the connections in virtual thread mode,
+   * or null.
+   */
+  private ThreadFactory virtualThreads;
+
+  /**
+   * The way connections are serviced.
+   * Set to one thread per connection by default.
+   */
+  private ConnectionMode connectionMode =
+    ConnectionMode.THREAD_PER_CONNECTION;
+
+  /**
+   * The number of event loops used in NIO mode.
+   * Set to the number of processors by default.
+   */
+  private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The event loops serving the clients in NIO mode, or null.
+   */
+  private NioEngine engine;
+
+  /**
+   * Indicates if messages from different clients are handled in
+   * parallel. Set to false by default.
+   */
+  private volatile boolean concurrentDispatch = false;
+
+  /**
+   * The number of threads handling messages in concurrent dispatch
+   * mode. Set to the number of processors by default.
+   */
+  private int dispatchThreadCount =
+    Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The threads handling messages in concurrent dispatch mode, or null.
+   */
+  private volatile ExecutorService dispatchPool;
+
+  /**
+   * The maximum number of messages waiting to be written to a client.
+   * Set to 4096 by default.
+   */
+  private int outboundQueueCapacity = 4096;
+
+  /**
+   * What a connection does when its outbound queue is full.
+   * Set to disconnecting the client by default.
+   */
+  private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+
+  /**
+   * The maximum number of logical streams a client may open over one
+   * connection. Set to 256 by default.
+   */
+  private volatile int maxStreamsPerConnection = 256;
+
+  /**
+   * When the Java object streams of legacy clients are reset.
+   * Set to after every message by default.
+   */
+  private ResetPolicy resetPolicy = ResetPolicy.EVERY_MESSAGE;
+
+  /**
+   * How long a client may be silent before it is sent a heartbeat,
+   * and before its connection is closed, in milliseconds; 0 for never.
+   */
+  private volatile long idleTimeout = 0;
+  private volatile long readTimeout = 0;
+
+  /**
+   * How many messages a second each client may send, and how many at
+   * once; a rate of 0 for no limit. Set to no limit by default.
    */
-  private boolean readyToStop = false;
+  private volatile double messageRate = 0;
+  private volatile int messageBurst = 0;
+
+  /**
+   * What is done with the messages of a client over its rate limit.
+   * Set to delaying reads by default.
+   */
+  private volatile ThrottlePolicy throttlePolicy = ThrottlePolicy.DELAY;
+
+  /**
+   * The timing wheel on which every connection is checked for
+   * silence. Its thread only runs while timeouts are set.
+   */
+  private final TimingWheel idleWheel =
+    new TimingWheel("OCSF idle timer", IDLE_TICK, IDLE_BUCKETS);
+
+  /**
+   * Runs the writers of the connections that are not serviced by an
+   * event loop, or null.
+   */
+  private volatile Executor writerPool;
+
+  /**
+   * The platform threads of the writers, or null.
+   */
+  private ExecutorService writerThreads;
+
+  /**
+   * The counters and latency histograms of the server.
+   */
+  private final ServerMetrics metrics = new ServerMetrics(this);
+
+  /**
+   * The name the metrics are published under while the server is
+   * open, or null.
+   */
+  private String metricsName;
 
 
 // CONSTRUCTOR ******************************************************
 
   /**
-   * Constructs a new server.
+   * Constructs a new server. Framed clients may use the binary codec
+   * or Java serialization.
    *
    * @param port the port number on which to listen.
    */
   public AbstractServer(int port)
   {
+    this(port, Frames.defaultCodecs());
+  }
+
+  /**
+   * Constructs a new server that offers the given codecs to framed
+   * clients. Clients sending a Java object stream are accepted
+   * whatever the codecs.
+   *
+   * @param port the port number on which to listen.
+   * @param codecs the codecs supported, at least one.
+   */
+  public AbstractServer(int port, Codec... codecs)
+  {
+    if (codecs.length == 0)
+      throw new IllegalArgumentException("no codec");
+
     this.port = port;
+    this.codecs = codecs.clone();
 
     this.clientThreadGroup =
       new ThreadGroup("ConnectionToClient threads")
@@ -99,7 +307,7 @@ public abstract class AbstractServer implements Runnable
         public void uncaughtException(
           Thread thread, Throwable exception)
         {
-          clientException((ConnectionToClient)thread, exception);
+          notifyException((ConnectionToClient)thread, exception);
         }
       };
   }
@@ -108,7 +316,7 @@ public abstract class AbstractServer implements Runnable
 // INSTANCE METHODS *************************************************
 
   /**
-   * Begins the thread that waits for new clients.
+   * Begins the threads that wait for new clients.
    * If the server is already in listening mode, this
    * call has no effect.
    *
@@ -119,24 +327,183 @@ public abstract class AbstractServer implements Runnable
   {
     if (!isListening())
     {
-      if (serverSocket == null)
+      // Fails where virtual threads are missing, before the port is bound
+      virtualThreads =
+        connectionMode == ConnectionMode.VIRTUAL_THREAD ?
+          VirtualThreads.factory("ConnectionToClient ") : null;
+
+      if (serverChannels == null)
+      {
+        serverChannels = openChannels();
+        metricsName = MBeans.DOMAIN + ":type=Server,port=" + port;
+        MBeans.register(metrics, metricsName);
+      }
+
+      if (connectionMode == ConnectionMode.NIO && engine == null)
+      {
+        engine = new NioEngine(this, eventLoopCount);
+      }
+
+      if (concurrentDispatch && dispatchPool == null)
+      {
+        dispatchPool = Executors.newFixedThreadPool(dispatchThreadCount,
+          new ThreadFactory()
+          {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable task)
+            {
+              Thread thread = new Thread(task, "OCSF dispatcher " + count++);
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      }
+
+      if (virtualThreads != null)
+      {
+        // A writer blocked on a slow client only parks its virtual thread
+        final ThreadFactory factory = VirtualThreads.factory("OCSF writer ");
+        writerPool = new Executor()
+        {
+          public void execute(Runnable task)
+          {
+            factory.newThread(task).start();
+          }
+        };
+      }
+      else
+      {
+        if (writerThreads == null)
+        {
+          // Threads are only kept while clients have messages waiting
+          writerThreads = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+              private int count = 0;
+
+              public synchronized Thread newThread(Runnable task)
+              {
+                Thread thread = new Thread(task, "OCSF writer " + count++);
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+        }
+        writerPool = writerThreads;
+      }
+
+      // Each acceptor sleeps until a client connects or it is stopped
+      Acceptor[] group = new Acceptor[acceptorCount];
+      try
+      {
+        for (int i = 0; i < group.length; i++)
+        {
+          ServerSocketChannel channel =
+            serverChannels[i % serverChannels.length];
+          Selector selector = Selector.open();
+          group[i] = new Acceptor(this, channel, selector, i);
+          channel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+      }
+      catch (IOException exception)
       {
-        serverSocket = new ServerSocket(getPort(), backlog);
+        for (Acceptor acceptor : group)
+        {
+          if (acceptor != null)
+            acceptor.selector.close();
         }
+        throw exception;
+      }
 
-      serverSocket.setSoTimeout(timeout);
-      readyToStop = false;
-      connectionListener = new Thread(this);
-      connectionListener.start();
+      for (Acceptor acceptor : group)
+        acceptor.group = group;
+      acceptors = group;
+      for (Acceptor acceptor : group)
+        acceptor.start();
     }
   }
 
   /**
-   * Causes the server to stop accepting new connections.
+   * Opens and binds the server sockets: one per acceptor if they are
+   * to use <code>SO_REUSEPORT</code> and the system supports it,
+   * otherwise a single one shared by the acceptors.
+   *
+   * @return the bound channels, in non-blocking mode.
+   * @exception IOException if a socket cannot be bound.
+   */
+  private ServerSocketChannel[] openChannels() throws IOException
+  {
+    ServerSocketChannel first = ServerSocketChannel.open();
+    boolean shared = acceptorCount > 1 && reusePort &&
+      first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    ServerSocketChannel[] channels =
+      new ServerSocketChannel[shared ? acceptorCount : 1];
+    channels[0] = first;
+
+    try
+    {
+      int boundPort = getPort();
+      for (int i = 0; i < channels.length; i++)
+      {
+        if (channels[i] == null)
+          channels[i] = ServerSocketChannel.open();
+        if (shared)
+          channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        if (socketSettings.getReceiveBufferSize() > 0)
+        {
+          // Accepted sockets inherit it, early enough for window scaling
+          channels[i].setOption(StandardSocketOptions.SO_RCVBUF,
+            socketSettings.getReceiveBufferSize());
+        }
+        channels[i].bind(new InetSocketAddress(boundPort), backlog);
+        channels[i].configureBlocking(false);
+
+        // With port 0 the others must bind to the port the first got
+        boundPort = channels[i].socket().getLocalPort();
+      }
+    }
+    catch (IOException exception)
+    {
+      for (ServerSocketChannel channel : channels)
+      {
+        if (channel != null)
+          channel.close();
+      }
+      throw exception;
+    }
+    return channels;
+  }
+
+  /**
+   * Causes the server to stop accepting new connections. The
+   * listening threads are woken up at once; no connection is accepted
+   * after this method returns.
    */
   final public void stopListening()
   {
-    readyToStop = true;
+    acceptLock.writeLock().lock();
+    try
+    {
+      Acceptor[] group = acceptors;
+      acceptors = null;
+      if (group != null)
+      {
+        // Closing the selectors wakes the acceptors up, and releases
+        // the server sockets at once should they be closed next
+        for (Acceptor acceptor : group)
+        {
+          try
+          {
+            acceptor.selector.close();
+          }
+          catch (IOException ex) {}
+        }
+      }
+    }
+    finally
+    {
+      acceptLock.writeLock().unlock();
+    }
   }
 
   /**
@@ -153,27 +520,51 @@ public abstract class AbstractServer implements Runnable
    */
   final synchronized public void close() throws IOException
   {
-    if (serverSocket == null)
+    if (serverChannels == null)
       return;
       stopListening();
     try
     {
-      serverSocket.close();
+      for (ServerSocketChannel channel : serverChannels)
+        channel.close();
     }
     finally
     {
       // Close the client sockets of the already connected clients
-      Thread[] clientThreadList = getClientConnections();
-      for (int i=0; i<clientThreadList.length; i++)
+      ConnectionToClient[] clientList = clients.snapshot();
+      for (int i=0; i<clientList.length; i++)
       {
          try
          {
-           ((ConnectionToClient)clientThreadList[i]).close();
+           clientList[i].close();
          }
          // Ignore all exceptions when closing clients.
          catch(Exception ex) {}
       }
-      serverSocket = null;
+      if (engine != null)
+      {
+        engine.shutdown();
+        engine = null;
+      }
+      if (dispatchPool != null)
+      {
+        // What the clients queued still runs; listen creates a new pool
+        dispatchPool.shutdown();
+        dispatchPool = null;
+      }
+      if (writerThreads != null)
+      {
+        // The writers finish flushing the clients being closed
+        writerThreads.shutdown();
+        writerThreads = null;
+      }
+      writerPool = null;
+      serverChannels = null;
+      if (metricsName != null)
+      {
+        MBeans.unregister(metricsName);
+        metricsName = null;
+      }
       serverClosed();
     }
   }
@@ -186,21 +577,26 @@ public abstract class AbstractServer implements Runnable
    * function of sending to all clients, perhaps after some kind
    * of filtering is done. Any exception thrown while
    * sending the message to a particular client is ignored.
+   * The message is serialized once and the same bytes are written
+   * to every client.
    *
    * @param msg   Object The message to be sent
    */
   public void sendToAllClients(Object msg)
   {
-    Thread[] clientThreadList = getClientConnections();
+    long start = System.nanoTime();
+    EncodedMessage encoded = new EncodedMessage(msg);
+    ConnectionToClient[] clientList = clients.snapshot();
 
-    for (int i=0; i<clientThreadList.length; i++)
+    for (int i=0; i<clientList.length; i++)
     {
       try
       {
-        ((ConnectionToClient)clientThreadList[i]).sendToClient(msg);
+        clientList[i].sendToClient(encoded);
       }
       catch (Exception ex) {}
     }
+    metrics.getBroadcastHistogram().recordSince(start);
   }
 
 
@@ -213,7 +609,7 @@ public abstract class AbstractServer implements Runnable
    */
   final public boolean isListening()
   {
-    return (connectionListener != null);
+    return (acceptors != null);
   }
 
   /**
@@ -225,17 +621,44 @@ public abstract class AbstractServer implements Runnable
    * in this migth disconnect. New clients can also connect,
    * these later will not appear in the array.
    *
+   * The array is a fresh copy on every call; subclasses that only
+   * need to walk the clients should prefer <code>getClients</code>.
+   *
    * @return an array of <code>Thread</code> containing
    * <code>ConnectionToClient</code> instances.
    */
-  synchronized final public Thread[] getClientConnections()
+  final public Thread[] getClientConnections()
   {
-    Thread[] clientThreadList = new
-      Thread[clientThreadGroup.activeCount()];
+    ConnectionToClient[] clientList = clients.snapshot();
+    return Arrays.copyOf(clientList, clientList.length, Thread[].class);
+  }
 
-    clientThreadGroup.enumerate(clientThreadList);
+  /**
+   * Returns the existing client connections, for walking them with
+   * a for-each loop or <code>forEach</code>. Each walk goes through a
+   * snapshot of the connections that is shared until a client
+   * connects or disconnects, so walking a stable set of clients
+   * with <code>forEach</code> allocates nothing. As with
+   * <code>getClientConnections</code>, clients may disconnect during
+   * the walk and clients that connect during it are not included.
+   *
+   * @return the client connections.
+   */
+  final public Iterable<ConnectionToClient> getClients()
+  {
+    return clients;
+  }
 
-    return clientThreadList;
+  /**
+   * Returns a stream over a snapshot of the existing client
+   * connections.
+   *
+   * @return a stream of <code>ConnectionToClient</code> instances.
+   * @see #getClients()
+   */
+  final public Stream<ConnectionToClient> getClientStream()
+  {
+    return clients.stream();
   }
 
   /**
@@ -245,7 +668,7 @@ public abstract class AbstractServer implements Runnable
    */
   final public int getNumberOfClients()
   {
-    return clientThreadGroup.activeCount();
+    return clients.size();
   }
 
   /**
@@ -258,6 +681,27 @@ public abstract class AbstractServer implements Runnable
     return port;
   }
 
+  /**
+   * Returns the counters and latency histograms of the server, which
+   * are also published over JMX while it is open.
+   *
+   * @return the metrics.
+   */
+  final public ServerMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Returns the codecs framed clients may choose from.
+   *
+   * @return the codecs, preferred first; must not be modified.
+   */
+  final public Codec[] getCodecs()
+  {
+    return codecs;
+  }
+
   /**
    * Sets the port number for the next connection.
    * The server must be closed and restarted for the port
@@ -271,22 +715,80 @@ public abstract class AbstractServer implements Runnable
   }
 
   /**
-   * Sets the timeout time when accepting connections.
-   * The default is half a second. This means that stopping the
-   * server may take up to timeout duration to actually stop.
-   * The server must be stopped and restarted for the timeout
-   * change to be effective.
+   * Formerly set how often the listening thread woke up to check
+   * whether it had been stopped. The thread now sleeps until a client
+   * connects or <code>stopListening</code> wakes it, so this method
+   * has no effect; it is kept for existing subclasses.
    *
-   * @param timeout the timeout time in ms.
+   * @param timeout ignored.
    */
   final public void setTimeout(int timeout)
   {
-    this.timeout = timeout;
+  }
+
+  /**
+   * Returns the TCP options applied to every client connection, such
+   * as <code>TCP_NODELAY</code> (on by default) and the socket buffer
+   * sizes. Changes apply to the clients that connect afterwards; the
+   * receive buffer size must be set before the server listens.
+   *
+   * @return the socket options.
+   */
+  final public SocketSettings getSocketSettings()
+  {
+    return socketSettings;
+  }
+
+  /**
+   * Returns the number of threads accepting connections.
+   *
+   * @return the number of acceptors.
+   */
+  final public int getAcceptorCount()
+  {
+    return acceptorCount;
+  }
+
+  /**
+   * Sets the number of threads accepting connections. The default is
+   * one. More acceptors help when many clients connect at once, for
+   * instance when they all reconnect after a restart; whatever the
+   * number, every connection ends up with the same server and in the
+   * same list of clients.
+   * The server must be closed and restarted for the change to be
+   * in effect.
+   *
+   * @param acceptorCount the number of acceptors.
+   * @see #setReusePort(boolean)
+   */
+  final public void setAcceptorCount(int acceptorCount)
+  {
+    if (acceptorCount < 1)
+      throw new IllegalArgumentException(
+        "acceptor count must be positive: " + acceptorCount);
+    this.acceptorCount = acceptorCount;
+  }
+
+  /**
+   * Sets whether each acceptor binds a socket of its own to the port
+   * with <code>SO_REUSEPORT</code>, so that the operating system
+   * spreads incoming connections among them. Where the option is not
+   * supported, or when this is turned off, the acceptors share one
+   * socket. The default is on.
+   * The server must be closed and restarted for the change to be
+   * in effect.
+   *
+   * @param reusePort true to give each acceptor a socket of its own.
+   */
+  final public void setReusePort(boolean reusePort)
+  {
+    this.reusePort = reusePort;
   }
 
   /**
    * Sets the maximum number of waiting connections accepted by the
-   * operating system. The default is 20.
+   * operating system, for each server socket. The default is 10;
+   * a server expecting bursts of connections wants much more.
    * The server must be closed and restarted for the backlog
    * change to be in effect.
    *
@@ -297,63 +799,441 @@ public abstract class AbstractServer implements Runnable
     this.backlog = backlog;
   }
 
+  /**
+   * Returns the way connections are serviced.
+   *
+   * @return the connection mode.
+   */
+  final public ConnectionMode getConnectionMode()
+  {
+    return connectionMode;
+  }
+
+  /**
+   * Sets the way connections are serviced. The default is one thread
+   * per connection.
+   * The server must be closed and restarted for the mode
+   * change to be in effect.
+   *
+   * @param connectionMode the connection mode.
+   */
+  final public void setConnectionMode(ConnectionMode connectionMode)
+  {
+    this.connectionMode = connectionMode;
+  }
+
+  /**
+   * Returns true if messages from different clients are handled in
+   * parallel.
+   *
+   * @return true in concurrent dispatch mode.
+   */
+  final public boolean isConcurrentDispatch()
+  {
+    return concurrentDispatch;
+  }
+
+  /**
+   * Sets whether messages from different clients are handled in
+   * parallel. In concurrent dispatch mode
+   * <code>handleMessageFromClient</code> is no longer called under the
+   * lock of the server: it must protect shared state itself. The
+   * messages of one client are still handled in the order they were
+   * received, and <code>clientConnected</code>,
+   * <code>clientDisconnected</code> and <code>clientException</code> are
+   * called in order with them.
+   * The server must be closed and restarted for the change to be
+   * in effect.
+   *
+   * @param concurrentDispatch true to handle clients in parallel.
+   */
+  final public void setConcurrentDispatch(boolean concurrentDispatch)
+  {
+    this.concurrentDispatch = concurrentDispatch;
+  }
+
+  /**
+   * Sets the number of threads handling messages in concurrent
+   * dispatch mode. The default is the number of processors.
+   * The change takes effect the next time the server listens in
+   * concurrent dispatch mode after it was created or closed.
+   *
+   * @param dispatchThreadCount the number of threads.
+   */
+  final public void setDispatchThreadCount(int dispatchThreadCount)
+  {
+    this.dispatchThreadCount = dispatchThreadCount;
+  }
+
+  /**
+   * Returns the maximum number of messages waiting to be written to
+   * a client.
+   *
+   * @return the capacity of the outbound queues.
+   */
+  final public int getOutboundQueueCapacity()
+  {
+    return outboundQueueCapacity;
+  }
+
+  /**
+   * Sets the maximum number of messages waiting to be written to a
+   * client. The default is 4096. The change takes effect for the
+   * clients that connect afterwards.
+   *
+   * @param outboundQueueCapacity the capacity of the outbound queues.
+   */
+  final public void setOutboundQueueCapacity(int outboundQueueCapacity)
+  {
+    if (outboundQueueCapacity < 1)
+      throw new IllegalArgumentException(
+        "capacity must be positive: " + outboundQueueCapacity);
+    this.outboundQueueCapacity = outboundQueueCapacity;
+  }
+
+  /**
+   * Returns the maximum number of logical streams a client may open
+   * over one connection.
+   *
+   * @return the maximum number of streams.
+   */
+  final public int getMaxStreamsPerConnection()
+  {
+    return maxStreamsPerConnection;
+  }
+
+  /**
+   * Sets the maximum number of logical streams a client may open over
+   * one connection. Every stream is a client of the server, so without
+   * a limit a single socket could fill the server with them. A stream
+   * opened over the limit is closed at once and never reported to the
+   * server. The default is 256.
+   *
+   * @param maxStreamsPerConnection the maximum number of streams, or 0
+   *  to refuse streams.
+   */
+  final public void setMaxStreamsPerConnection(int maxStreamsPerConnection)
+  {
+    if (maxStreamsPerConnection < 0)
+      throw new IllegalArgumentException(
+        "maximum must not be negative: " + maxStreamsPerConnection);
+    this.maxStreamsPerConnection = maxStreamsPerConnection;
+  }
+
+  /**
+   * Returns what a connection does when its outbound queue is full.
+   *
+   * @return the overflow policy.
+   */
+  final public OverflowPolicy getOverflowPolicy()
+  {
+    return overflowPolicy;
+  }
+
+  /**
+   * Sets what a connection does when a message is sent to it while
+   * its outbound queue is full. The default is to disconnect the
+   * client. The change takes effect for the clients that connect
+   * afterwards.
+   *
+   * @param overflowPolicy the overflow policy.
+   */
+  final public void setOverflowPolicy(OverflowPolicy overflowPolicy)
+  {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * Returns how long a client may be silent before the server sends
+   * it a heartbeat.
+   *
+   * @return the idle timeout in milliseconds, or 0 for never.
+   */
+  final public long getIdleTimeout()
+  {
+    return idleTimeout;
+  }
+
+  /**
+   * Sets how long a client may be silent before the server sends it a
+   * heartbeat, and sends it another every idle timeout while the
+   * silence lasts. A framed client answers heartbeats, so a client
+   * that is there is never silent for much longer than the idle
+   * timeout, whereas a client whose machine crashed or whose network
+   * dropped it is. Clients that send a Java object stream cannot be
+   * sent heartbeats. The default is 0, for no heartbeats. The change
+   * takes effect at once.
+   *
+   * @param idleTimeout the idle timeout in milliseconds, or 0.
+   * @see #setReadTimeout(long)
+   */
+  final public void setIdleTimeout(long idleTimeout)
+  {
+    if (idleTimeout < 0)
+      throw new IllegalArgumentException(
+        "timeout must not be negative: " + idleTimeout);
+    this.idleTimeout = idleTimeout;
+    trackIdleClients();
+  }
+
+  /**
+   * Returns how long a client may be silent before its connection is
+   * closed.
+   *
+   * @return the read timeout in milliseconds, or 0 for never.
+   */
+  final public long getReadTimeout()
+  {
+    return readTimeout;
+  }
+
+  /**
+   * Sets how long a client may be silent before its connection is
+   * closed as dead, whatever is still queued for it. The server then
+   * calls <code>clientDisconnected</code>, as for a client that
+   * disconnected. Set it to a few idle timeouts, so that a client gets
+   * several heartbeats to answer first. Clients that send a Java object
+   * stream cannot be sent heartbeats, so only the traffic of their user
+   * keeps them. A client that has not said hello by the read timeout
+   * after it connected is closed too. The default is 0, for never. The
+   * change takes effect at once.
+   * <p>
+   * Connections are checked on a single timing wheel, whose precision
+   * is <code>IDLE_TICK</code> milliseconds.
+   *
+   * @param readTimeout the read timeout in milliseconds, or 0.
+   */
+  final public void setReadTimeout(long readTimeout)
+  {
+    if (readTimeout < 0)
+      throw new IllegalArgumentException(
+        "timeout must not be negative: " + readTimeout);
+    this.readTimeout = readTimeout;
+    trackIdleClients();
+  }
+
+  /**
+   * Returns how many messages a second each client may send.
+   *
+   * @return the rate, or 0 for no limit.
+   */
+  final public double getRateLimit()
+  {
+    return messageRate;
+  }
+
+  /**
+   * Returns how many messages each client may send at once after a
+   * quiet time.
+   *
+   * @return the burst.
+   */
+  final public int getRateBurst()
+  {
+    return messageBurst;
+  }
+
+  /**
+   * Limits how fast each client may send messages. Every client,
+   * including every stream of a multiplexed connection, gets a token
+   * bucket that holds <code>burst</code> messages and refills at
+   * <code>rate</code> messages a second; a message that finds the
+   * bucket empty is throttled as the throttle policy says, before it is
+   * decoded or dispatched. The default is no limit. The change takes
+   * effect at once, with full buckets, and replaces the buckets set on
+   * clients one by one.
+   * <p>
+   * A limit that must hold across connections, such as one per login
+   * ID, is set with <code>ConnectionToClient.setSharedRateLimit</code>.
+   *
+   * @param rate the messages a second, or 0 for no limit.
+   * @param burst the messages at once; at least 1 if there is a limit.
+   */
+  final public void setRateLimit(double rate, int burst)
+  {
+    if (!(rate >= 0) || (rate > 0 && burst <= 0))
+      throw new IllegalArgumentException(
+        "invalid rate limit: " + rate + "/s, burst " + burst);
+    this.messageBurst = burst;
+    this.messageRate = rate;
+    for (ConnectionToClient client : clients)
+    {
+      client.setRateLimit(rate > 0 ? new TokenBucket(rate, burst) : null);
+    }
+  }
+
+  /**
+   * Returns what is done with the messages of a client over its rate
+   * limit.
+   *
+   * @return the throttle policy.
+   */
+  final public ThrottlePolicy getThrottlePolicy()
+  {
+    return throttlePolicy;
+  }
+
+  /**
+   * Sets what is done with the messages of a client over its rate limit:
+   * drop them, stop reading from the client for as long as it is ahead
+   * of its rate, or disconnect it. The default is to delay reads.
+   *
+   * @param throttlePolicy the throttle policy.
+   * @see #setRateLimit(double, int)
+   */
+  final public void setThrottlePolicy(ThrottlePolicy throttlePolicy)
+  {
+    this.throttlePolicy = throttlePolicy;
+  }
+
+  /**
+   * Returns when the object streams of clients that send a Java
+   * object stream are reset.
+   *
+   * @return the reset policy.
+   */
+  final public ResetPolicy getResetPolicy()
+  {
+    return resetPolicy;
+  }
+
+  /**
+   * Sets when the object streams of clients that send a Java object
+   * stream are reset. Resetting less often makes messages smaller, but
+   * the stream keeps every object written in between reachable, and
+   * an object changed after being sent is sent again unchanged. The
+   * default is to reset after every message. Framed clients are not
+   * affected: their messages never refer to one another.
+   * <p>
+   * A policy that drops messages needs every message to stand on its
+   * own, so unless the overflow policy is to disconnect, streams are
+   * reset after every message whatever this policy says. The change
+   * takes effect for the clients that connect afterwards.
+   *
+   * @param resetPolicy the reset policy.
+   */
+  final public void setResetPolicy(ResetPolicy resetPolicy)
+  {
+    this.resetPolicy = resetPolicy;
+  }
+
+  /**
+   * Sets the number of event loops used in NIO mode. The default is
+   * the number of processors.
+   * The server must be closed and restarted for the change to be
+   * in effect.
+   *
+   * @param eventLoopCount the number of event loop threads.
+   */
+  final public void setEventLoopCount(int eventLoopCount)
+  {
+    this.eventLoopCount = eventLoopCount;
+  }
+
 // RUN METHOD -------------------------------------------------------
 
   /**
-   * Runs the listening thread that allows clients to connect.
+   * Runs the listening threads that allow clients to connect.
    * Not to be called.
    */
   final public void run()
   {
+    final Acceptor acceptor = (Acceptor)Thread.currentThread();
+    final Selector selector = acceptor.selector;
+
     // call the hook method to notify that the server is starting
-    serverStarted();
+    if (acceptor.index == 0)
+      serverStarted();
 
     try
     {
-      // Repeatedly waits for a new client connection, accepts it, and
-      // starts a new thread to handle data exchange.
-      while(!readyToStop)
+      // Sleeps until connection attempts arrive, accepts all of them,
+      // and starts a new thread, or registers with an event loop, to
+      // handle the data exchange of each.
+      while(acceptors == acceptor.group)
       {
-        try
-        {
-          // Wait here for new connection attempts, or a timeout
-          Socket clientSocket = serverSocket.accept();
+        selector.select();
+        selector.selectedKeys().clear();
 
-          // When a client is accepted, create a thread to handle
-          // the data exchange, then add it to thread group
-
-          synchronized(this)
-          {
-            ConnectionToClient c = new ConnectionToClient(
-              this.clientThreadGroup, clientSocket, this);
-          }
-        }
-        catch (InterruptedIOException exception)
+        SocketChannel clientChannel;
+        while (acceptors == acceptor.group
+          && (clientChannel = acceptor.channel.accept()) != null)
         {
-          // This will be thrown when a timeout occurs.
-          // The server will continue to listen if not ready to stop.
+          accepted(clientChannel, acceptor);
         }
       }
 
       // call the hook method to notify that the server has stopped
-      serverStopped();
+      if (acceptor.index == 0)
+        serverStopped();
     }
-    catch (IOException exception)
+    catch (IOException | ClosedSelectorException exception)
     {
-      if (!readyToStop)
+      if (acceptors == acceptor.group)
       {
-        // Closing the socket must have thrown a SocketException
+        // The socket failed while the server was listening
+        stopListening();
         listeningException(exception);
       }
-      else
+      else if (acceptor.index == 0)
       {
         serverStopped();
       }
     }
     finally
     {
-      readyToStop = true;
-      connectionListener = null;
+      try
+      {
+        selector.close();
+      }
+      catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Hands an accepted connection over to a connection thread or an
+   * event loop. If the server stopped listening in the meantime, or
+   * the connection cannot be set up, it is closed.
+   *
+   * @param clientChannel the accepted channel, in blocking mode.
+   * @param acceptor the acceptor that accepted it.
+   */
+  private void accepted(SocketChannel clientChannel, Acceptor acceptor)
+  {
+    acceptLock.readLock().lock();
+    try
+    {
+      try
+      {
+        if (acceptors != acceptor.group)
+        {
+          clientChannel.close();
+          return;
+        }
+
+        socketSettings.apply(clientChannel.socket());
+        if (engine != null)
+        {
+          engine.register(clientChannel);
+        }
+        else
+        {
+          startConnection(clientChannel.socket(), null);
+        }
+      }
+      catch (IOException exception)
+      {
+        // Only this client is lost; keep listening
+        try
+        {
+          clientChannel.close();
+        }
+        catch (IOException ex) {}
+      }
+    }
+    finally
+    {
+      acceptLock.readLock().unlock();
     }
   }
 
@@ -426,7 +1306,8 @@ public abstract class AbstractServer implements Runnable
    * This MUST be implemented by subclasses, who should respond to
    * messages.
    * This method is called by a synchronized method so it is also
-   * implcitly synchronized.
+   * implcitly synchronized, unless the server is in concurrent
+   * dispatch mode.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
@@ -442,18 +1323,251 @@ public abstract class AbstractServer implements Runnable
    * Receives a command sent from the client to the server.
    * Called by the run method of <code>ConnectionToClient</code>
    * instances that are watching for messages coming from the server
-   * This method is synchronized to ensure that whatever effects it has
-   * do not conflict with work being done by other threads. The method
-   * simply calls the <code>handleMessageFromClient</code> slot method.
+   * The <code>handleMessageFromClient</code> slot method is called
+   * while holding the lock of the server to ensure that whatever
+   * effects it has do not conflict with work being done by other
+   * threads. In concurrent dispatch mode it is instead queued behind
+   * the earlier messages of the same client.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
    *  sent the message.
    */
-  final synchronized void receiveMessageFromClient(
-    Object msg, ConnectionToClient client)
+  final void receiveMessageFromClient(
+    final Object msg, final ConnectionToClient client)
+  {
+    metrics.messageIn();
+    client.messageReceived();
+    Executor pool = dispatcher();
+    if (pool == null)
+    {
+      synchronized(this)
+      {
+        long start = System.nanoTime();
+        this.handleMessageFromClient(msg, client);
+        metrics.getHandlerHistogram().recordSince(start);
+      }
+      return;
+    }
+
+    client.getDispatchQueue().execute(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          long start = System.nanoTime();
+          handleMessageFromClient(msg, client);
+          metrics.getHandlerHistogram().recordSince(start);
+        }
+        catch (RuntimeException exception)
+        {
+          // As when the handler throws on the connection's own thread
+          client.abort();
+          clientException(client, exception);
+        }
+      }
+    }, pool);
+  }
+
+  /**
+   * Calls <code>clientConnected</code>, after whatever is already
+   * queued for the client in concurrent dispatch mode.
+   *
+   * @param client the connection.
+   */
+  final void notifyConnected(final ConnectionToClient client)
+  {
+    Executor pool = dispatcher();
+    if (pool == null)
+    {
+      clientConnected(client);
+      return;
+    }
+
+    client.getDispatchQueue().execute(new Runnable()
+    {
+      public void run()
+      {
+        clientConnected(client);
+      }
+    }, pool);
+  }
+
+  /**
+   * Calls <code>clientDisconnected</code>, after whatever is already
+   * queued for the client in concurrent dispatch mode.
+   *
+   * @param client the connection.
+   */
+  final void notifyDisconnected(final ConnectionToClient client)
+  {
+    Executor pool = dispatcher();
+    if (pool == null)
+    {
+      clientDisconnected(client);
+      return;
+    }
+
+    client.getDispatchQueue().execute(new Runnable()
+    {
+      public void run()
+      {
+        clientDisconnected(client);
+      }
+    }, pool);
+  }
+
+  /**
+   * Calls <code>clientException</code>, after whatever is already
+   * queued for the client in concurrent dispatch mode.
+   *
+   * @param client the connection.
+   * @param exception the exception raised.
+   */
+  final void notifyException(
+    final ConnectionToClient client, final Throwable exception)
+  {
+    Executor pool = dispatcher();
+    if (pool == null)
+    {
+      clientException(client, exception);
+      return;
+    }
+
+    client.getDispatchQueue().execute(new Runnable()
+    {
+      public void run()
+      {
+        clientException(client, exception);
+      }
+    }, pool);
+  }
+
+  /**
+   * Returns the pool messages are to be handed to. The caller keeps
+   * what it got, since the server may drop the pool when it closes.
+   *
+   * @return the dispatch pool, or null if it does not exist or
+   * concurrent dispatch is off.
+   */
+  private Executor dispatcher()
+  {
+    return concurrentDispatch ? dispatchPool : null;
+  }
+
+  /**
+   * Creates a connection for an accepted socket and starts its
+   * thread: a virtual thread in virtual thread mode, otherwise a
+   * platform thread in the client thread group.
+   *
+   * @param clientSocket the accepted socket.
+   * @param prefix the bytes already read from the socket, or null.
+   * @exception IOException if the connection cannot be created.
+   */
+  final void startConnection(Socket clientSocket, byte[] prefix)
+    throws IOException
+  {
+    final ConnectionToClient client = new ConnectionToClient(
+      this.clientThreadGroup, clientSocket, this, prefix);
+
+    if (virtualThreads == null)
+    {
+      client.start();
+      return;
+    }
+
+    // The connection is only the task of the virtual thread, so the
+    // thread group cannot report what escapes from it
+    virtualThreads.newThread(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          client.run();
+        }
+        catch (Throwable exception)
+        {
+          notifyException(client, exception);
+        }
+      }
+    }).start();
+  }
+
+  /**
+   * Returns the threads that write the queued messages of
+   * connections that are not serviced by an event loop.
+   *
+   * @return the writer pool.
+   */
+  final Executor getWriterPool()
+  {
+    Executor pool = writerPool;
+    if (pool == null)
+    {
+      // Only a connection closed before the server listened, or after
+      // it closed, gets here; it writes on the caller's thread
+      return new Executor()
+      {
+        public void execute(Runnable task)
+        {
+          task.run();
+        }
+      };
+    }
+    return pool;
+  }
+
+  /**
+   * Records a connection once the client has introduced itself.
+   *
+   * @param client the connection.
+   */
+  final void addClient(ConnectionToClient client)
+  {
+    clients.add(client);
+    metrics.connectionAccepted();
+    client.added();
+    if (messageRate > 0)
+    {
+      client.setRateLimit(new TokenBucket(messageRate, messageBurst));
+    }
+  }
+
+  /**
+   * Returns the timing wheel the connections are checked for silence
+   * on.
+   *
+   * @return the timing wheel.
+   */
+  final TimingWheel getIdleWheel()
+  {
+    return idleWheel;
+  }
+
+  /**
+   * Checks every client for silence after the timeouts changed.
+   */
+  private void trackIdleClients()
+  {
+    if (idleTimeout > 0 || readTimeout > 0)
+    {
+      for (ConnectionToClient client : clients)
+      {
+        client.trackIdle();
+      }
+    }
+  }
+
+  /**
+   * Forgets a connection that is closing.
+   *
+   * @param client the connection.
+   */
+  final void removeClient(ConnectionToClient client)
   {
-    this.handleMessageFromClient(msg, client);
+    clients.remove(client);
   }
 }
 // End of AbstractServer Class
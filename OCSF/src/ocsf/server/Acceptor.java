@@ -0,0 +1,67 @@
+package ocsf.server;
+
+import java.nio.channels.*;
+
+/**
+ * A thread that accepts connections for a server. It runs the server's
+ * <code>run</code> method, which finds the channel and the selector to use
+ * in this object.
+ * <p>
+ * A server has one acceptor by default. With several, they either share one
+ * listening channel, each waking up on its own selector, or each own a
+ * channel bound to the same port with <code>SO_REUSEPORT</code>, in which case
+ * the operating system spreads the incoming connections among them.
+ * <p>
+ * The acceptors started by one call to <code>listen</code> form a group; the
+ * server is listening for as long as that group is its current one.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setAcceptorCount(int)
+ */
+final class Acceptor extends Thread {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The channel connections are accepted from.
+	 */
+	final ServerSocketChannel	channel;
+
+	/**
+	 * The selector the acceptor sleeps on; closed to stop it.
+	 */
+	final Selector				selector;
+
+	/**
+	 * The acceptors started together with this one.
+	 */
+	Acceptor[]					group;
+
+	/**
+	 * The position of the acceptor in its group.
+	 */
+	final int					index;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs an acceptor.
+	 *
+	 * @param server
+	 *            the server whose <code>run</code> method the thread runs.
+	 * @param channel
+	 *            the channel connections are accepted from.
+	 * @param selector
+	 *            a selector the channel is registered with for accepting.
+	 * @param index
+	 *            the position of the acceptor in its group.
+	 */
+	Acceptor(AbstractServer server, ServerSocketChannel channel, Selector selector, int index) {
+		super(server, "OCSF acceptor " + index);
+		this.channel = channel;
+		this.selector = selector;
+		this.index = index;
+	}
+}
+// End of Acceptor class
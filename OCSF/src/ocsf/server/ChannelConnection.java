@@ -0,0 +1,547 @@
+package ocsf.server;
+
+import java.io.*;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ocsf.common.*;
+
+/**
+ * A connection to a client whose socket is serviced by an
+ * <code>EventLoop</code> instead of by a thread of its own. It is created when
+ * the server runs in <code>ConnectionMode.NIO</code>.
+ * <p>
+ * The connection only keeps the state it needs between two reads: a five
+ * byte header buffer, and the payload of a frame that arrived in pieces.
+ * Complete frames are decoded straight out of the event loop's read buffer.
+ * The first frame must be the client's hello; the connection is reported to
+ * the server once a codec has been agreed on.
+ * Outgoing frames are queued and written by the event loop when the socket
+ * can take them, so no thread ever blocks on a slow client.
+ * <p>
+ * A client over its rate limit is delayed by taking the channel out of the
+ * selector's read interest for a while; what was already read and not yet
+ * delivered is kept until reading resumes.
+ * <p>
+ * If the client turns out to send a Java object stream, the socket is handed
+ * over to an ordinary <code>ConnectionToClient</code> thread.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.EventLoop
+ */
+final class ChannelConnection extends ConnectionToClient {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The channel connected to the client.
+	 */
+	private final SocketChannel				channel;
+
+	/**
+	 * The event loop that services the channel.
+	 */
+	private final EventLoop					loop;
+
+	/**
+	 * The key of the channel in the event loop's selector.
+	 */
+	private SelectionKey					key;
+
+	/**
+	 * Holds the preamble and then each frame header while they are read.
+	 */
+	private final ByteBuffer				header		= ByteBuffer.allocate(Frames.HEADER_LENGTH);
+
+	/**
+	 * The payload of a frame that did not arrive in a single read, or null.
+	 */
+	private ByteBuffer						body;
+
+	/**
+	 * The type of the frame whose payload is in <code>body</code>.
+	 */
+	private byte							bodyType;
+
+	/**
+	 * Indicates if the preamble has been received.
+	 */
+	private boolean							handshaken;
+
+	/**
+	 * The codec agreed on with the client, or null until its hello frame has
+	 * been received.
+	 */
+	private Codec							codec;
+
+	/**
+	 * Set once the socket belongs to a thread-per-connection
+	 * <code>ConnectionToClient</code>; this object must then leave it alone.
+	 */
+	private boolean							handedOff;
+
+	/**
+	 * The largest number of frames handed to the channel in one gathering
+	 * write.
+	 */
+	private static final int				WRITE_BATCH		= 64;
+
+	/**
+	 * The frames being written to the channel. They have left the outbound
+	 * queue, so the overflow policy cannot drop them.
+	 */
+	private final ByteBuffer[]				batch			= new ByteBuffer[WRITE_BATCH];
+
+	/**
+	 * The number of frames in <code>batch</code>.
+	 */
+	private int								batchSize;
+
+	/**
+	 * Set while a flush of the pending writes is scheduled or running.
+	 */
+	private final AtomicBoolean				flushScheduled	= new AtomicBoolean();
+
+	/**
+	 * How long to stop reading once the frame being delivered is done,
+	 * because the client went over its rate limit, in nanoseconds.
+	 */
+	private long							pause;
+
+	/**
+	 * Set while reading is stopped.
+	 */
+	private boolean							readsPaused;
+
+	/**
+	 * What was read and not delivered when reading stopped, or null.
+	 */
+	private ByteBuffer						pending;
+
+	/**
+	 * Resumes reading on the server's timing wheel, or null until reading
+	 * is first stopped.
+	 */
+	private TimingWheel.Timeout				resume;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a connection for a channel that was just accepted.
+	 *
+	 * @param channel
+	 *            the channel connected to the client, in non-blocking mode.
+	 * @param loop
+	 *            the event loop that services the channel.
+	 * @param server
+	 *            a reference to the server that accepted the channel.
+	 */
+	ChannelConnection(SocketChannel channel, EventLoop loop, AbstractServer server) {
+		super(channel.socket(), server);
+		this.channel = channel;
+		this.loop = loop;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Encodes a message and queues it for the client. The frame is written
+	 * by the event loop.
+	 */
+	@Override
+	void writeMessage(Object msg) throws IOException {
+		if (!channel.isOpen())
+			throw new SocketException("socket does not exist");
+
+		queue(ByteBuffer.wrap(Frames.encode(msg, codec)));
+	}
+
+	/**
+	 * Queues the frame of an encoded message. The frame's bytes are shared
+	 * with every other client it is sent to.
+	 */
+	@Override
+	void writeEncoded(EncodedMessage msg) throws IOException {
+		if (!channel.isOpen())
+			throw new SocketException("socket does not exist");
+
+		queue(ByteBuffer.wrap(msg.getFrame(codec)));
+	}
+
+	/**
+	 * Makes sure the event loop will write the queued frames.
+	 */
+	@Override
+	void scheduleWrite() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			if (loop.inEventLoop())
+				writeQueued();
+			else
+				loop.execute(this::writeQueued);
+		}
+	}
+
+	/**
+	 * Closes the channel and forgets the connection.
+	 */
+	@Override
+	void closeAll() throws IOException {
+		if (handedOff)
+			return;
+
+		try {
+			if (resume != null)
+				resume.cancel();
+			super.closeAll();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Tells whether the client has said hello, after which it can be sent
+	 * heartbeats.
+	 */
+	@Override
+	boolean canHeartbeat() {
+		return codec != null;
+	}
+
+	/**
+	 * Stops reading from the channel once the frame being delivered is
+	 * done. Called on the event loop thread.
+	 */
+	@Override
+	void delayReads(long nanos) {
+		pause = Math.max(pause, nanos);
+	}
+
+	// METHODS TO BE USED BY THE EVENT LOOP ONLY ------------------------
+
+	/**
+	 * Registers the channel with the event loop's selector. Called on the
+	 * event loop thread.
+	 *
+	 * @param selector
+	 *            the event loop's selector.
+	 */
+	void register(Selector selector) {
+		try {
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+			trackIdle();
+		} catch (IOException exception) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	/**
+	 * Reads what the client sent and delivers every complete message to the
+	 * server. Called on the event loop thread when the channel is readable.
+	 *
+	 * @param buffer
+	 *            the event loop's read buffer.
+	 */
+	void read(ByteBuffer buffer) {
+		try {
+			buffer.clear();
+			int read = channel.read(buffer);
+			if (read < 0)
+				throw new EOFException();
+			getServer().getMetrics().bytesIn(read);
+			readActivity();
+			buffer.flip();
+
+			consume(buffer);
+			if (pause > 0)
+				pauseReads(buffer);
+		} catch (Exception exception) {
+			fail(exception);
+		}
+	}
+
+	/**
+	 * Writes as many pending frames as the channel accepts. Up to
+	 * <code>WRITE_BATCH</code> frames go out in a single gathering write, so
+	 * a burst of small messages costs a few system calls rather than one per
+	 * message. If some are left over, the event loop calls again when the
+	 * channel becomes writable. Once everything is written, a closing
+	 * connection is closed. Called on the event loop thread.
+	 */
+	void writeQueued() {
+		OutboundQueue outbound = getOutboundQueue();
+		try {
+			do {
+				while (fillBatch(outbound) > 0) {
+					if (!channel.isOpen()) {
+						// Closed: nothing more is written
+						Arrays.fill(batch, 0, batchSize, null);
+						batchSize = 0;
+						continue;
+					}
+					channel.write(batch, 0, batchSize);
+
+					int written = 0;
+					while (written < batchSize && !batch[written].hasRemaining())
+						written++;
+					System.arraycopy(batch, written, batch, 0, batchSize - written);
+					Arrays.fill(batch, batchSize - written, batchSize, null);
+					batchSize -= written;
+
+					if (batchSize > 0) {
+						key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+
+				if (key != null && key.isValid())
+					key.interestOps(readInterest());
+				flushScheduled.set(false);
+
+				if (isCloseAfterWrite() && outbound.isEmpty())
+					closeAll();
+
+				// Frames queued after the loop above ended but before the
+				// flag was cleared would otherwise be left behind
+			} while (!outbound.isEmpty() && flushScheduled.compareAndSet(false, true));
+		} catch (Exception exception) {
+			fail(exception);
+		}
+	}
+
+	/**
+	 * Tops the batch up with frames from the outbound queue.
+	 *
+	 * @return the number of frames in the batch.
+	 */
+	private int fillBatch(OutboundQueue outbound) {
+		ByteBuffer frame;
+		while (batchSize < WRITE_BATCH && (frame = outbound.poll()) != null)
+			batch[batchSize++] = frame;
+		return batchSize;
+	}
+
+	/**
+	 * Writes the queued frames if called on the event loop thread;
+	 * otherwise asks the event loop to write them.
+	 */
+	@Override
+	void writeNow() {
+		if (loop.inEventLoop())
+			writeQueued();
+		else
+			scheduleWrite();
+	}
+
+	/**
+	 * Hands the socket over to a thread-per-connection
+	 * <code>ConnectionToClient</code>. Called on the event loop thread once the
+	 * channel has been removed from the selector.
+	 *
+	 * @param prefix
+	 *            the bytes already read from the channel.
+	 */
+	void handOff(byte[] prefix) {
+		handedOff = true;
+		try {
+			channel.configureBlocking(true);
+			getServer().startConnection(channel.socket(), prefix);
+		} catch (Exception exception) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	/**
+	 * Takes the channel out of the read interest for as long as the client
+	 * is ahead of its rate, keeping what is left of the read.
+	 */
+	private void pauseReads(ByteBuffer in) {
+		if (in.hasRemaining() && in != pending) {
+			pending = ByteBuffer.allocate(in.remaining());
+			pending.put(in);
+			pending.flip();
+		}
+		readsPaused = true;
+		if (key.isValid())
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+		if (resume == null)
+			resume = getServer().getIdleWheel().newTimeout(() -> loop.execute(this::resumeReads));
+		resume.schedule(pause, TimeUnit.NANOSECONDS);
+		pause = 0;
+	}
+
+	/**
+	 * Delivers what was kept when reading stopped, and reads again unless
+	 * the client is still ahead of its rate. Called on the event loop
+	 * thread.
+	 */
+	private void resumeReads() {
+		try {
+			if (isReadyToStop())
+				return;
+			if (pending != null) {
+				consume(pending);
+				if (pause > 0) {
+					pauseReads(pending);
+					return;
+				}
+				pending = null;
+			}
+			readsPaused = false;
+			if (key.isValid())
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		} catch (Exception exception) {
+			fail(exception);
+		}
+	}
+
+	/**
+	 * @return the read interest of the channel: none while reading is
+	 *         stopped.
+	 */
+	private int readInterest() {
+		return readsPaused ? 0 : SelectionKey.OP_READ;
+	}
+
+	/**
+	 * Splits what was read into frames and delivers them, until the client
+	 * goes over its rate limit.
+	 */
+	private void consume(ByteBuffer in) throws Exception {
+		while (in.hasRemaining() && !isReadyToStop() && pause == 0) {
+			if (body == null) {
+				transfer(in, header);
+
+				if (!handshaken) {
+					if (header.position() >= 2 && Frames.isObjectStream(header.get(0), header.get(1))) {
+						legacyClient(in);
+						return;
+					}
+					if (header.hasRemaining())
+						return;
+
+					header.flip();
+					Frames.checkPreamble(header.getInt(), header.get());
+					header.clear();
+
+					handshaken = true;
+					continue;
+				}
+
+				if (header.hasRemaining())
+					return;
+
+				header.flip();
+				int length = header.getInt();
+				byte type = header.get();
+				header.clear();
+				Frames.checkLength(length);
+
+				int size = length - 1;
+				if (in.remaining() >= size) {
+					// The common case: decode straight from the read buffer
+					int start = in.position();
+					in.position(start + size);
+					deliver(type, in.array(), in.arrayOffset() + start, size);
+				} else {
+					body = ByteBuffer.allocate(size);
+					bodyType = type;
+				}
+			} else {
+				transfer(in, body);
+				if (body.hasRemaining())
+					return;
+
+				ByteBuffer complete = body;
+				body = null;
+				deliver(bodyType, complete.array(), 0, complete.capacity());
+			}
+		}
+	}
+
+	/**
+	 * Hands a complete frame to the server.
+	 */
+	private void deliver(byte type, byte[] buf, int off, int len) throws Exception {
+		if (codec == null) {
+			hello(type, buf, off, len);
+			return;
+		}
+		deliverFrame(type, buf, off, len, codec);
+	}
+
+	/**
+	 * Picks the codec from the client's hello frame, answers it, and reports
+	 * the new connection to the server.
+	 */
+	private void hello(byte type, byte[] buf, int off, int len) throws IOException {
+		if (type != Frames.TYPE_HELLO)
+			throw new StreamCorruptedException("unexpected frame type " + type);
+
+		Codec chosen = Frames.choose(buf, off, len, getServer().getCodecs());
+		if (chosen == null)
+			throw new StreamCorruptedException("no codec in common with the client");
+
+		codec = chosen;
+		queue(ByteBuffer.wrap(Frames.frame(Frames.TYPE_HELLO, new byte[] { codec.getId() })));
+		getServer().addClient(this);
+		getServer().notifyConnected(this);
+	}
+
+	/**
+	 * Called when the client sends a Java object stream: everything read so
+	 * far is kept and the socket is handed to a thread of its own.
+	 */
+	private void legacyClient(ByteBuffer in) {
+		header.flip();
+		byte[] prefix = new byte[header.remaining() + in.remaining()];
+		int headerLength = header.remaining();
+		header.get(prefix, 0, headerLength);
+		in.get(prefix, headerLength, in.remaining());
+
+		key.cancel();
+		untrackIdle();
+		loop.handOffLater(this, prefix);
+	}
+
+	/**
+	 * Closes the connection after a failure and notifies the server, as the
+	 * run method of <code>ConnectionToClient</code> does.
+	 */
+	private void fail(Exception exception) {
+		if (!isReadyToStop()) {
+			try {
+				closeAll();
+			} catch (Exception ex) {
+			}
+
+			if (codec != null)
+				getServer().notifyException(this, exception);
+		}
+	}
+
+	/**
+	 * Copies as many bytes as fit from one buffer to another.
+	 */
+	private static void transfer(ByteBuffer from, ByteBuffer to) {
+		int count = Math.min(from.remaining(), to.remaining());
+		int limit = from.limit();
+		from.limit(from.position() + count);
+		to.put(from);
+		from.limit(limit);
+	}
+}
+// End of ChannelConnection class
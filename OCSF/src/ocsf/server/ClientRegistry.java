@@ -0,0 +1,135 @@
+package ocsf.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * The live connections of a server. Connections are added and removed in
+ * constant time without any lock. Readers walk an array snapshot that is
+ * rebuilt only after the set of connections has changed, so broadcasting to
+ * a stable set of clients allocates nothing and never waits for the accept
+ * loop.
+ * <p>
+ * A snapshot is a moment in time: a client may disconnect while it is being
+ * walked, and clients that connect afterwards are not in it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#getClients()
+ */
+final class ClientRegistry implements Iterable<ConnectionToClient> {
+	// INSTANCE VARIABLES ***********************************************
+
+	private static final ConnectionToClient[]	NONE		= new ConnectionToClient[0];
+
+	/**
+	 * The connections.
+	 */
+	private final Set<ConnectionToClient>		clients		= ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Incremented on every change to the set of connections.
+	 */
+	private final AtomicLong					version		= new AtomicLong();
+
+	/**
+	 * The last snapshot taken, or null.
+	 */
+	private volatile Snapshot					snapshot;
+
+	/**
+	 * An array of the connections, and the version it was taken at.
+	 */
+	private static final class Snapshot {
+		final long					version;
+		final ConnectionToClient[]	clients;
+
+		Snapshot(long version, ConnectionToClient[] clients) {
+			this.version = version;
+			this.clients = clients;
+		}
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Adds a connection.
+	 *
+	 * @param client
+	 *            the connection.
+	 */
+	void add(ConnectionToClient client) {
+		if (clients.add(client))
+			version.incrementAndGet();
+	}
+
+	/**
+	 * Removes a connection.
+	 *
+	 * @param client
+	 *            the connection.
+	 */
+	void remove(ConnectionToClient client) {
+		if (clients.remove(client))
+			version.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of connections.
+	 *
+	 * @return the number of connections.
+	 */
+	int size() {
+		return clients.size();
+	}
+
+	/**
+	 * Returns the connections as they are now. The array is shared and must
+	 * not be modified.
+	 *
+	 * @return the connections.
+	 */
+	ConnectionToClient[] snapshot() {
+		long current = version.get();
+		Snapshot last = snapshot;
+		if (last != null && last.version == current)
+			return last.clients;
+
+		// If the set changes while it is copied, the copy is tagged with
+		// the older version and is simply taken again next time
+		ConnectionToClient[] copy = clients.isEmpty() ? NONE : clients.toArray(NONE);
+		snapshot = new Snapshot(current, copy);
+		return copy;
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of the connections.
+	 */
+	public Iterator<ConnectionToClient> iterator() {
+		return Arrays.asList(snapshot()).iterator();
+	}
+
+	/**
+	 * Calls the action for every connection of a snapshot, without
+	 * allocating.
+	 */
+	@Override
+	public void forEach(Consumer<? super ConnectionToClient> action) {
+		for (ConnectionToClient client : snapshot())
+			action.accept(client);
+	}
+
+	/**
+	 * Returns a stream over a snapshot of the connections.
+	 *
+	 * @return the stream.
+	 */
+	Stream<ConnectionToClient> stream() {
+		return Arrays.stream(snapshot());
+	}
+}
+// End of ClientRegistry class
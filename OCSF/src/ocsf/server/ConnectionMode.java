@@ -0,0 +1,35 @@
+package ocsf.server;
+
+/**
+ * The ways in which an <code>AbstractServer</code> can service the
+ * connections of its clients. Whatever the mode, the server calls the same
+ * hook methods with <code>ConnectionToClient</code> instances.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setConnectionMode(ConnectionMode)
+ */
+public enum ConnectionMode {
+	/**
+	 * Each client is served by a <code>ConnectionToClient</code> thread that
+	 * blocks reading its socket. This is the original OCSF behaviour.
+	 */
+	THREAD_PER_CONNECTION,
+
+	/**
+	 * Each client is served by a <code>ConnectionToClient</code> that blocks
+	 * reading its socket, as in <code>THREAD_PER_CONNECTION</code>, but runs
+	 * on a virtual thread. Requires Java 21 or later.
+	 */
+	VIRTUAL_THREAD,
+
+	/**
+	 * Clients are served by a small pool of selector threads that only wake
+	 * up when a socket has data. Clients must use the framed protocol to
+	 * benefit from it; a client sending a Java object stream is given a
+	 * thread of its own as in <code>THREAD_PER_CONNECTION</code>.
+	 */
+	NIO
+}
+// End of ConnectionMode enum
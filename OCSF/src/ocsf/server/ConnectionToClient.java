@@ -6,7 +6,16 @@ package ocsf.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import ocsf.common.*;
 
 /**
  * An instance of this class is created by the server when a client connects. It
@@ -15,6 +24,11 @@ import java.util.HashMap;
  * contains a set of instances of this class and is responsible for adding and
  * deleting them.
  * <p>
+ * Messages sent to the client are encoded on the sender's thread and queued;
+ * a writer drains the queue in the background, so a client that reads slowly
+ * does not hold up the thread that sends to it. The queue is bounded, and
+ * what happens when it is full is set by the server's overflow policy.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -46,15 +60,135 @@ public class ConnectionToClient extends Thread {
 	private ObjectInputStream	input;
 
 	/**
-	 * Stream used to write to the client.
+	 * Stream used to serialize the messages of a client that sends a Java
+	 * object stream. It writes to <code>serialBuffer</code>, whose content is
+	 * queued after every message.
+	 */
+	private ResettingObjectOutputStream	output;
+
+	/**
+	 * Receives what <code>output</code> writes.
+	 */
+	private ByteArrayOutputStream	serialBuffer;
+
+	/**
+	 * Stream used to read frames from the client when it speaks the framed
+	 * protocol instead of sending a Java object stream.
+	 *
+	 * @see ocsf.common.Frames
+	 */
+	private DataInputStream		frameInput;
+
+	/**
+	 * The size of the buffer queued messages are gathered in before they
+	 * are written to the socket.
+	 */
+	static final int			WRITE_BUFFER_SIZE	= 8192;
+
+	/**
+	 * A buffer over the socket's own output stream. The writer puts every
+	 * queued message in it and flushes it when the queue is empty, so a
+	 * burst of small messages costs one system call per buffer rather than
+	 * one per message.
+	 */
+	private OutputStream		socketOutput;
+
+	/**
+	 * The codec agreed on with a framed client, or null for an object
+	 * stream client.
+	 */
+	private Codec				codec;
+
+	/**
+	 * Held while serializing a message into <code>output</code>, so that
+	 * messages sent from several threads at once are queued in the order
+	 * they were written to the stream.
+	 */
+	private final Object		encodeLock	= new Object();
+
+	/**
+	 * Held while writing queued messages to the socket.
+	 */
+	private final Object		writeLock	= new Object();
+
+	/**
+	 * The messages waiting to be written to the client.
+	 */
+	private final OutboundQueue	outbound;
+
+	/**
+	 * Set while a writer is scheduled or running.
+	 */
+	private final AtomicBoolean	writeScheduled	= new AtomicBoolean();
+
+	/**
+	 * Set when the connection is to be closed once the queued messages have
+	 * been written.
 	 */
-	private ObjectOutputStream	output;
+	private volatile boolean	closeAfterWrite;
+
+	/**
+	 * Bytes already read from the socket by someone else before this
+	 * connection took it over. They are read again before the socket's own
+	 * stream. Null once the streams are open.
+	 */
+	private byte[]				prefix;
 
 	/**
 	 * Indicates if the thread is ready to stop. Set to true when closing of the
 	 * connection is initiated.
 	 */
-	private boolean				readyToStop;
+	private volatile boolean		readyToStop;
+
+	/**
+	 * The number of messages received, counted by the one thread that
+	 * reads them.
+	 */
+	private volatile long			messagesReceived;
+
+	/**
+	 * The rate limit of this client alone, and the one it shares with
+	 * other clients, or null.
+	 */
+	private volatile TokenBucket	rateLimit;
+	private volatile TokenBucket	sharedRateLimit;
+
+	/**
+	 * The number of messages over the rate limits, counted by the one
+	 * thread that reads them.
+	 */
+	private volatile long			messagesThrottled;
+
+	/**
+	 * The frames of a heartbeat and of its answer.
+	 */
+	private static final byte[]		PING	= Frames.frame(Frames.TYPE_PING, new byte[0]);
+	private static final byte[]		PONG	= Frames.frame(Frames.TYPE_PONG, new byte[0]);
+
+	/**
+	 * When something was last read from the client, and when the last
+	 * heartbeat was sent to it, as given by <code>System.nanoTime</code>.
+	 */
+	private volatile long			lastRead	= System.nanoTime();
+	private volatile long			lastHeartbeat;
+
+	/**
+	 * When the connection was accepted, as given by
+	 * <code>System.nanoTime</code>. A client that has not said hello a
+	 * read timeout later is closed, whatever it sent meanwhile.
+	 */
+	private final long				accepted	= System.nanoTime();
+
+	/**
+	 * Whether the server took the connection in and told of it, which it
+	 * does once the client has said hello.
+	 */
+	private volatile boolean		added;
+
+	/**
+	 * The check for silence of the client, on the server's timing wheel.
+	 */
+	private final TimingWheel.Timeout	idleCheck;
 
 	/**
 	 * Map to save information about the client such as its login ID. The
@@ -64,61 +198,107 @@ public class ConnectionToClient extends Thread {
 	 */
 	private HashMap				savedInfo	= new HashMap(10);
 
+	/**
+	 * Queues the messages and hook calls of this client when the server
+	 * dispatches concurrently, so that they run in order.
+	 */
+	private final SerialExecutor	dispatchQueue	= new SerialExecutor();
+
+	/**
+	 * The logical streams the client has opened over this connection, by
+	 * id, or null until it opens one.
+	 */
+	private volatile ConcurrentHashMap<Integer, StreamConnection>	streams;
+
 	// CONSTRUCTORS *****************************************************
 
 	/**
-	 * Constructs a new connection to a client.
+	 * Constructs a new connection to a client. The server then runs it,
+	 * either by starting this thread or by handing it to a virtual thread.
+	 * The first bytes of the socket may already have been read, for instance
+	 * by a selector that looked at them to find out which protocol the
+	 * client speaks.
 	 * 
 	 * @param group
-	 *            the thread groupSystem.out.println("Client at "+ client +
-	 *            "connected"); that contains the connections.
+	 *            the thread group that contains the connections.
 	 * @param clientSocket
 	 *            contains the client's socket.
 	 * @param server
 	 *            a reference to the server that created this instance
+	 * @param prefix
+	 *            the bytes already read from the socket, or null.
 	 * @exception IOException
 	 *                if an I/O error occur when creating the connection.
 	 */
-	ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException {
+	ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server, byte[] prefix)
+			throws IOException {
 		super(group, (Runnable) null);
 		// Initialize variables
 		this.clientSocket = clientSocket;
 		this.server = server;
+		this.prefix = prefix;
+		this.outbound = new OutboundQueue(server.getOutboundQueueCapacity(), server.getOverflowPolicy(),
+				server.getMetrics());
+		this.idleCheck = server.getIdleWheel().newTimeout(this::checkIdle);
 
 		clientSocket.setSoTimeout(0); // make sure timeout is infinite
 
-		// Initialize the objects streams
-		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-		} catch (IOException ex) {
-			try {
-				closeAll();
-			} catch (Exception exc) {
-			}
-
-			throw ex; // Rethrow the exception.
-		}
+		readyToStop = false;
+	}
 
+	/**
+	 * Constructs a connection to a client whose data exchange is driven by
+	 * the server rather than by a thread of its own. No thread is started
+	 * and no stream is opened; the subclass takes care of the socket.
+	 * 
+	 * @param clientSocket
+	 *            contains the client's socket.
+	 * @param server
+	 *            a reference to the server that created this instance
+	 */
+	ConnectionToClient(Socket clientSocket, AbstractServer server) {
+		super((ThreadGroup) null, (Runnable) null);
+		this.clientSocket = clientSocket;
+		this.server = server;
+		this.outbound = new OutboundQueue(server.getOutboundQueueCapacity(), server.getOverflowPolicy(),
+				server.getMetrics());
+		this.idleCheck = server.getIdleWheel().newTimeout(this::checkIdle);
 		readyToStop = false;
-		start(); // Start the thread waits for data from the socket
 	}
 
 	// INSTANCE METHODS *************************************************
 
 	/**
-	 * Sends an object to the client.
+	 * Sends an object to the client. The message is encoded before this
+	 * method returns and written to the client in the background.
 	 * 
 	 * @param msg
 	 *            the message to be sent.
 	 * @exception IOException
-	 *                if an I/O error occur when sending the message.
+	 *                if an I/O error occur when sending the message, or the
+	 *                client was disconnected because its queue was full.
 	 */
 	final public void sendToClient(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
+		if (clientSocket == null)
+			throw new SocketException("socket does not exist");
+
+		writeMessage(msg);
+	}
+
+	/**
+	 * Sends a message that has already been encoded. The same encoded message
+	 * can be sent to any number of clients; it is only serialized once.
+	 * 
+	 * @param msg
+	 *            the encoded message to be sent.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the message.
+	 */
+	final public void sendToClient(EncodedMessage msg) throws IOException {
+		if (clientSocket == null)
 			throw new SocketException("socket does not exist");
 
-		output.writeObject(msg);
+		writeEncoded(msg);
 	}
 
 	/**
@@ -127,12 +307,43 @@ public class ConnectionToClient extends Thread {
     * in some circumstances when Java refuses to send data that it thinks has been sent.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+		// Frames are encoded independently of each other; only an object
+		// stream has objects to forget
+		if (output != null) {
+			synchronized (encodeLock) {
+				if (!output.isClean()) {
+					output.reset();
+					output.flush();
+					byte[] bytes = serialBuffer.toByteArray();
+					serialBuffer.reset();
+					queue(ByteBuffer.wrap(bytes));
+				}
+			}
+		}
 	}
 
 	/**
-	 * Closes the client. If the connection is already closed, this call has no
-	 * effect.
+	 * Writes the messages sent so far to the socket now, on the calling
+	 * thread, instead of leaving them to the writer. Messages are written
+	 * soon after they are sent in any case; this is for a caller that must
+	 * know they have left the server, and blocks while the client is not
+	 * reading. When the connection is serviced by an event loop, the loop is
+	 * only asked to write them.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occur when writing.
+	 */
+	final public void flush() throws IOException {
+		if (clientSocket == null)
+			throw new SocketException("socket does not exist");
+
+		writeNow();
+	}
+
+	/**
+	 * Closes the client. The messages already sent to it are still written
+	 * before the socket is closed. If the connection is already closed, this
+	 * call has no effect.
 	 * 
 	 * @exception IOException
 	 *                if an error occurs when closing the socket.
@@ -141,9 +352,11 @@ public class ConnectionToClient extends Thread {
 		readyToStop = true; // Set the flag that tells the thread to stop
 
 		try {
-			closeAll();
+			server.removeClient(this);
+			closeAfterWrite = true;
+			scheduleWrite();
 		} finally {
-			server.clientDisconnected(this);
+			server.notifyDisconnected(this);
 		}
 	}
 
@@ -192,6 +405,147 @@ public class ConnectionToClient extends Thread {
 		return savedInfo.get(infoType);
 	}
 
+	/**
+	 * Returns the number of messages sent to the client that have not been
+	 * written yet.
+	 * 
+	 * @return the depth of the outbound queue.
+	 */
+	public int getOutboundQueueDepth() {
+		return outbound.size();
+	}
+
+	/**
+	 * Returns the number of messages sent to the client that were discarded
+	 * because its outbound queue was full.
+	 * 
+	 * @return the number of dropped messages.
+	 */
+	public long getDroppedMessageCount() {
+		return outbound.getDropped();
+	}
+
+	/**
+	 * @return the number of messages received from the client.
+	 */
+	public long getMessagesReceived() {
+		return messagesReceived;
+	}
+
+	/**
+	 * Returns the number of messages written to the client. The messages of
+	 * the streams over a connection are counted on that connection.
+	 * 
+	 * @return the number of messages.
+	 */
+	public long getMessagesSent() {
+		return outbound.getMessagesOut();
+	}
+
+	/**
+	 * @return the number of bytes of the messages written to the client.
+	 */
+	public long getBytesSent() {
+		return outbound.getBytesOut();
+	}
+
+	/**
+	 * Returns the mean time the messages written to the client waited in
+	 * its outbound queue.
+	 * 
+	 * @return the time in nanoseconds.
+	 */
+	public long getMeanSendLatency() {
+		return outbound.getMeanWait();
+	}
+
+	/**
+	 * @return the longest time a message waited in the outbound queue, in
+	 *         nanoseconds.
+	 */
+	public long getMaxSendLatency() {
+		return outbound.getMaxWait();
+	}
+
+	/**
+	 * Returns the number of messages received from the client that went
+	 * over its rate limits, whatever was done with them.
+	 * 
+	 * @return the number of throttled messages.
+	 * @see AbstractServer#setThrottlePolicy(ThrottlePolicy)
+	 */
+	public long getThrottledMessageCount() {
+		return messagesThrottled;
+	}
+
+	/**
+	 * Limits the client with a token bucket of its own, replacing the one
+	 * the server gave it. A client the application trusts, such as another
+	 * server, can be exempted with null.
+	 * 
+	 * @param bucket
+	 *            the bucket, or null for no limit.
+	 * @see AbstractServer#setRateLimit(double, int)
+	 */
+	public void setRateLimit(TokenBucket bucket) {
+		rateLimit = bucket;
+	}
+
+	/**
+	 * @return the token bucket of the client alone, or null.
+	 */
+	public TokenBucket getRateLimit() {
+		return rateLimit;
+	}
+
+	/**
+	 * Limits the client with a token bucket shared with other clients, on
+	 * top of the server's rate limit for each client. An application that
+	 * gives every user one bucket, which the connections of that user
+	 * share and a new connection takes over, keeps a user from getting
+	 * round the limit by connecting more often.
+	 * 
+	 * @param bucket
+	 *            the bucket, or null for none.
+	 * @see AbstractServer#setRateLimit(double, int)
+	 */
+	public void setSharedRateLimit(TokenBucket bucket) {
+		sharedRateLimit = bucket;
+	}
+
+	/**
+	 * @return the token bucket shared with other clients, or null.
+	 */
+	public TokenBucket getSharedRateLimit() {
+		return sharedRateLimit;
+	}
+
+	/**
+	 * Returns the number of objects the stream to the client keeps
+	 * reachable because they were written since its last reset. Always 0
+	 * for a framed client, whose messages never refer to one another.
+	 * 
+	 * @return the number of retained objects.
+	 * @see AbstractServer#setResetPolicy(ResetPolicy)
+	 */
+	public int getRetainedObjectCount() {
+		ResettingObjectOutputStream stream = output;
+		return stream == null ? 0 : stream.getRetainedCount();
+	}
+
+	/**
+	 * Returns the number of logical streams open over this connection.
+	 * Each stream is a client of the server in its own right; the
+	 * connection that carries them is mostly of no interest to the
+	 * application.
+	 * 
+	 * @return the number of streams.
+	 */
+	public int getStreamCount() {
+		ConcurrentHashMap<Integer, StreamConnection> current = streams;
+		return current == null ? 0 : current.size();
+	}
+
 	// RUN METHOD -------------------------------------------------------
 
 	/**
@@ -199,7 +553,20 @@ public class ConnectionToClient extends Thread {
 	 * read to the server. Not to be called.
 	 */
 	final public void run() {
-		server.clientConnected(this);
+		trackIdle();
+		try {
+			openStreams();
+		} catch (IOException exception) {
+			// The client never completed its side of the connection
+			try {
+				closeAll();
+			} catch (Exception ex) {
+			}
+			return;
+		}
+
+		server.addClient(this);
+		server.notifyConnected(this);
 
 		// This loop reads the input stream and responds to messages
 		// from clients
@@ -210,8 +577,16 @@ public class ConnectionToClient extends Thread {
 			while (!readyToStop) {
 				// This block waits until it reads a message from the client
 				// and then sends it for handling by the server
+				if (frameInput != null) {
+					byte[] frame = Frames.readAnyFrame(frameInput);
+					lastRead = System.nanoTime();
+					deliverFrame(frame[0], frame, 1, frame.length - 1, codec);
+					continue;
+				}
 				msg = input.readObject();
-				server.receiveMessageFromClient(msg, this);
+				lastRead = System.nanoTime();
+				if (admit(this))
+					server.receiveMessageFromClient(msg, this);
 			}
 		} catch (Exception exception) {
 			if (!readyToStop) {
@@ -220,20 +595,615 @@ public class ConnectionToClient extends Thread {
 				} catch (Exception ex) {
 				}
 
-				server.clientException(this, exception);
+				server.notifyException(this, exception);
 			}
 		}
 	}
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Opens the streams used to exchange data with the client. The first bytes
+	 * sent by the client tell whether it is a Java object stream or a framed
+	 * stream. A framed client then says which codecs it supports, and the
+	 * server answers with the one it picked.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occur when opening the streams.
+	 */
+	private void openStreams() throws IOException {
+		InputStream in = new CountingInputStream(clientSocket.getInputStream(), server.getMetrics().getBytesInCounter());
+		if (prefix != null)
+			in = new SequenceInputStream(new ByteArrayInputStream(prefix), in);
+		prefix = null;
+		in = new BufferedInputStream(in);
+
+		if (Frames.isObjectStream(in)) {
+			input = new ObjectInputStream(in);
+			socketOutput = new BufferedOutputStream(clientSocket.getOutputStream(), WRITE_BUFFER_SIZE);
+			serialBuffer = new ByteArrayOutputStream();
+			output = new ResettingObjectOutputStream(serialBuffer, getResetPolicy());
+			output.flush();
+			serialBuffer.writeTo(socketOutput); // the stream header
+			serialBuffer.reset();
+			socketOutput.flush();
+		} else {
+			Frames.readPreamble(in);
+			frameInput = new DataInputStream(in);
+			byte[] hello = Frames.readFrame(frameInput, Frames.TYPE_HELLO);
+			codec = Frames.choose(hello, 0, hello.length, server.getCodecs());
+			if (codec == null)
+				throw new StreamCorruptedException("no codec in common with the client");
+
+			socketOutput = new BufferedOutputStream(clientSocket.getOutputStream(), WRITE_BUFFER_SIZE);
+			socketOutput.write(Frames.frame(Frames.TYPE_HELLO, new byte[] { codec.getId() }));
+			socketOutput.flush();
+		}
+	}
+
+	/**
+	 * Hands a frame received from the client to the server: a message
+	 * of this connection, or one of its streams, or the opening or closing
+	 * of a stream. Frames of other types are ignored.
+	 * 
+	 * @param type
+	 *            the frame type.
+	 * @param buf
+	 *            the buffer containing the payload.
+	 * @param off
+	 *            the offset of the payload in the buffer.
+	 * @param len
+	 *            the length of the payload.
+	 * @param codec
+	 *            the codec of the connection.
+	 * @exception Exception
+	 *                if the frame is invalid or its message cannot be
+	 *                decoded.
+	 */
+	final void deliverFrame(byte type, byte[] buf, int off, int len, Codec codec) throws Exception {
+		switch (type) {
+		case Frames.TYPE_MESSAGE:
+			if (admit(this))
+				server.receiveMessageFromClient(codec.decode(buf, off, len), this);
+			break;
+		case Frames.TYPE_STREAM:
+			StreamConnection stream = getStream(Frames.readStreamId(buf, off, len));
+			// A stream the server just closed may still get messages
+			if (stream != null && admit(stream))
+				server.receiveMessageFromClient(
+						codec.decode(buf, off + Frames.STREAM_ID_LENGTH, len - Frames.STREAM_ID_LENGTH), stream);
+			break;
+		case Frames.TYPE_OPEN:
+			openStream(Frames.readStreamId(buf, off, len), codec);
+			break;
+		case Frames.TYPE_CLOSE:
+			int id = Frames.readStreamId(buf, off, len);
+			ConcurrentHashMap<Integer, StreamConnection> current = streams;
+			StreamConnection closed = current == null ? null : current.remove(id);
+			if (closed != null)
+				closed.lost(new EOFException("stream closed by the client"));
+			break;
+		case Frames.TYPE_PING:
+			queue(ByteBuffer.wrap(PONG));
+			break;
+		case Frames.TYPE_PONG:
+			break; // reading it was the point
+		}
+	}
+
+	/**
+	 * Checks a message read from the connection against the rate limits of
+	 * the client it is for, which is this connection or one of its
+	 * streams, and throttles it if it goes over them.
+	 * 
+	 * @param client
+	 *            the client the message is for.
+	 * @return true if the message is to be handled.
+	 */
+	private boolean admit(ConnectionToClient client) {
+		TokenBucket own = client.rateLimit;
+		TokenBucket shared = client.sharedRateLimit;
+		if (own == null && shared == null)
+			return true;
+
+		ThrottlePolicy policy = server.getThrottlePolicy();
+		if (policy == ThrottlePolicy.DELAY) {
+			long wait = own == null ? 0 : own.take();
+			if (shared != null)
+				wait = Math.max(wait, shared.take());
+			if (wait == 0)
+				return true;
+			client.throttled();
+			delayReads(wait);
+			return !client.readyToStop;
+		}
+
+		if ((own == null || own.tryTake()) && (shared == null || shared.tryTake()))
+			return true;
+		client.throttled();
+		if (policy == ThrottlePolicy.DISCONNECT && !client.readyToStop) {
+			client.abort();
+			server.notifyException(client, new RateLimitException(own != null ? own.getRate() : shared.getRate()));
+		}
+		return false;
+	}
+
+	/**
+	 * Counts a message over the rate limits.
+	 */
+	private void throttled() {
+		messagesThrottled++;
+		server.getMetrics().messageThrottled();
+	}
+
+	/**
+	 * Stops reading from the client for a while, so that TCP makes it
+	 * wait. The thread that reads the connection sleeps; overridden by
+	 * connections that are read by an event loop.
+	 * 
+	 * @param nanos
+	 *            how long, in nanoseconds.
+	 */
+	void delayReads(long nanos) {
+		LockSupport.parkNanos(nanos);
+	}
+
+	/**
+	 * Opens a logical stream the client asked for, and reports it to the
+	 * server as a new client. Over the server's maximum of streams per
+	 * connection, the stream is closed instead.
+	 */
+	private void openStream(int id, Codec codec) throws IOException {
+		ConcurrentHashMap<Integer, StreamConnection> current = streams;
+		if (current == null) {
+			synchronized (this) {
+				if (streams == null)
+					streams = new ConcurrentHashMap<Integer, StreamConnection>();
+				current = streams;
+			}
+		}
+
+		if (current.size() >= server.getMaxStreamsPerConnection() && !current.containsKey(id)) {
+			queue(ByteBuffer.wrap(Frames.control(Frames.TYPE_CLOSE, id)));
+			return;
+		}
+
+		StreamConnection stream = new StreamConnection(this, id, codec);
+		if (current.putIfAbsent(id, stream) != null)
+			throw new StreamCorruptedException("stream " + id + " is already open");
+		server.addClient(stream);
+		server.notifyConnected(stream);
+	}
+
+	/**
+	 * Returns an open stream of this connection.
+	 * 
+	 * @param id
+	 *            the id of the stream.
+	 * @return the stream, or null.
+	 */
+	private StreamConnection getStream(int id) {
+		ConcurrentHashMap<Integer, StreamConnection> current = streams;
+		return current == null ? null : current.get(id);
+	}
+
+	/**
+	 * Forgets a stream that is closing.
+	 * 
+	 * @param id
+	 *            the id of the stream.
+	 * @param stream
+	 *            the stream.
+	 */
+	final void removeStream(int id, StreamConnection stream) {
+		ConcurrentHashMap<Integer, StreamConnection> current = streams;
+		if (current != null)
+			current.remove(id, stream);
+	}
+
+	/**
+	 * Closes every stream of this connection, which is closing.
+	 */
+	private void loseStreams() {
+		ConcurrentHashMap<Integer, StreamConnection> current = streams;
+		if (current == null || current.isEmpty())
+			return;
+
+		ArrayList<StreamConnection> lost = new ArrayList<StreamConnection>(current.values());
+		current.clear();
+		for (StreamConnection stream : lost)
+			stream.lost(new SocketException("connection closed"));
+	}
+
+	/**
+	 * Encodes a message and queues it for the client. Overridden by
+	 * connections that do not use the socket's streams.
+	 * <p>
+	 * A Java object stream numbers every object it writes and the client
+	 * remembers those numbers, until the stream is reset as the server's
+	 * reset policy says. If the message cannot be serialized, the stream is
+	 * reset so that both sides forget what the other never saw.
+	 * 
+	 * @param msg
+	 *            the message to be sent.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the message.
+	 */
+	void writeMessage(Object msg) throws IOException {
+		if (output != null) {
+			synchronized (encodeLock) {
+				try {
+					output.writeMessage(msg);
+					output.flush();
+				} catch (IOException exception) {
+					// Nothing of a message that failed reaches the client,
+					// except a reset if the client numbered earlier objects
+					boolean clean = output.isClean();
+					output.flush();
+					serialBuffer.reset();
+					output.reset();
+					output.flush();
+					if (!clean)
+						queue(ByteBuffer.wrap(serialBuffer.toByteArray()));
+					serialBuffer.reset();
+					throw exception;
+				}
+				byte[] bytes = serialBuffer.toByteArray();
+				serialBuffer.reset();
+				queue(ByteBuffer.wrap(bytes));
+			}
+		} else if (socketOutput != null)
+			queue(ByteBuffer.wrap(Frames.encode(msg, codec)));
+		else
+			throw new SocketException("socket does not exist");
+	}
+
+	/**
+	 * Queues an encoded message for the client. Overridden by connections
+	 * that do not use the socket's streams.
+	 * <p>
+	 * An object stream client is sent the serialized object followed by a
+	 * reset. The object was numbered by a stream of its own, so this stream
+	 * is reset first unless it is clean already.
+	 * 
+	 * @param msg
+	 *            the encoded message.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the message.
+	 */
+	void writeEncoded(EncodedMessage msg) throws IOException {
+		if (output != null) {
+			byte[] bytes = msg.getStreamBytes();
+			synchronized (encodeLock) {
+				if (!output.isClean()) {
+					output.reset();
+					output.flush();
+					serialBuffer.write(bytes);
+					bytes = serialBuffer.toByteArray();
+					serialBuffer.reset();
+				}
+				queue(ByteBuffer.wrap(bytes));
+			}
+		} else if (socketOutput != null)
+			queue(ByteBuffer.wrap(msg.getFrame(codec)));
+		else
+			throw new SocketException("socket does not exist");
+	}
+
+	/**
+	 * Adds an encoded message to the outbound queue and makes sure a writer
+	 * will write it. If the queue is full and the policy is to disconnect,
+	 * the connection is closed and the server is told why.
+	 * 
+	 * @param frame
+	 *            the encoded message.
+	 * @exception SlowConsumerException
+	 *                if the client was disconnected.
+	 */
+	final void queue(ByteBuffer frame) throws SlowConsumerException {
+		if (!outbound.offer(frame)) {
+			SlowConsumerException exception = new SlowConsumerException(outbound.getCapacity());
+			if (!readyToStop) {
+				abort();
+				server.notifyException(this, exception);
+			}
+			throw exception;
+		}
+		scheduleWrite();
+	}
+
+	/**
+	 * Makes sure a writer will drain the outbound queue. Overridden by
+	 * connections that are written to by an event loop.
+	 */
+	void scheduleWrite() {
+		if (writeScheduled.compareAndSet(false, true)) {
+			try {
+				server.getWriterPool().execute(this::writePending);
+			} catch (RejectedExecutionException ex) {
+				// The pool is gone; write on the caller's thread
+				writePending();
+			}
+		}
+	}
+
+	/**
+	 * Writes the queued messages to the socket, then closes the connection
+	 * if it is closing. Runs on a thread of the server's writer pool.
+	 */
+	private void writePending() {
+		try {
+			do {
+				drain();
+				writeScheduled.set(false);
+
+				if (closeAfterWrite && outbound.isEmpty())
+					closeAll();
+
+				// Messages queued after the loop above ended but before the
+				// flag was cleared would otherwise be left behind
+			} while (!outbound.isEmpty() && writeScheduled.compareAndSet(false, true));
+		} catch (Exception exception) {
+			outbound.clear();
+			writeScheduled.set(false);
+			if (!readyToStop) {
+				abort();
+				server.notifyException(this, exception);
+			} else {
+				try {
+					closeAll();
+				} catch (Exception ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the queued messages on the calling thread. Overridden by
+	 * connections that are written to by an event loop.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occur when writing.
+	 */
+	void writeNow() throws IOException {
+		try {
+			drain();
+		} catch (IOException exception) {
+			if (!readyToStop) {
+				abort();
+				server.notifyException(this, exception);
+			}
+			throw exception;
+		}
+	}
+
+	/**
+	 * Writes every queued message to the socket buffer and flushes it once
+	 * the queue is empty.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occur when writing.
+	 */
+	private void drain() throws IOException {
+		synchronized (writeLock) {
+			OutputStream out = socketOutput;
+			ByteBuffer frame;
+			while ((frame = outbound.poll()) != null) {
+				if (out != null) // once closed, nothing more is written
+					out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+			}
+			if (out != null)
+				out.flush();
+		}
+	}
+
+	/**
+	 * Notes that something was read from the client. Called by the event
+	 * loop of a connection that has no reading thread.
+	 */
+	final void readActivity() {
+		lastRead = System.nanoTime();
+	}
+
+	/**
+	 * Notes that the server took the connection in, and checks it for
+	 * silence from now on rather than for its hello.
+	 */
+	final void added() {
+		added = true;
+		trackIdle();
+	}
+
+	/**
+	 * Starts checking the connection for silence as the server's idle and
+	 * read timeouts say, or checks it again soon if it is already tracked
+	 * because the timeouts changed. Overridden by connections that are not
+	 * read from on their own.
+	 */
+	void trackIdle() {
+		if (server.getIdleTimeout() > 0 || server.getReadTimeout() > 0)
+			idleCheck.schedule(0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops checking the connection for silence, once another connection
+	 * has taken over its socket.
+	 */
+	final void untrackIdle() {
+		idleCheck.cancel();
+	}
+
+	/**
+	 * Checks how long the client has been silent: sends it a heartbeat
+	 * after the idle timeout, and again every idle timeout while the
+	 * silence lasts, if it can answer one, and closes the connection after
+	 * the read timeout. Until the client has said hello, the read timeout
+	 * counts from when it connected. Then schedules the next check. Runs
+	 * on the thread of the timing wheel.
+	 */
+	private void checkIdle() {
+		if (readyToStop)
+			return;
+		long idleTimeout = TimeUnit.MILLISECONDS.toNanos(server.getIdleTimeout());
+		long readTimeout = TimeUnit.MILLISECONDS.toNanos(server.getReadTimeout());
+		long now = System.nanoTime();
+		long read = added ? lastRead : accepted;
+		boolean heartbeats = idleTimeout > 0 && added && canHeartbeat();
+
+		if (readTimeout > 0 && now - read >= readTimeout) {
+			timedOut();
+			return;
+		}
+
+		long next = readTimeout > 0 ? read + readTimeout : now + Long.MAX_VALUE / 2;
+		if (heartbeats) {
+			long due = Math.max(read, lastHeartbeat) + idleTimeout;
+			if (due - now <= 0) {
+				heartbeat();
+				lastHeartbeat = now;
+				due = now + idleTimeout;
+			}
+			if (due - next < 0)
+				next = due;
+		}
+		if (readTimeout == 0 && !heartbeats)
+			return;
+		idleCheck.schedule(next - now, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Tells whether the client can be sent heartbeats, which a framed
+	 * client answers. Object stream clients have no way to answer.
+	 * 
+	 * @return true for a framed client.
+	 */
+	boolean canHeartbeat() {
+		return codec != null;
+	}
+
+	/**
+	 * Queues a heartbeat frame and counts it.
+	 */
+	private void heartbeat() {
+		try {
+			queue(ByteBuffer.wrap(PING));
+			server.getMetrics().heartbeatSent();
+		} catch (SlowConsumerException ex) {
+			// The connection is closed and the server told
+		}
+	}
+
+	/**
+	 * Closes a connection the client has been silent on for longer than the
+	 * read timeout, whatever is still queued for it, and reports it to the
+	 * server as a disconnection if the server was told of it.
+	 */
+	private void timedOut() {
+		server.getMetrics().connectionTimedOut();
+		abort();
+		if (added)
+			server.notifyDisconnected(this);
+	}
+
+	/**
+	 * Counts a message received. Called by the thread that reads the
+	 * connection.
+	 */
+	final void messageReceived() {
+		messagesReceived++;
+	}
+
+	/**
+	 * Returns the messages waiting to be written to the client.
+	 * 
+	 * @return the outbound queue.
+	 */
+	final OutboundQueue getOutboundQueue() {
+		return outbound;
+	}
+
+	/**
+	 * Indicates if the connection is to be closed once the queued messages
+	 * have been written.
+	 * 
+	 * @return true if the connection is closing.
+	 */
+	final boolean isCloseAfterWrite() {
+		return closeAfterWrite;
+	}
+
+	/**
+	 * Returns the reset policy of this connection's object stream: the
+	 * server's, unless messages may be dropped, in which case each one
+	 * must stand on its own.
+	 * 
+	 * @return the reset policy.
+	 */
+	private ResetPolicy getResetPolicy() {
+		if (outbound.getPolicy() != OverflowPolicy.DISCONNECT)
+			return ResetPolicy.EVERY_MESSAGE;
+		return server.getResetPolicy();
+	}
+
+	/**
+	 * Returns the socket of this connection.
+	 * 
+	 * @return the socket, or null once closed.
+	 */
+	final Socket getSocket() {
+		return clientSocket;
+	}
+
+	/**
+	 * Returns the server that created this connection.
+	 * 
+	 * @return the server.
+	 */
+	final AbstractServer getServer() {
+		return server;
+	}
+
+	/**
+	 * Returns the queue of the messages and hook calls of this client in
+	 * concurrent dispatch mode.
+	 * 
+	 * @return the dispatch queue.
+	 */
+	final SerialExecutor getDispatchQueue() {
+		return dispatchQueue;
+	}
+
+	/**
+	 * Closes the connection without notifying the server, which is about to
+	 * be told of the failure that caused it.
+	 */
+	final void abort() {
+		readyToStop = true;
+		try {
+			closeAll();
+		} catch (Exception ex) {
+		}
+	}
+
+	/**
+	 * Indicates if closing of the connection has been initiated.
+	 * 
+	 * @return true if the connection is closing or closed.
+	 */
+	final boolean isReadyToStop() {
+		return readyToStop;
+	}
+
 	/**
 	 * Closes all connection to the server.
 	 * 
 	 * @exception IOException
 	 *                if an I/O error occur when closing the connection.
 	 */
-	private void closeAll() throws IOException {
+	void closeAll() throws IOException {
+		server.removeClient(this);
+		idleCheck.cancel();
+		loseStreams();
 		try {
 			// Close the socket
 			if (clientSocket != null)
@@ -246,6 +1216,12 @@ public class ConnectionToClient extends Thread {
 			// Close the input stream
 			if (input != null)
 				input.close();
+
+			// Close the frame streams
+			if (socketOutput != null)
+				socketOutput.close();
+			if (frameInput != null)
+				frameInput.close();
 		} finally {
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
@@ -253,6 +1229,8 @@ public class ConnectionToClient extends Thread {
 			// when they are garbage collected.
 			output = null;
 			input = null;
+			socketOutput = null;
+			frameInput = null;
 			clientSocket = null;
 		}
 	}
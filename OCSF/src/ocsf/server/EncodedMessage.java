@@ -0,0 +1,146 @@
+package ocsf.server;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.util.Arrays;
+
+import ocsf.common.*;
+
+/**
+ * A message serialized once so that it can be sent to many clients. The
+ * encoding is done the first time the message is sent with a given codec and
+ * the resulting bytes are never modified afterwards: every client using that
+ * codec is sent the very same bytes. Clients that send a Java object stream
+ * share the encoding of the <code>SerializationCodec</code>.
+ * <p>
+ * <code>AbstractServer.sendToAllClients</code> uses this class, so a
+ * broadcast costs one serialization however many clients there are. A
+ * subclass that sends one message to a chosen group of clients can do the
+ * same by passing an <code>EncodedMessage</code> to
+ * <code>ConnectionToClient.sendToClient</code>.
+ * <p>
+ * Because the message is serialized when it is first sent, later changes to
+ * a mutable message object are not seen by the clients it is sent to
+ * afterwards.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ConnectionToClient#sendToClient(EncodedMessage)
+ */
+public final class EncodedMessage {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Where the serialized object starts in a frame of the
+	 * <code>SerializationCodec</code>: after the frame header and the Java
+	 * serialization stream header.
+	 */
+	private static final int		OBJECT_OFFSET	= Frames.HEADER_LENGTH + 4;
+
+	/**
+	 * The codec whose frames are copied into object streams.
+	 */
+	private static final Codec		OBJECT_STREAM	= new SerializationCodec();
+
+	private static final Encoding[]	NONE			= new Encoding[0];
+
+	/**
+	 * The message.
+	 */
+	private final Object			message;
+
+	/**
+	 * The frames of the message, one per codec it has been sent with.
+	 */
+	private volatile Encoding[]		encodings		= NONE;
+
+	/**
+	 * The message as it is copied into an object stream, or null until it
+	 * has been encoded.
+	 */
+	private volatile byte[]			streamBytes;
+
+	/**
+	 * The frame of the message for one codec.
+	 */
+	private static final class Encoding {
+		final byte		codecId;
+		final byte[]	frame;
+
+		Encoding(byte codecId, byte[] frame) {
+			this.codecId = codecId;
+			this.frame = frame;
+		}
+	}
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs an encoded message.
+	 *
+	 * @param message
+	 *            the message to encode.
+	 */
+	public EncodedMessage(Object message) {
+		this.message = message;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * Returns the message.
+	 *
+	 * @return the message.
+	 */
+	public Object getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the frame of the message for a codec, encoding it the first
+	 * time.
+	 *
+	 * @param codec
+	 *            the codec of the connection.
+	 * @return the frame; must not be modified.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	byte[] getFrame(Codec codec) throws IOException {
+		Encoding[] current = encodings;
+		for (Encoding encoding : current) {
+			if (encoding.codecId == codec.getId())
+				return encoding.frame;
+		}
+
+		// Two threads may both encode it; they produce equal bytes and
+		// at worst one encoding is forgotten and done again later
+		byte[] frame = Frames.encode(message, codec);
+		Encoding[] grown = Arrays.copyOf(current, current.length + 1);
+		grown[current.length] = new Encoding(codec.getId(), frame);
+		encodings = grown;
+		return frame;
+	}
+
+	/**
+	 * Returns the message as it is copied into a Java object stream: the
+	 * serialized object followed by a reset, so that the client forgets the
+	 * objects it numbered while reading it.
+	 *
+	 * @return the bytes; must not be modified.
+	 * @exception IOException
+	 *                if the message cannot be serialized.
+	 */
+	byte[] getStreamBytes() throws IOException {
+		byte[] result = streamBytes;
+		if (result == null) {
+			byte[] frame = getFrame(OBJECT_STREAM);
+			result = Arrays.copyOfRange(frame, OBJECT_OFFSET, frame.length + 1);
+			result[result.length - 1] = ObjectStreamConstants.TC_RESET;
+			streamBytes = result;
+		}
+		return result;
+	}
+}
+// End of EncodedMessage class
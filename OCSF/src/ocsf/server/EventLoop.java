@@ -0,0 +1,212 @@
+package ocsf.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A thread that services many <code>ChannelConnection</code> instances with a
+ * single <code>Selector</code>. Reads are decoded and handed to the server on
+ * this thread, and queued writes are flushed from it.
+ * <p>
+ * Work coming from other threads, such as registering a new channel or
+ * flushing a connection, is queued with <code>execute</code> and run between
+ * two selections.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.NioEngine
+ */
+final class EventLoop implements Runnable {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The size of the buffer every read goes through.
+	 */
+	private static final int						READ_BUFFER_SIZE	= 64 * 1024;
+
+	/**
+	 * The server the connections belong to.
+	 */
+	private final AbstractServer					server;
+
+	/**
+	 * The selector watching the channels of this loop.
+	 */
+	private final Selector							selector;
+
+	/**
+	 * The thread running this loop.
+	 */
+	private final Thread							thread;
+
+	/**
+	 * The buffer shared by all the reads of this loop.
+	 */
+	private final ByteBuffer						readBuffer			= ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	/**
+	 * Work submitted by other threads.
+	 */
+	private final Queue<Runnable>					tasks				= new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Set when the selector has been woken up and has not yet noticed.
+	 */
+	private final AtomicBoolean						wakeupPending		= new AtomicBoolean();
+
+	/**
+	 * Connections to hand over to a thread of their own once their channel
+	 * has left the selector, with the bytes already read from them.
+	 */
+	private final Map<ChannelConnection, byte[]>	handOffs			= new HashMap<ChannelConnection, byte[]>();
+
+	/**
+	 * Indicates if the loop should stop.
+	 */
+	private volatile boolean						readyToStop			= false;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs an event loop. The loop does not run until
+	 * <code>start</code> is called.
+	 *
+	 * @param server
+	 *            the server the connections belong to.
+	 * @param name
+	 *            the name of the loop's thread.
+	 * @exception IOException
+	 *                if the selector cannot be opened.
+	 */
+	EventLoop(AbstractServer server, String name) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Starts the loop's thread.
+	 */
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stops the loop and closes every channel still registered with it.
+	 */
+	void shutdown() {
+		readyToStop = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Makes the loop service a newly accepted channel.
+	 *
+	 * @param channel
+	 *            the channel, already in non-blocking mode.
+	 */
+	void register(SocketChannel channel) {
+		execute(() -> new ChannelConnection(channel, this, server).register(selector));
+	}
+
+	/**
+	 * Runs a task on the loop's thread.
+	 *
+	 * @param task
+	 *            the task to run.
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		if (!inEventLoop() && wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	/**
+	 * Tells whether the caller is running on the loop's thread.
+	 *
+	 * @return true if called from the loop's thread.
+	 */
+	boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Schedules a connection to be handed over to a thread of its own once
+	 * its cancelled key has left the selector.
+	 *
+	 * @param connection
+	 *            the connection whose key was cancelled.
+	 * @param prefix
+	 *            the bytes already read from it.
+	 */
+	void handOffLater(ChannelConnection connection, byte[] prefix) {
+		handOffs.put(connection, prefix);
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	/**
+	 * Selects ready channels and services them until the loop is shut down.
+	 * Not to be called.
+	 */
+	public void run() {
+		try {
+			while (!readyToStop) {
+				selector.select();
+				wakeupPending.set(false);
+
+				runTasks();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					ChannelConnection connection = (ChannelConnection) key.attachment();
+					if (key.isValid() && key.isReadable())
+						connection.read(readBuffer);
+					if (key.isValid() && key.isWritable())
+						connection.writeQueued();
+				}
+
+				if (!handOffs.isEmpty()) {
+					// Deregisters the cancelled keys so that the channels
+					// can be put back in blocking mode
+					selector.selectNow();
+					for (Map.Entry<ChannelConnection, byte[]> handOff : handOffs.entrySet())
+						handOff.getKey().handOff(handOff.getValue());
+					handOffs.clear();
+				}
+			}
+		} catch (IOException exception) {
+			server.listeningException(exception);
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException ex) {
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			task.run();
+	}
+}
+// End of EventLoop class
@@ -0,0 +1,83 @@
+package ocsf.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pool of event loops used by a server running in
+ * <code>ConnectionMode.NIO</code>. Accepted channels are spread over the
+ * loops in turn, so a handful of threads service every client, however many
+ * there are.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.EventLoop
+ * @see ocsf.server.ChannelConnection
+ */
+final class NioEngine {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The event loops.
+	 */
+	private final EventLoop[]		loops;
+
+	/**
+	 * Counts the channels registered so far, to pick the next loop.
+	 */
+	private final AtomicInteger		next	= new AtomicInteger();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs the engine and starts its event loops.
+	 *
+	 * @param server
+	 *            the server the connections belong to.
+	 * @param loopCount
+	 *            the number of event loops.
+	 * @exception IOException
+	 *                if a selector cannot be opened.
+	 */
+	NioEngine(AbstractServer server, int loopCount) throws IOException {
+		loops = new EventLoop[Math.max(1, loopCount)];
+		try {
+			for (int i = 0; i < loops.length; i++)
+				loops[i] = new EventLoop(server, "OCSF event loop " + i);
+		} catch (IOException ex) {
+			shutdown();
+			throw ex;
+		}
+
+		for (EventLoop loop : loops)
+			loop.start();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Hands an accepted channel to one of the event loops.
+	 *
+	 * @param channel
+	 *            the accepted channel.
+	 * @exception IOException
+	 *                if the channel cannot be put in non-blocking mode.
+	 */
+	void register(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		loops[Math.floorMod(next.getAndIncrement(), loops.length)].register(channel);
+	}
+
+	/**
+	 * Stops every event loop.
+	 */
+	void shutdown() {
+		for (EventLoop loop : loops) {
+			if (loop != null)
+				loop.shutdown();
+		}
+	}
+}
+// End of NioEngine class
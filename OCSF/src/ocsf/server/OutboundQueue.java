@@ -0,0 +1,225 @@
+package ocsf.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * The encoded messages waiting to be written to one client. The queue holds
+ * at most <code>capacity</code> messages; what happens to a message sent
+ * while it is full depends on the overflow policy.
+ * <p>
+ * Only messages that the writer has not started on are in the queue, so
+ * dropping one never leaves half a message on the wire.
+ * <p>
+ * The queue also measures what goes through it: when the writer takes a
+ * message, its size and the time it waited are added to the connection's
+ * counters and to the server's metrics.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.OverflowPolicy
+ */
+final class OutboundQueue {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final ArrayDeque<ByteBuffer>	frames	= new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * When each message in <code>frames</code> was queued, in the same
+	 * order, as a ring that starts at <code>head</code>. It grows with the
+	 * queue, up to its capacity, and never shrinks.
+	 */
+	private long[]							queuedAt	= new long[16];
+	private int								head;
+
+	/**
+	 * The maximum number of messages waiting.
+	 */
+	private final int						capacity;
+
+	/**
+	 * What to do when the queue is full.
+	 */
+	private final OverflowPolicy			policy;
+
+	/**
+	 * The server's metrics.
+	 */
+	private final ServerMetrics				metrics;
+
+	/**
+	 * The number of messages discarded so far.
+	 */
+	private volatile long					dropped;
+
+	/**
+	 * The messages and bytes taken by the writer, and the total and
+	 * longest time they waited.
+	 */
+	private long							messagesOut;
+	private long							bytesOut;
+	private long							totalWait;
+	private long							maxWait;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs an empty queue.
+	 *
+	 * @param capacity
+	 *            the maximum number of messages waiting.
+	 * @param policy
+	 *            what to do when the queue is full.
+	 * @param metrics
+	 *            the server's metrics.
+	 */
+	OutboundQueue(int capacity, OverflowPolicy policy, ServerMetrics metrics) {
+		this.capacity = capacity;
+		this.policy = policy;
+		this.metrics = metrics;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Adds a message, applying the overflow policy if the queue is full.
+	 *
+	 * @param frame
+	 *            the encoded message.
+	 * @return false if the queue is full and the client must be
+	 *         disconnected.
+	 */
+	synchronized boolean offer(ByteBuffer frame) {
+		if (frames.size() < capacity) {
+			add(frame);
+			return true;
+		}
+
+		metrics.messageDropped();
+		switch (policy) {
+		case DROP_OLDEST:
+			frames.poll();
+			head = (head + 1) % queuedAt.length;
+			add(frame);
+			dropped++;
+			return true;
+		case DROP_NEWEST:
+			dropped++;
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Removes the oldest message.
+	 *
+	 * @return the message, or null if the queue is empty.
+	 */
+	synchronized ByteBuffer poll() {
+		ByteBuffer frame = frames.poll();
+		if (frame != null) {
+			long wait = System.nanoTime() - queuedAt[head];
+			head = (head + 1) % queuedAt.length;
+			messagesOut++;
+			bytesOut += frame.remaining();
+			totalWait += wait;
+			if (wait > maxWait)
+				maxWait = wait;
+			metrics.messageOut(frame.remaining(), wait);
+		}
+		return frame;
+	}
+
+	/**
+	 * Discards every message waiting.
+	 */
+	synchronized void clear() {
+		frames.clear();
+		head = 0;
+	}
+
+	/**
+	 * @return true if no message is waiting.
+	 */
+	synchronized boolean isEmpty() {
+		return frames.isEmpty();
+	}
+
+	/**
+	 * @return the number of messages waiting.
+	 */
+	synchronized int size() {
+		return frames.size();
+	}
+
+	/**
+	 * @return the maximum number of messages waiting.
+	 */
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return what is done when the queue is full.
+	 */
+	OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return the number of messages discarded by the overflow policy.
+	 */
+	long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return the number of messages the writer has taken.
+	 */
+	synchronized long getMessagesOut() {
+		return messagesOut;
+	}
+
+	/**
+	 * @return the number of bytes the writer has taken.
+	 */
+	synchronized long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * @return the mean time the messages taken waited, in nanoseconds.
+	 */
+	synchronized long getMeanWait() {
+		return messagesOut == 0 ? 0 : totalWait / messagesOut;
+	}
+
+	/**
+	 * @return the longest time a message taken waited, in nanoseconds.
+	 */
+	synchronized long getMaxWait() {
+		return maxWait;
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	/**
+	 * Adds a message at the tail, with the time it is queued.
+	 */
+	private void add(ByteBuffer frame) {
+		int size = frames.size();
+		if (size == queuedAt.length) {
+			// Unroll the ring into a larger array
+			long[] grown = new long[Math.min(Math.max(size * 2, 16), Math.max(capacity, size + 1))];
+			for (int i = 0; i < size; i++)
+				grown[i] = queuedAt[(head + i) % queuedAt.length];
+			queuedAt = grown;
+			head = 0;
+		}
+		queuedAt[(head + size) % queuedAt.length] = System.nanoTime();
+		frames.add(frame);
+	}
+}
+// End of OutboundQueue class
@@ -0,0 +1,31 @@
+package ocsf.server;
+
+/**
+ * What a connection does with a message sent to it while its outbound queue
+ * is full, that is when the client reads more slowly than the server writes
+ * to it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setOverflowPolicy(OverflowPolicy)
+ */
+public enum OverflowPolicy {
+	/**
+	 * The oldest message not yet being written is discarded to make room for
+	 * the new one.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The new message is discarded.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * The client is disconnected, and <code>clientException</code> is called
+	 * with a <code>SlowConsumerException</code>.
+	 */
+	DISCONNECT
+}
+// End of OverflowPolicy enum
@@ -0,0 +1,29 @@
+package ocsf.server;
+
+import java.io.IOException;
+
+/**
+ * Passed to <code>clientException</code> when a client is disconnected
+ * because it sent messages faster than its rate limit allows and the
+ * throttle policy is <code>DISCONNECT</code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ThrottlePolicy#DISCONNECT
+ */
+public class RateLimitException extends IOException {
+
+	private static final long	serialVersionUID	= 1L;
+
+	/**
+	 * Constructs the exception.
+	 *
+	 * @param rate
+	 *            the rate that was exceeded, in messages a second.
+	 */
+	public RateLimitException(double rate) {
+		super("rate limit exceeded (" + rate + " messages a second)");
+	}
+}
+// End of RateLimitException class
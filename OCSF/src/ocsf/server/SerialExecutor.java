@@ -0,0 +1,92 @@
+package ocsf.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the tasks submitted for one client one after the other, in the order
+ * they were submitted, on the threads of a shared pool. Tasks of different
+ * clients run in parallel, so a slow handler only delays its own client.
+ * <p>
+ * At most <code>BATCH</code> tasks run before the executor goes back to the
+ * end of the pool's queue, so a busy client cannot keep a pool thread to
+ * itself.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setConcurrentDispatch(boolean)
+ */
+final class SerialExecutor implements Runnable {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The number of tasks run in a row before yielding the pool thread.
+	 */
+	private static final int		BATCH		= 64;
+
+	/**
+	 * The tasks waiting to run.
+	 */
+	private final Queue<Runnable>	tasks		= new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Set while the executor is queued in, or running on, the pool.
+	 */
+	private final AtomicBoolean		scheduled	= new AtomicBoolean();
+
+	/**
+	 * The pool the executor last ran on.
+	 */
+	private volatile Executor		pool;
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Submits a task. It runs after every task submitted before it.
+	 *
+	 * @param task
+	 *            the task to run.
+	 * @param pool
+	 *            the pool providing the threads.
+	 */
+	void execute(Runnable task, Executor pool) {
+		this.pool = pool;
+		tasks.add(task);
+		schedule();
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	/**
+	 * Runs a batch of tasks. Not to be called.
+	 */
+	public void run() {
+		try {
+			Runnable task;
+			for (int i = 0; i < BATCH && (task = tasks.poll()) != null; i++)
+				task.run();
+		} finally {
+			scheduled.set(false);
+			if (!tasks.isEmpty())
+				schedule();
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				pool.execute(this);
+			} catch (RejectedExecutionException ex) {
+				// The pool is gone; finish on the caller's thread
+				run();
+			}
+		}
+	}
+}
+// End of SerialExecutor class
@@ -0,0 +1,197 @@
+package ocsf.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import ocsf.common.*;
+
+/**
+ * The counters and latency histograms of a server, kept as the server
+ * runs and published over JMX while it listens, under the name
+ * <code>ocsf:type=Server,port=</code><i>port</i>.
+ * <p>
+ * Everything is recorded on the threads that do the work, without locks or
+ * allocation: counters are <code>LongAdder</code>s and histograms have
+ * fixed buckets. Rates are left to whoever reads the counters, by
+ * comparing two readings.
+ * <p>
+ * The handler latency is the time <code>handleMessageFromClient</code>
+ * takes, not counting the wait for the server's lock or the dispatch
+ * queue. The broadcast latency is the time <code>sendToAllClients</code>
+ * takes to queue a message for every client; a subclass that overrides it
+ * can record its own in <code>getBroadcastHistogram</code>. The send
+ * latency is the time a message waits in a client's outbound queue until
+ * the writer takes it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#getMetrics()
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final AbstractServer	server;
+
+	private final LongAdder			connectionsAccepted	= new LongAdder();
+	private final LongAdder			messagesIn			= new LongAdder();
+	private final LongAdder			messagesOut			= new LongAdder();
+	private final LongAdder			bytesIn				= new LongAdder();
+	private final LongAdder			bytesOut			= new LongAdder();
+	private final LongAdder			messagesDropped		= new LongAdder();
+	private final LongAdder			messagesThrottled	= new LongAdder();
+	private final LongAdder			heartbeatsSent		= new LongAdder();
+	private final LongAdder			connectionsTimedOut	= new LongAdder();
+
+	private final LatencyHistogram	handlerLatency		= new LatencyHistogram();
+	private final LatencyHistogram	broadcastLatency	= new LatencyHistogram();
+	private final LatencyHistogram	sendLatency			= new LatencyHistogram();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param server
+	 *            the server measured.
+	 */
+	ServerMetrics(AbstractServer server) {
+		this.server = server;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	public int getClientCount() {
+		return server.getNumberOfClients();
+	}
+
+	public long getConnectionsAccepted() {
+		return connectionsAccepted.sum();
+	}
+
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public long getMessagesDropped() {
+		return messagesDropped.sum();
+	}
+
+	public long getMessagesThrottled() {
+		return messagesThrottled.sum();
+	}
+
+	public long getHeartbeatsSent() {
+		return heartbeatsSent.sum();
+	}
+
+	public long getConnectionsTimedOut() {
+		return connectionsTimedOut.sum();
+	}
+
+	public LatencySnapshot getHandlerLatency() {
+		return handlerLatency.snapshot();
+	}
+
+	public LatencySnapshot getBroadcastLatency() {
+		return broadcastLatency.snapshot();
+	}
+
+	public LatencySnapshot getSendLatency() {
+		return sendLatency.snapshot();
+	}
+
+	public void resetLatencies() {
+		handlerLatency.reset();
+		broadcastLatency.reset();
+		sendLatency.reset();
+	}
+
+	/**
+	 * @return the histogram of the time <code>handleMessageFromClient</code>
+	 *         takes.
+	 */
+	public LatencyHistogram getHandlerHistogram() {
+		return handlerLatency;
+	}
+
+	/**
+	 * @return the histogram of the time <code>sendToAllClients</code> takes.
+	 */
+	public LatencyHistogram getBroadcastHistogram() {
+		return broadcastLatency;
+	}
+
+	/**
+	 * @return the histogram of the time messages wait to be written.
+	 */
+	public LatencyHistogram getSendHistogram() {
+		return sendLatency;
+	}
+
+	/**
+	 * Returns the metrics on several lines, one per counter or histogram.
+	 */
+	public String toString() {
+		return "clients=" + getClientCount() + " accepted=" + getConnectionsAccepted() + " timed out="
+				+ getConnectionsTimedOut() + " heartbeats=" + getHeartbeatsSent() + "\nmessages in="
+				+ getMessagesIn() + " out=" + getMessagesOut() + " dropped=" + getMessagesDropped() + " throttled="
+				+ getMessagesThrottled() + "\nbytes in="
+				+ getBytesIn() + " out=" + getBytesOut() + "\nhandler: " + handlerLatency + "\nbroadcast: "
+				+ broadcastLatency + "\nsend: " + sendLatency;
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	void connectionAccepted() {
+		connectionsAccepted.increment();
+	}
+
+	void messageIn() {
+		messagesIn.increment();
+	}
+
+	void bytesIn(long count) {
+		bytesIn.add(count);
+	}
+
+	/**
+	 * @return the counter of the bytes read, for streams that count as
+	 *         they read.
+	 */
+	LongAdder getBytesInCounter() {
+		return bytesIn;
+	}
+
+	void messageOut(int bytes, long waitNanos) {
+		messagesOut.increment();
+		bytesOut.add(bytes);
+		sendLatency.record(waitNanos);
+	}
+
+	void messageDropped() {
+		messagesDropped.increment();
+	}
+
+	void messageThrottled() {
+		messagesThrottled.increment();
+	}
+
+	void heartbeatSent() {
+		heartbeatsSent.increment();
+	}
+
+	void connectionTimedOut() {
+		connectionsTimedOut.increment();
+	}
+}
+// End of ServerMetrics class
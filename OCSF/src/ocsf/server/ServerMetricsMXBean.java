@@ -0,0 +1,95 @@
+package ocsf.server;
+
+import ocsf.common.LatencySnapshot;
+
+/**
+ * What a server publishes over JMX: counters since it was created, and
+ * latency histograms summarized in microseconds.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ServerMetrics
+ */
+public interface ServerMetricsMXBean {
+
+	/**
+	 * @return the number of clients connected now.
+	 */
+	int getClientCount();
+
+	/**
+	 * @return the number of connections accepted.
+	 */
+	long getConnectionsAccepted();
+
+	/**
+	 * @return the number of messages received from clients.
+	 */
+	long getMessagesIn();
+
+	/**
+	 * Returns the number of messages written to clients. Every frame that
+	 * goes through an outbound queue counts, such as the answer to the
+	 * handshake of a framed connection in NIO mode.
+	 *
+	 * @return the number of messages.
+	 */
+	long getMessagesOut();
+
+	/**
+	 * @return the number of bytes read from clients.
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return the number of bytes written to clients.
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return the number of messages dropped or refused because a client's
+	 *         outbound queue was full.
+	 */
+	long getMessagesDropped();
+
+	/**
+	 * @return the number of messages received from clients that went over
+	 *         their rate limits.
+	 */
+	long getMessagesThrottled();
+
+	/**
+	 * @return the number of heartbeats sent to clients that were silent
+	 *         for the idle timeout.
+	 */
+	long getHeartbeatsSent();
+
+	/**
+	 * @return the number of connections closed because their client was
+	 *         silent for the read timeout.
+	 */
+	long getConnectionsTimedOut();
+
+	/**
+	 * @return how long <code>handleMessageFromClient</code> takes.
+	 */
+	LatencySnapshot getHandlerLatency();
+
+	/**
+	 * @return how long <code>sendToAllClients</code> takes.
+	 */
+	LatencySnapshot getBroadcastLatency();
+
+	/**
+	 * @return how long a message waits from being sent to a client until
+	 *         it is written.
+	 */
+	LatencySnapshot getSendLatency();
+
+	/**
+	 * Forgets the latencies recorded so far; the counters keep counting.
+	 */
+	void resetLatencies();
+}
+// End of ServerMetricsMXBean interface
@@ -0,0 +1,29 @@
+package ocsf.server;
+
+import java.io.IOException;
+
+/**
+ * Thrown, and passed to <code>clientException</code>, when a client is
+ * disconnected because its outbound queue was full and the overflow policy is
+ * <code>DISCONNECT</code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.OverflowPolicy#DISCONNECT
+ */
+public class SlowConsumerException extends IOException {
+
+	private static final long	serialVersionUID	= 1L;
+
+	/**
+	 * Constructs the exception.
+	 *
+	 * @param capacity
+	 *            the capacity of the queue that overflowed.
+	 */
+	public SlowConsumerException(int capacity) {
+		super("outbound queue full (" + capacity + " messages)");
+	}
+}
+// End of SlowConsumerException class
@@ -0,0 +1,181 @@
+package ocsf.server;
+
+import java.io.*;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ocsf.common.*;
+
+/**
+ * A logical stream that a client opened over its connection. The server
+ * treats it as a client of its own: it is added to the clients, its
+ * messages are handled and its hooks called like any other connection's.
+ * <p>
+ * A stream has no socket, thread or queue of its own. Its messages are
+ * tagged with its id and queued on the connection that carries it, so
+ * the streams of a connection are written in the order they were sent,
+ * by that connection's writer. When the carrying connection closes, every
+ * stream over it is closed and the server told, as if each had lost its
+ * own socket.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Frames#TYPE_OPEN
+ */
+final class StreamConnection extends ConnectionToClient {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The connection that carries the stream.
+	 */
+	private final ConnectionToClient	carrier;
+
+	/**
+	 * The id the client gave the stream.
+	 */
+	private final int					id;
+
+	/**
+	 * The codec of the carrying connection.
+	 */
+	private final Codec					codec;
+
+	/**
+	 * Set once the stream is closed, from either side.
+	 */
+	private final AtomicBoolean			closed	= new AtomicBoolean();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a stream.
+	 *
+	 * @param carrier
+	 *            the connection that carries the stream.
+	 * @param id
+	 *            the id the client gave the stream.
+	 * @param codec
+	 *            the codec of the carrying connection.
+	 */
+	StreamConnection(ConnectionToClient carrier, int id, Codec codec) {
+		super(carrier.getSocket(), carrier.getServer());
+		this.carrier = carrier;
+		this.id = id;
+		this.codec = codec;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Encodes a message into a stream frame and queues it on the carrying
+	 * connection.
+	 */
+	@Override
+	void writeMessage(Object msg) throws IOException {
+		if (closed.get())
+			throw new SocketException("stream is closed");
+
+		carrier.queue(ByteBuffer.wrap(Frames.encode(msg, codec, id)));
+	}
+
+	/**
+	 * Queues the frame of an encoded message on the carrying connection,
+	 * tagged with the id of the stream. The message is still serialized
+	 * once for all the clients it is sent to; only its bytes are copied.
+	 */
+	@Override
+	void writeEncoded(EncodedMessage msg) throws IOException {
+		if (closed.get())
+			throw new SocketException("stream is closed");
+
+		carrier.queue(ByteBuffer.wrap(Frames.toStream(msg.getFrame(codec), id)));
+	}
+
+	/**
+	 * Makes sure the carrying connection will write the queued frames. A
+	 * stream that is closing is closed first: its messages are already
+	 * queued, so the frame that closes it follows them.
+	 */
+	@Override
+	void scheduleWrite() {
+		if (isCloseAfterWrite())
+			closeStream();
+		carrier.scheduleWrite();
+	}
+
+	/**
+	 * Writes the frames queued on the carrying connection.
+	 */
+	@Override
+	void writeNow() throws IOException {
+		carrier.writeNow();
+	}
+
+	/**
+	 * Forgets the stream and tells the client it is closed. The carrying
+	 * connection stays open.
+	 */
+	@Override
+	void closeAll() throws IOException {
+		getServer().removeClient(this);
+		closeStream();
+	}
+
+	/**
+	 * Does nothing: the carrying connection is checked for silence, and
+	 * reading any of its streams counts for it.
+	 */
+	@Override
+	void trackIdle() {
+	}
+
+	/**
+	 * Returns a string representation of the stream.
+	 *
+	 * @return the carrying connection's description and the stream id.
+	 */
+	public String toString() {
+		return carrier + " #" + id;
+	}
+
+	// METHODS TO BE USED BY THE CARRYING CONNECTION ONLY ---------------
+
+	/**
+	 * Closes the stream after the client closed it, or after the carrying
+	 * connection closed, and notifies the server as the run method of
+	 * <code>ConnectionToClient</code> does.
+	 *
+	 * @param exception
+	 *            what the server is told.
+	 */
+	void lost(Exception exception) {
+		if (!isReadyToStop()) {
+			closed.set(true);
+			abort();
+			getServer().notifyException(this, exception);
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	/**
+	 * Removes the stream from the carrying connection and, unless the
+	 * client closed it, queues the frame that closes it.
+	 */
+	private void closeStream() {
+		if (!closed.compareAndSet(false, true))
+			return;
+
+		carrier.removeStream(id, this);
+		if (!carrier.isReadyToStop()) {
+			try {
+				carrier.queue(ByteBuffer.wrap(Frames.control(Frames.TYPE_CLOSE, id)));
+			} catch (IOException ex) {
+				// The carrying connection is closing anyway
+			}
+		}
+	}
+}
+// End of StreamConnection class
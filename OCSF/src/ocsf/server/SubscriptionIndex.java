@@ -0,0 +1,198 @@
+package ocsf.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The subscribers of named topics, such as the rooms of a chat server, so
+ * that a message published to a topic is sent to its subscribers only and
+ * costs nothing for the other clients of the server.
+ * <p>
+ * Subscribing and unsubscribing take constant time and only lock the one
+ * topic they change, briefly; a topic is forgotten when its last subscriber
+ * leaves. Publishing takes no lock at all: it walks the subscribers of the
+ * topic as they are while it runs, and serializes the message once for all
+ * of them.
+ * <p>
+ * The index does not watch the connections: a server removes a client that
+ * disconnects with <code>unsubscribeAll</code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.EncodedMessage
+ */
+public final class SubscriptionIndex {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The subscribers of every topic that has any.
+	 */
+	private final ConcurrentHashMap<String, Set<ConnectionToClient>>	subscribers	= new ConcurrentHashMap<String, Set<ConnectionToClient>>();
+
+	/**
+	 * The topics of every client that subscribed to any.
+	 */
+	private final ConcurrentHashMap<ConnectionToClient, Set<String>>	topics		= new ConcurrentHashMap<ConnectionToClient, Set<String>>();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Subscribes a client to a topic.
+	 *
+	 * @param topic
+	 *            the topic.
+	 * @param client
+	 *            the client.
+	 * @return true if the client was not subscribed already.
+	 */
+	public boolean subscribe(String topic, ConnectionToClient client) {
+		boolean[] added = new boolean[1];
+		subscribers.compute(topic, (name, members) -> {
+			if (members == null)
+				members = ConcurrentHashMap.newKeySet();
+			added[0] = members.add(client);
+			return members;
+		});
+		if (added[0]) {
+			topics.compute(client, (key, joined) -> {
+				if (joined == null)
+					joined = ConcurrentHashMap.newKeySet();
+				joined.add(topic);
+				return joined;
+			});
+		}
+		return added[0];
+	}
+
+	/**
+	 * Unsubscribes a client from a topic.
+	 *
+	 * @param topic
+	 *            the topic.
+	 * @param client
+	 *            the client.
+	 * @return true if the client was subscribed.
+	 */
+	public boolean unsubscribe(String topic, ConnectionToClient client) {
+		boolean[] removed = new boolean[1];
+		topics.computeIfPresent(client, (key, joined) -> {
+			removed[0] = joined.remove(topic);
+			return joined.isEmpty() ? null : joined;
+		});
+		if (removed[0])
+			leave(topic, client);
+		return removed[0];
+	}
+
+	/**
+	 * Unsubscribes a client from every topic, typically when it disconnects.
+	 *
+	 * @param client
+	 *            the client.
+	 */
+	public void unsubscribeAll(ConnectionToClient client) {
+		Set<String> joined = topics.remove(client);
+		if (joined == null)
+			return;
+		for (String topic : joined)
+			leave(topic, client);
+	}
+
+	/**
+	 * Sends a message to every subscriber of a topic. Any exception thrown
+	 * while sending the message to a particular client is ignored.
+	 *
+	 * @param topic
+	 *            the topic.
+	 * @param msg
+	 *            the message.
+	 * @return the number of subscribers the message was sent to.
+	 */
+	public int publish(String topic, Object msg) {
+		Set<ConnectionToClient> members = subscribers.get(topic);
+		if (members == null)
+			return 0;
+
+		EncodedMessage encoded = new EncodedMessage(msg);
+		int count = 0;
+		for (ConnectionToClient client : members) {
+			try {
+				client.sendToClient(encoded);
+				count++;
+			} catch (Exception ex) {
+			}
+		}
+		return count;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @param topic
+	 *            the topic.
+	 * @param client
+	 *            the client.
+	 * @return true if the client is subscribed to the topic.
+	 */
+	public boolean isSubscribed(String topic, ConnectionToClient client) {
+		Set<String> joined = topics.get(client);
+		return joined != null && joined.contains(topic);
+	}
+
+	/**
+	 * @param topic
+	 *            the topic.
+	 * @return the number of subscribers of the topic.
+	 */
+	public int getSubscriberCount(String topic) {
+		Set<ConnectionToClient> members = subscribers.get(topic);
+		return members == null ? 0 : members.size();
+	}
+
+	/**
+	 * Returns the subscribers of a topic, for a server that sends them a
+	 * message some other way than <code>publish</code>. Like
+	 * <code>publish</code>, walking the result sees the subscribers as they
+	 * are while it runs.
+	 *
+	 * @param topic
+	 *            the topic.
+	 * @return the subscribers of the topic, in no particular order.
+	 */
+	public Set<ConnectionToClient> getSubscribers(String topic) {
+		Set<ConnectionToClient> members = subscribers.get(topic);
+		return members == null ? Collections.<ConnectionToClient> emptySet() : Collections.unmodifiableSet(members);
+	}
+
+	/**
+	 * @param client
+	 *            the client.
+	 * @return the topics the client is subscribed to, in no particular order.
+	 */
+	public Set<String> getTopics(ConnectionToClient client) {
+		Set<String> joined = topics.get(client);
+		return joined == null ? Collections.<String> emptySet() : Collections.unmodifiableSet(joined);
+	}
+
+	/**
+	 * @return the number of topics that have subscribers.
+	 */
+	public int getTopicCount() {
+		return subscribers.size();
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Removes a client from the subscribers of a topic, and the topic when
+	 * it has no subscribers left.
+	 */
+	private void leave(String topic, ConnectionToClient client) {
+		subscribers.computeIfPresent(topic, (name, members) -> {
+			members.remove(client);
+			return members.isEmpty() ? null : members;
+		});
+	}
+}
+// End of SubscriptionIndex class
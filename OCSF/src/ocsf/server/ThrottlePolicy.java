@@ -0,0 +1,33 @@
+package ocsf.server;
+
+/**
+ * What the server does with a message from a client that sends faster than
+ * its rate limit allows.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setRateLimit(double, int)
+ * @see ocsf.server.AbstractServer#setThrottlePolicy(ThrottlePolicy)
+ */
+public enum ThrottlePolicy {
+	/**
+	 * The message is discarded before it is decoded.
+	 */
+	DROP,
+
+	/**
+	 * The message is handled, but the server stops reading from the
+	 * connection until the client is back within its rate, so that TCP
+	 * makes the client wait. The streams of a multiplexed connection share
+	 * its socket and are delayed together.
+	 */
+	DELAY,
+
+	/**
+	 * The client is disconnected, and <code>clientException</code> is called
+	 * with a <code>RateLimitException</code>.
+	 */
+	DISCONNECT
+}
+// End of ThrottlePolicy enum
@@ -0,0 +1,11 @@
+#!/bin/sh
+# Builds OCSF and the benchmarks into bin/ and runs the micro benchmarks.
+# Arguments go to ocsf.bench.micro.Micro, for instance:
+#   ./micro.sh -o results.csv broadcast
+#   ./micro.sh --compare before.csv after.csv
+set -e
+cd "$(dirname "$0")"
+rm -rf bin
+mkdir -p bin
+javac -nowarn -d bin $(find ../OCSF/src src -name '*.java')
+exec java -cp bin ocsf.bench.micro.Micro "$@"
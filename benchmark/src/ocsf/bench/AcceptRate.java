@@ -0,0 +1,102 @@
+package ocsf.bench;
+
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ocsf.common.Frames;
+import ocsf.server.*;
+
+/**
+ * Measures how fast a server accepts connections and how fast it can be
+ * stopped and restarted.
+ * <p>
+ * A number of threads connect and disconnect as fast as they can for a fixed
+ * number of connections in total; the accept rate is the number of
+ * connections the server saw per second. The server is then stopped and
+ * started again, and closed and listened again, a number of times, and the
+ * average time of each cycle is printed. With a polling accept loop each stop
+ * would take up to the polling period.
+ * <p>
+ * Usage: <code>java ocsf.bench.AcceptRate [mode] [connections] [threads] [restarts]</code>
+ */
+public class AcceptRate {
+
+	/**
+	 * A server that counts its clients.
+	 */
+	static class CountingServer extends AbstractServer {
+		final AtomicInteger	connected	= new AtomicInteger();
+		volatile CountDownLatch	done;
+
+		CountingServer(int port) {
+			super(port);
+		}
+
+		protected void clientConnected(ConnectionToClient client) {
+			connected.incrementAndGet();
+			CountDownLatch latch = done;
+			if (latch != null)
+				latch.countDown();
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ConnectionMode mode = args.length > 0 ? ConnectionMode.valueOf(args[0].toUpperCase()) : ConnectionMode.NIO;
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int restarts = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+		final byte[] hello = Frames.hello(Frames.defaultCodecs());
+
+		final CountingServer server = new CountingServer(5558);
+		server.setConnectionMode(mode);
+		server.setBacklog(1024);
+		server.listen();
+
+		final CountDownLatch done = new CountDownLatch(connections);
+		server.done = done;
+		final AtomicInteger remaining = new AtomicInteger(connections);
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			new Thread(() -> {
+				try {
+					while (remaining.getAndDecrement() > 0) {
+						Socket socket = new Socket("localhost", server.getPort());
+						Frames.writePreamble(socket.getOutputStream());
+						socket.getOutputStream().write(hello);
+						socket.getInputStream().read(); // the server's hello
+						socket.close();
+					}
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				}
+			}).start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("mode=%s connections=%d threads=%d%n", mode, connections, threads);
+		System.out.printf("accept rate       %10.0f connections/s%n", connections / (elapsed / 1e9));
+
+		start = System.nanoTime();
+		for (int i = 0; i < restarts; i++) {
+			server.stopListening();
+			server.listen();
+		}
+		System.out.printf("stop + listen     %10.3f ms%n", (System.nanoTime() - start) / 1e6 / restarts);
+
+		start = System.nanoTime();
+		for (int i = 0; i < restarts; i++) {
+			server.close();
+			server.listen();
+		}
+		System.out.printf("close + listen    %10.3f ms%n", (System.nanoTime() - start) / 1e6 / restarts);
+
+		// Make sure the last restart really listens
+		new Socket("localhost", server.getPort()).close();
+		server.close();
+	}
+}
+// End of AcceptRate class
@@ -0,0 +1,130 @@
+package ocsf.bench;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import ocsf.client.AbstractClient;
+import ocsf.client.QueueFullException;
+import ocsf.server.*;
+
+/**
+ * Compares sending with <code>sendToServer</code>, which waits for every
+ * message to be written, with <code>sendAsync</code>, which queues it and
+ * lets a writer pipeline the messages; then stalls the server to show the
+ * backpressure signals of a full outbound queue.
+ * <p>
+ * Usage: <code>java ocsf.bench.AsyncSend [messages] [mode]</code>
+ */
+public class AsyncSend {
+
+	/**
+	 * A server that counts what it receives, and can be told to stop
+	 * reading for a while.
+	 */
+	static class CountingServer extends AbstractServer {
+		volatile CountDownLatch	received;
+		volatile long			stallMillis;
+
+		CountingServer(int port) {
+			super(port);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			if (stallMillis > 0) {
+				try {
+					Thread.sleep(stallMillis);
+				} catch (InterruptedException ex) {
+				}
+				stallMillis = 0;
+			}
+			received.countDown();
+		}
+	}
+
+	/**
+	 * A client that reports when its queue fills up and drains.
+	 */
+	static class WatchingClient extends AbstractClient {
+		volatile int	fills;
+
+		WatchingClient(int port) {
+			super("localhost", port);
+		}
+
+		protected void handleMessageFromServer(Object msg) {
+		}
+
+		protected void writabilityChanged(boolean writable) {
+			if (!writable)
+				fills++;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		ConnectionMode mode = args.length > 1 ? ConnectionMode.valueOf(args[1].toUpperCase()) : ConnectionMode.NIO;
+
+		CountingServer server = new CountingServer(5563);
+		server.setConnectionMode(mode);
+		server.listen();
+		WatchingClient client = new WatchingClient(server.getPort());
+		client.openConnection();
+		System.out.printf("mode=%s messages=%d%n", mode, messages);
+
+		for (int round = 0; round < 2; round++) {
+			// The first round warms up
+			server.received = new CountDownLatch(messages);
+			long start = System.nanoTime();
+			for (int i = 0; i < messages; i++)
+				client.sendToServer("message " + i);
+			server.received.await();
+			if (round == 1)
+				report("sendToServer", messages, System.nanoTime() - start);
+
+			server.received = new CountDownLatch(messages);
+			start = System.nanoTime();
+			CompletableFuture<Void> last = null;
+			for (int i = 0; i < messages; i++) {
+				while (!client.isWritable())
+					Thread.yield();
+				last = client.sendAsync("message " + i);
+			}
+			last.get();
+			server.received.await();
+			if (round == 1) {
+				report("sendAsync", messages, System.nanoTime() - start);
+				System.out.println("queue went unwritable " + client.fills + " times over both rounds");
+			}
+		}
+
+		// The server stops reading; the socket buffers fill up, then the queue
+		server.stallMillis = 2000;
+		server.received = new CountDownLatch(Integer.MAX_VALUE);
+		byte[] payload = new byte[1024];
+		int queued = 0;
+		long start = System.nanoTime();
+		while (true) {
+			CompletableFuture<Void> future = client.sendAsync(payload);
+			if (future.isCompletedExceptionally()) {
+				try {
+					future.join();
+				} catch (Exception ex) {
+					if (!(ex.getCause() instanceof QueueFullException))
+						throw ex;
+					System.out.printf("stalled server: %d messages queued in %.1f ms, then %s%n", queued,
+							(System.nanoTime() - start) / 1e6, ex.getCause().getMessage());
+				}
+				break;
+			}
+			queued++;
+		}
+
+		client.closeConnection();
+		server.close();
+	}
+
+	private static void report(String label, int messages, long elapsed) {
+		System.out.printf("%-14s %10.0f msg/s%n", label, messages / (elapsed / 1e9));
+	}
+}
+// End of AsyncSend class
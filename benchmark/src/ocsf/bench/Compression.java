@@ -0,0 +1,150 @@
+package ocsf.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.*;
+import ocsf.server.*;
+
+/**
+ * Broadcasts pasted logs, then short chat lines, to many clients, with and
+ * without compression, and reports the bytes each broadcast puts on the
+ * wire, the compression ratio and the time spent deflating. The server
+ * deflates every broadcast once, whatever the number of clients.
+ * <p>
+ * Usage: <code>java ocsf.bench.Compression [clients] [messages]</code>
+ */
+public class Compression {
+
+	static class BroadcastServer extends AbstractServer {
+		BroadcastServer(int port, Codec... codecs) {
+			super(port, codecs);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		}
+	}
+
+	static class CountingClient extends AbstractClient {
+		static volatile CountDownLatch	received;
+
+		CountingClient(int port, Codec... codecs) {
+			super("localhost", port, codecs);
+		}
+
+		protected void handleMessageFromServer(Object msg) {
+			received.countDown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		System.out.printf("clients=%d messages=%d%n", clients, messages);
+
+		Random random = new Random(42);
+		List<String> logs = new ArrayList<String>();
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < messages; i++) {
+			logs.add(log(random, 20 + random.nextInt(40)));
+			lines.add(line(random));
+		}
+		byte[] dictionary = CompressingCodec.train(new BinaryCodec(), lines.subList(0, messages / 2), 4096);
+
+		for (int pass = 0; pass < 2; pass++) {
+			// The first pass warms up
+			boolean report = pass == 1;
+			run("logs raw", new BinaryCodec(), clients, logs, report);
+			run("logs deflated", new CompressingCodec(new BinaryCodec()), clients, logs, report);
+			run("lines raw", new BinaryCodec(), clients, lines, report);
+			run("lines deflated", new CompressingCodec(new BinaryCodec(), null, 0), clients, lines, report);
+			run("lines+dict", new CompressingCodec(new BinaryCodec(), dictionary, 0), clients, lines, report);
+		}
+		System.out.println("dictionary: " + dictionary.length + " bytes trained on the first half of the lines");
+	}
+
+	private static void run(String label, Codec codec, int clients, List<String> messages, boolean report)
+			throws Exception {
+		BroadcastServer server = new BroadcastServer(5565, codec);
+		server.setConnectionMode(ConnectionMode.NIO);
+		server.listen();
+		List<CountingClient> list = new ArrayList<CountingClient>();
+		for (int i = 0; i < clients; i++) {
+			CountingClient client = new CountingClient(server.getPort(), codec);
+			client.openConnection();
+			list.add(client);
+		}
+		while (server.getNumberOfClients() < clients)
+			Thread.sleep(1);
+
+		long raw = 0;
+		CountingClient.received = new CountDownLatch(clients * messages.size());
+		long start = System.nanoTime();
+		for (String message : messages) {
+			server.sendToAllClients(message);
+			raw += Frames.encode(message, new BinaryCodec()).length;
+		}
+		CountingClient.received.await();
+		long elapsed = System.nanoTime() - start;
+
+		for (CountingClient client : list)
+			client.closeConnection();
+		server.close();
+
+		if (report) {
+			long wire = raw;
+			String cost = "";
+			if (codec instanceof CompressingCodec) {
+				// The clients share the server's instance but only inflate,
+				// so every message encoded is a broadcast
+				CompressingCodec compressing = (CompressingCodec) codec;
+				wire = compressing.getBytesOut() + Frames.HEADER_LENGTH * compressing.getEncodedCount();
+				cost = String.format("  encoded %d times  deflate %.1f us/msg  inflate %.1f us/msg",
+						compressing.getEncodedCount(), compressing.getCompressNanos() / 1e3
+								/ compressing.getEncodedCount(), compressing.getDecompressNanos() / 1e3
+								/ (clients * (double) messages.size()));
+			}
+			System.out.printf("%-15s %7.0f bytes/msg  ratio %.3f  wire %6.1f MB  %6.0f ms%s%n", label, wire
+					/ (double) messages.size(), wire / (double) raw, wire * (double) clients / 1e6, elapsed / 1e6, cost);
+		}
+	}
+
+	private static final String[]	LEVELS	= { "INFO", "DEBUG", "WARN", "ERROR" };
+	private static final String[]	NAMES	= { "ann", "bob", "carol", "dave", "erin" };
+	private static final String[]	WORDS	= { "the", "build", "is", "broken", "again", "anyone", "seen", "this",
+			"error", "has", "joined", "room", "deploy", "lunch", "thanks", "ok", "server", "restart", "looks", "fine" };
+
+	/**
+	 * A pasted log: timestamped lines and a stack trace.
+	 */
+	private static String log(Random random, int lines) {
+		StringBuilder log = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			log.append(String.format("2024-05-%02d %02d:%02d:%02d.%03d %-5s [worker-%d] ocsf.server.%s - ",
+					1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60),
+					random.nextInt(1000), LEVELS[random.nextInt(4)], random.nextInt(16),
+					random.nextBoolean() ? "ConnectionToClient" : "AbstractServer"));
+			log.append("request ").append(random.nextInt(100000)).append(" took ").append(random.nextInt(500))
+					.append(" ms\n");
+			if (random.nextInt(10) == 0)
+				log.append("java.io.IOException: Connection reset by peer\n\tat sun.nio.ch.SocketDispatcher.read0(Native Method)\n"
+						+ "\tat ocsf.server.ChannelConnection.read(ChannelConnection.java:" + random.nextInt(400) + ")\n");
+		}
+		return log.toString();
+	}
+
+	/**
+	 * A chat line as the server broadcasts it.
+	 */
+	private static String line(Random random) {
+		StringBuilder line = new StringBuilder(NAMES[random.nextInt(NAMES.length)]).append(':');
+		int words = 3 + random.nextInt(10);
+		for (int i = 0; i < words; i++)
+			line.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+		return line.toString();
+	}
+}
+// End of Compression class
@@ -0,0 +1,99 @@
+package ocsf.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import ocsf.common.Frames;
+import ocsf.server.*;
+
+/**
+ * Opens a large number of idle connections to a server running in a given
+ * <code>ConnectionMode</code> and reports what each connection costs: heap,
+ * platform threads and time to connect.
+ * <p>
+ * The clients are plain sockets that send the framed preamble and then stay
+ * quiet, so the client side needs no thread at all. Both ends live in this
+ * process and each connection uses two file descriptors; raise
+ * <code>ulimit -n</code> accordingly (50k connections need more than 100k).
+ * <p>
+ * Usage: <code>java ocsf.bench.ConnectionScale &lt;mode&gt; &lt;connections&gt; [port]</code>
+ * where mode is <code>thread_per_connection</code>, <code>virtual_thread</code>
+ * or <code>nio</code>.
+ */
+public class ConnectionScale {
+
+	/**
+	 * The hello frame every connection sends; the server's answer is never
+	 * read.
+	 */
+	private static final byte[]	HELLO	= Frames.hello(Frames.defaultCodecs());
+
+	/**
+	 * A server that ignores what it receives.
+	 */
+	static class IdleServer extends AbstractServer {
+		IdleServer(int port) {
+			super(port);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ConnectionMode mode = ConnectionMode.valueOf(args[0].toUpperCase());
+		int connections = Integer.parseInt(args[1]);
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 5556;
+
+		IdleServer server = new IdleServer(port);
+		server.setConnectionMode(mode);
+		server.setBacklog(1024);
+		server.listen();
+
+		long heapBefore = usedHeap();
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		long start = System.nanoTime();
+
+		List<Socket> sockets = new ArrayList<Socket>(connections);
+		for (int i = 0; i < connections; i++)
+			sockets.add(connect(port));
+
+		while (server.getNumberOfClients() < connections)
+			Thread.sleep(10);
+		long elapsed = System.nanoTime() - start;
+
+		long heapAfter = usedHeap();
+		int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		System.out.printf("mode=%s connections=%d%n", mode, connections);
+		System.out.printf("connect time      %10.1f ms (%.0f connections/s)%n", elapsed / 1e6,
+				connections / (elapsed / 1e9));
+		System.out.printf("heap              %10.1f MB (%d bytes/connection)%n", (heapAfter - heapBefore) / 1e6,
+				(heapAfter - heapBefore) / connections);
+		System.out.printf("platform threads  %10d (%+d)%n", threadsAfter, threadsAfter - threadsBefore);
+
+		for (Socket socket : sockets)
+			socket.close();
+		server.close();
+	}
+
+	private static Socket connect(int port) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		Frames.writePreamble(socket.getOutputStream());
+		socket.getOutputStream().write(HELLO);
+		return socket;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
+// End of ConnectionScale class
@@ -0,0 +1,125 @@
+package ocsf.bench;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.common.*;
+import ocsf.server.*;
+
+/**
+ * Measures how message handling scales with the number of dispatch threads.
+ * A number of clients each send a burst of messages to a server whose
+ * handler burns a fixed amount of CPU per message. The run is repeated with
+ * serial dispatch (the server lock) and with concurrent dispatch on 1, 2, 4,
+ * ... up to the number of processors, and the throughput of each run is
+ * printed with its speedup over serial dispatch.
+ * <p>
+ * The handler also checks that every client's messages arrive in the order
+ * they were sent; any out of order message is reported.
+ * <p>
+ * Usage: <code>java ocsf.bench.DispatchScaling [clients] [messages per client] [work in microseconds]</code>
+ */
+public class DispatchScaling {
+
+	/**
+	 * A server whose handler spins for a while and checks ordering.
+	 */
+	static class BusyServer extends AbstractServer {
+		final long			workNanos;
+		final CountDownLatch	done;
+		final AtomicLong	outOfOrder	= new AtomicLong();
+
+		BusyServer(int port, long workNanos, CountDownLatch done) {
+			super(port);
+			this.workNanos = workNanos;
+			this.done = done;
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			int sequence = (Integer) msg;
+			Object last = client.getInfo("last");
+			if (last != null && (Integer) last != sequence - 1)
+				outOfOrder.incrementAndGet();
+			client.setInfo("last", sequence);
+
+			long end = System.nanoTime() + workNanos;
+			while (System.nanoTime() < end)
+				Thread.onSpinWait();
+			done.countDown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		long workNanos = (args.length > 2 ? Long.parseLong(args[2]) : 50) * 1000;
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.printf("clients=%d messages/client=%d work=%dus cores=%d%n", clients, messages,
+				workNanos / 1000, cores);
+
+		double serial = run(0, clients, messages, workNanos);
+		System.out.printf("%-12s %10.0f msg/s%n", "serial", serial);
+
+		for (int threads = 1; threads <= cores; threads *= 2) {
+			double rate = run(threads, clients, messages, workNanos);
+			System.out.printf("%-12s %10.0f msg/s  x%.2f%n", threads + " threads", rate, rate / serial);
+		}
+	}
+
+	/**
+	 * Runs one configuration and returns its throughput in messages per
+	 * second. A thread count of zero means serial dispatch.
+	 */
+	private static double run(int threads, int clients, int messages, long workNanos) throws Exception {
+		CountDownLatch done = new CountDownLatch(clients * messages);
+		BusyServer server = new BusyServer(5557, workNanos, done);
+		server.setConnectionMode(ConnectionMode.NIO);
+		server.setConcurrentDispatch(threads > 0);
+		server.setDispatchThreadCount(Math.max(1, threads));
+		server.setBacklog(1024);
+		server.listen();
+
+		// Encode everything up front so the clients only write
+		Codec codec = new BinaryCodec();
+		byte[] hello = Frames.hello(new Codec[] { codec });
+		byte[][] frames = new byte[messages][];
+		for (int i = 0; i < messages; i++)
+			frames[i] = Frames.encode(Integer.valueOf(i), codec);
+
+		Socket[] sockets = new Socket[clients];
+		for (int i = 0; i < clients; i++) {
+			sockets[i] = new Socket("localhost", server.getPort());
+			Frames.writePreamble(sockets[i].getOutputStream());
+			sockets[i].getOutputStream().write(hello);
+		}
+		while (server.getNumberOfClients() < clients)
+			Thread.sleep(10);
+
+		long start = System.nanoTime();
+		for (Socket socket : sockets) {
+			final OutputStream output = socket.getOutputStream();
+			new Thread(() -> {
+				try {
+					for (byte[] frame : frames)
+						output.write(frame);
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				}
+			}).start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		if (server.outOfOrder.get() > 0)
+			System.out.println("  out of order messages: " + server.outOfOrder.get());
+
+		for (Socket socket : sockets)
+			socket.close();
+		server.close();
+		return clients * (double) messages / (elapsed / 1e9);
+	}
+}
+// End of DispatchScaling class
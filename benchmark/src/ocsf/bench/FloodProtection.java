@@ -0,0 +1,183 @@
+package ocsf.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.LatencyHistogram;
+import ocsf.common.TokenBucket;
+import ocsf.server.*;
+
+/**
+ * Shows what each throttle policy does to a client that floods the server,
+ * and to a client that does not.
+ * <p>
+ * For each policy, a server limits every client to a rate and a burst. One
+ * client sends messages as fast as it can for a while, and another sends a
+ * message every few milliseconds and times its echo. The messages handled
+ * from the flooder and their rate, the throttled count, and the latency of
+ * the other client are printed. With <code>DROP</code> the flooder's excess
+ * is discarded, with <code>DELAY</code> it is held up and nothing is lost,
+ * and with <code>DISCONNECT</code> it is thrown out; the other client must
+ * see no difference. Last, the cost of a token bucket is measured.
+ * <p>
+ * Usage: <code>java ocsf.bench.FloodProtection [mode] [rate] [burst] [seconds]</code>
+ */
+public class FloodProtection {
+
+	/**
+	 * A server that counts the messages of the flooder and echoes those of
+	 * the others.
+	 */
+	static class LimitedServer extends AbstractServer {
+		final AtomicLong	flooded	= new AtomicLong();
+		volatile Exception	thrown;
+
+		LimitedServer(int port) {
+			super(port);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			if ("flood".equals(msg)) {
+				flooded.incrementAndGet();
+				return;
+			}
+			try {
+				client.sendToClient(msg);
+			} catch (Exception ex) {
+			}
+		}
+
+		protected void clientException(ConnectionToClient client, Throwable exception) {
+			if (exception instanceof RateLimitException)
+				thrown = (Exception) exception;
+		}
+	}
+
+	/**
+	 * A client that times the echoes of what it sends.
+	 */
+	static class TimingClient extends AbstractClient {
+		final LatencyHistogram	latency	= new LatencyHistogram();
+
+		TimingClient(int port) {
+			super("localhost", port);
+		}
+
+		protected void handleMessageFromServer(Object msg) {
+			latency.record(System.nanoTime() - (Long) msg);
+		}
+	}
+
+	/**
+	 * A client that ignores what it receives.
+	 */
+	static class FloodingClient extends AbstractClient {
+		FloodingClient(int port) {
+			super("localhost", port);
+		}
+
+		protected void handleMessageFromServer(Object msg) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ConnectionMode mode = args.length > 0 ? ConnectionMode.valueOf(args[0].toUpperCase()) : ConnectionMode.NIO;
+		double rate = args.length > 1 ? Double.parseDouble(args[1]) : 1000;
+		int burst = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+		System.out.printf("mode=%s rate=%.0f/s burst=%d flood for %d s%n", mode, rate, burst, seconds);
+		for (ThrottlePolicy policy : ThrottlePolicy.values())
+			flood(mode, rate, burst, seconds, policy);
+		bucket();
+		System.exit(0);
+	}
+
+	/**
+	 * Floods a server that applies a throttle policy.
+	 */
+	static void flood(ConnectionMode mode, double rate, int burst, int seconds, ThrottlePolicy policy)
+			throws Exception {
+		LimitedServer server = new LimitedServer(5573);
+		server.setConnectionMode(mode);
+		server.setRateLimit(rate, burst);
+		server.setThrottlePolicy(policy);
+		server.listen();
+
+		FloodingClient flooder = new FloodingClient(server.getPort());
+		flooder.openConnection();
+		TimingClient other = new TimingClient(server.getPort());
+		other.openConnection();
+
+		Thread pacer = new Thread(() -> {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					other.sendToServer(System.nanoTime());
+					Thread.sleep(5);
+				}
+			} catch (Exception ex) {
+			}
+		});
+		AtomicLong sent = new AtomicLong();
+		Thread flood = new Thread(() -> {
+			try {
+				while (true) {
+					flooder.sendToServer("flood");
+					sent.incrementAndGet();
+				}
+			} catch (Exception ex) {
+				// Disconnected
+			}
+		});
+		pacer.start();
+		flood.start();
+
+		// The flooder is stopped from here, since sending blocks once
+		// the server holds it up
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		long handled = server.flooded.get();
+		boolean connected = flooder.isConnected();
+		pacer.interrupt();
+		pacer.join();
+		flooder.closeConnection();
+		flood.join();
+		Thread.sleep(100);
+
+		long throttled = server.getMetrics().getMessagesThrottled();
+		System.out.printf("%-10s flooder: sent %8d handled %7d (%7.0f/s) throttled %8d %s%n", policy, sent.get(),
+				handled, (double) handled / seconds, throttled, server.thrown != null ? "disconnected: "
+						+ server.thrown.getMessage() : connected ? "connected" : "closed");
+		System.out.printf("%-10s other client: %s%n", "", other.latency.snapshot());
+
+		other.closeConnection();
+		server.close();
+		Thread.sleep(200);
+	}
+
+	/**
+	 * Times taking tokens from a bucket that always has some, and from one
+	 * that is empty.
+	 */
+	static void bucket() {
+		int count = 10000000;
+		TokenBucket unlimited = new TokenBucket(1e12, 1000000);
+		TokenBucket empty = new TokenBucket(1, 1);
+		for (int round = 0; round < 2; round++) {
+			// The first round warms up
+			long start = System.nanoTime();
+			int taken = 0;
+			for (int i = 0; i < count; i++)
+				if (unlimited.tryTake())
+					taken++;
+			long full = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				if (empty.tryTake())
+					taken++;
+			long end = System.nanoTime();
+			if (round == 1)
+				System.out.printf("token bucket: take %.1f ns, refused %.1f ns (%d taken)%n",
+						(double) (full - start) / count, (double) (end - full) / count, taken);
+		}
+	}
+}
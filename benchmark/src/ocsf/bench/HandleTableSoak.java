@@ -0,0 +1,129 @@
+package ocsf.bench;
+
+import java.util.concurrent.Semaphore;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.ResetPolicy;
+import ocsf.server.*;
+
+/**
+ * Soaks a client and a server that talk with Java object streams, and prints
+ * the heap in use and the number of objects each stream keeps reachable as
+ * time goes by. With a reset policy, both stay flat however long it runs;
+ * with <code>never</code>, which is how object streams behaved originally,
+ * they grow with every message.
+ * <p>
+ * The client sends a new object as fast as the server echoes one back, so
+ * that every message adds to the handle tables of both streams.
+ * <p>
+ * Usage:
+ * <code>java ocsf.bench.HandleTableSoak [policy] [seconds] [mode]</code>,
+ * where the policy is <code>never</code>, <code>messages:N</code>,
+ * <code>bytes:N</code> or <code>idle:MILLIS</code>.
+ */
+public class HandleTableSoak {
+
+	/**
+	 * A server that answers every message with a new object.
+	 */
+	static class EchoingServer extends AbstractServer {
+		volatile ConnectionToClient	client;
+
+		EchoingServer(int port) {
+			super(port);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			this.client = client;
+			try {
+				client.sendToClient(new long[] { ((long[]) msg)[0] });
+			} catch (Exception ex) {
+				// The client is going away
+			}
+		}
+	}
+
+	/**
+	 * A client that lets the next message go when an answer comes.
+	 */
+	static class SoakClient extends AbstractClient {
+		final Semaphore	answers	= new Semaphore(64);
+
+		SoakClient(int port) {
+			super("localhost", port);
+		}
+
+		protected void handleMessageFromServer(Object msg) {
+			answers.release();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ResetPolicy policy = parse(args.length > 0 ? args[0] : "messages:1");
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		ConnectionMode mode = args.length > 2 ? ConnectionMode.valueOf(args[2].toUpperCase())
+				: ConnectionMode.THREAD_PER_CONNECTION;
+
+		EchoingServer server = new EchoingServer(5561);
+		server.setConnectionMode(mode);
+		server.setResetPolicy(policy);
+		server.listen();
+
+		SoakClient client = new SoakClient(server.getPort());
+		client.setFramed(false);
+		client.setResetPolicy(policy);
+		client.openConnection();
+		System.out.printf("policy=%s seconds=%d mode=%s%n", policy, seconds, mode);
+		System.out.printf("%6s %12s %10s %16s %16s%n", "time", "messages", "heap MB", "client retained",
+				"server retained");
+
+		long start = System.nanoTime();
+		long end = start + seconds * 1000000000L;
+		long nextReport = start;
+		long sent = 0;
+		while (System.nanoTime() < end) {
+			client.answers.acquire();
+			client.sendToServer(new long[] { sent++ });
+
+			long now = System.nanoTime();
+			if (now >= nextReport) {
+				ConnectionToClient connection = server.client;
+				System.out.printf("%6d %12d %10.1f %16d %16d%n", (now - start) / 1000000000L, sent, usedHeap(),
+						client.getRetainedObjectCount(),
+						connection == null ? 0 : connection.getRetainedObjectCount());
+				nextReport = now + Math.max(1, seconds / 10) * 1000000000L;
+			}
+		}
+
+		client.closeConnection();
+		server.close();
+	}
+
+	private static ResetPolicy parse(String policy) {
+		if (policy.equals("never"))
+			return ResetPolicy.NEVER;
+		int colon = policy.indexOf(':');
+		String kind = policy.substring(0, colon);
+		long value = Long.parseLong(policy.substring(colon + 1));
+		switch (kind) {
+		case "messages":
+			return ResetPolicy.everyMessages((int) value);
+		case "bytes":
+			return ResetPolicy.everyBytes(value);
+		case "idle":
+			return ResetPolicy.onIdle(value);
+		default:
+			throw new IllegalArgumentException("unknown policy " + policy);
+		}
+	}
+
+	/**
+	 * Returns the heap in use after a collection, in megabytes.
+	 */
+	private static double usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return (runtime.totalMemory() - runtime.freeMemory()) / (1024.0 * 1024.0);
+	}
+}
+// End of HandleTableSoak class
@@ -0,0 +1,208 @@
+package ocsf.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.*;
+import javax.management.openmbean.CompositeData;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.LatencyHistogram;
+import ocsf.server.*;
+
+/**
+ * Measures what the built-in metrics cost, and shows them as a JMX client
+ * sees them.
+ * <p>
+ * First, a histogram records values in a loop, on one thread and then on
+ * several, and the time and heap allocated per value are printed; the
+ * allocation must be zero. Then clients echo messages through a server,
+ * and the heap the server's reader allocates per message is printed with
+ * and without the metrics being read over JMX meanwhile. Last, the server's
+ * and a client's MBeans are read through the platform MBean server.
+ * <p>
+ * Allocation is measured with <code>com.sun.management.ThreadMXBean</code>,
+ * so it is only printed on JVMs that have it.
+ * <p>
+ * Usage: <code>java ocsf.bench.MetricsOverhead [mode] [messages] [clients]</code>
+ */
+public class MetricsOverhead {
+
+	/**
+	 * A server that echoes what it receives.
+	 */
+	static class EchoingServer extends AbstractServer {
+		EchoingServer(int port) {
+			super(port);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			try {
+				client.sendToClient(msg);
+			} catch (Exception ex) {
+			}
+		}
+	}
+
+	/**
+	 * A client that counts what it receives.
+	 */
+	static class CountingClient extends AbstractClient {
+		volatile CountDownLatch	received;
+
+		CountingClient(int port) {
+			super("localhost", port);
+		}
+
+		protected void handleMessageFromServer(Object msg) {
+			received.countDown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ConnectionMode mode = args.length > 0 ? ConnectionMode.valueOf(args[0].toUpperCase()) : ConnectionMode.NIO;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		int clients = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+		for (int round = 0; round < 2; round++) {
+			// The first round warms up
+			record(1, 10000000, round == 1);
+			record(4, 10000000, round == 1);
+		}
+
+		EchoingServer server = new EchoingServer(5561);
+		server.setConnectionMode(mode);
+		server.listen();
+		System.out.printf("mode=%s messages=%d clients=%d%n", mode, messages, clients);
+
+		CountingClient[] senders = new CountingClient[clients];
+		for (int i = 0; i < clients; i++) {
+			senders[i] = new CountingClient(server.getPort());
+			senders[i].openConnection();
+		}
+		senders[0].getMetrics().register("bench-0");
+		for (int round = 0; round < 3; round++)
+			echo(senders, messages / clients, round == 2, round > 0);
+
+		MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+		ObjectName serverName = new ObjectName("ocsf:type=Server,port=" + server.getPort());
+		ObjectName clientName = new ObjectName("ocsf:type=Client,name=" + ObjectName.quote("bench-0"));
+		System.out.println("over JMX:");
+		for (String attribute : new String[] { "ClientCount", "ConnectionsAccepted", "MessagesIn", "MessagesOut",
+				"BytesIn", "BytesOut", "MessagesDropped", "HandlerLatency", "SendLatency" })
+			System.out.printf("  %s %s = %s%n", serverName, attribute, show(beans.getAttribute(serverName, attribute)));
+		for (String attribute : new String[] { "MessagesOut", "BytesOut", "MessagesIn", "BytesIn", "SendLatency" })
+			System.out.printf("  %s %s = %s%n", clientName, attribute, show(beans.getAttribute(clientName, attribute)));
+
+		senders[0].getMetrics().unregister();
+		for (CountingClient sender : senders)
+			sender.closeConnection();
+		server.close();
+		System.out.println("server MBean registered after close: " + beans.isRegistered(serverName));
+	}
+
+	/**
+	 * Records values into one histogram from several threads.
+	 */
+	private static void record(int threads, final int values, boolean print) throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final long[] allocated = new long[threads];
+		Thread[] workers = new Thread[threads];
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final int index = t;
+			workers[t] = new Thread(() -> {
+				long before = allocatedBytes();
+				long value = 17;
+				for (int i = 0; i < values; i++) {
+					histogram.record(value);
+					value = value * 6364136223846793005L + 1442695040888963407L >>> 40; // up to 16 ms
+				}
+				allocated[index] = allocatedBytes() - before;
+			});
+			workers[t].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+		long elapsed = System.nanoTime() - start;
+
+		if (print) {
+			long total = 0;
+			for (long bytes : allocated)
+				total += bytes;
+			System.out.printf("histogram, %d thread(s): %.1f ns per value, %s bytes allocated per value%n", threads,
+					(double) elapsed / ((long) threads * values),
+					total < 0 ? "?" : String.format("%.3f", (double) total / ((long) threads * values)));
+			System.out.println("  " + histogram);
+		}
+	}
+
+	/**
+	 * Sends messages from every client and waits for their echoes.
+	 */
+	private static void echo(CountingClient[] senders, int perClient, boolean print, boolean readJmx)
+			throws Exception {
+		for (CountingClient sender : senders)
+			sender.received = new CountDownLatch(perClient);
+
+		// Reads the MBeans while the messages go through, as a monitor would
+		final ObjectName pattern = new ObjectName("ocsf:*");
+		final MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+		final boolean[] done = new boolean[1];
+		Thread reader = new Thread(() -> {
+			while (readJmx && !done[0]) {
+				try {
+					for (ObjectName name : beans.queryNames(pattern, null))
+						beans.getAttribute(name, "SendLatency");
+					Thread.sleep(10);
+				} catch (Exception ex) {
+					return;
+				}
+			}
+		});
+		reader.start();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < perClient; i++) {
+			for (CountingClient sender : senders) {
+				while (!sender.isWritable())
+					Thread.yield();
+				sender.sendAsync("message " + i);
+			}
+		}
+		for (CountingClient sender : senders)
+			sender.received.await();
+		long elapsed = System.nanoTime() - start;
+		done[0] = true;
+		reader.join();
+
+		if (print)
+			System.out.printf("echo%s: %.0f round trips/s%n", readJmx ? ", JMX read every 10 ms" : "",
+					perClient * senders.length / (elapsed / 1e9));
+	}
+
+	/**
+	 * Shows an attribute, a latency snapshot as its composite.
+	 */
+	private static String show(Object value) {
+		if (!(value instanceof CompositeData))
+			return String.valueOf(value);
+		CompositeData data = (CompositeData) value;
+		StringBuilder text = new StringBuilder("{");
+		for (String key : data.getCompositeType().keySet())
+			text.append(text.length() > 1 ? ", " : "").append(key).append('=').append(data.get(key));
+		return text.append('}').toString();
+	}
+
+	/**
+	 * Returns the bytes allocated by the current thread, or a negative number
+	 * if the JVM cannot tell.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}
+// End of MetricsOverhead class
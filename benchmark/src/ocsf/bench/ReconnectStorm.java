@@ -0,0 +1,117 @@
+package ocsf.bench;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ocsf.common.*;
+import ocsf.server.*;
+
+/**
+ * Simulates every user reconnecting at once, as after a deploy. A number of
+ * threads open connections as fast as they can; each connection sends the
+ * handshake and a <code>#login</code> message right away and then stays
+ * open. The time until the server has seen every login is reported, for each
+ * acceptor count given.
+ * <p>
+ * Both ends of every connection live in this process, so it needs two file
+ * descriptors per connection: raise <code>ulimit -n</code> above twice the
+ * number of connections.
+ * <p>
+ * Usage: <code>java ocsf.bench.ReconnectStorm [connections] [client threads] [mode] [acceptors...]</code>
+ */
+public class ReconnectStorm {
+
+	/**
+	 * A server that counts the clients that have logged in.
+	 */
+	static class LoginServer extends AbstractServer {
+		final CountDownLatch	loggedIn;
+
+		LoginServer(int port, CountDownLatch loggedIn) {
+			super(port);
+			this.loggedIn = loggedIn;
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			String line = (String) msg;
+			if (line.startsWith("#login ") && client.getInfo("loginID") == null) {
+				client.setInfo("loginID", line.substring(7));
+				loggedIn.countDown();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		ConnectionMode mode = args.length > 2 ? ConnectionMode.valueOf(args[2].toUpperCase()) : ConnectionMode.NIO;
+
+		System.out.printf("connections=%d client threads=%d mode=%s cores=%d%n", connections, threads, mode,
+				Runtime.getRuntime().availableProcessors());
+		if (args.length > 3) {
+			for (int i = 3; i < args.length; i++)
+				run(connections, threads, mode, Integer.parseInt(args[i]));
+		} else {
+			run(connections, threads, mode, 1);
+			run(connections, threads, mode, Runtime.getRuntime().availableProcessors());
+		}
+	}
+
+	/**
+	 * Runs one storm against a server with the given number of acceptors.
+	 */
+	private static void run(int connections, int threads, ConnectionMode mode, int acceptors) throws Exception {
+		CountDownLatch loggedIn = new CountDownLatch(connections);
+		LoginServer server = new LoginServer(5559, loggedIn);
+		server.setConnectionMode(mode);
+		server.setAcceptorCount(acceptors);
+		server.setBacklog(4096);
+		server.listen();
+
+		Codec codec = new BinaryCodec();
+		byte[] hello = Frames.hello(new Codec[] { codec });
+		Socket[] sockets = new Socket[connections];
+		AtomicInteger next = new AtomicInteger();
+		AtomicInteger failures = new AtomicInteger();
+
+		long start = System.nanoTime();
+		Thread[] clients = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			clients[t] = new Thread(() -> {
+				int i;
+				while ((i = next.getAndIncrement()) < connections) {
+					try {
+						Socket socket = new Socket("localhost", server.getPort());
+						OutputStream output = socket.getOutputStream();
+						Frames.writePreamble(output);
+						output.write(hello);
+						output.write(Frames.encode("#login user" + i, codec));
+						sockets[i] = socket;
+					} catch (Exception ex) {
+						failures.incrementAndGet();
+						loggedIn.countDown();
+					}
+				}
+			});
+			clients[t].start();
+		}
+		for (Thread client : clients)
+			client.join();
+		long connected = System.nanoTime() - start;
+		loggedIn.await();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.printf("acceptors=%-3d connected in %8.1f ms, all logged in after %8.1f ms (%.0f logins/s)%s%n",
+				acceptors, connected / 1e6, elapsed / 1e6, connections / (elapsed / 1e9),
+				failures.get() > 0 ? ", " + failures.get() + " failed" : "");
+
+		for (Socket socket : sockets) {
+			if (socket != null)
+				socket.close();
+		}
+		server.close();
+	}
+}
+// End of ReconnectStorm class
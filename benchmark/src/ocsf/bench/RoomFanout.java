@@ -0,0 +1,121 @@
+package ocsf.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.client.AbstractClient;
+import ocsf.server.*;
+
+/**
+ * Compares broadcasting chat lines to every client with publishing them to
+ * small rooms through a <code>SubscriptionIndex</code>. Every client is in
+ * exactly one room; the server sends the same number of lines both ways,
+ * spreading the published ones over the rooms.
+ * <p>
+ * A broadcast line costs one send per client of the server, a published line
+ * one send per member of its room, so publishing should deliver lines about
+ * clients / room size times faster, and the number of messages actually
+ * written should drop by the same factor.
+ * <p>
+ * Usage: <code>java ocsf.bench.RoomFanout [clients] [room size] [lines] [mode]</code>
+ */
+public class RoomFanout {
+
+	/**
+	 * A server that puts every client in the room it names.
+	 */
+	static class RoomServer extends AbstractServer {
+		final SubscriptionIndex	rooms	= new SubscriptionIndex();
+
+		RoomServer(int port) {
+			super(port);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			rooms.subscribe((String) msg, client);
+		}
+	}
+
+	/**
+	 * A client that counts the lines it receives.
+	 */
+	static class CountingClient extends AbstractClient {
+		final AtomicLong	received;
+
+		CountingClient(int port, AtomicLong received) {
+			super("localhost", port);
+			this.received = received;
+		}
+
+		protected void handleMessageFromServer(Object msg) {
+			received.incrementAndGet();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int roomSize = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int lines = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		ConnectionMode mode = args.length > 3 ? ConnectionMode.valueOf(args[3].toUpperCase()) : ConnectionMode.NIO;
+		int roomCount = (clients + roomSize - 1) / roomSize;
+
+		RoomServer server = new RoomServer(5562);
+		server.setConnectionMode(mode);
+		server.setBacklog(1024);
+		server.listen();
+
+		AtomicLong received = new AtomicLong();
+		CountingClient[] all = new CountingClient[clients];
+		for (int i = 0; i < clients; i++) {
+			all[i] = new CountingClient(server.getPort(), received);
+			all[i].openConnection();
+			all[i].sendToServer("room " + i % roomCount);
+		}
+		while (server.rooms.getTopicCount() < roomCount || subscribed(server, roomCount) < clients)
+			Thread.sleep(10);
+		System.out.printf("mode=%s clients=%d rooms=%d lines=%d%n", mode, clients, roomCount, lines);
+
+		for (int round = 0; round < 2; round++) {
+			// The first round warms up
+			long expected = received.get() + (long) lines * clients;
+			long start = System.nanoTime();
+			for (int i = 0; i < lines; i++)
+				server.sendToAllClients("line " + i);
+			await(received, expected);
+			if (round == 1)
+				report("sendToAllClients", lines, (long) lines * clients, System.nanoTime() - start);
+
+			long deliveries = 0;
+			for (int i = 0; i < lines; i++)
+				deliveries += server.rooms.getSubscriberCount("room " + i % roomCount);
+			expected = received.get() + deliveries;
+			start = System.nanoTime();
+			for (int i = 0; i < lines; i++)
+				server.rooms.publish("room " + i % roomCount, "line " + i);
+			await(received, expected);
+			if (round == 1)
+				report("SubscriptionIndex.publish", lines, deliveries, System.nanoTime() - start);
+		}
+
+		for (CountingClient client : all)
+			client.closeConnection();
+		server.close();
+	}
+
+	private static int subscribed(RoomServer server, int roomCount) {
+		int count = 0;
+		for (int i = 0; i < roomCount; i++)
+			count += server.rooms.getSubscriberCount("room " + i);
+		return count;
+	}
+
+	private static void await(AtomicLong received, long expected) throws InterruptedException {
+		while (received.get() < expected)
+			Thread.sleep(1);
+	}
+
+	private static void report(String label, int lines, long deliveries, long elapsed) {
+		System.out.printf("%-26s %10.0f lines/s %12d messages written%n", label, lines / (elapsed / 1e9),
+				deliveries);
+	}
+}
+// End of RoomFanout class
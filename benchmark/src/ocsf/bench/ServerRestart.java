@@ -0,0 +1,110 @@
+package ocsf.bench;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import ocsf.client.AbstractClient;
+import ocsf.client.ReconnectPolicy;
+import ocsf.server.*;
+
+/**
+ * Restarts a server under clients that reconnect on their own, and shows
+ * when they come back: the number of connections accepted in every 100 ms
+ * after the server listens again, and the busiest interval. Clients that
+ * retry immediately hammer the closed port and all arrive together; jittered
+ * backoff spreads them out.
+ * <p>
+ * Usage: <code>java ocsf.bench.ServerRestart [clients] [downtime ms]</code>
+ */
+public class ServerRestart {
+
+	static final int	BUCKETS		= 50;
+	static final int	BUCKET_MS	= 100;
+
+	/**
+	 * A server that counts the connections it accepts, by interval since
+	 * it started listening.
+	 */
+	static class CountingServer extends AbstractServer {
+		volatile long				listening;
+		final AtomicIntegerArray	accepted	= new AtomicIntegerArray(BUCKETS);
+
+		CountingServer(int port) {
+			super(port);
+		}
+
+		protected void serverStarted() {
+			listening = System.nanoTime();
+		}
+
+		protected void clientConnected(ConnectionToClient client) {
+			int bucket = (int) ((System.nanoTime() - listening) / 1000000 / BUCKET_MS);
+			accepted.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		}
+	}
+
+	/**
+	 * A client that reconnects as its policy says.
+	 */
+	static class RetryingClient extends AbstractClient {
+		RetryingClient(int port, ReconnectPolicy policy) {
+			super("localhost", port);
+			setReconnectPolicy(policy);
+		}
+
+		protected void handleMessageFromServer(Object msg) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+		long downtime = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+		run("immediate", new ReconnectPolicy(0, 0, 0), clients, downtime, 5571);
+		run("jittered", ReconnectPolicy.exponential(100, 3000), clients, downtime, 5572);
+	}
+
+	private static void run(String label, ReconnectPolicy policy, int clients, long downtime, int port)
+			throws Exception {
+		CountingServer server = new CountingServer(port);
+		server.setConnectionMode(ConnectionMode.NIO);
+		server.listen();
+		RetryingClient[] all = new RetryingClient[clients];
+		for (int i = 0; i < clients; i++) {
+			all[i] = new RetryingClient(port, policy);
+			all[i].openConnection();
+		}
+		while (server.getNumberOfClients() < clients)
+			Thread.sleep(10);
+
+		// Restart: every client loses its connection at once
+		for (int i = 0; i < BUCKETS; i++)
+			server.accepted.set(i, 0);
+		server.close();
+		Thread.sleep(downtime);
+		server.listen();
+		long start = System.nanoTime();
+		while (server.getNumberOfClients() < clients && System.nanoTime() - start < BUCKETS * BUCKET_MS * 1000000L)
+			Thread.sleep(10);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+
+		int peak = 0;
+		StringBuilder histogram = new StringBuilder();
+		for (int i = 0; i < BUCKETS; i++) {
+			int count = server.accepted.get(i);
+			peak = Math.max(peak, count);
+			if (i * BUCKET_MS <= elapsed)
+				histogram.append(count).append(' ');
+		}
+		System.out.printf("%-10s %d of %d back in %d ms, busiest 100 ms: %d%n", label, server.getNumberOfClients(),
+				clients, elapsed, peak);
+		System.out.println("           per 100 ms: " + histogram);
+
+		for (RetryingClient client : all)
+			client.closeConnection();
+		server.close();
+	}
+}
+// End of ServerRestart class
@@ -0,0 +1,124 @@
+package ocsf.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ocsf.client.AbstractClient;
+import ocsf.client.Multiplexer;
+import ocsf.server.*;
+
+/**
+ * Opens many clients on one process, first each with a connection of its
+ * own and then all as streams over one multiplexer, and compares the
+ * sockets and threads they cost, the time to open them, and the rate of a
+ * round trip through every one of them.
+ * <p>
+ * Usage: <code>java ocsf.bench.StreamMultiplexing [clients] [rounds] [mode]</code>
+ */
+public class StreamMultiplexing {
+
+	/**
+	 * A server that answers every message to the client that sent it.
+	 */
+	static class EchoingServer extends AbstractServer {
+		EchoingServer(int port) {
+			super(port);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			try {
+				client.sendToClient(msg);
+			} catch (Exception ex) {
+			}
+		}
+	}
+
+	/**
+	 * A client that counts the answers.
+	 */
+	static class CountingClient extends AbstractClient {
+		static volatile CountDownLatch	answered;
+
+		CountingClient(int port) {
+			super("localhost", port);
+		}
+
+		CountingClient(Multiplexer multiplexer) {
+			super(multiplexer);
+		}
+
+		protected void handleMessageFromServer(Object msg) {
+			answered.countDown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		ConnectionMode mode = args.length > 2 ? ConnectionMode.valueOf(args[2].toUpperCase()) : ConnectionMode.NIO;
+
+		EchoingServer server = new EchoingServer(5564);
+		server.setConnectionMode(mode);
+		server.listen();
+		System.out.printf("mode=%s clients=%d rounds=%d%n", mode, clients, rounds);
+
+		for (int pass = 0; pass < 2; pass++) {
+			// The first pass warms up
+			boolean report = pass == 1;
+			run("separate", clients, rounds, server, null, report);
+			Multiplexer multiplexer = new Multiplexer("localhost", server.getPort());
+			multiplexer.open();
+			run("multiplexed", clients, rounds, server, multiplexer, report);
+			multiplexer.close();
+		}
+		server.close();
+	}
+
+	private static void run(String label, int clients, int rounds, EchoingServer server, Multiplexer multiplexer,
+			boolean report) throws Exception {
+		int threadsBefore = Thread.activeCount();
+		List<CountingClient> list = new ArrayList<CountingClient>();
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			CountingClient client = multiplexer == null ? new CountingClient(server.getPort()) : new CountingClient(
+					multiplexer);
+			client.openConnection();
+			list.add(client);
+		}
+		while (server.getNumberOfClients() < clients + (multiplexer == null ? 0 : 1))
+			Thread.sleep(1);
+		long opened = System.nanoTime() - start;
+		int threads = Thread.activeCount() - threadsBefore;
+
+		AtomicInteger failed = new AtomicInteger();
+		CountingClient.answered = new CountDownLatch(clients * rounds);
+		start = System.nanoTime();
+		for (int round = 0; round < rounds; round++) {
+			for (CountingClient client : list) {
+				// The streams share one queue
+				while (!client.isWritable())
+					Thread.yield();
+				client.sendAsync("ping").whenComplete((sent, ex) -> {
+					if (ex != null)
+						failed.incrementAndGet();
+				});
+			}
+		}
+		CountingClient.answered.await();
+		long elapsed = System.nanoTime() - start;
+
+		for (CountingClient client : list)
+			client.closeConnection();
+		while (server.getNumberOfClients() > (multiplexer == null ? 0 : 1))
+			Thread.sleep(1);
+
+		if (report) {
+			System.out.printf("%-12s sockets=%4d threads=%4d open=%7.1f ms  %9.0f round trips/s  failed=%d%n",
+					label, multiplexer == null ? clients : 1, threads, opened / 1e6, clients * rounds
+							/ (elapsed / 1e9), failed.get());
+		}
+	}
+}
+// End of StreamMultiplexing class
@@ -0,0 +1,230 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.Frames;
+import ocsf.common.TimingWheel;
+import ocsf.server.*;
+
+/**
+ * Measures what tracking the idle time of many connections costs, and
+ * shows dead connections being reaped.
+ * <p>
+ * First, timeouts for as many connections as asked are scheduled, then
+ * each is scheduled again, as a connection does when it hears from its
+ * client, and then cancelled, on a timing wheel and on a
+ * <code>ScheduledThreadPoolExecutor</code>; the time per operation is
+ * printed. Then a server with short idle and read timeouts gets a client
+ * that answers heartbeats, one that says hello and goes silent, one that
+ * sends a Java object stream and stays idle, and a socket that never says
+ * hello: the silent one must be sent heartbeats and then closed, the
+ * object stream client closed without any, both with
+ * <code>clientDisconnected</code> called, and the socket closed without
+ * it, while the answering client stays connected.
+ * <p>
+ * Usage: <code>java ocsf.bench.TimingWheelScale [mode] [timeouts]</code>
+ */
+public class TimingWheelScale {
+
+	/**
+	 * A server that counts the clients it sees go.
+	 */
+	static class WatchingServer extends AbstractServer {
+		final AtomicInteger	disconnected	= new AtomicInteger();
+
+		WatchingServer(int port) {
+			super(port);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		}
+
+		protected void clientDisconnected(ConnectionToClient client) {
+			disconnected.incrementAndGet();
+		}
+	}
+
+	/**
+	 * A client that does nothing but answer heartbeats.
+	 */
+	static class QuietClient extends AbstractClient {
+		volatile boolean	closed;
+
+		QuietClient(int port) {
+			super("localhost", port);
+		}
+
+		protected void handleMessageFromServer(Object msg) {
+		}
+
+		protected void connectionClosed() {
+			closed = true;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ConnectionMode mode = args.length > 0 ? ConnectionMode.valueOf(args[0].toUpperCase()) : ConnectionMode.NIO;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+		for (int round = 0; round < 3; round++) {
+			// The first rounds warm up
+			wheel(count, round == 2);
+			executor(count, round == 2);
+		}
+
+		reap(mode);
+		System.exit(0);
+	}
+
+	/**
+	 * Schedules, schedules again and cancels timeouts on a timing wheel.
+	 */
+	static void wheel(int count, boolean print) {
+		TimingWheel wheel = new TimingWheel("wheel", AbstractServer.IDLE_TICK, 1024);
+		TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[count];
+		Runnable task = () -> {
+		};
+		for (int i = 0; i < count; i++)
+			timeouts[i] = wheel.newTimeout(task);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++)
+			timeouts[i].schedule(30000 + i % 1000, TimeUnit.MILLISECONDS);
+		long scheduled = System.nanoTime();
+		for (int i = 0; i < count; i++)
+			timeouts[i].schedule(45000 + i % 1000, TimeUnit.MILLISECONDS);
+		long rescheduled = System.nanoTime();
+		for (int i = 0; i < count; i++)
+			timeouts[i].cancel();
+		long cancelled = System.nanoTime();
+
+		if (print)
+			System.out.printf("timing wheel  %7d timeouts: schedule %5.0f ns  reschedule %5.0f ns  cancel %5.0f ns%n", count,
+					(double) (scheduled - start) / count, (double) (rescheduled - scheduled) / count,
+					(double) (cancelled - rescheduled) / count);
+	}
+
+	/**
+	 * Does the same with a scheduled executor, which must cancel a task and
+	 * submit a new one to schedule it again.
+	 */
+	static void executor(int count, boolean print) {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+		executor.setRemoveOnCancelPolicy(true);
+		ScheduledFuture<?>[] futures = new ScheduledFuture<?>[count];
+		Runnable task = () -> {
+		};
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++)
+			futures[i] = executor.schedule(task, 30000 + i % 1000, TimeUnit.MILLISECONDS);
+		long scheduled = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			futures[i].cancel(false);
+			futures[i] = executor.schedule(task, 45000 + i % 1000, TimeUnit.MILLISECONDS);
+		}
+		long rescheduled = System.nanoTime();
+		for (int i = 0; i < count; i++)
+			futures[i].cancel(false);
+		long cancelled = System.nanoTime();
+		executor.shutdownNow();
+
+		if (print)
+			System.out.printf("executor      %7d timeouts: schedule %5.0f ns  reschedule %5.0f ns  cancel %5.0f ns%n", count,
+					(double) (scheduled - start) / count, (double) (rescheduled - scheduled) / count,
+					(double) (cancelled - rescheduled) / count);
+	}
+
+	/**
+	 * Connects a client that answers heartbeats, one that does not, an idle
+	 * object stream client and a socket that never says hello, and checks
+	 * the server closes all but the first.
+	 */
+	static void reap(ConnectionMode mode) throws Exception {
+		long idleTimeout = 200;
+		long readTimeout = 1000;
+
+		WatchingServer server = new WatchingServer(5572);
+		server.setConnectionMode(mode);
+		server.setIdleTimeout(idleTimeout);
+		server.setReadTimeout(readTimeout);
+		server.listen();
+		System.out.printf("mode=%s idle timeout=%d ms read timeout=%d ms%n", mode, idleTimeout, readTimeout);
+
+		QuietClient quiet = new QuietClient(server.getPort());
+		quiet.openConnection();
+
+		Socket legacy = new Socket("localhost", server.getPort());
+		new ObjectOutputStream(legacy.getOutputStream()).flush();
+		InputStream legacyIn = legacy.getInputStream();
+		new ObjectInputStream(legacyIn); // the server's stream header
+
+		Socket mute = new Socket("localhost", server.getPort());
+		Frames.writePreamble(mute.getOutputStream());
+
+		Socket socket = new Socket("localhost", server.getPort());
+		socket.setSoTimeout((int) (readTimeout * 5));
+		OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+		Frames.writePreamble(out);
+		out.write(Frames.hello(Frames.defaultCodecs()));
+		out.flush();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		Frames.readFrame(in, Frames.TYPE_HELLO);
+
+		long start = System.nanoTime();
+		int pings = 0;
+		try {
+			while (true) {
+				byte[] frame = Frames.readAnyFrame(in);
+				if (frame[0] == Frames.TYPE_PING)
+					pings++;
+			}
+		} catch (EOFException ex) {
+			// Closed by the server
+		}
+		long closedAfter = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		socket.close();
+
+		Thread.sleep(readTimeout);
+		boolean legacyOpen = isOpen(legacy, idleTimeout);
+		boolean muteOpen = isOpen(mute, idleTimeout);
+		ServerMetrics metrics = server.getMetrics();
+		System.out.printf("silent client: %d heartbeats, closed after %d ms%n", pings, closedAfter);
+		System.out.printf("server: heartbeats sent=%d timed out=%d clientDisconnected calls=%d clients=%d%n",
+				metrics.getHeartbeatsSent(), metrics.getConnectionsTimedOut(), server.disconnected.get(),
+				server.getNumberOfClients());
+		System.out.printf("answering client: %s%n", quiet.isConnected() && !quiet.closed ? "connected" : "CLOSED");
+		System.out.printf("idle object stream client after %d ms: %s%n", closedAfter + readTimeout,
+				legacyOpen ? "CONNECTED" : "closed");
+		System.out.printf("socket without hello after %d ms: %s%n", closedAfter + readTimeout,
+				muteOpen ? "CONNECTED" : "closed");
+		legacy.close();
+		mute.close();
+
+		quiet.closeConnection();
+		server.close();
+	}
+
+	/**
+	 * Tells whether the server still keeps a socket open, waiting a while
+	 * for it to be closed.
+	 */
+	static boolean isOpen(Socket socket, long wait) throws IOException {
+		socket.setSoTimeout((int) wait);
+		try {
+			InputStream in = socket.getInputStream();
+			while (in.read() >= 0)
+				; // whatever the server sent before closing
+			return false;
+		} catch (SocketTimeoutException ex) {
+			return true; // nothing to read, but not closed
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+}
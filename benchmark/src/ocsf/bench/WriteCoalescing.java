@@ -0,0 +1,163 @@
+package ocsf.bench;
+
+import java.nio.file.*;
+import java.util.concurrent.CountDownLatch;
+
+import ocsf.client.AbstractClient;
+import ocsf.server.*;
+
+/**
+ * Measures the cost of sending bursts of small chat messages, in messages
+ * per second and in write system calls per message.
+ * <p>
+ * Client to server, the client first flushes every message as it is sent,
+ * which is how every client behaved before write coalescing, then turns auto
+ * flush off and flushes once per burst. Server to clients, the server
+ * broadcasts bursts to a number of clients; its writers gather whatever is
+ * queued for a client into one buffer, where each message used to be a write
+ * of its own.
+ * <p>
+ * System calls are counted with <code>/proc/self/io</code>, so the counts are
+ * only printed on Linux. They cover the whole process, both ends included.
+ * <p>
+ * Usage: <code>java ocsf.bench.WriteCoalescing [mode] [messages] [burst] [clients]</code>
+ */
+public class WriteCoalescing {
+
+	/**
+	 * A server that counts what it receives.
+	 */
+	static class CountingServer extends AbstractServer {
+		volatile CountDownLatch	received;
+
+		CountingServer(int port) {
+			super(port);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			received.countDown();
+		}
+	}
+
+	/**
+	 * A client that counts what it receives.
+	 */
+	static class CountingClient extends AbstractClient {
+		volatile CountDownLatch	received;
+
+		CountingClient(int port) {
+			super("localhost", port);
+		}
+
+		protected void handleMessageFromServer(Object msg) {
+			received.countDown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ConnectionMode mode = args.length > 0 ? ConnectionMode.valueOf(args[0].toUpperCase()) : ConnectionMode.NIO;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		int burst = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		int clients = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+
+		CountingServer server = new CountingServer(5560);
+		server.setConnectionMode(mode);
+		server.setOutboundQueueCapacity(Math.max(burst * 4, 4096));
+		server.listen();
+		System.out.printf("mode=%s messages=%d burst=%d clients=%d%n", mode, messages, burst, clients);
+
+		CountingClient sender = new CountingClient(server.getPort());
+		sender.openConnection();
+		for (int round = 0; round < 2; round++) {
+			// The first round warms up
+			upload(server, sender, messages, burst, true, round == 1);
+			upload(server, sender, messages, burst, false, round == 1);
+		}
+		sender.closeConnection();
+
+		CountingClient[] receivers = new CountingClient[clients];
+		for (int i = 0; i < clients; i++) {
+			receivers[i] = new CountingClient(server.getPort());
+			receivers[i].openConnection();
+		}
+		while (server.getNumberOfClients() < clients)
+			Thread.sleep(10);
+		int perClient = messages / clients;
+		for (int round = 0; round < 2; round++)
+			broadcast(server, receivers, perClient, burst, round == 1);
+
+		for (CountingClient receiver : receivers)
+			receiver.closeConnection();
+		server.close();
+	}
+
+	/**
+	 * Sends messages from one client to the server.
+	 */
+	private static void upload(CountingServer server, CountingClient client, int messages, int burst,
+			boolean autoFlush, boolean print) throws Exception {
+		server.received = new CountDownLatch(messages);
+		client.setAutoFlush(autoFlush);
+
+		long calls = writeCalls();
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			client.sendToServer("message " + i);
+			if (i % burst == burst - 1)
+				client.flush();
+		}
+		client.flush();
+		server.received.await();
+		long elapsed = System.nanoTime() - start;
+
+		if (print)
+			report(autoFlush ? "client, flush each" : "client, flush per burst", messages, elapsed,
+					writeCalls() - calls);
+	}
+
+	/**
+	 * Broadcasts messages from the server to every client.
+	 */
+	private static void broadcast(CountingServer server, CountingClient[] clients, int messages, int burst,
+			boolean print) throws Exception {
+		CountDownLatch received = new CountDownLatch(messages * clients.length);
+		for (CountingClient client : clients)
+			client.received = received;
+
+		long calls = writeCalls();
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			server.sendToAllClients("message " + i);
+			if (i % burst == burst - 1)
+				Thread.yield();
+		}
+		received.await();
+		long elapsed = System.nanoTime() - start;
+
+		if (print)
+			report("server broadcast", messages * clients.length, elapsed, writeCalls() - calls);
+	}
+
+	private static void report(String label, int messages, long elapsed, long calls) {
+		System.out.printf("%-26s %10.0f msg/s", label, messages / (elapsed / 1e9));
+		if (writeCalls() >= 0)
+			System.out.printf("  %6.3f write syscalls/msg", calls / (double) messages);
+		System.out.println();
+	}
+
+	/**
+	 * Returns the number of write system calls made by the process so far,
+	 * or a negative number where it cannot be known.
+	 */
+	private static long writeCalls() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/io"))) {
+				if (line.startsWith("syscw:"))
+					return Long.parseLong(line.substring(6).trim());
+			}
+		} catch (Exception ex) {
+		}
+		return Long.MIN_VALUE / 2;
+	}
+}
+// End of WriteCoalescing class
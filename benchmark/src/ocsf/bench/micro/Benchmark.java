@@ -0,0 +1,71 @@
+package ocsf.bench.micro;
+
+/**
+ * A micro benchmark run by <code>Micro</code>. A benchmark measures one
+ * operation under each of its parameters, in a JVM of its own per fork:
+ * <code>setUp</code> is called once with the parameter, then
+ * <code>run</code> is called over and over by each measuring thread for the
+ * length of every iteration, then <code>tearDown</code>.
+ * <p>
+ * <code>run</code> returns a value computed from what the operations
+ * produced. The harness keeps it, so that the JIT cannot find the work
+ * useless and remove it.
+ *
+ * @see ocsf.bench.micro.Micro
+ */
+public abstract class Benchmark {
+
+	/**
+	 * @return the name of the benchmark, such as <code>codec</code>.
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return the parameters the benchmark is run with, one result each.
+	 */
+	public abstract String[] getParams();
+
+	/**
+	 * Returns how many threads call <code>run</code> at the same time.
+	 *
+	 * @param param
+	 *            the parameter.
+	 * @return the number of threads, 1 unless overridden.
+	 */
+	public int getThreads(String param) {
+		return 1;
+	}
+
+	/**
+	 * Prepares the benchmark for a parameter.
+	 *
+	 * @param param
+	 *            the parameter.
+	 * @exception Exception
+	 *                if it cannot be prepared.
+	 */
+	public void setUp(String param) throws Exception {
+	}
+
+	/**
+	 * Performs the operation a number of times. Called concurrently when
+	 * the benchmark has several threads.
+	 *
+	 * @param ops
+	 *            the number of times.
+	 * @return a value computed from the results.
+	 * @exception Exception
+	 *                if the operation fails.
+	 */
+	public abstract long run(int ops) throws Exception;
+
+	/**
+	 * Releases what <code>setUp</code> took.
+	 *
+	 * @exception Exception
+	 *                if it cannot be released.
+	 */
+	public void tearDown() throws Exception {
+	}
+}
+// End of Benchmark class
@@ -0,0 +1,55 @@
+package ocsf.bench.micro;
+
+import ocsf.common.BinaryCodec;
+import ocsf.server.*;
+
+/**
+ * Broadcasts a chat line with <code>sendToAllClients</code> to a number of
+ * in-memory connections, given as the parameter. An operation is one
+ * broadcast: the message is encoded once, then queued for every client and
+ * taken from each queue.
+ */
+public class BroadcastBenchmark extends Benchmark {
+
+	/**
+	 * A server that is never started; its clients are added in memory.
+	 */
+	static class IdleServer extends AbstractServer {
+		IdleServer() {
+			super(5570);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		}
+	}
+
+	private IdleServer				server;
+	private InMemoryConnection[]	connections;
+
+	public String getName() {
+		return "broadcast";
+	}
+
+	public String[] getParams() {
+		return new String[] { "1", "100", "10000" };
+	}
+
+	public void setUp(String param) {
+		server = new IdleServer();
+		connections = new InMemoryConnection[Integer.parseInt(param)];
+		for (int i = 0; i < connections.length; i++)
+			connections[i] = new InMemoryConnection(server, new BinaryCodec());
+	}
+
+	public long run(int ops) {
+		for (int i = 0; i < ops; i++)
+			server.sendToAllClients(CodecBenchmark.SHORT);
+		return connections[0].getBytesWritten();
+	}
+
+	public void tearDown() {
+		for (InMemoryConnection connection : connections)
+			connection.detach();
+	}
+}
+// End of BroadcastBenchmark class
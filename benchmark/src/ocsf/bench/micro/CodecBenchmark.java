@@ -0,0 +1,83 @@
+package ocsf.bench.micro;
+
+import java.io.ByteArrayOutputStream;
+
+import ocsf.common.*;
+
+/**
+ * Encodes and decodes chat payloads with each codec. The parameter is
+ * <i>codec</i>/<i>operation</i>/<i>payload</i>: a short chat line, or a
+ * long one such as a pasted stack trace, which the compressing codec
+ * deflates.
+ */
+public class CodecBenchmark extends Benchmark {
+
+	static final String	SHORT	= "ann: hello everyone, is the lab still on at four?";
+
+	static final String	LONG;
+	static {
+		StringBuilder text = new StringBuilder("ann: ");
+		for (int i = 0; text.length() < 2048; i++)
+			text.append("\tat ocsf.server.ConnectionToClient.run(ConnectionToClient.java:").append(400 + i)
+					.append(")\n");
+		LONG = text.toString();
+	}
+
+	private Codec					codec;
+	private boolean					encode;
+	private String					payload;
+	private byte[]					encoded;
+
+	/**
+	 * Where the messages are encoded; one per thread, as a server's readers
+	 * each have their own.
+	 */
+	private ByteArrayOutputStream	buffer	= new ByteArrayOutputStream();
+
+	public String getName() {
+		return "codec";
+	}
+
+	public String[] getParams() {
+		return new String[] { "binary/encode/short", "binary/decode/short", "binary/encode/long",
+				"binary/decode/long", "serialization/encode/short", "serialization/decode/short",
+				"serialization/encode/long", "serialization/decode/long", "compressing/encode/short",
+				"compressing/decode/short", "compressing/encode/long", "compressing/decode/long" };
+	}
+
+	public void setUp(String param) throws Exception {
+		String[] parts = param.split("/");
+		switch (parts[0]) {
+		case "binary":
+			codec = new BinaryCodec();
+			break;
+		case "serialization":
+			codec = new SerializationCodec();
+			break;
+		default:
+			codec = new CompressingCodec(new BinaryCodec());
+		}
+		encode = parts[1].equals("encode");
+		payload = parts[2].equals("short") ? SHORT : LONG;
+
+		codec.encode(payload, buffer);
+		encoded = buffer.toByteArray();
+		buffer.reset();
+	}
+
+	public long run(int ops) throws Exception {
+		long result = 0;
+		if (encode) {
+			for (int i = 0; i < ops; i++) {
+				codec.encode(payload, buffer);
+				result += buffer.size();
+				buffer.reset();
+			}
+		} else {
+			for (int i = 0; i < ops; i++)
+				result += ((String) codec.decode(encoded, 0, encoded.length)).length();
+		}
+		return result;
+	}
+}
+// End of CodecBenchmark class
@@ -0,0 +1,85 @@
+package ocsf.bench.micro;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.common.BinaryCodec;
+import ocsf.server.*;
+
+/**
+ * Hands messages to the server as the readers of several clients would, one
+ * client per thread, and measures until they are handled. The parameter is
+ * <i>dispatch</i>/<i>threads</i>: with <code>synchronized</code> dispatch
+ * every handler call takes the server's lock; with
+ * <code>concurrent</code> dispatch messages are queued for the dispatch
+ * pool and the thread waits until its client's messages have been handled.
+ */
+public class DispatchBenchmark extends Benchmark {
+
+	/**
+	 * A client that counts the messages the server handled for it.
+	 */
+	static class CountedConnection extends InMemoryConnection {
+		final AtomicLong	handled	= new AtomicLong();
+		long				sent;
+
+		CountedConnection(AbstractServer server) {
+			super(server, new BinaryCodec());
+		}
+	}
+
+	/**
+	 * A server whose handler does a little work per message, as parsing a
+	 * chat command would.
+	 */
+	static class HandlingServer extends AbstractServer {
+		HandlingServer() {
+			super(5571);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			if (((String) msg).indexOf(':') > 0)
+				((CountedConnection) client).handled.incrementAndGet();
+		}
+	}
+
+	private HandlingServer						server;
+	private boolean								concurrent;
+	private final ThreadLocal<CountedConnection>	connection	= ThreadLocal
+			.withInitial(() -> new CountedConnection(server));
+
+	public String getName() {
+		return "dispatch";
+	}
+
+	public String[] getParams() {
+		return new String[] { "synchronized/1", "synchronized/4", "concurrent/1", "concurrent/4" };
+	}
+
+	public int getThreads(String param) {
+		return Integer.parseInt(param.split("/")[1]);
+	}
+
+	public void setUp(String param) throws Exception {
+		concurrent = param.startsWith("concurrent");
+		server = new HandlingServer();
+		server.setConcurrentDispatch(concurrent);
+		if (concurrent)
+			server.listen(); // the dispatch pool starts with the server
+	}
+
+	public long run(int ops) {
+		CountedConnection client = connection.get();
+		for (int i = 0; i < ops; i++)
+			client.receive(CodecBenchmark.SHORT);
+		client.sent += ops;
+		while (client.handled.get() < client.sent)
+			Thread.yield();
+		return client.handled.get();
+	}
+
+	public void tearDown() throws Exception {
+		if (concurrent)
+			server.close();
+	}
+}
+// End of DispatchBenchmark class
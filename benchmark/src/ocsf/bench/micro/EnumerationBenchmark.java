@@ -0,0 +1,54 @@
+package ocsf.bench.micro;
+
+import ocsf.common.BinaryCodec;
+import ocsf.server.*;
+
+/**
+ * Walks the clients of a server, through the array
+ * <code>getClientConnections</code> copies or through
+ * <code>getClients</code>. The parameter is <i>method</i>/<i>clients</i>;
+ * an operation is one walk that looks at every client.
+ */
+public class EnumerationBenchmark extends Benchmark {
+
+	private BroadcastBenchmark.IdleServer	server;
+	private boolean							array;
+
+	public String getName() {
+		return "enumeration";
+	}
+
+	public String[] getParams() {
+		return new String[] { "getClientConnections/100", "getClients/100", "getClientConnections/10000",
+				"getClients/10000" };
+	}
+
+	public void setUp(String param) {
+		String[] parts = param.split("/");
+		array = parts[0].equals("getClientConnections");
+		server = new BroadcastBenchmark.IdleServer();
+		int clients = Integer.parseInt(parts[1]);
+		for (int i = 0; i < clients; i++)
+			new InMemoryConnection(server, new BinaryCodec());
+	}
+
+	public long run(int ops) {
+		long result = 0;
+		for (int i = 0; i < ops; i++) {
+			if (array) {
+				for (Thread client : server.getClientConnections())
+					result += ((ConnectionToClient) client).getStreamCount();
+			} else {
+				for (ConnectionToClient client : server.getClients())
+					result += client.getStreamCount();
+			}
+		}
+		return result;
+	}
+
+	public void tearDown() {
+		for (ConnectionToClient client : server.getClients())
+			((InMemoryConnection) client).detach();
+	}
+}
+// End of EnumerationBenchmark class
@@ -0,0 +1,419 @@
+package ocsf.bench.micro;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the micro benchmarks of OCSF the way JMH runs its own, so that
+ * results can be compared across commits.
+ * <p>
+ * Every parameter of every benchmark runs in fresh JVMs, the forks, started
+ * with the same options. Each fork warms up for a number of iterations, then
+ * measures a number more, each iteration lasting a fixed time. The score is
+ * the average time an operation takes, in nanoseconds, over the measured
+ * iterations of all forks, with the half width of its 99.9% confidence
+ * interval as error. With several threads it is the time per operation of
+ * each thread, as JMH reports it.
+ * <p>
+ * Results are printed as a table and, with <code>-o</code>, appended to a
+ * CSV file along with the commit and Java version they were measured with.
+ * <code>--compare</code> reads two such files and tells which scores moved
+ * by more than their errors.
+ * <p>
+ * Usage:
+ * <pre>
+ * java ocsf.bench.micro.Micro [-f forks] [-wi iterations] [-i iterations] [-r seconds] [-o file.csv] [regex]
+ * java ocsf.bench.micro.Micro -l
+ * java ocsf.bench.micro.Micro --compare before.csv after.csv
+ * </pre>
+ * The regular expression picks benchmarks by name and parameter, as in
+ * <code>broadcast</code> or <code>codec:binary/.*</code>. With
+ * <code>-f 0</code> the benchmarks run in this JVM, which is only good for
+ * trying them out.
+ */
+public class Micro {
+
+	/**
+	 * Every benchmark, in the order they run.
+	 */
+	static final Benchmark[]	BENCHMARKS	= { new CodecBenchmark(), new BroadcastBenchmark(),
+			new DispatchBenchmark(), new EnumerationBenchmark() };
+
+	/**
+	 * The options of the forks. The heap is fixed so that runs on different
+	 * machines and days size it alike.
+	 */
+	static final String[]		JVM_OPTIONS	= { "-Xms512m", "-Xmx512m", "-XX:+UseParallelGC" };
+
+	static final String			CSV_HEADER	= "commit,benchmark,param,threads,score,error,unit,samples,java";
+
+	/**
+	 * What the operations returned, kept so that they are not optimized away.
+	 */
+	static volatile long		sink;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("--fork")) {
+			fork(args);
+			return;
+		}
+		if (args.length == 3 && args[0].equals("--compare")) {
+			compare(Paths.get(args[1]), Paths.get(args[2]));
+			return;
+		}
+
+		int forks = 2;
+		int warmups = 3;
+		int iterations = 5;
+		int seconds = 1;
+		Path output = null;
+		boolean list = false;
+		Pattern filter = Pattern.compile(".*");
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-f":
+				forks = Integer.parseInt(args[++i]);
+				break;
+			case "-wi":
+				warmups = Integer.parseInt(args[++i]);
+				break;
+			case "-i":
+				iterations = Integer.parseInt(args[++i]);
+				break;
+			case "-r":
+				seconds = Integer.parseInt(args[++i]);
+				break;
+			case "-o":
+				output = Paths.get(args[++i]);
+				break;
+			case "-l":
+				list = true;
+				break;
+			default:
+				filter = Pattern.compile(args[i]);
+			}
+		}
+
+		String commit = commit();
+		String java = System.getProperty("java.version");
+		List<String[]> results = new ArrayList<String[]>();
+		for (Benchmark benchmark : BENCHMARKS) {
+			for (String param : benchmark.getParams()) {
+				String id = benchmark.getName() + ":" + param;
+				if (!filter.matcher(id).find())
+					continue;
+				if (list) {
+					System.out.println(id);
+					continue;
+				}
+
+				int threads = benchmark.getThreads(param);
+				System.out.printf("# %s, %d thread(s), %d fork(s) of %d warmup and %d measured %ds iterations%n", id,
+						threads, forks, warmups, iterations, seconds);
+				List<Double> scores = new ArrayList<Double>();
+				if (forks == 0) {
+					scores.addAll(measure(benchmark, param, warmups, iterations, seconds));
+				} else {
+					for (int f = 1; f <= forks; f++) {
+						System.out.printf("# Fork %d of %d%n", f, forks);
+						List<Double> forkScores = runFork(benchmark, param, warmups, iterations, seconds);
+						if (forkScores == null) {
+							System.out.println("# Fork failed; " + id + " is left out");
+							scores = null;
+							break;
+						}
+						scores.addAll(forkScores);
+					}
+				}
+				if (scores == null || scores.isEmpty())
+					continue;
+
+				double[] summary = summarize(scores);
+				System.out.printf("# %s: %.3f +- %.3f ns/op%n%n", id, summary[0], summary[1]);
+				results.add(new String[] { commit, benchmark.getName(), param, String.valueOf(threads),
+						String.format(Locale.ROOT, "%.3f", summary[0]), String.format(Locale.ROOT, "%.3f", summary[1]),
+						"ns/op", String.valueOf(scores.size()), java });
+			}
+		}
+		if (list || results.isEmpty())
+			return;
+
+		System.out.printf("%-12s %-28s %7s %14s   %10s  %s%n", "Benchmark", "Param", "Threads", "Score", "Error",
+				"Units");
+		for (String[] row : results)
+			System.out.printf("%-12s %-28s %7s %14s +- %10s  %s%n", row[1], row[2], row[3], row[4], row[5], row[6]);
+
+		if (output != null) {
+			boolean fresh = !Files.exists(output);
+			try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(output, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND))) {
+				if (fresh)
+					writer.println(CSV_HEADER);
+				for (String[] row : results)
+					writer.println(String.join(",", row));
+			}
+			System.out.println("Results appended to " + output);
+		}
+	}
+
+	// FORKS ------------------------------------------------------------
+
+	/**
+	 * Runs one fork of a benchmark and returns the scores of its measured
+	 * iterations, or null if it failed. Its output is echoed.
+	 */
+	private static List<Double> runFork(Benchmark benchmark, String param, int warmups, int iterations,
+			int seconds) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.addAll(Arrays.asList(JVM_OPTIONS));
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Micro.class.getName());
+		command.add("--fork");
+		command.add(benchmark.getName());
+		command.add(param);
+		command.add(String.valueOf(warmups));
+		command.add(String.valueOf(iterations));
+		command.add(String.valueOf(seconds));
+
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		List<Double> scores = null;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("SCORES")) {
+					scores = new ArrayList<Double>();
+					for (String score : line.substring(6).trim().split(" "))
+						scores.add(Double.valueOf(score));
+				} else
+					System.out.println(line);
+			}
+		}
+		return process.waitFor() == 0 ? scores : null;
+	}
+
+	/**
+	 * The main of a fork: measures one parameter of one benchmark and
+	 * prints the scores for the JVM that started it.
+	 */
+	private static void fork(String[] args) throws Exception {
+		Benchmark benchmark = null;
+		for (Benchmark candidate : BENCHMARKS)
+			if (candidate.getName().equals(args[1]))
+				benchmark = candidate;
+		if (benchmark == null)
+			throw new IllegalArgumentException("no benchmark " + args[1]);
+
+		List<Double> scores = measure(benchmark, args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+				Integer.parseInt(args[5]));
+		StringBuilder line = new StringBuilder("SCORES");
+		for (double score : scores)
+			line.append(' ').append(score);
+		System.out.println(line);
+		System.exit(0); // benchmarks may leave threads behind
+	}
+
+	// MEASUREMENT ------------------------------------------------------
+
+	/**
+	 * Sets a benchmark up, runs its iterations and tears it down.
+	 *
+	 * @return the scores of the measured iterations, in ns/op.
+	 */
+	private static List<Double> measure(Benchmark benchmark, String param, int warmups, int iterations,
+			int seconds) throws Exception {
+		int threads = benchmark.getThreads(param);
+		long nanos = seconds * 1000000000L;
+		List<Double> scores = new ArrayList<Double>();
+		benchmark.setUp(param);
+		try {
+			for (int i = 1; i <= warmups; i++)
+				System.out.printf("Warmup iteration %2d: %.3f ns/op%n", i, iteration(benchmark, threads, nanos));
+			for (int i = 1; i <= iterations; i++) {
+				double score = iteration(benchmark, threads, nanos);
+				System.out.printf("Iteration %2d:        %.3f ns/op%n", i, score);
+				scores.add(score);
+			}
+		} finally {
+			benchmark.tearDown();
+		}
+		return scores;
+	}
+
+	/**
+	 * Runs a benchmark on its threads for a given time.
+	 *
+	 * @return the time per operation of each thread, averaged over the
+	 *         threads, in nanoseconds.
+	 */
+	private static double iteration(final Benchmark benchmark, int threads, final long nanos) throws Exception {
+		System.gc(); // garbage of the previous iteration is not charged to this one
+
+		final double[] perOp = new double[threads];
+		final long[] results = new long[threads];
+		final Exception[] failure = new Exception[1];
+		final CyclicBarrier start = new CyclicBarrier(threads);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int index = t;
+			workers[t] = new Thread(() -> {
+				try {
+					start.await();
+					long begin = System.nanoTime();
+					long end = begin + nanos;
+					long ops = 0;
+					long result = 0;
+					int batch = 1;
+					long now;
+					do {
+						// Calls are batched until they take long enough
+						// for the clock not to weigh on the score
+						long before = System.nanoTime();
+						result += benchmark.run(batch);
+						ops += batch;
+						now = System.nanoTime();
+						if (now - before < 100000 && batch < (1 << 20))
+							batch <<= 1;
+					} while (now < end);
+					perOp[index] = (double) (now - begin) / ops;
+					results[index] = result;
+				} catch (Exception ex) {
+					synchronized (failure) {
+						failure[0] = ex;
+					}
+				}
+			}, "Micro worker " + t);
+			workers[t].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+		synchronized (failure) {
+			if (failure[0] != null)
+				throw failure[0];
+		}
+
+		double total = 0;
+		for (int t = 0; t < threads; t++) {
+			total += perOp[t];
+			sink += results[t];
+		}
+		return total / threads;
+	}
+
+	/**
+	 * Returns the mean of scores and the half width of its 99.9% confidence
+	 * interval, from Student's t distribution.
+	 */
+	static double[] summarize(List<Double> scores) {
+		int n = scores.size();
+		double mean = 0;
+		for (double score : scores)
+			mean += score;
+		mean /= n;
+		if (n < 2)
+			return new double[] { mean, Double.NaN };
+
+		double squares = 0;
+		for (double score : scores)
+			squares += (score - mean) * (score - mean);
+		double deviation = Math.sqrt(squares / (n - 1));
+		return new double[] { mean, studentT999(n - 1) * deviation / Math.sqrt(n) };
+	}
+
+	/**
+	 * Returns the 0.9995 quantile of Student's t distribution.
+	 */
+	private static double studentT999(int degrees) {
+		final double[] table = { 636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59, 4.44, 4.32, 4.22,
+				4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85, 3.82, 3.79, 3.77, 3.75, 3.73, 3.71, 3.69, 3.67, 3.66, 3.65 };
+		if (degrees <= table.length)
+			return table[degrees - 1];
+		if (degrees <= 60)
+			return 3.46;
+		if (degrees <= 120)
+			return 3.37;
+		return 3.29;
+	}
+
+	// RESULTS ----------------------------------------------------------
+
+	/**
+	 * Returns the commit the benchmarks are built from, marked when the
+	 * tree has changes, or the value of the <code>bench.commit</code>
+	 * property when there is one.
+	 */
+	private static String commit() {
+		String commit = System.getProperty("bench.commit");
+		if (commit != null)
+			return commit;
+		try {
+			commit = git("rev-parse", "--short", "HEAD");
+			if (commit.isEmpty())
+				return "unknown";
+			return git("status", "--porcelain", "--untracked-files=no").isEmpty() ? commit : commit + "+dirty";
+		} catch (IOException ex) {
+			return "unknown";
+		}
+	}
+
+	private static String git(String... args) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add("git");
+		command.addAll(Arrays.asList(args));
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		StringBuilder text = new StringBuilder();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+			String line;
+			while ((line = reader.readLine()) != null)
+				text.append(line).append('\n');
+			if (process.waitFor() != 0)
+				return "";
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return "";
+		}
+		return text.toString().trim();
+	}
+
+	/**
+	 * Prints the scores of two result files side by side. A score that
+	 * moved by more than the sum of the two errors is marked as faster or
+	 * slower; the last row of a benchmark and parameter in a file counts.
+	 */
+	private static void compare(Path before, Path after) throws IOException {
+		Map<String, String[]> old = read(before);
+		Map<String, String[]> now = read(after);
+		System.out.printf("%-12s %-28s %7s %14s %14s %8s%n", "Benchmark", "Param", "Threads", "Before", "After",
+				"Change");
+		for (Map.Entry<String, String[]> entry : now.entrySet()) {
+			String[] row = entry.getValue();
+			String[] base = old.get(entry.getKey());
+			if (base == null) {
+				System.out.printf("%-12s %-28s %7s %14s %14s%n", row[1], row[2], row[3], "-", row[4]);
+				continue;
+			}
+			double a = Double.parseDouble(base[4]);
+			double b = Double.parseDouble(row[4]);
+			double error = Double.parseDouble(base[5]) + Double.parseDouble(row[5]);
+			String verdict = Double.isNaN(error) || Math.abs(b - a) <= error ? "" : b < a ? "faster" : "slower";
+			System.out.printf("%-12s %-28s %7s %14s %14s %+7.1f%% %s%n", row[1], row[2], row[3], base[4], row[4],
+					(b - a) * 100 / a, verdict);
+		}
+	}
+
+	private static Map<String, String[]> read(Path file) throws IOException {
+		Map<String, String[]> rows = new LinkedHashMap<String, String[]>();
+		for (String line : Files.readAllLines(file)) {
+			if (line.isEmpty() || line.equals(CSV_HEADER))
+				continue;
+			String[] row = line.split(",");
+			rows.put(row[1] + "," + row[2] + "," + row[3], row);
+		}
+		return rows;
+	}
+}
+// End of Micro class
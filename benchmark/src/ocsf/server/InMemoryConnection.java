@@ -0,0 +1,94 @@
+package ocsf.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import ocsf.common.*;
+
+/**
+ * A connection to a client that exists only in memory, so that benchmarks
+ * can measure the server's fan-out, dispatch and enumeration with any
+ * number of clients and no socket. Messages sent to it are encoded and
+ * queued as for a framed client, then taken from the queue on the sending
+ * thread and counted, so what is measured is the server's own work.
+ * <p>
+ * It is in the package of the server to reach what only connections can;
+ * it is part of the benchmarks, not of the framework.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class InMemoryConnection extends ConnectionToClient {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final Codec	codec;
+
+	/**
+	 * The bytes taken from the outbound queue.
+	 */
+	private long		bytesWritten;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a connection and adds it to the clients of a server.
+	 *
+	 * @param server
+	 *            the server.
+	 * @param codec
+	 *            the codec messages are encoded with.
+	 */
+	public InMemoryConnection(AbstractServer server, Codec codec) {
+		super(new Socket(), server);
+		this.codec = codec;
+		server.addClient(this);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Hands a message to the server as if the client had sent it.
+	 *
+	 * @param msg
+	 *            the message.
+	 */
+	public void receive(Object msg) {
+		getServer().receiveMessageFromClient(msg, this);
+	}
+
+	/**
+	 * Removes the connection from the clients of the server.
+	 */
+	public void detach() {
+		try {
+			closeAll();
+		} catch (IOException ex) {
+		}
+	}
+
+	/**
+	 * @return the number of bytes sent to the connection.
+	 */
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	void writeMessage(Object msg) throws IOException {
+		queue(ByteBuffer.wrap(Frames.encode(msg, codec)));
+	}
+
+	void writeEncoded(EncodedMessage msg) throws IOException {
+		queue(ByteBuffer.wrap(msg.getFrame(codec)));
+	}
+
+	void scheduleWrite() {
+		OutboundQueue outbound = getOutboundQueue();
+		ByteBuffer frame;
+		synchronized (this) {
+			while ((frame = outbound.poll()) != null)
+				bytesWritten += frame.remaining();
+		}
+	}
+}
+// End of InMemoryConnection class
@@ -2,9 +2,22 @@
 // "Object Oriented Software Engineering" and is issued under the open-source
 // license found at www.lloseng.com 
 
+import ocsf.common.TokenBucket;
 import ocsf.server.*;
 import common.*;
+import server.Federation;
+import server.Mailbox;
+import server.MessageLog;
+import server.Session;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.sound.midi.SysexMessage;
 
@@ -27,7 +40,121 @@ public class EchoServer extends AbstractServer
    */
   final public static int DEFAULT_PORT = 5555;
 
+  /**
+   * The environment variable holding the secret shared by the servers
+   * of a federation.
+   */
+  final public static String FEDERATION_SECRET = "CHAT_FEDERATION_SECRET";
+
+  /**
+   * The number of past messages a client is sent when it logs on.
+   */
+  final public static int HISTORY_ON_LOGIN = 20;
+
+  /**
+   * The most past messages a client is sent when it logs on asking for
+   * everything since a sequence number.
+   */
+  final public static int MAX_HISTORY = 1000;
+
+  /**
+   * The number of messages a session keeps to send again to a client
+   * that resumes it.
+   */
+  final public static int SESSION_BACKLOG = 1000;
+
+  /**
+   * How long the session of a client whose connection dropped waits for
+   * it to come back, in milliseconds.
+   */
+  final public static long SESSION_GRACE = 60000;
+
+  /**
+   * How long a client may be silent before it is sent a heartbeat, in
+   * milliseconds.
+   */
+  final public static long HEARTBEAT_INTERVAL = 15000;
+
+  /**
+   * How long a client may be silent before its connection is closed as
+   * dead, in milliseconds. Its session then waits SESSION_GRACE for it.
+   */
+  final public static long DEAD_CLIENT_TIMEOUT = 45000;
+
+  /**
+   * How many lines a second a client may send, and how many at once.
+   * Every line may be sent on to every user, so a client that floods
+   * the server would flood them all. The lines over the limit are
+   * delayed, which holds the client up without losing anything.
+   */
+  final public static double MESSAGE_RATE = 20;
+  final public static int MESSAGE_BURST = 40;
 
+  //Instance variables **********************************************
+
+  /**
+   * The session of every logged in client, by login ID. A login ID can
+   * only be taken by one session at a time, which keeps it while its
+   * client is reconnecting.
+   */
+  private final ConcurrentHashMap<String, Session> logins =
+    new ConcurrentHashMap<String, Session>();
+
+  /**
+   * The members of every chat room. A chat line is sent to the members
+   * of the sender's current room only.
+   */
+  private final SubscriptionIndex rooms = new SubscriptionIndex();
+
+  /**
+   * The log of the messages sent to everybody, or null if the server
+   * keeps no history.
+   */
+  private volatile MessageLog history;
+
+  /**
+   * Where whispers to clients that are not logged on wait for them, or
+   * null if they are refused.
+   */
+  private volatile Mailbox mailbox;
+
+  /**
+   * The other chat servers this one relays messages to and from, or
+   * null if it stands alone.
+   */
+  private volatile Federation federation;
+
+  /**
+   * When the #stats command last ran, and the counters it read, from
+   * which the next one computes rates.
+   */
+  private long statsTime = System.nanoTime();
+  private long statsAccepted;
+  private long statsMessagesIn;
+  private long statsMessagesOut;
+  private long statsBytesIn;
+  private long statsBytesOut;
+
+  /**
+   * The thread mailboxes are emptied on, so that reading them from disk
+   * never holds up the clients' messages.
+   */
+  private final ExecutorService drainer =
+    Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Mailbox drainer");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+  /**
+   * The thread sessions left without connection are ended on.
+   */
+  private final ScheduledExecutorService expirer =
+    Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Session expirer");
+      thread.setDaemon(true);
+      return thread;
+    });
 
   /**
    * The interface type variable.  It allows the implementation of 
@@ -44,8 +171,12 @@ public class EchoServer extends AbstractServer
    */
   public EchoServer(int port, ChatIF serverUI) 
   {
-    super(port);
+    super(port, ChatCodecs.codecs());
     this.serverUI = serverUI;
+    setIdleTimeout(HEARTBEAT_INTERVAL);
+    setReadTimeout(DEAD_CLIENT_TIMEOUT);
+    setRateLimit(MESSAGE_RATE, MESSAGE_BURST);
+    setThrottlePolicy(ThrottlePolicy.DELAY);
   }
 
   
@@ -63,30 +194,634 @@ public class EchoServer extends AbstractServer
 
     String message = String.valueOf(msg);
 
-    Object clientID = client.getInfo("clientIDForServer");
-    serverUI.display("Message received: " + msg + " from " + clientID);
-
-    if (message.startsWith("#login")){
-      Object currentLoginID = client.getInfo("ID");
-      if (currentLoginID != null){
+    Object peer = client.getInfo("peer");
+    if (peer != null){
+      if (federation != null && message.startsWith("#relay")){
+        federation.receive(message, (String)peer);
+      }
+      return;
+    }
+    if (message.startsWith("#peer") && federation != null){
+      String[] intro = message.substring("#peer".length()).trim().split(" ");
+      String member = intro[0];
+      if (!federation.acceptPeer(member, intro.length > 1 ? intro[1] : null,
+        client.getInetAddress())){
+        serverUI.display("Refused peer " + member + " from " + client);
         try{
-          client.sendToClient("Error, ID already defined. Terminating connection");
           client.close();
         }
         catch (IOException e){}
+        return;
       }
-      String[] loginIDList = message.trim().split(" ");
-      String loginID = loginIDList[1];
-      client.setInfo("clientIDForServer", loginID);
-      serverUI.display(loginID + " has logged on");
-      this.sendToAllClients(loginID + " has logged on");
+      client.setInfo("peer", member);
+      client.setRateLimit(null); // relays the lines of a whole server
+      serverUI.display(member + " has joined the federation");
+      return;
+    }
+
+    Object clientID = client.getInfo("clientIDForServer");
+    serverUI.display("Message received: " + msg + " from " + clientID);
+
+    if (message.startsWith("#login")){
+      executeLoginCommand(message, client);
+    }
+
+    else if (message.startsWith("#resume")){
+      executeResumeCommand(message, client);
+    }
+
+    else if (message.startsWith("#logoff")){
+      executeLogoffCommand(client);
+    }
+
+    else if (message.startsWith("#whisper")){
+      executeWhisperCommand(message, client);
+    }
+
+    else if (message.startsWith("#join")){
+      executeJoinCommand(message, client);
+    }
+
+    else if (message.startsWith("#leave")){
+      executeLeaveCommand(message, client);
+    }
+
+    else if (message.startsWith("#room")){
+      executeRoomCommand(message, client);
     }
     
     else{
-      this.sendToAllClients(clientID + ": " + msg);
+      Object room = client.getInfo("room");
+      if (room != null){
+        publish((String)room, "[" + room + "] " + clientID + ": " + msg);
+      }
+      else{
+        broadcast(clientID + ": " + msg);
+      }
     }
   }
     
+  /**
+   * Returns the connection of the client logged in with an ID.
+   *
+   * @param loginID The login ID.
+   * @return the connection, or null if nobody is logged in with it.
+   */
+  public ConnectionToClient getClient(String loginID)
+  {
+    Session session = logins.get(loginID);
+    return session == null ? null : session.getClient();
+  }
+
+  /**
+   * Sends a message to a client, through its session if it is logged
+   * on.
+   *
+   * @param client The connection of the client.
+   * @param msg The message.
+   */
+  private void send(ConnectionToClient client, Object msg)
+  {
+    Session session = (Session)client.getInfo("session");
+    if (session != null){
+      session.send(msg);
+      return;
+    }
+    try{
+      client.sendToClient(msg);
+    }
+    catch (IOException e){}
+  }
+
+  /**
+   * Logs a client in and opens its session. The ID is claimed
+   * atomically, so of two clients logging in with the same ID at once,
+   * exactly one succeeds; the other one, like a client that is already
+   * logged in, is told why and disconnected. A session waiting for its
+   * client to reconnect gives its ID up to a new login.
+   *
+   * @param message The #login command.
+   * @param client The connection from which the command originated.
+   */
+  private void executeLoginCommand(String message, ConnectionToClient client)
+  {
+    String[] loginIDList = message.trim().split(" ");
+    String error = null;
+    if (client.getInfo("clientIDForServer") != null){
+      error = "Error, ID already defined. Terminating connection";
+    }
+    else if (loginIDList.length < 2){
+      error = "Error, no ID given. Terminating connection";
+    }
+    else if (federation != null
+      && federation.getNode(loginIDList[1]) != null){
+      error = "Error, " + loginIDList[1]
+        + " is already logged on to " + federation.getNode(loginIDList[1])
+        + ". Terminating connection";
+    }
+    Session session = new Session(loginIDList.length < 2 ? null
+      : loginIDList[1], SESSION_BACKLOG, getRateLimit() > 0
+      ? new TokenBucket(getRateLimit(), getRateBurst()) : null);
+    if (error == null && !claim(session)){
+      error = "Error, " + loginIDList[1]
+        + " is already logged on. Terminating connection";
+    }
+
+    if (error != null){
+      try{
+        client.sendToClient(error);
+        client.close();
+      }
+      catch (IOException e){}
+      return;
+    }
+
+    String loginID = loginIDList[1];
+    client.setInfo("clientIDForServer", loginID);
+    client.setInfo("session", session);
+    try{
+      client.sendToClient("#session " + session.getToken());
+    }
+    catch (IOException e){}
+    session.attach(client, 0);
+    sendHistory(loginIDList, session);
+    drainMailbox(loginID);
+    serverUI.display(loginID + " has logged on");
+    this.sendToAllClients(loginID + " has logged on");
+    if (federation != null){
+      federation.userJoined(loginID);
+      federation.notice(loginID + " has logged on");
+    }
+  }
+
+  /**
+   * Takes the login ID of a new session, from the session that had it
+   * if that one is waiting for its client to reconnect.
+   *
+   * @param session The new session.
+   * @return true if the ID was free or has been taken over.
+   */
+  private boolean claim(Session session)
+  {
+    String loginID = session.getLoginID();
+    Session previous = logins.putIfAbsent(loginID, session);
+    if (previous == null){
+      return true;
+    }
+    if (!previous.isDetached() || !logins.replace(loginID, previous, session)){
+      return false;
+    }
+    previous.end();
+    rooms.unsubscribeAll(previous.getLastClient());
+    return true;
+  }
+
+  /**
+   * Reattaches a client whose connection dropped to its session, which
+   * sends it the messages it missed. If the session has ended or has not
+   * kept them all, the client is logged in again instead.
+   *
+   * @param message The #resume command: "#resume &lt;id&gt; &lt;token&gt;
+   *  &lt;messages seen&gt;".
+   * @param client The connection from which the command originated.
+   */
+  private void executeResumeCommand(String message, ConnectionToClient client)
+  {
+    String[] resume = message.trim().split(" ");
+    if (resume.length < 4 || client.getInfo("clientIDForServer") != null){
+      executeLoginCommand("#login" + (resume.length > 1 ? " " + resume[1] : ""),
+        client);
+      return;
+    }
+
+    String loginID = resume[1];
+    Session session = logins.get(loginID);
+    long since;
+    try{
+      since = Long.parseLong(resume[3]);
+    }
+    catch (NumberFormatException e){
+      since = -1;
+    }
+    ConnectionToClient previous =
+      session == null ? null : session.getLastClient();
+
+    // Set first, so that the connection dropping again is noticed
+    client.setInfo("clientIDForServer", loginID);
+    client.setInfo("session", session);
+    if (session == null || !session.getToken().equals(resume[2])
+      || !session.attach(client, since)){
+      client.setInfo("clientIDForServer", null);
+      client.setInfo("session", null);
+      executeLoginCommand("#login " + loginID, client);
+      return;
+    }
+
+    if (previous != null && previous != client){
+      client.setInfo("room", previous.getInfo("room"));
+      for (String room : new ArrayList<String>(rooms.getTopics(previous))){
+        rooms.subscribe(room, client);
+      }
+      rooms.unsubscribeAll(previous);
+    }
+    serverUI.display(loginID + " has resumed its session");
+  }
+
+  /**
+   * Ends the session of a client that is leaving, so that it is not
+   * kept for it to come back.
+   *
+   * @param client The connection from which the command originated.
+   */
+  private void executeLogoffCommand(ConnectionToClient client)
+  {
+    Session session = (Session)client.getInfo("session");
+    if (session != null && session.end()){
+      endSession(session);
+    }
+  }
+
+  /**
+   * Tells everybody that the user of a session that has ended is gone.
+   *
+   * @param session The session.
+   */
+  private void endSession(Session session)
+  {
+    String loginID = session.getLoginID();
+    if (!logins.remove(loginID, session)){
+      return; //taken over by a new login
+    }
+    if (federation != null){
+      federation.userLeft(loginID);
+      federation.notice(loginID + " has disconnected");
+    }
+    rooms.unsubscribeAll(session.getLastClient());
+    serverUI.display(loginID + " has disconnected");
+    sendToAllClients(loginID + " has disconnected");
+  }
+
+  /**
+   * Sends a message to the members of a room.
+   *
+   * @param room The room.
+   * @param message The message.
+   */
+  private void publish(String room, String message)
+  {
+    EncodedMessage encoded = new EncodedMessage(message);
+    for (ConnectionToClient member : rooms.getSubscribers(room)){
+      send(member, encoded);
+    }
+  }
+
+  /**
+   * Sends a message to every client and appends it to the history. The
+   * message is not waited for to reach the disk, which it does within the
+   * sync interval of the log: clients are not held up by the disk, and a
+   * crash of the machine can lose the last moments of history.
+   *
+   * @param message The message.
+   */
+  private void broadcast(String message)
+  {
+    MessageLog log = history;
+    if (log != null){
+      try{
+        log.append(message);
+      }
+      catch (IOException e){
+        serverUI.display("ERROR - Could not write history: " + e.getMessage());
+      }
+    }
+    sendToAllClients(message);
+    if (federation != null){
+      federation.broadcast(message);
+    }
+  }
+
+  /**
+   * Sends a message to every client that is a user rather than another
+   * node of the federation: through its session if it is logged on,
+   * which keeps the message if the client is reconnecting. A connection
+   * that carries streams gets the message through them.
+   *
+   * @param msg The message.
+   */
+  public void sendToAllClients(Object msg)
+  {
+    long start = System.nanoTime();
+    EncodedMessage encoded = new EncodedMessage(msg);
+    for (ConnectionToClient client : getClients()){
+      if (client.getInfo("peer") == null && client.getInfo("session") == null
+        && client.getStreamCount() == 0){
+        try{
+          client.sendToClient(encoded);
+        }
+        catch (Exception e){}
+      }
+    }
+    for (Session session : logins.values()){
+      session.send(encoded);
+    }
+    getMetrics().getBroadcastHistogram().recordSince(start);
+  }
+
+  /**
+   * Sends a client that just logged on the last messages of the history,
+   * or the ones since the sequence number following its ID, each one
+   * preceded by its sequence number in parentheses. The messages are
+   * read one at a time from the log.
+   *
+   * @param login The #login command, split on spaces.
+   * @param session The session of the client that logged on.
+   */
+  private void sendHistory(String[] login, final Session session)
+  {
+    MessageLog log = history;
+    if (log == null){
+      return;
+    }
+    long since = log.getLastSequence() - HISTORY_ON_LOGIN + 1;
+    if (login.length > 2){
+      try{
+        since = Math.max(Long.parseLong(login[2]),
+          log.getLastSequence() - MAX_HISTORY + 1);
+      }
+      catch (NumberFormatException e){}
+    }
+
+    try{
+      log.replaySince(Math.max(1, since), new MessageLog.Visitor(){
+        public void visit(long sequence, long time, String message)
+          throws IOException
+        {
+          session.send("(" + sequence + ") " + message);
+        }
+      });
+    }
+    catch (IOException e){}
+  }
+
+  /**
+   * Sets the log the messages sent to everybody are kept in, so that
+   * clients logging on are sent the last ones. The log must be open.
+   *
+   * @param history The log, or null to keep no history.
+   */
+  public void setHistory(MessageLog history)
+  {
+    this.history = history;
+  }
+
+  /**
+   * Sets the store that keeps whispers to clients that are not logged
+   * on until they are. The store must be open.
+   *
+   * @param mailbox The store, or null to refuse such whispers.
+   */
+  public void setMailbox(Mailbox mailbox)
+  {
+    this.mailbox = mailbox;
+  }
+
+  /**
+   * Joins this server to a federation of chat servers, given by their
+   * addresses. Messages sent to everybody, whispers and log ons are
+   * relayed between the servers, which keep trying to reach each other
+   * until the federation is left. Rooms are local to each server.
+   *
+   * @param address The address of this server as the others know it,
+   *  "host:port".
+   * @param members The addresses of all the servers.
+   * @param secret The secret all the servers are given, by which they
+   *  know each other.
+   */
+  public void federate(String address, Collection<String> members,
+    String secret)
+  {
+    Federation joined = new Federation(address, members, secret,
+      new Federation.Node(){
+      public void deliverBroadcast(String message, boolean logged)
+      {
+        MessageLog log = history;
+        if (logged && log != null){
+          try{
+            log.append(message);
+          }
+          catch (IOException e){}
+        }
+        sendToAllClients(message);
+      }
+
+      public void deliverWhisper(String user, String message)
+      {
+        Session recipient = logins.get(user);
+        try{
+          if (recipient != null){
+            recipient.send(message);
+          }
+          else if (mailbox != null){
+            mailbox.put(user, message);
+          }
+        }
+        catch (IOException e){}
+      }
+
+      public Collection<String> getLocalUsers()
+      {
+        return logins.keySet();
+      }
+    });
+    leaveFederation();
+    federation = joined;
+    joined.start();
+  }
+
+  /**
+   * Stops relaying messages to and from other servers.
+   */
+  public void leaveFederation()
+  {
+    Federation left = federation;
+    federation = null;
+    if (left != null){
+      left.stop();
+    }
+  }
+
+  /**
+   * @return the federation this server belongs to, or null.
+   */
+  public Federation getFederation()
+  {
+    return federation;
+  }
+
+  /**
+   * Sends a private message to one client, found by login ID, without
+   * looking at any other client.
+   *
+   * @param message The #whisper command: "#whisper &lt;id&gt; &lt;msg&gt;".
+   * @param client The connection from which the command originated.
+   */
+  private void executeWhisperCommand(String message, ConnectionToClient client)
+  {
+    Object clientID = client.getInfo("clientIDForServer");
+    String[] whisper = message.trim().split(" ", 3);
+    if (clientID == null){
+      send(client, "Error, log in before whispering");
+      return;
+    }
+    if (whisper.length < 3){
+      send(client, "Usage: #whisper <id> <message>");
+      return;
+    }
+
+    // A session keeps the whisper if its client is reconnecting
+    String line = clientID + " whispers: " + whisper[2];
+    Session recipient = logins.get(whisper[1]);
+    if (recipient != null){
+      recipient.send(line);
+      send(client, "to " + whisper[1] + ": " + whisper[2]);
+      return;
+    }
+
+    if (federation != null && federation.whisper(whisper[1], line)){
+      send(client, "to " + whisper[1] + ": " + whisper[2]);
+      return;
+    }
+    if (mailbox == null){
+      send(client, "Error, " + whisper[1] + " is not logged on");
+      return;
+    }
+    String error;
+    try{
+      error = mailbox.put(whisper[1], line) ?
+        null : "Error, the mailbox of " + whisper[1] + " is full";
+    }
+    catch (IOException e){
+      error = "Error, could not store the message for " + whisper[1];
+    }
+    send(client, error != null ? error : "to " + whisper[1]
+      + " (not logged on, kept until they are): " + whisper[2]);
+
+    // The recipient may have logged on while the message was stored
+    if (error == null && logins.containsKey(whisper[1])){
+      drainMailbox(whisper[1]);
+    }
+  }
+
+  /**
+   * Sends a client that is logged on the whispers that were kept for it,
+   * in the background.
+   *
+   * @param loginID The login ID of the client.
+   */
+  private void drainMailbox(final String loginID)
+  {
+    if (mailbox == null){
+      return;
+    }
+    drainer.execute(() -> {
+      final Session session = logins.get(loginID);
+      if (session == null){
+        return;
+      }
+      try{
+        mailbox.drain(loginID, new MessageLog.Visitor(){
+          public void visit(long sequence, long time, String message)
+            throws IOException
+          {
+            session.send("(while you were away) " + message);
+          }
+        });
+      }
+      catch (IOException e){}
+    });
+  }
+
+  /**
+   * Joins a room, which becomes the client's current room: its chat
+   * lines go to the members of that room only.
+   *
+   * @param message The #join command: "#join &lt;room&gt;".
+   * @param client The connection from which the command originated.
+   */
+  private void executeJoinCommand(String message, ConnectionToClient client)
+  {
+    Object clientID = client.getInfo("clientIDForServer");
+    String[] join = message.trim().split(" ");
+    if (clientID == null){
+      send(client, "Error, log in before joining a room");
+      return;
+    }
+    if (join.length < 2){
+      send(client, "Usage: #join <room>");
+      return;
+    }
+
+    String room = join[1];
+    client.setInfo("room", room);
+    if (rooms.subscribe(room, client)){
+      publish(room, clientID + " has joined " + room);
+    }
+  }
+
+  /**
+   * Leaves a room, by default the current one. Chat lines are sent to
+   * everybody again when the current room is left.
+   *
+   * @param message The #leave command: "#leave [&lt;room&gt;]".
+   * @param client The connection from which the command originated.
+   */
+  private void executeLeaveCommand(String message, ConnectionToClient client)
+  {
+    String[] leave = message.trim().split(" ");
+    Object room = leave.length < 2 ? client.getInfo("room") : leave[1];
+    if (room == null || !rooms.unsubscribe((String)room, client)){
+      send(client, "Error, not in a room");
+      return;
+    }
+
+    if (room.equals(client.getInfo("room"))){
+      client.setInfo("room", null);
+    }
+    send(client, "You have left " + room);
+    publish((String)room,
+      client.getInfo("clientIDForServer") + " has left " + room);
+  }
+
+  /**
+   * Without argument, tells the client which rooms it is in. Otherwise
+   * sends a line to one of its rooms without making it the current one.
+   *
+   * @param message The #room command: "#room [&lt;room&gt; &lt;msg&gt;]".
+   * @param client The connection from which the command originated.
+   */
+  private void executeRoomCommand(String message, ConnectionToClient client)
+  {
+    String[] line = message.trim().split(" ", 3);
+    if (line.length == 1){
+      Object current = client.getInfo("room");
+      send(client, "Current room: "
+        + (current == null ? "none" : current + " ("
+          + rooms.getSubscriberCount((String)current) + " members)")
+        + ", rooms: " + rooms.getTopics(client));
+      return;
+    }
+    if (line.length < 3){
+      send(client, "Usage: #room [<room> <message>]");
+      return;
+    }
+    if (!rooms.isSubscribed(line[1], client)){
+      send(client, "Error, not in room " + line[1]);
+      return;
+    }
+    publish(line[1], "[" + line[1] + "] "
+      + client.getInfo("clientIDForServer") + ": " + line[2]);
+  }
+
   /**
    * This method overrides the one in the superclass.  Called
    * when the server starts listening for connections.
@@ -108,7 +843,7 @@ public class EchoServer extends AbstractServer
 
   public void handleMessageFromServerUI(String message)
   {
-      sendToAllClients(message);
+      broadcast(message);
       serverUI.display(message);
   }
 
@@ -122,8 +857,18 @@ public class EchoServer extends AbstractServer
   @Override
   synchronized protected void clientDisconnected(
     ConnectionToClient client) {
-      serverUI.display(client.getInfo("clientIDForServer").toString() + " has disconnected");
-    sendToAllClients(client.getInfo("clientIDForServer").toString() + " has disconnected");
+      final Session session = (Session)client.getInfo("session");
+      if (session == null || !session.detach(client)){
+        return; // never logged on, logged off or already detached
+      }
+
+      // Nobody is told until the client has had time to resume
+      serverUI.display(session.getLoginID() + " has lost its connection");
+      expirer.schedule(() -> {
+        if (session.expire(SESSION_GRACE)){
+          endSession(session);
+        }
+      }, SESSION_GRACE, TimeUnit.MILLISECONDS);
         }
 
   @Override
@@ -167,6 +912,19 @@ public class EchoServer extends AbstractServer
       serverUI.display(executeGetPortCommand());
     }
 
+    else if (command.equals("#compression")){
+      serverUI.display(String.valueOf
+        (ChatCodecs.findCompressing(getCodecs())));
+    }
+
+    else if (command.equals("#stats")){
+      executeStatsCommand(listCommand);
+    }
+
+    else if (command.equals("#ratelimit")){
+      executeRateLimitCommand(listCommand);
+    }
+
     else{
       serverUI.display("Invalid Command");
     }
@@ -181,6 +939,12 @@ public class EchoServer extends AbstractServer
       serverUI.display("Server has shutdown");
     }
     catch (IOException e){}
+    if (history != null){
+      history.close();
+    }
+    if (mailbox != null){
+      mailbox.close();
+    }
     System.exit(0);
   }
 
@@ -256,10 +1020,106 @@ public class EchoServer extends AbstractServer
   }
 
 
+  /**
+   * Displays the server's metrics, and the rates since the previous
+   * #stats. "#stats reset" also forgets the latencies recorded so far.
+   */
+  private void executeStatsCommand(String[] listCommand){
+    ServerMetrics metrics = getMetrics();
+    long now = System.nanoTime();
+    double seconds = (now - statsTime) / 1e9;
+    long accepted = metrics.getConnectionsAccepted();
+    long messagesIn = metrics.getMessagesIn();
+    long messagesOut = metrics.getMessagesOut();
+    long bytesIn = metrics.getBytesIn();
+    long bytesOut = metrics.getBytesOut();
+
+    serverUI.display(metrics.toString());
+    serverUI.display(String.format(
+      "rates over %.1fs: accepted %.1f/s, messages in %.1f/s out %.1f/s,"
+      + " bytes in %.0f/s out %.0f/s", seconds,
+      (accepted - statsAccepted) / seconds,
+      (messagesIn - statsMessagesIn) / seconds,
+      (messagesOut - statsMessagesOut) / seconds,
+      (bytesIn - statsBytesIn) / seconds,
+      (bytesOut - statsBytesOut) / seconds));
+
+    statsTime = now;
+    statsAccepted = accepted;
+    statsMessagesIn = messagesIn;
+    statsMessagesOut = messagesOut;
+    statsBytesIn = bytesIn;
+    statsBytesOut = bytesOut;
+    if (listCommand.length > 1 && listCommand[1].equals("reset")){
+      metrics.resetLatencies();
+      serverUI.display("Latencies reset");
+    }
+
+    ArrayList<ConnectionToClient> throttled =
+      new ArrayList<ConnectionToClient>();
+    for (Thread thread : getClientConnections()){
+      ConnectionToClient client = (ConnectionToClient)thread;
+      if (client.getThrottledMessageCount() > 0){
+        throttled.add(client);
+      }
+    }
+    if (!throttled.isEmpty()){
+      throttled.sort((a, b) -> Long.compare(b.getThrottledMessageCount(),
+        a.getThrottledMessageCount()));
+      StringBuilder line = new StringBuilder("most throttled:");
+      for (ConnectionToClient client
+        : throttled.subList(0, Math.min(5, throttled.size()))){
+        Object name = client.getInfo("clientIDForServer");
+        line.append(' ').append(name == null ? client.toString() : name)
+          .append('=').append(client.getThrottledMessageCount());
+      }
+      serverUI.display(line.toString());
+    }
+  }
+
+
+  /**
+   * Shows or changes the rate limit of the clients: "#ratelimit off",
+   * or "#ratelimit rate burst [drop|delay|disconnect]". Users who are
+   * logged on keep the limit they share across their connections until
+   * they log on again.
+   */
+  private void executeRateLimitCommand(String[] listCommand){
+    if (listCommand.length == 2 && listCommand[1].equals("off")){
+      setRateLimit(0, 0);
+    }
+    else if (listCommand.length >= 3){
+      try{
+        setRateLimit(Double.parseDouble(listCommand[1]),
+          Integer.parseInt(listCommand[2]));
+        if (listCommand.length > 3){
+          setThrottlePolicy(
+            ThrottlePolicy.valueOf(listCommand[3].toUpperCase()));
+        }
+      }
+      catch (IllegalArgumentException e){
+        serverUI.display("Usage: #ratelimit off | #ratelimit rate burst"
+          + " [drop|delay|disconnect]");
+        return;
+      }
+    }
+    for (Thread thread : getClientConnections()){
+      ConnectionToClient client = (ConnectionToClient)thread;
+      if (client.getInfo("peer") != null){
+        client.setRateLimit(null);
+      }
+    }
+    serverUI.display(getRateLimit() == 0 ? "Rate limit: off"
+      : "Rate limit: " + getRateLimit() + " lines/s, burst "
+      + getRateBurst() + ", " + getThrottlePolicy().toString().toLowerCase());
+  }
+
+
   //Class methods ***************************************************
 
   public static void main(String[] args) {
     int port = 0;
+    ConnectionMode mode;
 
     try
     {
@@ -270,7 +1130,33 @@ public class EchoServer extends AbstractServer
       port = DEFAULT_PORT; //Set port to 5555
     }
 
-    ServerConsole serverConsole = new ServerConsole(port);
+    try
+    {
+      mode = ConnectionMode.valueOf(args[1].toUpperCase()); //e.g. "nio"
+    }
+    catch(Throwable t)
+    {
+      mode = ConnectionMode.THREAD_PER_CONNECTION;
+    }
+
+    File history;
+    try
+    {
+      history = new File(args[2]); //Directory of the message log
+    }
+    catch(Throwable t)
+    {
+      history = new File("history");
+    }
+
+    ServerConsole serverConsole = new ServerConsole(port, mode, history);
+    if (args.length > 4)
+    {
+      //This server's address, then all the servers', e.g. "a:5555 a:5555,b:5555";
+      //the shared secret comes from the environment, out of sight of ps
+      serverConsole.server.federate(args[3], Arrays.asList(args[4].split(",")),
+        System.getenv(FEDERATION_SECRET));
+    }
     serverConsole.accept();
   }
 }
@@ -0,0 +1,139 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.client.AbstractClient;
+
+/**
+ * Starts three federated chat servers on localhost and measures how long
+ * a chat line takes to reach users on the other servers, then how many
+ * lines per second the three servers deliver together when users on all
+ * of them talk at once.
+ * <p>
+ * Usage: "java FederationBench [first port] [lines] [users per server]"
+ */
+public class FederationBench
+{
+  //Class variables *************************************************
+
+  /**
+   * The secret the servers share.
+   */
+  static final String SECRET = "bench";
+
+  /**
+   * A user that records when lines reach it.
+   */
+  static class User extends AbstractClient
+  {
+    final AtomicLong received;
+    final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+
+    User(int port, AtomicLong received)
+    {
+      super("localhost", port);
+      this.received = received;
+    }
+
+    protected void handleMessageFromServer(Object msg)
+    {
+      String line = msg.toString();
+      int stamp = line.indexOf("t=");
+      if (stamp >= 0){
+        latencies.add(System.nanoTime() - Long.parseLong(line.substring(stamp + 2)));
+      }
+      if (line.contains(": "))
+        received.incrementAndGet();
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    int firstPort = args.length > 0 ? Integer.parseInt(args[0]) : 5611;
+    int lines = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+    int usersPerServer = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+    List<String> members = new ArrayList<String>();
+    for (int i = 0; i < 3; i++)
+      members.add("localhost:" + (firstPort + i));
+
+    EchoServer[] servers = new EchoServer[3];
+    for (int i = 0; i < 3; i++){
+      servers[i] = new EchoServer(firstPort + i, message -> {});
+      servers[i].setRateLimit(0, 0); // the senders flood on purpose
+      servers[i].listen();
+    }
+    for (int i = 0; i < 3; i++)
+      servers[i].federate(members.get(i), members, SECRET);
+    for (EchoServer server : servers)
+      while (server.getFederation().getConnectedCount() < 2)
+        Thread.sleep(50);
+
+    AtomicLong received = new AtomicLong();
+    User[][] users = new User[3][usersPerServer];
+    for (int i = 0; i < 3; i++){
+      for (int j = 0; j < usersPerServer; j++){
+        users[i][j] = new User(firstPort + i, received);
+        users[i][j].openConnection();
+        users[i][j].sendToServer("#login u" + i + "_" + j);
+      }
+    }
+    Thread.sleep(500);
+    System.out.println("3 servers, " + usersPerServer + " users each");
+
+    // Latency: one line at a time from a user of the first server
+    User sender = users[0][0];
+    for (int i = 0; i < 1000; i++){
+      long expected = received.get() + 3 * usersPerServer;
+      sender.sendToServer("t=" + System.nanoTime());
+      while (received.get() < expected)
+        Thread.yield();
+    }
+    long[] remote = sorted(users[1][0].latencies, users[2][0].latencies);
+    long[] local = sorted(users[0][1].latencies);
+    System.out.printf("latency, same server   p50 %6.0f us  p99 %6.0f us%n",
+      local[local.length / 2] / 1e3, local[local.length * 99 / 100] / 1e3);
+    System.out.printf("latency, other server  p50 %6.0f us  p99 %6.0f us%n",
+      remote[remote.length / 2] / 1e3, remote[remote.length * 99 / 100] / 1e3);
+
+    // Throughput: one user on each server sends lines as fast as it can
+    long expected = received.get() + (long)lines * 3 * usersPerServer;
+    long start = System.nanoTime();
+    for (int i = 0; i < lines; i++)
+      users[i % 3][0].sendToServer("line " + i);
+    long deadline = System.currentTimeMillis() + 60000;
+    while (received.get() < expected && System.currentTimeMillis() < deadline)
+      Thread.sleep(1);
+    long elapsed = System.nanoTime() - start;
+    long deliveries = (long)lines * 3 * usersPerServer - (expected - received.get());
+    System.out.printf("throughput             %8.0f lines/s sent  %9.0f deliveries/s%n",
+      lines / (elapsed / 1e9), deliveries / (elapsed / 1e9));
+    long dropped = 0;
+    for (EchoServer server : servers)
+      dropped += server.getFederation().getDroppedCount();
+    System.out.println("lost " + (expected - received.get()) + " deliveries, "
+      + dropped + " relays dropped");
+
+    for (User[] row : users)
+      for (User user : row)
+        user.closeConnection();
+    for (EchoServer server : servers){
+      server.leaveFederation();
+      server.close();
+    }
+  }
+
+  @SafeVarargs
+  private static long[] sorted(List<Long>... lists)
+  {
+    List<Long> all = new ArrayList<Long>();
+    for (List<Long> list : lists)
+      all.addAll(list);
+    long[] result = new long[all.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = all.get(i);
+    Arrays.sort(result);
+    return result;
+  }
+}
+//End of FederationBench class
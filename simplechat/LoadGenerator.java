@@ -0,0 +1,419 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+import client.ChatClient;
+import common.*;
+import ocsf.client.*;
+import ocsf.common.LatencyHistogram;
+import ocsf.server.ServerMetrics;
+
+/**
+ * Simulates many chat users against a chat server and reports how long
+ * their lines take to reach the other users, how many get through and
+ * what went wrong.
+ * <p>
+ * The users are ChatClients, logged in with #login one after the other
+ * over the ramp time, each with a connection of its own or as streams
+ * over a few multiplexed connections. Once they are all in, users picked
+ * at random send lines at the given total rate for the given time. The
+ * sends follow a schedule fixed in advance, with exponential gaps
+ * between them as from independent users, and every line carries the
+ * time it was due; a server that falls behind shows up in the latency
+ * rather than slowing the senders down. The latency of a line is
+ * measured when each user receives it, so a line to a hundred users
+ * counts a hundred times. Lines sent during the warmup are delivered but
+ * not measured.
+ * <p>
+ * The generator runs on the same machine as the server, so a single
+ * clock times both ends. With -embedded it starts the server itself.
+ * <p>
+ * Usage: "java LoadGenerator [-host localhost] [-port 5555]
+ * [-users 1000] [-ramp 10] [-rate 200] [-duration 30] [-warmup 5]
+ * [-size exp:48] [-rooms 0] [-mux 0] [-embedded]"
+ * <p>
+ * -size is a fixed number of characters, a range such as 16-512 picked
+ * uniformly, or exp:mean for the short lines and long tail of chat.
+ * -rooms spreads the users over that many rooms, so each line goes to
+ * the users of one room instead of everybody. -mux carries the users as
+ * streams over that many connections, for more users than threads.
+ */
+public class LoadGenerator
+{
+  //Class variables *************************************************
+
+  /**
+   * What starts the text of a generated line, followed by the time it
+   * was due and a flag telling whether it is measured.
+   */
+  final static String MARK = "~lg ";
+
+  //Instance variables **********************************************
+
+  private String host = "localhost";
+  private int port = EchoServer.DEFAULT_PORT;
+  private int users = 1000;
+  private int rampSeconds = 10;
+  private double rate = 200;
+  private int durationSeconds = 30;
+  private int warmupSeconds = 5;
+  private String size = "exp:48";
+  private int rooms = 0;
+  private int multiplexers = 0;
+  private boolean embedded = false;
+
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LatencyHistogram intervalLatency = new LatencyHistogram();
+
+  /**
+   * The lines sent and measured, the deliveries expected and made of
+   * every line, and the deliveries of the measured lines.
+   */
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong sentMeasured = new AtomicLong();
+  private final AtomicLong expected = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong measured = new AtomicLong();
+  private final AtomicLong connectFailures = new AtomicLong();
+  private final AtomicLong loginErrors = new AtomicLong();
+  private final AtomicLong connectionsLost = new AtomicLong();
+  private final AtomicLong sendFailures = new AtomicLong();
+  private final AtomicLong queueFull = new AtomicLong();
+
+  /**
+   * The users logged on, and how many of them are in each room.
+   */
+  private final AtomicInteger loggedOn = new AtomicInteger();
+  private AtomicIntegerArray roomSizes;
+
+  private final List<User> userList = new ArrayList<User>();
+  private final List<Multiplexer> multiplexerList = new ArrayList<Multiplexer>();
+
+  //Inner classes ***************************************************
+
+  /**
+   * The display of a simulated user: it times the generated lines it
+   * receives and counts the errors it is told about.
+   */
+  class User implements ChatIF
+  {
+    final String loginID;
+    final int room;
+    ChatClient client;
+    volatile boolean in;
+
+    User(String loginID, int room)
+    {
+      this.loginID = loginID;
+      this.room = room;
+    }
+
+    public void display(String message)
+    {
+      int mark = message.indexOf(MARK);
+      if (mark >= 0){
+        long now = System.nanoTime();
+        int end = message.indexOf(' ', mark + MARK.length());
+        long due = Long.parseLong(message.substring(mark + MARK.length(), end));
+        delivered.incrementAndGet();
+        if (message.charAt(end + 1) == 'm'){
+          measured.incrementAndGet();
+          latency.record(now - due);
+          intervalLatency.record(now - due);
+        }
+      }
+      else if (message.startsWith("Error")){
+        loginErrors.incrementAndGet();
+      }
+      else if (message.startsWith("WARNING - Lost the connection")){
+        connectionsLost.incrementAndGet();
+      }
+      else if (!in && message.equals(loginID + " has logged on")){
+        in = true;
+        loggedOn.incrementAndGet();
+      }
+      else if (message.equals(loginID + " has joined r" + room)){
+        roomSizes.incrementAndGet(room);
+      }
+    }
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Reads the options.
+   *
+   * @param args The command line.
+   */
+  private void parse(String[] args)
+  {
+    for (int i = 0; i < args.length; i++){
+      String option = args[i];
+      if (option.equals("-embedded")){
+        embedded = true;
+        continue;
+      }
+      if (i + 1 == args.length){
+        throw new IllegalArgumentException(option + " needs a value");
+      }
+      String value = args[++i];
+      switch (option){
+      case "-host": host = value; break;
+      case "-port": port = Integer.parseInt(value); break;
+      case "-users": users = Integer.parseInt(value); break;
+      case "-ramp": rampSeconds = Integer.parseInt(value); break;
+      case "-rate": rate = Double.parseDouble(value); break;
+      case "-duration": durationSeconds = Integer.parseInt(value); break;
+      case "-warmup": warmupSeconds = Integer.parseInt(value); break;
+      case "-size": size = value; nextSize(new Random()); break;
+      case "-rooms": rooms = Integer.parseInt(value); break;
+      case "-mux": multiplexers = Integer.parseInt(value); break;
+      default: throw new IllegalArgumentException("unknown option " + option);
+      }
+    }
+    roomSizes = new AtomicIntegerArray(Math.max(rooms, 1));
+  }
+
+  /**
+   * Opens the users' connections and logs them in, spread over the ramp
+   * time, then waits for the server to confirm the logins.
+   */
+  private void ramp() throws Exception
+  {
+    for (int i = 0; i < multiplexers; i++){
+      Multiplexer multiplexer = new Multiplexer(host, port, ChatCodecs.codecs());
+      multiplexer.open();
+      multiplexerList.add(multiplexer);
+    }
+
+    long start = System.nanoTime();
+    long gap = users == 0 ? 0 : rampSeconds * 1000000000L / users;
+    for (int i = 0; i < users; i++){
+      LockSupport.parkNanos(start + i * gap - System.nanoTime());
+      User user = new User("u" + i, rooms > 0 ? i % rooms : 0);
+      userList.add(user);
+      ChatClient client = multiplexers > 0
+        ? new ChatClient(multiplexerList.get(i % multiplexers), user.loginID, user)
+        : new ChatClient(host, port, user.loginID, user);
+      user.client = client;
+      if (!client.isConnected()){
+        connectFailures.incrementAndGet();
+      }
+      else if (rooms > 0){
+        // The server handles it after the #login
+        client.handleMessageFromClientUI("#join r" + user.room);
+      }
+      if (i % Math.max(users / 10, 1) == 0){
+        System.out.printf("ramp: %d users connected, %d logged on%n",
+          i + 1, loggedOn.get());
+      }
+    }
+
+    long deadline = System.currentTimeMillis() + 30000;
+    while (loggedOn.get() + connectFailures.get() + loginErrors.get() < users
+      && System.currentTimeMillis() < deadline){
+      Thread.sleep(50);
+    }
+    Thread.sleep(500); // the last #join commands
+    System.out.printf("ramp: %d users logged on in %.1fs%n",
+      loggedOn.get(), (System.nanoTime() - start) / 1e9);
+  }
+
+  /**
+   * Sends lines from random users on an open-loop schedule for the
+   * warmup and the measured duration, printing progress every second.
+   */
+  private void drive()
+  {
+    List<User> talkers = new ArrayList<User>();
+    for (User user : userList){
+      if (user.in){
+        talkers.add(user);
+      }
+    }
+    if (talkers.isEmpty()){
+      System.out.println("no user logged on");
+      return;
+    }
+
+    Random random = new Random(42);
+    long start = System.nanoTime();
+    long warmupEnd = start + warmupSeconds * 1000000000L;
+    long end = warmupEnd + durationSeconds * 1000000000L;
+    long meanGap = (long)(1e9 / rate);
+    long due = start;
+    long nextReport = start + 1000000000L;
+    long lastSent = 0;
+    long lastDelivered = 0;
+
+    while (due < end){
+      long now = System.nanoTime();
+      if (now >= nextReport){
+        long sentNow = sent.get();
+        long deliveredNow = delivered.get();
+        System.out.printf("%s%3ds: sent %6d/s  delivered %8d/s  p99 %8.0f us%n",
+          now < warmupEnd ? "warmup " : "",
+          (now - start) / 1000000000L, sentNow - lastSent,
+          deliveredNow - lastDelivered,
+          intervalLatency.getValueAtQuantile(0.99) / 1e3);
+        intervalLatency.reset();
+        lastSent = sentNow;
+        lastDelivered = deliveredNow;
+        nextReport += 1000000000L;
+      }
+      if (due > now){
+        LockSupport.parkNanos(Math.min(due, nextReport) - now);
+        continue;
+      }
+
+      User user = talkers.get(random.nextInt(talkers.size()));
+      send(user, due, due >= warmupEnd, nextSize(random));
+      due += (long)(-Math.log(1 - random.nextDouble()) * meanGap);
+    }
+  }
+
+  /**
+   * Sends one line, counting who should get it.
+   */
+  private void send(User user, long due, boolean measure, int length)
+  {
+    StringBuilder line = new StringBuilder(length + 32)
+      .append(MARK).append(due).append(measure ? " m " : " w ");
+    while (line.length() < length){
+      line.append((char)('a' + line.length() % 26));
+    }
+
+    sent.incrementAndGet();
+    if (measure){
+      sentMeasured.incrementAndGet();
+    }
+    expected.addAndGet(rooms > 0 ? roomSizes.get(user.room) : loggedOn.get());
+    user.client.sendAsync(line.toString()).whenComplete((done, e) ->
+    {
+      if (e instanceof QueueFullException){
+        queueFull.incrementAndGet();
+      }
+      else if (e != null){
+        sendFailures.incrementAndGet();
+      }
+    });
+  }
+
+  /**
+   * Picks the length of a line from the size distribution.
+   */
+  private int nextSize(Random random)
+  {
+    if (size.startsWith("exp:")){
+      double mean = Double.parseDouble(size.substring(4));
+      return 1 + (int)(-Math.log(1 - random.nextDouble()) * mean);
+    }
+    int dash = size.indexOf('-');
+    if (dash > 0){
+      int min = Integer.parseInt(size.substring(0, dash));
+      int max = Integer.parseInt(size.substring(dash + 1));
+      return min + random.nextInt(max - min + 1);
+    }
+    return Integer.parseInt(size);
+  }
+
+  /**
+   * Waits for the lines in flight, then prints the results. Rates are
+   * those of the measured lines over the measured duration.
+   */
+  private void report() throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (delivered.get() < expected.get()
+      && System.currentTimeMillis() < deadline){
+      Thread.sleep(50);
+    }
+
+    double seconds = durationSeconds;
+    System.out.println();
+    System.out.printf("users        %d requested, %d logged on%s%n", users,
+      loggedOn.get(), multiplexers > 0 ? ", over " + multiplexers
+      + " connections" : "");
+    System.out.printf("sent         %d lines, %d measured, %.1f/s%n",
+      sent.get(), sentMeasured.get(), sentMeasured.get() / seconds);
+    System.out.printf("delivered    %d, %d measured, %.1f/s, %d missing%n",
+      delivered.get(), measured.get(), measured.get() / seconds,
+      Math.max(0, expected.get() - delivered.get()));
+    System.out.printf("latency      p50 %.0f us  p99 %.0f us  p99.9 %.0f us"
+      + "  max %.0f us%n",
+      latency.getValueAtQuantile(0.5) / 1e3,
+      latency.getValueAtQuantile(0.99) / 1e3,
+      latency.getValueAtQuantile(0.999) / 1e3,
+      latency.getMax() / 1e3);
+    System.out.printf("errors       %d connect, %d login, %d connection lost,"
+      + " %d send failed, %d queue full%n", connectFailures.get(),
+      loginErrors.get(), connectionsLost.get(), sendFailures.get(),
+      queueFull.get());
+  }
+
+  /**
+   * Closes the users' connections. They do not log off: each logoff
+   * would be broadcast to all the users still there.
+   */
+  private void stop()
+  {
+    for (User user : userList){
+      try{
+        user.client.closeConnection();
+      }
+      catch (IOException e){}
+    }
+    for (Multiplexer multiplexer : multiplexerList){
+      try{
+        multiplexer.close();
+      }
+      catch (IOException e){}
+    }
+  }
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    LoadGenerator generator = new LoadGenerator();
+    try{
+      generator.parse(args);
+    }
+    catch (RuntimeException e){
+      System.out.println(e.getMessage());
+      System.out.println("Usage: java LoadGenerator [-host localhost]"
+        + " [-port 5555] [-users 1000] [-ramp 10] [-rate 200]"
+        + " [-duration 30] [-warmup 5] [-size exp:48|64|16-512]"
+        + " [-rooms 0] [-mux 0] [-embedded]");
+      return;
+    }
+
+    EchoServer server = null;
+    if (generator.embedded){
+      server = new EchoServer(generator.port, message -> {});
+      server.listen();
+    }
+
+    System.out.printf("%d users on %s:%d, %.0f lines/s for %ds after %ds"
+      + " of warmup, size %s%s%n", generator.users, generator.host,
+      generator.port, generator.rate, generator.durationSeconds,
+      generator.warmupSeconds, generator.size,
+      generator.rooms > 0 ? ", " + generator.rooms + " rooms" : "");
+    generator.ramp();
+    generator.drive();
+    generator.report();
+    generator.stop();
+
+    if (server != null){
+      ServerMetrics metrics = server.getMetrics();
+      System.out.println();
+      System.out.println("server");
+      System.out.println(metrics);
+      server.close();
+    }
+    System.exit(0);
+  }
+}
+//End of LoadGenerator class
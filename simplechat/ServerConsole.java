@@ -3,6 +3,9 @@ import java.util.Scanner;
 
 import client.*;
 import common.*;
+import ocsf.server.ConnectionMode;
+import server.Mailbox;
+import server.MessageLog;
 
 
 public class ServerConsole implements ChatIF{
@@ -36,8 +39,53 @@ public class ServerConsole implements ChatIF{
    * @throws IOException
    */
   public ServerConsole(int port)
+  {
+    this(port, ConnectionMode.THREAD_PER_CONNECTION);
+  }
+
+   /**
+   * Constructs an instance of the ServerConsole UI whose server
+   * services its clients in the given mode.
+   *
+   * @param port The port to connect on.
+   * @param mode The way the server services client connections.
+   */
+  public ServerConsole(int port, ConnectionMode mode)
+  {
+    this(port, mode, null);
+  }
+
+   /**
+   * Constructs an instance of the ServerConsole UI whose server keeps
+   * the messages sent to everybody in a log, and whispers to clients
+   * that are not logged on in a mailbox, across restarts.
+   *
+   * @param port The port to connect on.
+   * @param mode The way the server services client connections.
+   * @param history The directory of the message log and the mailbox,
+   *  or null for none.
+   */
+  public ServerConsole(int port, ConnectionMode mode, File history)
   {
     server= new EchoServer(port, this);
+    server.setConnectionMode(mode);
+
+    if (history != null)
+    {
+      MessageLog log = new MessageLog(history);
+      Mailbox mailbox = new Mailbox(new File(history, "mailbox.dat"));
+      try
+      {
+        log.open();
+        server.setHistory(log);
+        mailbox.open();
+        server.setMailbox(mailbox);
+      }
+      catch (IOException ex)
+      {
+        System.out.println("ERROR - Could not open the message history!");
+      }
+    }
     
     // Create scanner object to read from console
     fromConsole = new Scanner(System.in); 
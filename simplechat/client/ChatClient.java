@@ -30,6 +30,17 @@ public class ChatClient extends AbstractClient
 
   String loginID;
 
+  /**
+   * The token of the session the server opened at login, or null.
+   */
+  private String sessionToken;
+
+  /**
+   * The number of messages received in the session, which the server
+   * numbers the same way.
+   */
+  private long sessionSequence;
+
   
   //Constructors ****************************************************
   
@@ -44,16 +55,28 @@ public class ChatClient extends AbstractClient
   public ChatClient(String host, int port, String loginID, ChatIF clientUI) 
     throws IOException 
   {
-    super(host, port); //Call the superclass constructor
+    super(host, port, ChatCodecs.codecs()); //Call the superclass constructor
     this.clientUI = clientUI;
     this.loginID = loginID;
-    try{
-      openConnection();
-      sendToServer("#login " + loginID);
-    }
-    catch(IOException e){
-      System.out.println("Cannot open connection. Awaiting command");
-    }
+    setReconnectPolicy(ReconnectPolicy.exponential(500, 30000));
+    openAndLogIn();
+  }
+
+  /**
+   * Constructs an instance of the chat client whose connection is a
+   * stream over a multiplexer's, so that many clients in one process
+   * share a socket. The server sees it as a client of its own.
+   *
+   * @param multiplexer The open multiplexer.
+   * @param loginID The login ID of the user.
+   * @param clientUI The interface type variable.
+   */
+  public ChatClient(Multiplexer multiplexer, String loginID, ChatIF clientUI)
+  {
+    super(multiplexer);
+    this.clientUI = clientUI;
+    this.loginID = loginID;
+    openAndLogIn();
   }
 
   
@@ -66,26 +89,45 @@ public class ChatClient extends AbstractClient
    */
   public void handleMessageFromServer(Object msg) 
   {
-    clientUI.display(msg.toString());
+    String message = String.valueOf(msg);
+    if (message.startsWith("#session ")){
+      sessionToken = message.substring("#session ".length());
+      sessionSequence = 0;
+      return;
+    }
+    if (sessionToken != null){
+      sessionSequence++;
+    }
+    clientUI.display(message);
   }
 
   /**
-   * This method handles all data coming from the UI            
+   * This method handles all data coming from the UI.  The message is
+   * queued rather than written here, so a server that stops reading
+   * does not freeze the console.
    *
    * @param message The message from the UI.    
    */
   public void handleMessageFromClientUI(String message)
   {
-    try
-    {
-      sendToServer(message);
-    }
-    catch(IOException e)
+    sendAsync(message).whenComplete((sent, e) ->
     {
+      if (e == null)
+        return;
+      if (e instanceof QueueFullException)
+      {
+        clientUI.display("Server is not keeping up; message not sent.");
+        return;
+      }
+      if (isReconnecting())
+      {
+        clientUI.display("Reconnecting to server; message not sent.");
+        return;
+      }
       clientUI.display
         ("Could not send message to server.  Terminating client.");
       quit();
-    }
+    });
   }
   
   /**
@@ -108,9 +150,25 @@ public class ChatClient extends AbstractClient
 
   @Override
   public void connectionException(Exception exception){
-    clientUI.display("WARNING - The server has stopped listening for connections");
-    clientUI.display("SERVER SHUTTING DOWN! DISCONNECTING!");
-    clientUI.display("Abnormal termination of connection");
+    clientUI.display("WARNING - Lost the connection to the server");
+    if (isReconnecting()){
+      clientUI.display("Reconnecting...");
+    }
+  }
+
+  /**
+   * Resumes the session once the connection is back, so that the server
+   * sends what was missed meanwhile; the server logs the client in
+   * again if it cannot.
+   */
+  @Override
+  protected void connectionReestablished(){
+    clientUI.display("Reconnected to server");
+    try{
+      sendToServer(sessionToken == null ? "#login " + loginID
+        : "#resume " + loginID + " " + sessionToken + " " + sessionSequence);
+    }
+    catch (IOException e){} //dropped again, retried
   }
 
     /**
@@ -150,6 +208,11 @@ public class ChatClient extends AbstractClient
       clientUI.display(executeGetPortCommand());
     }
 
+    else if (command.equals("#whisper") || command.equals("#join")
+      || command.equals("#leave") || command.equals("#room")){
+      handleMessageFromClientUI(rawCommand);
+    }
+
     else{
       clientUI.display("Invalid Command");
     }
@@ -159,16 +222,30 @@ public class ChatClient extends AbstractClient
 
   //Class methods ***************************************************
 
+  private void openAndLogIn(){
+    try{
+      openConnection();
+      sendToServer("#login " + loginID);
+    }
+    catch(IOException e){
+      System.out.println("Cannot open connection. Awaiting command");
+    }
+  }
+
   private void executeQuitCommand(){
     quit();
   }
 
   private void executeLogOffCommand(){
-    if (isConnected()){
+    if (isConnected() || isReconnecting()){
     try{
+      if (isConnected()){
+        sendToServer("#logoff"); //the server need not keep the session
+      }
       closeConnection();
     }
     catch (IOException e){}
+    sessionToken = null;
   }
   else{
     clientUI.display("Client already disconnected");
@@ -241,6 +318,11 @@ public class ChatClient extends AbstractClient
 
     try{
       argument = listCommand[1];
+      loginID = argument;
+      sessionToken = null;
+      if (listCommand.length > 2){
+        argument += " " + listCommand[2]; //history since a sequence number
+      }
       openConnection();
       sendToServer("#login " + argument);
       clientUI.display("Connected to server");
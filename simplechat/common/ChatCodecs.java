@@ -0,0 +1,69 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+
+import ocsf.common.*;
+
+/**
+ * The codecs the chat client and server offer each other, preferred first:
+ * the binary codec compressed, then as it is, then Java serialization.
+ * <p>
+ * Chat lines are sent as they are; pasted logs and other long messages are
+ * deflated, with a dictionary of what chat messages and logs often contain
+ * so that even a few hundred bytes compress well. Both ends must use the
+ * same dictionary: changing it means changing the id of the codec.
+ */
+public class ChatCodecs
+{
+  //Class variables *************************************************
+
+  /**
+   * The length of the shortest message deflated.
+   */
+  public static final int THRESHOLD = 128;
+
+  /**
+   * The preset dictionary, the most common strings last.
+   */
+  private static final String DICTIONARY =
+    "Exception in thread \"main\" java.lang.NullPointerException"
+    + "java.lang.IllegalStateException: java.io.IOException: "
+    + "Caused by: \tat java.base/java.util.\tat java.base/java.lang."
+    + "\tat sun.nio.ch.\tat java.io.\tat org.\tat com.\t... more\n"
+    + ".java:1) DEBUG  TRACE  FATAL  WARN  ERROR  INFO  [main] "
+    + "http://https://www.com/ failed with timeout connection "
+    + "has joined has left #room #join #leave #whisper #login "
+    + "has disconnected has lost its connection has logged on"
+    + " whispers: the and you that is for this with have not";
+
+  //Class methods ***************************************************
+
+  /**
+   * @return new instances of the codecs, whose compression counts are
+   *  those of the connections that use them.
+   */
+  public static Codec[] codecs()
+  {
+    return new Codec[] {
+      new CompressingCodec(new BinaryCodec(),
+        DICTIONARY.getBytes(StandardCharsets.UTF_8), THRESHOLD),
+      new BinaryCodec(),
+      new SerializationCodec()
+    };
+  }
+
+  /**
+   * @param codecs The codecs of a client or server.
+   * @return the compressing codec among them, or null.
+   */
+  public static CompressingCodec findCompressing(Codec[] codecs)
+  {
+    for (Codec codec : codecs){
+      if (codec instanceof CompressingCodec){
+        return (CompressingCodec)codec;
+      }
+    }
+    return null;
+  }
+}
+//End of ChatCodecs class
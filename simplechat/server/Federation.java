@@ -0,0 +1,483 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Joins chat servers into one chat. Every node knows every other one from
+ * a static list of addresses, opens a link to each of them and relays over
+ * it the messages that its own users send to everybody or to a user of that
+ * node.
+ * <p>
+ * A message is relayed by the node it starts on and by no other, so it
+ * crosses each link once and only once; every relayed message also carries
+ * an id that receivers remember for a while, so that a message that does
+ * arrive twice, through a misconfigured list or a link that was reopened,
+ * is only delivered once.
+ * <p>
+ * The nodes share a secret. A link introduces itself with the address of
+ * its node and an HMAC of that address keyed with the secret, and is only
+ * accepted as a peer if the HMAC checks out and it connects from the host
+ * of the member it names. A relayed message is only taken from the peer
+ * it started on. So a client that does not know the secret cannot pass
+ * itself off as a node, nor can a node speak for another.
+ * <p>
+ * Each node tells the others which users log on and off on it, so a
+ * whisper goes straight to the node of its recipient. A link that goes
+ * down is reopened every second; messages relayed meanwhile are dropped,
+ * and so are messages for a peer too slow to keep up with them.
+ * <p>
+ * On the wire, a link introduces itself with
+ * <code>#peer &lt;address&gt; &lt;hmac&gt;</code>, the HMAC-SHA256 in hex,
+ * and a relayed message is the string
+ * <code>#relay &lt;id&gt; &lt;kind&gt; &lt;user&gt; &lt;text&gt;</code>,
+ * where the id starts with the address of the node it started on.
+ */
+public class Federation
+{
+  //Class variables *************************************************
+
+  /**
+   * The kinds of relayed messages.
+   */
+  private static final String BROADCAST = "B";
+  private static final String NOTICE = "N";
+  private static final String WHISPER = "W";
+  private static final String JOINED = "J";
+  private static final String LEFT = "L";
+
+  /**
+   * How many message ids are remembered.
+   */
+  private static final int SEEN = 65536;
+
+  /**
+   * How long to wait before reopening links that are down.
+   */
+  private static final long RECONNECT_MILLIS = 1000;
+
+  /**
+   * The MAC by which a node proves it knows the secret.
+   */
+  private static final String MAC = "HmacSHA256";
+
+  /**
+   * What a federation needs from its chat server.
+   */
+  public interface Node
+  {
+    /**
+     * Sends a message from another node to every local user.
+     *
+     * @param message The message.
+     * @param logged true if the message belongs in the history.
+     */
+    void deliverBroadcast(String message, boolean logged);
+
+    /**
+     * Sends a whisper from another node to a local user.
+     *
+     * @param user The login ID of the recipient.
+     * @param message The message.
+     */
+    void deliverWhisper(String user, String message);
+
+    /**
+     * @return the login IDs of the users logged on to this node.
+     */
+    Collection<String> getLocalUsers();
+  }
+
+  //Instance variables **********************************************
+
+  private final String address;
+  private final Node node;
+
+  /**
+   * The key of the MAC, made of the shared secret.
+   */
+  private final SecretKeySpec key;
+
+  /**
+   * The links to the other nodes, by address.
+   */
+  private final Map<String, PeerLink> links =
+    new LinkedHashMap<String, PeerLink>();
+
+  /**
+   * The node every remote user is logged on to.
+   */
+  private final ConcurrentHashMap<String, String> directory =
+    new ConcurrentHashMap<String, String>();
+
+  /**
+   * The ids of the messages received lately.
+   */
+  private final Set<String> seen = Collections.newSetFromMap(
+    new LinkedHashMap<String, Boolean>(){
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+      {
+        return size() > SEEN;
+      }
+    });
+
+  /**
+   * Makes the ids of this node unique across its restarts.
+   */
+  private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+  private final AtomicLong sequence = new AtomicLong();
+
+  private volatile Thread connector;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs the federation of a node.
+   *
+   * @param address The address of this node as the others know it,
+   *  "host:port".
+   * @param members The addresses of all the nodes; this one may be among
+   *  them.
+   * @param secret The secret every node of the federation is given.
+   * @param node The chat server of this node.
+   */
+  public Federation(String address, Collection<String> members,
+    String secret, Node node)
+  {
+    if (secret == null || secret.isEmpty())
+      throw new IllegalArgumentException("a federation needs a secret");
+    this.address = address;
+    this.node = node;
+    this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC);
+    for (String member : members)
+    {
+      if (!member.equals(address))
+        links.put(member, new PeerLink(this, member));
+    }
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Starts opening the links to the other nodes, and reopening the ones
+   * that go down.
+   */
+  public synchronized void start()
+  {
+    if (connector != null)
+      return;
+    connector = new Thread(this::runConnector, "Federation " + address);
+    connector.setDaemon(true);
+    connector.start();
+  }
+
+  /**
+   * Closes the links to the other nodes.
+   */
+  public void stop()
+  {
+    Thread thread;
+    synchronized (this)
+    {
+      thread = connector;
+      connector = null;
+    }
+    if (thread != null)
+      thread.interrupt();
+    for (PeerLink link : links.values())
+    {
+      try
+      {
+        link.closeConnection();
+      }
+      catch (IOException e) {}
+    }
+  }
+
+  /**
+   * Relays a message sent to everybody on this node.
+   *
+   * @param message The message.
+   */
+  public void broadcast(String message)
+  {
+    relayToAll(BROADCAST, "-", message);
+  }
+
+  /**
+   * Relays a notice, such as a user logging on, that is shown to
+   * everybody but kept out of the history.
+   *
+   * @param message The notice.
+   */
+  public void notice(String message)
+  {
+    relayToAll(NOTICE, "-", message);
+  }
+
+  /**
+   * Relays a whisper to the node of its recipient.
+   *
+   * @param user The login ID of the recipient.
+   * @param message The message.
+   * @return false if the recipient is on no other node that can be
+   *  reached.
+   */
+  public boolean whisper(String user, String message)
+  {
+    String member = directory.get(user);
+    PeerLink link = member == null ? null : links.get(member);
+    return link != null && link.send(relay(WHISPER, user, message));
+  }
+
+  /**
+   * Tells the other nodes that a user logged on to this one.
+   *
+   * @param user The login ID.
+   */
+  public void userJoined(String user)
+  {
+    relayToAll(JOINED, user, "");
+  }
+
+  /**
+   * Tells the other nodes that a user logged off from this one.
+   *
+   * @param user The login ID.
+   */
+  public void userLeft(String user)
+  {
+    relayToAll(LEFT, user, "");
+  }
+
+  /**
+   * Checks that a client introducing itself as a peer is one: the address
+   * it gives must be that of another member, the HMAC must prove it knows
+   * the secret, and it must connect from that member's host.
+   *
+   * @param member The address the client gives, "host:port".
+   * @param hmac The HMAC the client gives, in hex.
+   * @param from The address the client connects from.
+   * @return true if the client is the member it says.
+   */
+  public boolean acceptPeer(String member, String hmac, InetAddress from)
+  {
+    if (from == null || !links.containsKey(member) || hmac == null)
+      return false;
+    byte[] expected = sign(member).getBytes(StandardCharsets.US_ASCII);
+    if (!MessageDigest.isEqual(expected,
+      hmac.getBytes(StandardCharsets.US_ASCII)))
+      return false;
+    try
+    {
+      for (InetAddress candidate : InetAddress.getAllByName(
+        member.substring(0, member.lastIndexOf(':'))))
+      {
+        if (candidate.equals(from))
+          return true;
+      }
+      return false;
+    }
+    catch (UnknownHostException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Handles a message relayed by another node. Every node relays only the
+   * messages that start on it, so a message is dropped unless it comes
+   * from the node its id names.
+   *
+   * @param message The #relay message.
+   * @param peer The address of the peer it came from, as accepted by
+   *  <code>acceptPeer</code>.
+   */
+  public void receive(String message, String peer)
+  {
+    String[] relay = message.split(" ", 5);
+    if (relay.length < 5)
+      return;
+    int slash = relay[1].indexOf('/');
+    if (slash <= 0 || !relay[1].substring(0, slash).equals(peer)
+      || !remember(relay[1]))
+      return;
+    String kind = relay[2];
+    String user = relay[3];
+
+    if (kind.equals(BROADCAST))
+      node.deliverBroadcast(relay[4], true);
+    else if (kind.equals(NOTICE))
+      node.deliverBroadcast(relay[4], false);
+    else if (kind.equals(WHISPER))
+      node.deliverWhisper(user, relay[4]);
+    else if (kind.equals(JOINED))
+      directory.put(user, peer);
+    else if (kind.equals(LEFT))
+      directory.remove(user, peer);
+  }
+
+  //Accessing methods ***********************************************
+
+  /**
+   * @return the address of this node.
+   */
+  public String getAddress()
+  {
+    return address;
+  }
+
+  /**
+   * @param user The login ID of a user.
+   * @return the address of the other node the user is logged on to, or
+   *  null.
+   */
+  public String getNode(String user)
+  {
+    return directory.get(user);
+  }
+
+  /**
+   * @return the number of links to other nodes that are up.
+   */
+  public int getConnectedCount()
+  {
+    int count = 0;
+    for (PeerLink link : links.values())
+    {
+      if (link.isConnected())
+        count++;
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of messages dropped because a link was down or
+   *  too far behind.
+   */
+  public long getDroppedCount()
+  {
+    long count = 0;
+    for (PeerLink link : links.values())
+      count += link.getDropped();
+    return count;
+  }
+
+  //Methods used by the links ***************************************
+
+  /**
+   * @return the message by which a link introduces this node to a peer.
+   */
+  String introduction()
+  {
+    return "#peer " + address + " " + sign(address);
+  }
+
+  /**
+   * Called when a link is opened: tells the peer who is logged on here.
+   */
+  void linkUp(PeerLink link)
+  {
+    for (String user : node.getLocalUsers())
+      link.send(relay(JOINED, user, ""));
+  }
+
+  /**
+   * Called when a link goes down: the users of the peer cannot be
+   * reached until it is back and says who they are again.
+   */
+  void linkDown(PeerLink link)
+  {
+    directory.values().removeIf(link.getAddress()::equals);
+  }
+
+  //Private methods *************************************************
+
+  /**
+   * @return the HMAC of a node address, in lowercase hex.
+   */
+  private String sign(String member)
+  {
+    try
+    {
+      Mac mac = Mac.getInstance(MAC);
+      mac.init(key);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : mac.doFinal(member.getBytes(StandardCharsets.UTF_8)))
+        hex.append(String.format("%02x", b));
+      return hex.toString();
+    }
+    catch (GeneralSecurityException e)
+    {
+      // Every JRE has HmacSHA256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private String relay(String kind, String user, String message)
+  {
+    return "#relay " + address + "/" + epoch + "/"
+      + sequence.incrementAndGet() + " " + kind + " " + user + " " + message;
+  }
+
+  private void relayToAll(String kind, String user, String message)
+  {
+    if (links.isEmpty())
+      return;
+    String relay = relay(kind, user, message);
+    for (PeerLink link : links.values())
+      link.send(relay);
+  }
+
+  /**
+   * @return false if the message was received before.
+   */
+  private boolean remember(String id)
+  {
+    synchronized (seen)
+    {
+      return seen.add(id);
+    }
+  }
+
+  /**
+   * Opens the links that are down, every second.
+   */
+  private void runConnector()
+  {
+    while (connector == Thread.currentThread())
+    {
+      for (PeerLink link : links.values())
+      {
+        if (!link.isConnected())
+        {
+          try
+          {
+            link.connect();
+            linkUp(link);
+          }
+          catch (IOException e) {}
+        }
+      }
+      try
+      {
+        Thread.sleep(RECONNECT_MILLIS);
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+    }
+  }
+}
+//End of Federation class
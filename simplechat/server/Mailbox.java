@@ -0,0 +1,435 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A disk-backed store of the messages addressed to users who are not
+ * connected, kept until they next log on.
+ * <p>
+ * The store is one append-only file. A message is a record holding its
+ * recipient, a sequence number, the time and the text; when a user's
+ * messages have been delivered, a record saying so is appended instead of
+ * rewriting anything. An index in memory gives, for every user, where
+ * their messages are in the file, so a lookup reads those records and no
+ * others. The index is rebuilt from the record headers when the store is
+ * opened.
+ * <p>
+ * Each user's mailbox is bounded, and so is the file. When more than half
+ * of the file is delivered messages, the live records are copied to a new
+ * file that replaces the old one.
+ * <p>
+ * Every write is forced to disk before the method returns.
+ */
+public class Mailbox implements Closeable
+{
+  //Class variables *************************************************
+
+  /**
+   * The record types.
+   */
+  private static final byte MESSAGE = 0;
+  private static final byte DELIVERED = 1;
+
+  /**
+   * Length, CRC-32, type and sequence number.
+   */
+  private static final int HEADER = 17;
+
+  /**
+   * A message waiting in the file.
+   */
+  private static final class Entry
+  {
+    final long sequence;
+    final long position;
+    final int length;
+
+    Entry(long sequence, long position, int length)
+    {
+      this.sequence = sequence;
+      this.position = position;
+      this.length = length;
+    }
+  }
+
+  //Instance variables **********************************************
+
+  private final File file;
+  private FileChannel channel;
+
+  /**
+   * The waiting messages of every user who has any, oldest first.
+   */
+  private final HashMap<String, ArrayDeque<Entry>> index =
+    new HashMap<String, ArrayDeque<Entry>>();
+
+  private long nextSequence = 1;
+
+  /**
+   * The bytes of the file taken by waiting messages.
+   */
+  private long liveBytes;
+
+  private int userLimit = 100;
+  private long fileLimit = 64L * 1024 * 1024;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a store kept in a file. Nothing is read or written until
+   * the store is opened.
+   *
+   * @param file The file.
+   */
+  public Mailbox(File file)
+  {
+    this.file = file;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Opens the store and indexes the messages waiting in it. A record
+   * that does not check out ends the file; it is cut off there.
+   *
+   * @throws IOException if the file cannot be read.
+   */
+  public synchronized void open() throws IOException
+  {
+    if (channel != null)
+      return;
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+      StandardOpenOption.READ, StandardOpenOption.WRITE);
+    index.clear();
+    liveBytes = 0;
+
+    long position = 0;
+    long size = channel.size();
+    ByteBuffer header = ByteBuffer.allocate(HEADER);
+    while (position + HEADER <= size)
+    {
+      header.clear();
+      if (!readFully(header, position))
+        break;
+      int length = header.getInt(0);
+      if (length < HEADER || length > size - position)
+        break;
+      ByteBuffer record = read(position, length);
+      if (record == null)
+        break;
+
+      long sequence = record.getLong(9);
+      String user = readUser(record);
+      if (record.get(8) == MESSAGE)
+        add(user, new Entry(sequence, position, length));
+      else
+        remove(user, sequence);
+      nextSequence = Math.max(nextSequence, sequence + 1);
+      position += length;
+    }
+    channel.truncate(position);
+  }
+
+  /**
+   * Stores a message for a user.
+   *
+   * @param user The login ID of the recipient.
+   * @param message The message.
+   * @return false if the user's mailbox or the store is full.
+   * @throws IOException if the message cannot be written.
+   */
+  public synchronized boolean put(String user, String message)
+    throws IOException
+  {
+    ArrayDeque<Entry> waiting = index.get(user);
+    if (waiting != null && waiting.size() >= userLimit)
+      return false;
+
+    long sequence = nextSequence;
+    ByteBuffer record = record(MESSAGE, sequence, user, message);
+    if (channel.size() + record.remaining() > fileLimit)
+    {
+      compact();
+      if (channel.size() + record.remaining() > fileLimit)
+        return false;
+    }
+    long position = channel.size();
+    int length = record.remaining();
+    write(record, position);
+    nextSequence++;
+    add(user, new Entry(sequence, position, length));
+    return true;
+  }
+
+  /**
+   * Hands the messages waiting for a user to a visitor, oldest first,
+   * and forgets the ones it accepted. The messages are read while the
+   * store is locked, but visited after it is unlocked, so a slow visitor
+   * holds up nobody else. A user's messages must not be drained by two
+   * threads at once.
+   *
+   * @param user The login ID of the user.
+   * @param visitor Receives the messages; a message it throws on and the
+   *  ones after it are kept for next time.
+   * @return the number of messages delivered.
+   * @throws IOException if the store cannot be read or written.
+   */
+  public int drain(String user, MessageLog.Visitor visitor) throws IOException
+  {
+    List<long[]> headers = new ArrayList<long[]>();
+    List<String> messages = new ArrayList<String>();
+    synchronized (this)
+    {
+      ArrayDeque<Entry> waiting = index.get(user);
+      if (waiting == null)
+        return 0;
+      for (Entry entry : waiting)
+      {
+        ByteBuffer record = read(entry.position, entry.length);
+        if (record == null)
+          throw new StreamCorruptedException("corrupted mailbox record");
+        int time = timeOffset(record);
+        headers.add(new long[] { entry.sequence, record.getLong(time) });
+        messages.add(new String(record.array(), time + 12,
+          record.getInt(time + 8), StandardCharsets.UTF_8));
+      }
+    }
+
+    long delivered = 0;
+    int count = 0;
+    try
+    {
+      for (int i = 0; i < messages.size(); i++)
+      {
+        visitor.visit(headers.get(i)[0], headers.get(i)[1], messages.get(i));
+        delivered = headers.get(i)[0];
+        count++;
+      }
+    }
+    finally
+    {
+      if (count > 0)
+        delivered(user, delivered);
+    }
+    return count;
+  }
+
+  /**
+   * @param user The login ID of a user.
+   * @return the number of messages waiting for the user.
+   */
+  public synchronized int getCount(String user)
+  {
+    ArrayDeque<Entry> waiting = index.get(user);
+    return waiting == null ? 0 : waiting.size();
+  }
+
+  /**
+   * Closes the store.
+   */
+  public synchronized void close()
+  {
+    if (channel == null)
+      return;
+    try
+    {
+      channel.close();
+    }
+    catch (IOException e) {}
+    channel = null;
+  }
+
+  //Accessing methods ***********************************************
+
+  /**
+   * Sets how many messages can wait for one user. The default is 100.
+   *
+   * @param userLimit The number of messages.
+   */
+  public synchronized void setUserLimit(int userLimit)
+  {
+    this.userLimit = userLimit;
+  }
+
+  /**
+   * Sets how large the file can grow. The default is 64 MB.
+   *
+   * @param fileLimit The size in bytes.
+   */
+  public synchronized void setFileLimit(long fileLimit)
+  {
+    this.fileLimit = fileLimit;
+  }
+
+  //Private methods *************************************************
+
+  /**
+   * Records that a user's messages up to a sequence number were
+   * delivered, and compacts the file if it is mostly delivered messages.
+   */
+  private synchronized void delivered(String user, long sequence)
+    throws IOException
+  {
+    write(record(DELIVERED, sequence, user, null), channel.size());
+    remove(user, sequence);
+    if (channel.size() > 2 * liveBytes + 64 * 1024)
+      compact();
+  }
+
+  /**
+   * Copies the waiting messages to a new file, which replaces the store.
+   * If a message cannot be read back whole, the store is left as it was.
+   */
+  private void compact() throws IOException
+  {
+    File compacted = new File(file.getPath() + ".tmp");
+    HashMap<String, ArrayDeque<Entry>> moved =
+      new HashMap<String, ArrayDeque<Entry>>();
+    try (FileChannel out = FileChannel.open(compacted.toPath(),
+      StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+      StandardOpenOption.WRITE))
+    {
+      long position = 0;
+      for (Map.Entry<String, ArrayDeque<Entry>> user : index.entrySet())
+      {
+        ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+        for (Entry entry : user.getValue())
+        {
+          ByteBuffer record = read(entry.position, entry.length);
+          if (record == null)
+          {
+            out.close();
+            Files.delete(compacted.toPath());
+            throw new IOException("cannot read the message at "
+              + entry.position + " of " + file);
+          }
+          record.flip();
+          while (record.hasRemaining())
+            out.write(record, position + record.position());
+          entries.add(new Entry(entry.sequence, position, entry.length));
+          position += entry.length;
+        }
+        moved.put(user.getKey(), entries);
+      }
+      out.force(true);
+    }
+
+    Files.move(compacted.toPath(), file.toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    channel.close();
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+      StandardOpenOption.WRITE);
+    index.clear();
+    index.putAll(moved);
+  }
+
+  private void add(String user, Entry entry)
+  {
+    ArrayDeque<Entry> waiting = index.get(user);
+    if (waiting == null)
+    {
+      waiting = new ArrayDeque<Entry>();
+      index.put(user, waiting);
+    }
+    waiting.add(entry);
+    liveBytes += entry.length;
+  }
+
+  private void remove(String user, long sequence)
+  {
+    ArrayDeque<Entry> waiting = index.get(user);
+    if (waiting == null)
+      return;
+    while (!waiting.isEmpty() && waiting.peek().sequence <= sequence)
+      liveBytes -= waiting.poll().length;
+    if (waiting.isEmpty())
+      index.remove(user);
+  }
+
+  /**
+   * Builds a record: the header, then the user, then for a message the
+   * time and the text.
+   */
+  private static ByteBuffer record(byte type, long sequence, String user,
+    String message)
+  {
+    byte[] id = user.getBytes(StandardCharsets.UTF_8);
+    byte[] text = message == null ?
+      new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+    int length = HEADER + 2 + id.length + (message == null ? 0 : 8 + 4 + text.length);
+
+    ByteBuffer record = ByteBuffer.allocate(length);
+    record.putInt(length).putInt(0).put(type).putLong(sequence);
+    record.putShort((short)id.length).put(id);
+    if (message != null)
+      record.putLong(System.currentTimeMillis()).putInt(text.length).put(text);
+
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 8, length - 8);
+    record.putInt(4, (int)crc.getValue());
+    record.flip();
+    return record;
+  }
+
+  /**
+   * Reads a whole record and checks it.
+   *
+   * @return the record, or null if it does not check out.
+   */
+  private ByteBuffer read(long position, int length) throws IOException
+  {
+    ByteBuffer record = ByteBuffer.allocate(length);
+    if (!readFully(record, position))
+      return null;
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 8, length - 8);
+    return (int)crc.getValue() == record.getInt(4) ? record : null;
+  }
+
+  /**
+   * Fills an empty buffer from the store, however many reads it takes.
+   *
+   * @return false if the end of the file came first.
+   */
+  private boolean readFully(ByteBuffer buffer, long position)
+    throws IOException
+  {
+    while (buffer.hasRemaining())
+    {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the user a record is about.
+   */
+  private static String readUser(ByteBuffer record)
+  {
+    return new String(record.array(), HEADER + 2, record.getShort(HEADER),
+      StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return where the time of a message record is, followed by the text.
+   */
+  private static int timeOffset(ByteBuffer record)
+  {
+    return HEADER + 2 + record.getShort(HEADER);
+  }
+
+  private void write(ByteBuffer record, long position) throws IOException
+  {
+    while (record.hasRemaining())
+      channel.write(record, position + record.position());
+    channel.force(false);
+  }
+}
+//End of Mailbox class
@@ -0,0 +1,555 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only log of chat messages. Every message gets the next
+ * sequence number and is written into a memory-mapped segment file; when a
+ * segment is full, a new one is started. Segments are named after the
+ * sequence number of their first message.
+ * <p>
+ * Writing a message only copies it into the mapping, so the message
+ * survives the server process but not yet the machine. A background thread
+ * forces the mapping to disk every sync interval, once for all the messages
+ * appended in between (group commit). <code>append</code> does not wait for
+ * that, so durability lags by up to one sync interval, 100 milliseconds by
+ * default: a crash of the machine can lose the messages appended last.
+ * Callers that cannot accept it call <code>sync</code>, which waits until
+ * what they appended is on disk.
+ * <p>
+ * Messages are read back in place from the mapped segments, one at a time,
+ * so replaying a long history never brings all of it onto the heap. Old
+ * segments are deleted once the log grows past its size limit or their
+ * messages are older than its age limit; the segment being written is never
+ * deleted.
+ * <p>
+ * On disk, a message is a 24-byte header (payload length, CRC-32 of the
+ * rest, sequence number, time in milliseconds) followed by the message in
+ * UTF-8. Segment files are allocated at full size; after a crash, a segment
+ * is read up to the first message that does not check out.
+ */
+public class MessageLog implements Closeable
+{
+  //Class variables *************************************************
+
+  /**
+   * The length of a message header.
+   */
+  private static final int HEADER = 24;
+
+  /**
+   * The extension of segment files.
+   */
+  private static final String SUFFIX = ".log";
+
+  /**
+   * Receives the messages of a replay.
+   */
+  public interface Visitor
+  {
+    /**
+     * @param sequence the sequence number of the message.
+     * @param time when the message was appended, in milliseconds.
+     * @param message the message.
+     * @throws IOException to stop the replay.
+     */
+    void visit(long sequence, long time, String message) throws IOException;
+  }
+
+  /**
+   * A segment file and its mapping.
+   */
+  private static final class Segment
+  {
+    final File file;
+    final long base;
+    final MappedByteBuffer buffer;
+
+    /**
+     * The end of the last message; readers never look past it.
+     */
+    volatile int end;
+    volatile long lastTime;
+
+    Segment(File file, long base, MappedByteBuffer buffer)
+    {
+      this.file = file;
+      this.base = base;
+      this.buffer = buffer;
+    }
+  }
+
+  //Instance variables **********************************************
+
+  private final File directory;
+
+  /**
+   * The segments by the sequence number of their first message.
+   */
+  private final ConcurrentSkipListMap<Long, Segment> segments =
+    new ConcurrentSkipListMap<Long, Segment>();
+
+  /**
+   * The segment being written.
+   */
+  private volatile Segment active;
+
+  private long nextSequence = 1;
+  private volatile long lastSequence;
+
+  private int segmentSize = 16 * 1024 * 1024;
+  private long retentionBytes = 1024L * 1024 * 1024;
+  private long retentionMillis = 7L * 24 * 60 * 60 * 1000;
+  private long syncInterval = 100;
+
+  /**
+   * Guards the group commit.
+   */
+  private final Object syncLock = new Object();
+  private long syncedSequence;
+  private boolean syncRequested;
+  private volatile boolean closed = true;
+  private Thread syncer;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a log kept in a directory. Nothing is read or written
+   * until the log is opened.
+   *
+   * @param directory The directory of the segment files.
+   */
+  public MessageLog(File directory)
+  {
+    this.directory = directory;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Opens the log, reading back the segments already in its directory.
+   *
+   * @throws IOException if the segments cannot be read.
+   */
+  public synchronized void open() throws IOException
+  {
+    if (!closed)
+      return;
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("cannot create " + directory);
+
+    segments.clear();
+    TreeMap<Long, File> files = new TreeMap<Long, File>();
+    File[] list = directory.listFiles();
+    for (File file : list == null ? new File[0] : list)
+    {
+      String name = file.getName();
+      if (name.endsWith(SUFFIX))
+      {
+        try
+        {
+          files.put(Long.parseLong(
+            name.substring(0, name.length() - SUFFIX.length())), file);
+        }
+        catch (NumberFormatException e) {}
+      }
+    }
+
+    for (Map.Entry<Long, File> entry : files.entrySet())
+    {
+      boolean last = entry.getKey().equals(files.lastKey());
+      Segment segment = map(entry.getValue(), entry.getKey(), last);
+      if (segment.end == 0 && !last)
+        entry.getValue().delete(); // nothing survived in it
+      else
+        segments.put(segment.base, segment);
+    }
+
+    active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+    if (active != null)
+      nextSequence = active.base + count(active);
+    lastSequence = nextSequence - 1;
+    syncedSequence = lastSequence;
+
+    closed = false;
+    syncer = new Thread(this::runSyncer, "MessageLog sync");
+    syncer.setDaemon(true);
+    syncer.start();
+  }
+
+  /**
+   * Appends a message to the log.
+   *
+   * @param message The message.
+   * @return the sequence number of the message.
+   * @throws IOException if the log is closed, the message is longer
+   *  than a segment or a new segment cannot be created.
+   */
+  public synchronized long append(String message) throws IOException
+  {
+    if (closed)
+      throw new IOException("message log is closed");
+    byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+    int length = HEADER + payload.length;
+    if (length > segmentSize)
+      throw new IOException("message too long for a segment: "
+        + payload.length + " bytes");
+
+    Segment segment = active;
+    if (segment == null || segment.end + length > segment.buffer.capacity())
+      segment = roll();
+
+    long sequence = nextSequence++;
+    long time = System.currentTimeMillis();
+    int position = segment.end;
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(position + 8);
+    buffer.putLong(sequence).putLong(time).put(payload);
+
+    CRC32 crc = new CRC32();
+    buffer.position(position + 8);
+    buffer.limit(position + length);
+    crc.update(buffer);
+    buffer.limit(buffer.capacity());
+    buffer.putInt(position, payload.length);
+    buffer.putInt(position + 4, (int)crc.getValue());
+
+    segment.lastTime = time;
+    segment.end = position + length; // publishes the message to readers
+    lastSequence = sequence;
+    return sequence;
+  }
+
+  /**
+   * Waits until every message appended so far is on disk. Callers that
+   * sync at the same time share one write to disk.
+   *
+   * @throws InterruptedIOException if the thread is interrupted.
+   */
+  public void sync() throws InterruptedIOException
+  {
+    long target = lastSequence;
+    synchronized (syncLock)
+    {
+      syncRequested = true;
+      syncLock.notifyAll();
+      while (syncedSequence < target && !closed)
+      {
+        try
+        {
+          syncLock.wait();
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+    }
+  }
+
+  /**
+   * Replays the messages whose sequence number is at least the one
+   * given, oldest first, as far as the log still has them. Messages
+   * appended during the replay may or may not be included.
+   *
+   * @param sequence The sequence number to start from.
+   * @param visitor Receives the messages.
+   * @throws IOException if the visitor throws it.
+   */
+  public void replaySince(long sequence, Visitor visitor) throws IOException
+  {
+    Long start = segments.floorKey(sequence);
+    Collection<Segment> from = start == null ?
+      segments.values() : segments.tailMap(start, true).values();
+
+    for (Segment segment : from)
+    {
+      ByteBuffer buffer = segment.buffer.duplicate();
+      int end = segment.end;
+      int position = 0;
+      while (position < end)
+      {
+        int length = buffer.getInt(position);
+        long current = buffer.getLong(position + 8);
+        if (current >= sequence)
+        {
+          byte[] payload = new byte[length];
+          buffer.position(position + HEADER);
+          buffer.get(payload);
+          visitor.visit(current, buffer.getLong(position + 16),
+            new String(payload, StandardCharsets.UTF_8));
+        }
+        position += HEADER + length;
+      }
+    }
+  }
+
+  /**
+   * Replays the last messages of the log, oldest first.
+   *
+   * @param count The number of messages.
+   * @param visitor Receives the messages.
+   * @throws IOException if the visitor throws it.
+   */
+  public void replayLast(int count, Visitor visitor) throws IOException
+  {
+    replaySince(Math.max(1, lastSequence - count + 1), visitor);
+  }
+
+  /**
+   * Closes the log, writing what it holds to disk first.
+   */
+  public void close()
+  {
+    Thread thread;
+    synchronized (this)
+    {
+      if (closed)
+        return;
+      synchronized (syncLock)
+      {
+        closed = true;
+        syncLock.notifyAll();
+      }
+      if (active != null)
+        active.buffer.force();
+      thread = syncer;
+      syncer = null;
+    }
+    try
+    {
+      thread.join();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  //Accessing methods ***********************************************
+
+  /**
+   * @return the sequence number of the last message, or 0 if none was
+   *  ever appended.
+   */
+  public long getLastSequence()
+  {
+    return lastSequence;
+  }
+
+  /**
+   * @return the sequence number of the oldest message kept.
+   */
+  public long getFirstSequence()
+  {
+    Map.Entry<Long, Segment> first = segments.firstEntry();
+    return first == null ? lastSequence + 1 : first.getKey();
+  }
+
+  /**
+   * Sets the size of new segment files. The default is 16 MB.
+   *
+   * @param segmentSize The size in bytes.
+   */
+  public synchronized void setSegmentSize(int segmentSize)
+  {
+    if (segmentSize < HEADER + 1)
+      throw new IllegalArgumentException("segment too small: " + segmentSize);
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Sets how many bytes of messages are kept at most, the segment being
+   * written excepted. The default is 1 GB; 0 means no limit.
+   *
+   * @param retentionBytes The limit in bytes.
+   */
+  public synchronized void setRetentionBytes(long retentionBytes)
+  {
+    this.retentionBytes = retentionBytes;
+  }
+
+  /**
+   * Sets how old messages can get before they are deleted, a segment
+   * at a time. The default is a week; 0 means no limit.
+   *
+   * @param retentionMillis The age in milliseconds.
+   */
+  public synchronized void setRetentionMillis(long retentionMillis)
+  {
+    this.retentionMillis = retentionMillis;
+  }
+
+  /**
+   * Sets how often appended messages are written to disk. The default
+   * is 100 milliseconds.
+   *
+   * @param syncInterval The interval in milliseconds.
+   */
+  public void setSyncInterval(long syncInterval)
+  {
+    if (syncInterval <= 0)
+      throw new IllegalArgumentException("interval must be positive");
+    this.syncInterval = syncInterval;
+  }
+
+  //Private methods *************************************************
+
+  /**
+   * Starts a new segment, once the current one is on disk.
+   */
+  private Segment roll() throws IOException
+  {
+    if (active != null)
+      active.buffer.force();
+
+    long base = nextSequence;
+    File file = new File(directory, String.format("%020d%s", base, SUFFIX));
+    Segment segment;
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+      StandardOpenOption.CREATE, StandardOpenOption.READ,
+      StandardOpenOption.WRITE))
+    {
+      segment = new Segment(file, base,
+        channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+    }
+    segments.put(base, segment);
+    active = segment;
+    enforceRetention();
+    return segment;
+  }
+
+  /**
+   * Maps a segment file and finds the end of its last valid message.
+   */
+  private Segment map(File file, long base, boolean writable)
+    throws IOException
+  {
+    Segment segment;
+    try (FileChannel channel = writable ?
+      FileChannel.open(file.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE) :
+      FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      segment = new Segment(file, base, channel.map(writable ?
+        FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+        0, channel.size()));
+    }
+
+    ByteBuffer buffer = segment.buffer.duplicate();
+    CRC32 crc = new CRC32();
+    int position = 0;
+    long expected = base;
+    while (position + HEADER <= buffer.capacity())
+    {
+      int length = buffer.getInt(position);
+      if (length < 0 || length > buffer.capacity() - position - HEADER
+        || buffer.getLong(position + 8) != expected)
+        break;
+      crc.reset();
+      buffer.limit(position + HEADER + length);
+      buffer.position(position + 8);
+      crc.update(buffer);
+      buffer.limit(buffer.capacity());
+      if ((int)crc.getValue() != buffer.getInt(position + 4))
+        break;
+
+      segment.lastTime = buffer.getLong(position + 16);
+      position += HEADER + length;
+      expected++;
+    }
+    segment.end = position;
+    return segment;
+  }
+
+  /**
+   * @return the number of messages in a segment.
+   */
+  private static long count(Segment segment)
+  {
+    ByteBuffer buffer = segment.buffer.duplicate();
+    long count = 0;
+    for (int position = 0; position < segment.end; count++)
+      position += HEADER + buffer.getInt(position);
+    return count;
+  }
+
+  /**
+   * Deletes the oldest segments while the log is over its limits.
+   */
+  private synchronized void enforceRetention()
+  {
+    long total = 0;
+    for (Segment segment : segments.values())
+      total += segment.end;
+
+    long oldest = System.currentTimeMillis() - retentionMillis;
+    Iterator<Segment> iterator = segments.values().iterator();
+    while (iterator.hasNext())
+    {
+      Segment segment = iterator.next();
+      boolean tooBig = retentionBytes > 0 && total > retentionBytes;
+      boolean tooOld = retentionMillis > 0 && segment.lastTime < oldest;
+      if (segment == active || !(tooBig || tooOld))
+        break;
+      // Readers still holding the mapping can finish with it
+      iterator.remove();
+      total -= segment.end;
+      segment.file.delete();
+    }
+  }
+
+  /**
+   * Writes the messages appended since the last time to disk, at every
+   * sync interval or sooner when someone waits in <code>sync</code>.
+   */
+  private void runSyncer()
+  {
+    long lastRetention = System.currentTimeMillis();
+    while (true)
+    {
+      synchronized (syncLock)
+      {
+        if (!syncRequested && !closed)
+        {
+          try
+          {
+            syncLock.wait(syncInterval);
+          }
+          catch (InterruptedException e) {}
+        }
+        syncRequested = false;
+        if (closed)
+          return;
+      }
+
+      // Read the sequence first: a message appended after it may be in a
+      // segment started since, and a segment is forced when it is sealed
+      long target = lastSequence;
+      Segment segment = active;
+      if (segment != null && target > syncedSequence)
+        segment.buffer.force();
+      synchronized (syncLock)
+      {
+        syncedSequence = Math.max(syncedSequence, target);
+        syncLock.notifyAll();
+      }
+
+      if (System.currentTimeMillis() - lastRetention > 1000)
+      {
+        enforceRetention();
+        lastRetention = System.currentTimeMillis();
+      }
+    }
+  }
+}
+//End of MessageLog class
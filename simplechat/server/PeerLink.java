@@ -0,0 +1,114 @@
+package server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.ChatCodecs;
+import ocsf.client.AbstractClient;
+
+/**
+ * The connection a node of a federation opens to one of its peers, over
+ * which it sends the messages it relays to that peer. The peer sees it as
+ * a client that introduced itself with <code>#peer</code>; nothing is
+ * expected back.
+ */
+class PeerLink extends AbstractClient
+{
+  //Instance variables **********************************************
+
+  private final Federation federation;
+
+  /**
+   * The address of the peer, which is also its node name.
+   */
+  private final String address;
+
+  /**
+   * The number of messages that could not be relayed because the link
+   * was down or too far behind.
+   */
+  private final AtomicLong dropped = new AtomicLong();
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a link to a peer. The link is opened by the federation.
+   *
+   * @param federation The federation of this node.
+   * @param address The peer, as "host:port".
+   */
+  PeerLink(Federation federation, String address)
+  {
+    super(address.substring(0, address.lastIndexOf(':')),
+      Integer.parseInt(address.substring(address.lastIndexOf(':') + 1)),
+      ChatCodecs.codecs());
+    this.federation = federation;
+    this.address = address;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Opens the link and introduces this node to the peer.
+   *
+   * @throws IOException if the peer cannot be reached.
+   */
+  void connect() throws IOException
+  {
+    openConnection();
+    send(federation.introduction());
+  }
+
+  /**
+   * Queues a message for the peer without waiting for it to be written,
+   * so that a slow peer never holds up the server that relays to it. The
+   * message is counted as dropped if the link is down, if its queue is
+   * full, or if it cannot be written.
+   *
+   * @param message The message.
+   * @return false if the message was dropped at once.
+   */
+  boolean send(String message)
+  {
+    CompletableFuture<Void> future = sendAsync(message);
+    future.whenComplete((done, failure) -> {
+      if (failure != null)
+        dropped.incrementAndGet();
+    });
+    return !future.isCompletedExceptionally();
+  }
+
+  /**
+   * @return the address of the peer.
+   */
+  String getAddress()
+  {
+    return address;
+  }
+
+  /**
+   * @return the number of messages dropped because the link was down
+   *  or too far behind.
+   */
+  long getDropped()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * Peers do not answer; anything they send is ignored.
+   */
+  protected void handleMessageFromServer(Object msg) {}
+
+  protected void connectionClosed()
+  {
+    federation.linkDown(this);
+  }
+
+  protected void connectionException(Exception exception)
+  {
+    federation.linkDown(this);
+  }
+}
+//End of PeerLink class
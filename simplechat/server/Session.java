@@ -0,0 +1,252 @@
+package server;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+
+import ocsf.common.TokenBucket;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.EncodedMessage;
+
+/**
+ * What the server sends to a logged on user, numbered, so that a client
+ * whose connection drops can come back and be sent what it missed.
+ * <p>
+ * Every message sent through the session gets the next sequence number,
+ * and the last ones are kept. The numbers are not written on the wire: the
+ * session starts with a message giving the client its token, and the
+ * client counts the messages that follow. To resume, the client gives the
+ * token and its count on a new connection, and the session sends the
+ * messages after that count before anything else.
+ * <p>
+ * While no connection is attached the messages are only kept, so a client
+ * that comes back quickly misses nothing. The messages are kept encoded,
+ * and a message sent to many sessions is encoded once for all of them.
+ */
+public class Session
+{
+  //Class variables *************************************************
+
+  private static final SecureRandom TOKENS = new SecureRandom();
+
+  //Instance variables **********************************************
+
+  private final String loginID;
+
+  /**
+   * The secret a client gives to resume the session.
+   */
+  private final String token;
+
+  /**
+   * The rate limit the connections of the user share, or null.
+   */
+  private final TokenBucket rateLimit;
+
+  /**
+   * The last messages sent, by sequence number modulo the length.
+   */
+  private final EncodedMessage[] sent;
+
+  /**
+   * The number of messages sent.
+   */
+  private long sequence;
+
+  /**
+   * The connection the messages go to, or null while there is none.
+   */
+  private ConnectionToClient client;
+
+  /**
+   * The connection attached last, kept after it is detached.
+   */
+  private ConnectionToClient lastClient;
+
+  private long detachedAt;
+  private boolean ended;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a session without connection.
+   *
+   * @param loginID The login ID of the user.
+   * @param capacity The number of messages kept to be sent again.
+   * @param rateLimit The rate limit of the user, kept across
+   *  connections so that reconnecting does not reset it, or null.
+   */
+  public Session(String loginID, int capacity, TokenBucket rateLimit)
+  {
+    this.loginID = loginID;
+    this.token = Long.toHexString(TOKENS.nextLong());
+    this.rateLimit = rateLimit;
+    this.sent = new EncodedMessage[capacity];
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Sends a message to the user, or keeps it until a connection is
+   * attached. A message sent twice in a row, which happens when it
+   * reaches the session through both its old and new connection, is only
+   * sent once.
+   *
+   * @param msg The message; an <code>EncodedMessage</code> is sent as it
+   *  is.
+   */
+  public synchronized void send(Object msg)
+  {
+    if (ended || (sequence > 0 && msg == sent[index(sequence)])){
+      return;
+    }
+    EncodedMessage encoded = msg instanceof EncodedMessage ?
+      (EncodedMessage)msg : new EncodedMessage(msg);
+    sequence++;
+    sent[index(sequence)] = encoded;
+    if (client != null){
+      try{
+        client.sendToClient(encoded);
+      }
+      catch (IOException e){} //detached when the server notices
+    }
+  }
+
+  /**
+   * Attaches a connection to the session and sends it the messages it
+   * has not seen. A connection that was still attached, which the client
+   * has left without the server noticing, is closed.
+   *
+   * @param client The connection.
+   * @param since The number of messages the client has seen.
+   * @return true if the session is attached, false if it has ended or
+   *  the messages after <code>since</code> are not all kept.
+   */
+  public boolean attach(ConnectionToClient client, long since)
+  {
+    ConnectionToClient previous;
+    synchronized (this){
+      if (ended || since < sequence - sent.length || since > sequence){
+        return false;
+      }
+      previous = this.client;
+      this.client = client;
+      client.setSharedRateLimit(rateLimit);
+      lastClient = client;
+      try{
+        for (long i = since + 1; i <= sequence; i++){
+          client.sendToClient(sent[index(i)]);
+        }
+      }
+      catch (IOException e){}
+    }
+
+    if (previous != null && previous != client){
+      try{
+        previous.close();
+      }
+      catch (IOException e){}
+    }
+    return true;
+  }
+
+  /**
+   * Detaches a connection from the session, which keeps the messages
+   * sent from then on.
+   *
+   * @param client The connection.
+   * @return true if the connection was attached to the session.
+   */
+  public synchronized boolean detach(ConnectionToClient client)
+  {
+    if (ended || this.client != client){
+      return false;
+    }
+    this.client = null;
+    detachedAt = System.currentTimeMillis();
+    return true;
+  }
+
+  /**
+   * Ends the session: nothing more is sent or kept.
+   *
+   * @return true if the session had not ended already.
+   */
+  public synchronized boolean end()
+  {
+    if (ended){
+      return false;
+    }
+    ended = true;
+    client = null;
+    return true;
+  }
+
+  /**
+   * Ends the session if it has been without connection for some time.
+   *
+   * @param graceMillis How long the session waits for its client.
+   * @return true if the session has ended now.
+   */
+  public synchronized boolean expire(long graceMillis)
+  {
+    if (client != null || lastClient == null
+      || System.currentTimeMillis() - detachedAt < graceMillis){
+      return false;
+    }
+    return end();
+  }
+
+  /**
+   * @return the login ID of the user.
+   */
+  public String getLoginID()
+  {
+    return loginID;
+  }
+
+  /**
+   * @return the secret a client gives to resume the session.
+   */
+  public String getToken()
+  {
+    return token;
+  }
+
+  /**
+   * @return the number of messages sent so far.
+   */
+  public synchronized long getSequence()
+  {
+    return sequence;
+  }
+
+  /**
+   * @return the connection attached, or null.
+   */
+  public synchronized ConnectionToClient getClient()
+  {
+    return client;
+  }
+
+  /**
+   * @return the connection attached last, even if it is detached.
+   */
+  public synchronized ConnectionToClient getLastClient()
+  {
+    return lastClient;
+  }
+
+  /**
+   * @return true if a connection was attached and has been detached.
+   */
+  public synchronized boolean isDetached()
+  {
+    return !ended && client == null && lastClient != null;
+  }
+
+  private int index(long sequence)
+  {
+    return (int)(sequence % sent.length);
+  }
+}
+//End of Session class